@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/**
+* Contains the helpers shared by the benchmarks: creation of replicas, keys and values of a given
+* size. Keys and values are made of ASCII characters so their size is also their encoded size.
+**/
+public class MapCrdtBenchmarks
+{
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtBenchmarks()
+   {
+   }
+
+   /**
+   * Creates distinct keys of a given size.
+   * @param count the number of keys.
+   * @param size the number of characters of a key, at least 8.
+   * @return the keys.
+   **/
+   public static String[] keys(int count, int size)
+   {
+      String[] keys = new String[count];
+
+      for (int i = 0; i < count; i++)
+      {
+         keys[i] = pad("K" + i, size);
+      }
+
+      return keys;
+   }
+
+   /**
+   * Creates a replica of a given implementation.
+   * @param implementation the simple name of the class of the replica: MapCrdt,
+   * ConcurrentMapCrdt, ShardedMapCrdt, EventLoopMapCrdt or OffHeapMapCrdt.
+   * @return the new replica.
+   **/
+   public static MapCrdt newReplica(String implementation)
+   {
+      if (implementation.equals("MapCrdt") == true)
+      {
+         return new MapCrdt();
+      }
+
+      if (implementation.equals("ConcurrentMapCrdt") == true)
+      {
+         return new ConcurrentMapCrdt();
+      }
+
+      if (implementation.equals("ShardedMapCrdt") == true)
+      {
+         return new ShardedMapCrdt();
+      }
+
+      if (implementation.equals("EventLoopMapCrdt") == true)
+      {
+         return new EventLoopMapCrdt();
+      }
+
+      if (implementation.equals("OffHeapMapCrdt") == true)
+      {
+         return new OffHeapMapCrdt();
+      }
+
+      throw new IllegalArgumentException("Unknown implementation " + implementation + ".");
+   }
+
+   /**
+   * Stops the threads of a replica created by newReplica, if it has any.
+   * @param replica the replica, which should not be used anymore.
+   **/
+   public static void closeReplica(MapCrdt replica)
+   {
+      if (replica instanceof EventLoopMapCrdt)
+      {
+         ((EventLoopMapCrdt) replica).close();
+      }
+   }
+
+   /**
+   * Pads a string with a filler character up to a given size.
+   * @param prefix the beginning of the string.
+   * @param size the number of characters of the string.
+   * @return the padded string, or the prefix if it is longer than the size.
+   **/
+   protected static String pad(String prefix, int size)
+   {
+      if (prefix.length() >= size)
+      {
+         return prefix;
+      }
+
+      char[] characters = new char[size];
+      Arrays.fill(characters, '_');
+      prefix.getChars(0, prefix.length(), characters, 0);
+
+      return new String(characters);
+   }
+
+   /**
+   * Puts a key value pair with a given timestamp into a replica, so that benchmarks control which
+   * entries win the merges.
+   * @param replica the replica.
+   * @param key the key.
+   * @param time the timestamp of the PUT.
+   * @param value the value.
+   **/
+   public static void put(MapCrdt replica, String key, long time, String value)
+   {
+      replica.mergeEntry(key, new MapCrdtLogEntry(replica.getReplicaId(), time,
+                                                  MapCrdtLogEntry.Type.PUT, value));
+   }
+
+   /**
+   * Creates a value of a given size.
+   * @param size the number of characters of the value.
+   * @return the value.
+   **/
+   public static String value(int size)
+   {
+      return pad("V", size);
+   }
+}
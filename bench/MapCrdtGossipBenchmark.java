@@ -0,0 +1,183 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Measures the time a cluster of nReplicas replicas takes to converge by gossip, each replica
+* having modified keysPerReplica keys of its own and one shared key. The number of bytes of the
+* deltas sent until convergence is reported as the bytes counter.
+**/
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class MapCrdtGossipBenchmark
+{
+   /**
+   * The way of selecting the peers of a round.
+   **/
+   @Param({"RANDOM", "ROUND_ROBIN"})
+   public MapCrdtGossip.Selection selection;
+
+   /**
+   * The number of peers selected by a round.
+   **/
+   @Param({"1", "3"})
+   public int fanout;
+
+   /**
+   * The number of replicas of the cluster.
+   **/
+   @Param({"50"})
+   public int nReplicas;
+
+   /**
+   * The number of keys modified by each replica.
+   **/
+   @Param({"100"})
+   public int keysPerReplica;
+
+   /**
+   * The replicas of the cluster, rebuilt before every convergence.
+   **/
+   protected MapCrdt[] replicas;
+
+   /**
+   * The gossip of each replica.
+   **/
+   protected MapCrdtGossip[] gossips;
+
+   /**
+   * The executor running the rounds of every gossip.
+   **/
+   protected ScheduledExecutorService scheduler;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtGossipBenchmark()
+   {
+   }
+
+   /**
+   * Counts the bytes sent until convergence.
+   **/
+   @AuxCounters(AuxCounters.Type.EVENTS)
+   @State(Scope.Thread)
+   public static class Bandwidth
+   {
+      /**
+      * The number of bytes of the deltas sent.
+      **/
+      public long bytes;
+
+      /**
+      * Default constructor.
+      **/
+      public Bandwidth()
+      {
+      }
+   }
+
+   /**
+   * Creates the executor running the rounds.
+   **/
+   @Setup(Level.Trial)
+   public void setUp()
+   {
+      this.scheduler = Executors.newScheduledThreadPool(4);
+   }
+
+   /**
+   * Stops the executor running the rounds.
+   **/
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      this.scheduler.shutdown();
+   }
+
+   /**
+   * Creates the replicas and their gossips, not started.
+   **/
+   @Setup(Level.Invocation)
+   public void resetCluster()
+   {
+      String value = MapCrdtBenchmarks.value(16);
+      this.replicas = new MapCrdt[this.nReplicas];
+      this.gossips = new MapCrdtGossip[this.nReplicas];
+
+      for (int i = 0; i < this.nReplicas; i++)
+      {
+         this.replicas[i] = new ConcurrentMapCrdt();
+         String[] keys = MapCrdtBenchmarks.keys(this.keysPerReplica, 16);
+         for (String key : keys)
+         {
+            this.replicas[i].put(i + "_" + key, value);
+         }
+         this.replicas[i].put("SHARED", value);
+      }
+
+      for (int i = 0; i < this.nReplicas; i++)
+      {
+         this.gossips[i] = new MapCrdtGossip(this.replicas[i], this.fanout, this.selection, 1, 64,
+                                             MapCrdtGossip.DEFAULT_MAX_PENDING_DELTAS,
+                                             this.scheduler);
+         for (MapCrdt peer : this.replicas)
+         {
+            this.gossips[i].addPeer(peer);
+         }
+      }
+   }
+
+   /**
+   * Starts the gossips and waits until every replica has the logs of the first one.
+   * @param bandwidth the counter of the bytes sent.
+   * @return the number of rounds run by the gossip of the first replica.
+   **/
+   @Benchmark
+   public long converge(Bandwidth bandwidth) throws InterruptedException
+   {
+      for (MapCrdtGossip gossip : this.gossips)
+      {
+         gossip.start();
+      }
+
+      boolean converged = false;
+      while (converged == false)
+      {
+         Thread.sleep(1);
+
+         converged = true;
+         long hash = this.replicas[0].getMerkleTree().getRootHash();
+         for (MapCrdt replica : this.replicas)
+         {
+            converged = converged && replica.getMerkleTree().getRootHash() == hash;
+         }
+      }
+
+      for (MapCrdtGossip gossip : this.gossips)
+      {
+         gossip.close();
+         bandwidth.bytes += gossip.getBytesSent();
+      }
+
+      return this.gossips[0].getRounds();
+   }
+}
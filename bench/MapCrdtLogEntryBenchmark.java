@@ -0,0 +1,81 @@
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Measures the comparison of log entries, which decides every conflict of a merge. Each benchmark
+* reaches a different step of the comparison: timestamps, replicas' ids, then types.
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MapCrdtLogEntryBenchmark
+{
+   /**
+   * An entry.
+   **/
+   protected MapCrdtLogEntry entry = new MapCrdtLogEntry(1, 1000, MapCrdtLogEntry.Type.PUT, "V");
+
+   /**
+   * An entry with a greater timestamp.
+   **/
+   protected MapCrdtLogEntry later = new MapCrdtLogEntry(1, 2000, MapCrdtLogEntry.Type.PUT, "V");
+
+   /**
+   * An entry with the same timestamp from an other replica.
+   **/
+   protected MapCrdtLogEntry otherReplica =
+      new MapCrdtLogEntry(2, 1000, MapCrdtLogEntry.Type.PUT, "V");
+
+   /**
+   * The deletion of the entry.
+   **/
+   protected MapCrdtLogEntry deleted = this.entry.delete();
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtLogEntryBenchmark()
+   {
+   }
+
+   /**
+   * Compares entries with different timestamps.
+   * @return the result of the comparison.
+   **/
+   @Benchmark
+   public int compareTime()
+   {
+      return this.entry.compareTo(this.later);
+   }
+
+   /**
+   * Compares entries with the same timestamp from different replicas.
+   * @return the result of the comparison.
+   **/
+   @Benchmark
+   public int compareReplica()
+   {
+      return this.entry.compareTo(this.otherReplica);
+   }
+
+   /**
+   * Compares an entry with its deletion.
+   * @return the result of the comparison.
+   **/
+   @Benchmark
+   public int compareType()
+   {
+      return this.entry.compareTo(this.deleted);
+   }
+}
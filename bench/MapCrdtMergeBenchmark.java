@@ -0,0 +1,145 @@
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Measures the merge of a replica holding mapSize keys into a local replica holding as many keys.
+* conflictPercent of the keys of the other replica are also in the local replica, with an older
+* timestamp so the merge replaces them; the other keys are new to the local replica. The local
+* replica is rebuilt before every merge.
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MapCrdtMergeBenchmark
+{
+   /**
+   * The implementation of the local replica.
+   **/
+   @Param({"MapCrdt", "ConcurrentMapCrdt", "ShardedMapCrdt"})
+   public String implementation;
+
+   /**
+   * The number of keys of each replica.
+   **/
+   @Param({"1000", "100000"})
+   public int mapSize;
+
+   /**
+   * The percentage of the keys of the other replica which are also in the local replica.
+   **/
+   @Param({"0", "10", "100"})
+   public int conflictPercent;
+
+   /**
+   * The state of the local replica before the merge.
+   **/
+   protected MapCrdt base;
+
+   /**
+   * The replica merged into the local replica.
+   **/
+   protected MapCrdt other;
+
+   /**
+   * The delta of the whole other replica.
+   **/
+   protected MapCrdtDelta otherDelta;
+
+   /**
+   * The local replica, rebuilt before every merge.
+   **/
+   protected MapCrdt local;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtMergeBenchmark()
+   {
+   }
+
+   /**
+   * Creates the other replica and the state of the local replica.
+   **/
+   @Setup(Level.Trial)
+   public void setUp()
+   {
+      String[] keys = MapCrdtBenchmarks.keys(2 * this.mapSize, 16);
+      String value = MapCrdtBenchmarks.value(16);
+      int conflicts = this.mapSize * this.conflictPercent / 100;
+
+      this.other = new MapCrdt();
+      this.base = new MapCrdt();
+
+      for (int i = 0; i < this.mapSize; i++)
+      {
+         MapCrdtBenchmarks.put(this.other, keys[i], 2, value);
+      }
+
+      // The local keys which are not in conflict are taken after the keys of the other replica.
+      for (int i = 0; i < this.mapSize; i++)
+      {
+         String key = i < conflicts ? keys[i] : keys[this.mapSize + i];
+         MapCrdtBenchmarks.put(this.base, key, 1, value);
+      }
+
+      this.otherDelta = this.other.delta(0);
+   }
+
+   /**
+   * Rebuilds the local replica.
+   **/
+   @Setup(Level.Invocation)
+   public void resetLocal()
+   {
+      this.local = MapCrdtBenchmarks.newReplica(this.implementation);
+      this.local.merge(this.base);
+   }
+
+   /**
+   * Stops the threads of the local replica.
+   **/
+   @TearDown(Level.Invocation)
+   public void closeLocal()
+   {
+      MapCrdtBenchmarks.closeReplica(this.local);
+   }
+
+   /**
+   * Merges the other replica into the local replica.
+   * @return the local replica.
+   **/
+   @Benchmark
+   public MapCrdt merge()
+   {
+      this.local.merge(this.other);
+
+      return this.local;
+   }
+
+   /**
+   * Merges the delta of the whole other replica into the local replica.
+   * @return the local replica.
+   **/
+   @Benchmark
+   public MapCrdt mergeDelta()
+   {
+      this.local.mergeDelta(this.otherDelta);
+
+      return this.local;
+   }
+}
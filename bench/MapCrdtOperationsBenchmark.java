@@ -0,0 +1,225 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Measures the latency of put, get and delete on a replica holding mapSize keys, by a single thread
+* and by 8 threads sharing the replica. Every thread walks the keys from its own random position.
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MapCrdtOperationsBenchmark
+{
+   /**
+   * The implementation of the replica.
+   **/
+   @Param({"MapCrdt", "ConcurrentMapCrdt", "ShardedMapCrdt", "EventLoopMapCrdt", "OffHeapMapCrdt"})
+   public String implementation;
+
+   /**
+   * The number of keys of the replica.
+   **/
+   @Param({"10000"})
+   public int mapSize;
+
+   /**
+   * The number of characters of a key.
+   **/
+   @Param({"16", "256"})
+   public int keySize;
+
+   /**
+   * The number of characters of a value.
+   **/
+   @Param({"16", "1024"})
+   public int valueSize;
+
+   /**
+   * The replica.
+   **/
+   protected MapCrdt replica;
+
+   /**
+   * The keys of the replica.
+   **/
+   protected String[] keys;
+
+   /**
+   * The value put by the benchmarks.
+   **/
+   protected String value;
+
+   /**
+   * Represents the position of a thread in the keys.
+   **/
+   @State(Scope.Thread)
+   public static class Cursor
+   {
+      /**
+      * The index of the next key.
+      **/
+      protected int next;
+
+      /**
+      * Starts at a random key.
+      **/
+      @Setup(Level.Trial)
+      public void setUp()
+      {
+         this.next = ThreadLocalRandom.current().nextInt(1 << 20);
+      }
+
+      /**
+      * Gives the next key.
+      * @param keys the keys of the replica.
+      * @return the next key.
+      **/
+      public String next(String[] keys)
+      {
+         return keys[(this.next++ & Integer.MAX_VALUE) % keys.length];
+      }
+   }
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtOperationsBenchmark()
+   {
+   }
+
+   /**
+   * Creates the replica and puts all the keys.
+   **/
+   @Setup(Level.Trial)
+   public void setUp()
+   {
+      this.replica = MapCrdtBenchmarks.newReplica(this.implementation);
+      this.keys = MapCrdtBenchmarks.keys(this.mapSize, this.keySize);
+      this.value = MapCrdtBenchmarks.value(this.valueSize);
+
+      for (String key : this.keys)
+      {
+         this.replica.put(key, this.value);
+      }
+   }
+
+   /**
+   * Stops the threads of the replica.
+   **/
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      MapCrdtBenchmarks.closeReplica(this.replica);
+   }
+
+   /**
+   * Gets an existing key.
+   * @param cursor the position of the thread.
+   * @return the value.
+   **/
+   @Benchmark
+   @Threads(1)
+   public String get(Cursor cursor)
+   {
+      return this.replica.get(cursor.next(this.keys));
+   }
+
+   /**
+   * Gets existing keys from 8 threads.
+   * @param cursor the position of the thread.
+   * @return the value.
+   **/
+   @Benchmark
+   @Threads(8)
+   public String getContended(Cursor cursor)
+   {
+      return this.replica.get(cursor.next(this.keys));
+   }
+
+   /**
+   * Mixes gets and puts from 8 threads, one put for nine gets.
+   * @param cursor the position of the thread.
+   * @return the value read, null for a put.
+   **/
+   @Benchmark
+   @Threads(8)
+   public String mixedContended(Cursor cursor)
+   {
+      String key = cursor.next(this.keys);
+
+      if (cursor.next % 10 == 0)
+      {
+         this.replica.put(key, this.value);
+         return null;
+      }
+
+      return this.replica.get(key);
+   }
+
+   /**
+   * Overwrites an existing key.
+   * @param cursor the position of the thread.
+   **/
+   @Benchmark
+   @Threads(1)
+   public void put(Cursor cursor)
+   {
+      this.replica.put(cursor.next(this.keys), this.value);
+   }
+
+   /**
+   * Overwrites existing keys from 8 threads.
+   * @param cursor the position of the thread.
+   **/
+   @Benchmark
+   @Threads(8)
+   public void putContended(Cursor cursor)
+   {
+      this.replica.put(cursor.next(this.keys), this.value);
+   }
+
+   /**
+   * Deletes a key then puts it again, since deleting a deleted key has no effect.
+   * @param cursor the position of the thread.
+   **/
+   @Benchmark
+   @Threads(1)
+   public void putDelete(Cursor cursor)
+   {
+      String key = cursor.next(this.keys);
+
+      this.replica.delete(key);
+      this.replica.put(key, this.value);
+   }
+
+   /**
+   * Deletes keys then puts them again from 8 threads.
+   * @param cursor the position of the thread.
+   **/
+   @Benchmark
+   @Threads(8)
+   public void putDeleteContended(Cursor cursor)
+   {
+      String key = cursor.next(this.keys);
+
+      this.replica.delete(key);
+      this.replica.put(key, this.value);
+   }
+}
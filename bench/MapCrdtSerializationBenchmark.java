@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Measures the export of the whole state of a replica: as a string, as a delta, and in the binary
+* format of MapCrdtCodec.
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MapCrdtSerializationBenchmark
+{
+   /**
+   * The number of keys of the replica.
+   **/
+   @Param({"1000", "100000"})
+   public int mapSize;
+
+   /**
+   * The number of characters of a key.
+   **/
+   @Param({"16", "256"})
+   public int keySize;
+
+   /**
+   * The number of characters of a value.
+   **/
+   @Param({"16", "1024"})
+   public int valueSize;
+
+   /**
+   * The replica.
+   **/
+   protected MapCrdt replica;
+
+   /**
+   * The encoded snapshot of the replica.
+   **/
+   protected ByteBuffer snapshot;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtSerializationBenchmark()
+   {
+   }
+
+   /**
+   * Creates the replica and its encoded snapshot.
+   **/
+   @Setup(Level.Trial)
+   public void setUp()
+   {
+      this.replica = new MapCrdt();
+      String value = MapCrdtBenchmarks.value(this.valueSize);
+
+      for (String key : MapCrdtBenchmarks.keys(this.mapSize, this.keySize))
+      {
+         this.replica.put(key, value);
+      }
+
+      this.snapshot = MapCrdtCodec.encodeSnapshot(this.replica);
+   }
+
+   /**
+   * Decodes the snapshot into a new replica.
+   * @return the new replica.
+   * @throws IOException if the snapshot is not valid.
+   **/
+   @Benchmark
+   public MapCrdt decodeSnapshot() throws IOException
+   {
+      return MapCrdtCodec.decodeSnapshot(this.snapshot.duplicate());
+   }
+
+   /**
+   * Creates the delta of the whole replica.
+   * @return the delta.
+   **/
+   @Benchmark
+   public MapCrdtDelta delta()
+   {
+      return this.replica.delta(0);
+   }
+
+   /**
+   * Encodes the snapshot of the replica.
+   * @return the encoded snapshot.
+   **/
+   @Benchmark
+   public ByteBuffer encodeSnapshot()
+   {
+      return MapCrdtCodec.encodeSnapshot(this.replica);
+   }
+
+   /**
+   * Creates the string of the replica.
+   * @return the string.
+   **/
+   @Benchmark
+   public String replicaToString()
+   {
+      return this.replica.toString();
+   }
+}
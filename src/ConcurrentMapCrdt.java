@@ -0,0 +1,1037 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* Represents a state-based map CRDT replica that can be operated by multiple threads without
+* serializing them on the replica's monitor. Logs are stored in a concurrent storage: gets take no
+* lock while puts, deletes and merges only lock the stripe the key belongs to.
+**/
+public class ConcurrentMapCrdt extends MapCrdt
+{
+   /**
+   * The default number of lock stripes.
+   **/
+   public static final int DEFAULT_STRIPES = 64;
+
+   /**
+   * The default number of keys merged by a task of a parallel merge.
+   **/
+   public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+   /**
+   * The locks protecting the modifications of the keys, a key is protected by a single stripe.
+   **/
+   protected ReentrantLock[] stripes;
+
+   /**
+   * The local version of the replica, replaces the version of the sequential replica.
+   **/
+   protected AtomicLong atomicVersion;
+
+   /**
+   * Default constructor.
+   **/
+   public ConcurrentMapCrdt()
+   {
+      this(DEFAULT_STRIPES);
+   }
+
+   /**
+   * Creates a replica with a given number of lock stripes.
+   * @param nStripes the number of lock stripes, rounded up to a power of two.
+   **/
+   public ConcurrentMapCrdt(int nStripes)
+   {
+      this(nStripes, new MapCrdtHybridClock());
+   }
+
+   /**
+   * Creates a replica with a given number of lock stripes and a given clock.
+   * @param nStripes the number of lock stripes, rounded up to a power of two.
+   * @param clock the clock giving the timestamps of the local operations.
+   **/
+   public ConcurrentMapCrdt(int nStripes, MapCrdtClock clock)
+   {
+      this(nStripes, clock, new MapCrdtHashStorage());
+   }
+
+   /**
+   * Creates a replica with a given number of lock stripes, a given clock and a given storage.
+   * @param nStripes the number of lock stripes, rounded up to a power of two.
+   * @param clock the clock giving the timestamps of the local operations.
+   * @param storage the empty storage of the logs, which should support concurrent reads.
+   **/
+   public ConcurrentMapCrdt(int nStripes, MapCrdtClock clock, MapCrdtStorage storage)
+   {
+      this(nextReplicaId(), nStripes, clock, storage);
+   }
+
+   /**
+   * Creates a replica with a given unique id, a given number of lock stripes, a given clock and a
+   * given storage.
+   * @param replicaId the unique id of the replica, positive, which should differ from the ids of
+   * the replicas of the other processes.
+   * @param nStripes the number of lock stripes, rounded up to a power of two.
+   * @param clock the clock giving the timestamps of the local operations.
+   * @param storage the empty storage of the logs, which should support concurrent reads.
+   **/
+   public ConcurrentMapCrdt(int replicaId, int nStripes, MapCrdtClock clock,
+                            MapCrdtStorage storage)
+   {
+      super(replicaId, clock, storage);
+
+      if (nStripes < 1)
+      {
+         throw new IllegalArgumentException("The number of stripes should be positive.");
+      }
+
+      if (storage.isConcurrent() == false)
+      {
+         throw new IllegalArgumentException("The storage should support concurrent reads.");
+      }
+
+      this.versions = new ConcurrentHashMap<String, Long>();
+      this.changes = new ConcurrentSkipListMap<Long, String>();
+      this.acknowledgements = new ConcurrentHashMap<Integer, Long>();
+      this.peers = ConcurrentHashMap.<Integer>newKeySet();
+      this.peerAcknowledgements = new ConcurrentHashMap<Integer, Long>();
+      this.atomicVersion = new AtomicLong();
+
+      int size = Integer.highestOneBit(nStripes);
+      if (size < nStripes)
+      {
+         size <<= 1;
+      }
+
+      this.stripes = new ReentrantLock[size];
+      for (int i = 0; i < size; i++)
+      {
+         this.stripes[i] = new ReentrantLock();
+      }
+   }
+
+   /**
+   * Gives information about the presence of a given key in the map.
+   * @param key the key that should be looked for.
+   * @return true if the key is in the logs and last operation is a put, false otherwise.
+   **/
+   protected boolean containsKey(String key)
+   {
+      MapCrdtLogEntry info = this.logs.get(key);
+
+      return info != null && info.isDelete() == false;
+   }
+
+   /**
+   * Creates a delta containing the log entries of the keys of given buckets of the hash tree,
+   * without locking the replica.
+   * @param buckets the indexes of the buckets.
+   * @return the delta containing the entries of the buckets.
+   **/
+   public MapCrdtDelta bucketDelta(List<Integer> buckets)
+   {
+      MapCrdtMerkleTree tree = this.getMerkleTree();
+      long current = this.atomicVersion.get();
+      MapCrdtDelta delta = new MapCrdtDelta(this.replicaId, current, current);
+
+      for (int bucket : buckets)
+      {
+         for (String key : tree.getKeys(bucket))
+         {
+            delta.entries.put(key, this.logs.get(key));
+         }
+      }
+
+      return delta;
+   }
+
+   /**
+   * Gets the keys whose last modification is between two local versions, each with its version,
+   * in the order of the versions. The caller should hold the stripe of a key to rely on its
+   * version.
+   * @param from the version after which modifications are wanted.
+   * @param to the last version wanted, included.
+   * @return the versions and the keys modified between the two versions.
+   **/
+   protected Iterable<Map.Entry<Long, String>> changedBetween(long from, long to)
+   {
+      return this.changes.subMap(from, false, to, true).entrySet();
+   }
+
+   /**
+   * Gets the keys modified after a given local version. Keys modified again while they are walked
+   * move to the end of the index, so they are never missed.
+   * @param since the version after which modifications are wanted.
+   * @return the keys modified after the version.
+   **/
+   protected Iterable<String> changedAfter(long since)
+   {
+      return this.changes.tailMap(since, false).values();
+   }
+
+   /**
+   * Gets the local version of the last modification of a given key.
+   * @param key the key that is targeted.
+   * @return the version of the key, null if the key is not in the logs.
+   **/
+   protected Long changeVersion(String key)
+   {
+      return this.versions.get(key);
+   }
+
+   /**
+   * Reclaims the tombstones every peer has merged. Collections are serialized on the monitor of
+   * the replica, and each tombstone is removed while holding the stripe of its key so that client
+   * operations are not blocked during the collection. The collection stops when a snapshot is
+   * taken, it is resumed by the next one.
+   * @return the number of tombstones reclaimed.
+   **/
+   public synchronized int collectGarbage()
+   {
+      long stable = this.getStableVersion();
+      boolean interrupted = false;
+      int reclaimed = 0;
+
+      if (stable <= this.collectedVersion || this.snapshots.isEmpty() == false ||
+          this.logs.canRemove() == false)
+      {
+         return 0;
+      }
+
+      // Keys modified during the collection move after the stable version, so the walked entries
+      // can only disappear.
+      for (Map.Entry<Long, String> candidate : this.changedBetween(this.collectedVersion, stable))
+      {
+         String key = candidate.getValue();
+         ReentrantLock lock = this.stripe(key);
+         lock.lock();
+         try
+         {
+            // Snapshots are taken while holding every stripe.
+            if (this.snapshots.isEmpty() == false)
+            {
+               interrupted = true;
+               break;
+            }
+
+            Long version = this.changeVersion(key);
+            MapCrdtLogEntry info = this.logs.get(key);
+
+            if (version != null && version.longValue() == candidate.getKey() &&
+                info.isDelete() == true)
+            {
+               this.remove(key, version, info);
+               reclaimed++;
+            }
+         }
+         finally
+         {
+            lock.unlock();
+         }
+      }
+
+      if (interrupted == false)
+      {
+         this.collectedVersion = stable;
+      }
+      this.reclaimedTombstones += reclaimed;
+
+      return reclaimed;
+   }
+
+   /**
+   * Deletes a given key if it is present in the logs and has not been yet deleted.
+   * @param key the key that should be deleted.
+   **/
+   public void delete(String key)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      ReentrantLock lock = this.stripe(key);
+      lock.lock();
+      try
+      {
+         if (metrics != null)
+         {
+            metrics.getLockWait().record(System.nanoTime() - start);
+         }
+
+         MapCrdtLogEntry info = this.logs.get(key);
+
+         if (info != null && info.isDelete() == false)
+         {
+            this.update(key, info.delete(this.replicaId, this.clock.now()));
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      if (metrics != null)
+      {
+         metrics.getDeleteLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Deletes given keys, exactly as deleting them one by one but locking each stripe once and
+   * reading the clock once: the keys are distinct so their deletions can share a timestamp.
+   * @param keys the keys that should be deleted.
+   **/
+   public void deleteAll(Collection<String> keys)
+   {
+      boolean[] locked = this.lockStripes(keys);
+      try
+      {
+         long time = this.clock.now();
+
+         for (String key : keys)
+         {
+            MapCrdtLogEntry info = this.logs.get(key);
+
+            if (info != null && info.isDelete() == false)
+            {
+               this.update(key, info.delete(this.replicaId, time));
+            }
+         }
+      }
+      finally
+      {
+         this.unlockStripes(locked);
+      }
+   }
+
+   /**
+   * Creates a delta containing the log entries modified after a given local version. Every
+   * modification up to the version of the delta is included, modifications made concurrently with
+   * the creation of the delta may also be included and are sent again by the next delta.
+   * @param since the version after which modifications are wanted, 0 to get the whole state.
+   * @return the delta going from the given version to the current version of the replica.
+   **/
+   public MapCrdtDelta delta(long since)
+   {
+      // Every stripe is locked to make sure that no modification numbered before the current
+      // version, or covered by the version vector, is still being recorded.
+      long current;
+      MapCrdtVersionVector vector;
+      for (ReentrantLock lock : this.stripes)
+      {
+         lock.lock();
+      }
+      try
+      {
+         current = this.atomicVersion.get();
+         vector = this.versionVector.copy();
+      }
+      finally
+      {
+         for (ReentrantLock lock : this.stripes)
+         {
+            lock.unlock();
+         }
+      }
+
+      MapCrdtDelta delta = new MapCrdtDelta(this.replicaId, since, current);
+      delta.acknowledgements.putAll(this.acknowledgements);
+      delta.versionVector = vector;
+
+      // Keys modified again while the delta is created move to the end of the index, so the tail
+      // is walked up to its end to never miss them.
+      for (String key : this.changedAfter(since))
+      {
+         delta.entries.put(key, this.logs.get(key));
+      }
+
+      return delta;
+   }
+
+   /**
+   * Creates a delta containing the log entries whose dot is after a version vector, without
+   * locking the replica while the entries are read. Entries modified concurrently with the creation
+   * of the delta may also be included.
+   * @param since the version vector after which modifications are wanted.
+   * @return the delta going from the given vector to the current version of the replica.
+   **/
+   public MapCrdtDelta delta(MapCrdtVersionVector since)
+   {
+      MapCrdtDotIndex dotIndex = this.getDotIndex();
+
+      // Every stripe is locked to make sure that every modification covered by the version vector
+      // is in the index.
+      long current;
+      MapCrdtVersionVector vector;
+      for (ReentrantLock lock : this.stripes)
+      {
+         lock.lock();
+      }
+      try
+      {
+         current = this.atomicVersion.get();
+         vector = this.versionVector.copy();
+      }
+      finally
+      {
+         for (ReentrantLock lock : this.stripes)
+         {
+            lock.unlock();
+         }
+      }
+
+      MapCrdtDelta delta = new MapCrdtDelta(this.replicaId, 0, current);
+      delta.acknowledgements.putAll(this.acknowledgements);
+      delta.sinceVector = since.copy();
+      delta.versionVector = vector;
+
+      for (String key : dotIndex.keysAfter(since))
+      {
+         delta.entries.put(key, this.logs.get(key));
+      }
+
+      return delta;
+   }
+
+   /**
+   * Gets the value corresponding to a given key without taking any lock.
+   * @param key the key that should be looked for.
+   * @return the value associated to the key, or null if the key is not presente in the logs or last
+   * operation is a delete.
+   **/
+   public String get(String key)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      MapCrdtLogEntry info = this.logs.get(key);
+      String value = info == null || info.isDelete() == true ? null : info.value;
+
+      if (metrics != null)
+      {
+         metrics.getGetLatency().record(System.nanoTime() - start);
+      }
+
+      return value;
+   }
+
+   /**
+   * Gets the last version of a given replica whose delta has been merged into the local replica.
+   * @param replicaId the unique identifier of the other replica.
+   * @return the version to ask the other replica a delta from, 0 if no delta has been merged yet.
+   **/
+   public long getAcknowledgedVersion(int replicaId)
+   {
+      Long acknowledged = this.acknowledgements.get(replicaId);
+
+      if (acknowledged == null)
+      {
+         return 0;
+      }
+
+      return acknowledged;
+   }
+
+   /**
+   * Gets the values corresponding to given keys without taking any lock.
+   * @param keys the keys that should be looked for.
+   * @return a map giving the value of each key, null if the key is not present in the logs or last
+   * operation is a delete.
+   **/
+   public Map<String, String> getAll(Collection<String> keys)
+   {
+      Map<String, String> values = new HashMap<String, String>();
+
+      for (String key : keys)
+      {
+         values.put(key, this.get(key));
+      }
+
+      return values;
+   }
+
+   /**
+   * Gets the index of the keys of the logs by dot, every stripe is locked while the index is built
+   * so that no modification is missed.
+   * @return the index of the keys by dot.
+   **/
+   public MapCrdtDotIndex getDotIndex()
+   {
+      MapCrdtDotIndex index = this.dotIndex;
+      if (index != null)
+      {
+         return index;
+      }
+
+      for (ReentrantLock lock : this.stripes)
+      {
+         lock.lock();
+      }
+      try
+      {
+         if (this.dotIndex == null)
+         {
+            this.dotIndex = this.buildDotIndex();
+         }
+
+         return this.dotIndex;
+      }
+      finally
+      {
+         for (ReentrantLock lock : this.stripes)
+         {
+            lock.unlock();
+         }
+      }
+   }
+
+   /**
+   * Gets the hash tree over the logs, every stripe is locked while the tree is built so that no
+   * modification is missed nor counted twice.
+   * @return the hash tree.
+   **/
+   public MapCrdtMerkleTree getMerkleTree()
+   {
+      MapCrdtMerkleTree tree = this.tree;
+      if (tree != null)
+      {
+         return tree;
+      }
+
+      for (ReentrantLock lock : this.stripes)
+      {
+         lock.lock();
+      }
+      try
+      {
+         if (this.tree == null)
+         {
+            this.tree = this.buildMerkleTree();
+         }
+
+         return this.tree;
+      }
+      finally
+      {
+         for (ReentrantLock lock : this.stripes)
+         {
+            lock.unlock();
+         }
+      }
+   }
+
+   /**
+   * Gets the unique identifier of the current replica.
+   * @return the unique identifier.
+   **/
+   public int getReplicaId()
+   {
+      return this.replicaId;
+   }
+
+   /**
+   * Gets the sorted index of the keys of the logs, every stripe is locked while the index is built
+   * so that no key is missed.
+   * @return the sorted index.
+   **/
+   public MapCrdtSortedIndex getSortedIndex()
+   {
+      MapCrdtSortedIndex index = this.sortedIndex;
+      if (index != null)
+      {
+         return index;
+      }
+
+      for (ReentrantLock lock : this.stripes)
+      {
+         lock.lock();
+      }
+      try
+      {
+         if (this.sortedIndex == null)
+         {
+            this.sortedIndex = this.buildSortedIndex();
+         }
+
+         return this.sortedIndex;
+      }
+      finally
+      {
+         for (ReentrantLock lock : this.stripes)
+         {
+            lock.unlock();
+         }
+      }
+   }
+
+   /**
+   * Gets the local version of the current replica.
+   * @return the version of the last modification of the logs, 0 if logs have never been modified.
+   **/
+   public long getVersion()
+   {
+      return this.atomicVersion.get();
+   }
+
+   /**
+   * Gets the version vector of the current replica without taking any lock.
+   * @return a copy of the version vector.
+   **/
+   public MapCrdtVersionVector getVersionVector()
+   {
+      return this.versionVector.copy();
+   }
+
+   /**
+   * Locks the stripes of given keys, in the order of the stripes so that batches locking several
+   * stripes cannot deadlock.
+   * @param keys the keys that are targeted.
+   * @return the stripes which have been locked, to give to unlockStripes.
+   **/
+   protected boolean[] lockStripes(Collection<String> keys)
+   {
+      boolean[] locked = new boolean[this.stripes.length];
+
+      for (String key : keys)
+      {
+         locked[this.stripeIndex(key)] = true;
+      }
+
+      for (int i = 0; i < locked.length; i++)
+      {
+         if (locked[i] == true)
+         {
+            this.stripes[i].lock();
+         }
+      }
+
+      return locked;
+   }
+
+   /**
+   * Merges a delta produced by an other replica into the local replica.
+   * @param delta the delta that should be merged with the local replica.
+   **/
+   public void mergeDelta(MapCrdtDelta delta)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      // A delta covering only acknowledged versions has been superseded by the deltas merged
+      // since, its entries may be older than reclaimed tombstones.
+      long acknowledged = this.getAcknowledgedVersion(delta.replicaId);
+      if (this.isOutOfOrder(delta, acknowledged) == false)
+      {
+         this.mergeEntries(delta.entries.entrySet());
+
+         // The delta is acknowledged, and the vector advanced, only if no modification is missing.
+         synchronized (this.acknowledgements)
+         {
+            acknowledged = this.getAcknowledgedVersion(delta.replicaId);
+            boolean complete = this.isComplete(delta, acknowledged);
+            if (complete == true && acknowledged < delta.toVersion)
+            {
+               this.acknowledgements.put(delta.replicaId, delta.toVersion);
+            }
+            if (complete == true && delta.versionVector != null)
+            {
+               this.versionVector.merge(delta.versionVector);
+            }
+         }
+      }
+
+      synchronized (this.peerAcknowledgements)
+      {
+         this.acknowledgedBy(delta);
+      }
+
+      if (metrics != null)
+      {
+         metrics.getMergeLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Merges log entries coming from an other replica, each one while holding the stripe of its key.
+   * @param entries the log entries of the other replica, indexed by key.
+   **/
+   protected void mergeEntries(Iterable<Map.Entry<String, MapCrdtLogEntry>> entries)
+   {
+      for (Map.Entry<String, MapCrdtLogEntry> entry : entries)
+      {
+         this.mergeLocked(entry.getKey(), entry.getValue());
+      }
+   }
+
+   /**
+   * Merges a log entry coming from an other replica while holding the stripe of its key.
+   * @param key the key of the log entry.
+   * @param otherInfo the log entry of the other replica.
+   * @return true if the local log entry has been replaced, false otherwise.
+   **/
+   protected boolean mergeLocked(String key, MapCrdtLogEntry otherInfo)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      ReentrantLock lock = this.stripe(key);
+      lock.lock();
+      try
+      {
+         if (metrics != null)
+         {
+            metrics.getLockWait().record(System.nanoTime() - start);
+         }
+
+         return this.mergeEntry(key, otherInfo);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+   * Merges an other replica into the local replica on the common fork-join pool, with the default
+   * chunk size.
+   * @param other the other replica of the map that should be merge with the local replica.
+   **/
+   public void mergeParallel(MapCrdt other)
+   {
+      this.mergeParallel(other, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+   }
+
+   /**
+   * Merges an other replica into the local replica on a fork-join pool. The entries of a snapshot
+   * of the other replica are copied, then split in chunks merged by the threads of the pool, each
+   * key while holding its stripe: the result is the same as the sequential merge, and client
+   * operations are not blocked during the merge.
+   * @param other the other replica of the map that should be merge with the local replica.
+   * @param pool the pool running the merge, its parallelism bounds the number of merging threads.
+   * @param chunkSize the number of keys under which a task is not split anymore.
+   **/
+   public void mergeParallel(MapCrdt other, ForkJoinPool pool, int chunkSize)
+   {
+      if (chunkSize < 1)
+      {
+         throw new IllegalArgumentException("The chunk size should be positive.");
+      }
+
+      List<String> keys = new ArrayList<String>();
+      List<MapCrdtLogEntry> infos = new ArrayList<MapCrdtLogEntry>();
+
+      MapCrdtSnapshot snapshot = other.snapshot();
+      try
+      {
+         for (Map.Entry<String, MapCrdtLogEntry> entry : snapshot)
+         {
+            keys.add(entry.getKey());
+            infos.add(entry.getValue());
+         }
+      }
+      finally
+      {
+         snapshot.close();
+      }
+
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      pool.invoke(new MergeTask(keys.toArray(new String[keys.size()]),
+                                infos.toArray(new MapCrdtLogEntry[infos.size()]), 0, keys.size(),
+                                chunkSize));
+
+      if (metrics != null)
+      {
+         metrics.getMergeLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Merges the log entries of a snapshot of an other replica into the local replica. Keys are
+   * merged one at a time so client operations are not blocked during the merge.
+   * @param snapshot the snapshot that should be merged with the local replica.
+   **/
+   public void mergeSnapshot(MapCrdtSnapshot snapshot)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      this.mergeEntries(snapshot);
+
+      if (metrics != null)
+      {
+         metrics.getMergeLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Puts a key value pair into the map.
+   * @param key the key that is targeted
+   * @param value the value that should be assigned to the key
+   **/
+   public void put(String key, String value)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+      String interned = this.intern(value);
+
+      ReentrantLock lock = this.stripe(key);
+      lock.lock();
+      try
+      {
+         if (metrics != null)
+         {
+            metrics.getLockWait().record(System.nanoTime() - start);
+         }
+
+         // The time is read while holding the stripe so successive puts on a key are ordered.
+         long time = this.clock.now();
+         this.update(key, new MapCrdtLogEntry(this.replicaId, time, MapCrdtLogEntry.Type.PUT,
+                                              interned));
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      if (metrics != null)
+      {
+         metrics.getPutLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Puts key value pairs into the map, exactly as putting them one by one but locking each stripe
+   * once and reading the clock once: the keys are distinct so they can share a timestamp.
+   * @param entries the values that should be assigned to the keys.
+   **/
+   public void putAll(Map<String, String> entries)
+   {
+      boolean[] locked = this.lockStripes(entries.keySet());
+      try
+      {
+         // The time is read while holding the stripes of all the keys, as for a single put.
+         long time = this.clock.now();
+
+         for (Map.Entry<String, String> entry : entries.entrySet())
+         {
+            this.update(entry.getKey(), new MapCrdtLogEntry(this.replicaId, time,
+                                                            MapCrdtLogEntry.Type.PUT,
+                                                            this.intern(entry.getValue())));
+         }
+      }
+      finally
+      {
+         this.unlockStripes(locked);
+      }
+   }
+
+   /**
+   * Numbers the modification of a given key with the next local version, the caller should hold
+   * the stripe of the key.
+   * @param key the key that has been modified.
+   **/
+   protected void recordChange(String key)
+   {
+      long current = this.atomicVersion.incrementAndGet();
+      this.changes.put(current, key);
+      Long previous = this.versions.put(key, current);
+      if (previous != null)
+      {
+         this.changes.remove(previous);
+      }
+   }
+
+   /**
+   * Takes a point-in-time snapshot of the logs while holding every stripe, read without blocking
+   * the modifications of the replica. The snapshot should be closed once read.
+   * @return the snapshot.
+   **/
+   public MapCrdtSnapshot snapshot()
+   {
+      MapCrdtSnapshot snapshot = new MapCrdtSnapshot(this, this.logs);
+
+      for (ReentrantLock lock : this.stripes)
+      {
+         lock.lock();
+      }
+      try
+      {
+         this.snapshots.add(snapshot);
+      }
+      finally
+      {
+         for (ReentrantLock lock : this.stripes)
+         {
+            lock.unlock();
+         }
+      }
+
+      return snapshot;
+   }
+
+   /**
+   * Gets the lock stripe protecting a given key.
+   * @param key the key that is targeted.
+   * @return the lock of the stripe.
+   **/
+   protected ReentrantLock stripe(String key)
+   {
+      return this.stripes[this.stripeIndex(key)];
+   }
+
+   /**
+   * Gets the index of the lock stripe protecting a given key.
+   * @param key the key that is targeted.
+   * @return the index of the stripe.
+   **/
+   protected int stripeIndex(String key)
+   {
+      int hash = key.hashCode();
+      hash ^= (hash >>> 16);
+
+      return hash & (this.stripes.length - 1);
+   }
+
+   /**
+   * Unlocks the stripes locked by lockStripes.
+   * @param locked the stripes which have been locked.
+   **/
+   protected void unlockStripes(boolean[] locked)
+   {
+      for (int i = locked.length - 1; i >= 0; i--)
+      {
+         if (locked[i] == true)
+         {
+            this.stripes[i].unlock();
+         }
+      }
+   }
+
+   /**
+   * Stores a log entry in the local logs and records the modification of its key, the caller
+   * should hold the stripe of the key.
+   * @param key the key of the log entry.
+   * @param info the new log entry of the key.
+   **/
+   protected void update(String key, MapCrdtLogEntry info)
+   {
+      for (MapCrdtSnapshot snapshot : this.snapshots)
+      {
+         snapshot.preserve(key, this.logs.get(key));
+      }
+
+      MapCrdtLogEntry previousInfo = this.logs.put(key, info);
+      if (this.tree != null)
+      {
+         this.tree.update(key, previousInfo, info);
+      }
+
+      MapCrdtSortedIndex sortedIndex = this.sortedIndex;
+      if (previousInfo == null && sortedIndex != null)
+      {
+         sortedIndex.add(key);
+      }
+
+      MapCrdtChangeFeed changeFeed = this.changeFeed;
+      if (changeFeed != null)
+      {
+         changeFeed.changed(key, previousInfo, info);
+      }
+
+      MapCrdtDotIndex dotIndex = this.dotIndex;
+      if (dotIndex != null)
+      {
+         dotIndex.update(key, previousInfo, info);
+      }
+
+      if (info.getDotReplicaId() == this.replicaId)
+      {
+         this.versionVector.advance(this.replicaId, info.getDotTime());
+      }
+
+      this.recordChange(key);
+   }
+
+   /**
+   * Merges a range of the entries of an other replica, splitting it in two subtasks while it
+   * contains more keys than the chunk size.
+   **/
+   protected class MergeTask extends RecursiveAction
+   {
+      /**
+      * The version of the serialized form of the task.
+      **/
+      private static final long serialVersionUID = 1L;
+
+      /**
+      * The keys of the entries of the other replica.
+      **/
+      protected String[] keys;
+
+      /**
+      * The entries of the other replica.
+      **/
+      protected MapCrdtLogEntry[] infos;
+
+      /**
+      * The index of the first entry of the range (included).
+      **/
+      protected int from;
+
+      /**
+      * The index of the last entry of the range (excluded).
+      **/
+      protected int to;
+
+      /**
+      * The number of keys under which the task is not split.
+      **/
+      protected int chunkSize;
+
+      /**
+      * Default constructor.
+      * @param keys the keys of the entries of the other replica.
+      * @param infos the entries of the other replica.
+      * @param from the index of the first entry of the range (included).
+      * @param to the index of the last entry of the range (excluded).
+      * @param chunkSize the number of keys under which the task is not split.
+      **/
+      public MergeTask(String[] keys, MapCrdtLogEntry[] infos, int from, int to, int chunkSize)
+      {
+         this.keys = keys;
+         this.infos = infos;
+         this.from = from;
+         this.to = to;
+         this.chunkSize = chunkSize;
+      }
+
+      /**
+      * Merges the range, or splits it and waits for both halves.
+      **/
+      protected void compute()
+      {
+         if (this.to - this.from <= this.chunkSize)
+         {
+            for (int i = this.from; i < this.to; i++)
+            {
+               ConcurrentMapCrdt.this.mergeLocked(this.keys[i], this.infos[i]);
+            }
+            return;
+         }
+
+         int middle = (this.from + this.to) >>> 1;
+         invokeAll(new MergeTask(this.keys, this.infos, this.from, middle, this.chunkSize),
+                   new MergeTask(this.keys, this.infos, middle, this.to, this.chunkSize));
+      }
+   }
+}
@@ -0,0 +1,534 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the concurrent map CRDT replica.
+**/
+public class ConcurrentMapCrdtTest
+{
+   /**
+   * Number of worker threads used by the multi-threaded tests.
+   **/
+   protected static final int N_THREADS = 8;
+
+   /**
+   * Number of keys written by each worker thread.
+   **/
+   protected static final int N_KEYS = 2000;
+
+   /**
+   * Default constructor.
+   **/
+   public ConcurrentMapCrdtTest()
+   {
+   }
+
+   /**
+   * Starts a given number of threads running the same task and waits for all of them.
+   * @param task the task run by each thread, receives the index of the thread.
+   **/
+   protected void runThreads(final ThreadTask task)
+   {
+      List<Thread> threads = new ArrayList<Thread>();
+
+      for (int i = 0; i < N_THREADS; i++)
+      {
+         final int index = i;
+         Thread thread = new Thread()
+         {
+            public void run()
+            {
+               task.run(index);
+            }
+         };
+         threads.add(thread);
+         thread.start();
+      }
+
+      for (Thread thread : threads)
+      {
+         try
+         {
+            thread.join();
+         }
+         catch (InterruptedException e)
+         {
+         }
+      }
+   }
+
+   /**
+   * Represents a task run by each thread of a multi-threaded test.
+   **/
+   protected interface ThreadTask
+   {
+      /**
+      * Runs the task.
+      * @param index the index of the thread running the task.
+      **/
+      void run(int index);
+   }
+
+   /**
+   * This test evaluates the scenario: Put Del Get on a concurrent replica.
+   **/
+   @Test
+   public void testPutDelGet()
+   {
+      ConcurrentMapCrdt replica = new ConcurrentMapCrdt();
+
+      replica.put("KEY", "VALUE");
+      assertEquals("VALUE", replica.get("KEY"));
+
+      replica.delete("KEY");
+      assertNull(replica.get("KEY"));
+   }
+
+   /**
+   * This test checks that a concurrent replica and a sequential replica merge with each other.
+   **/
+   @Test
+   public void testMergeWithSequentialReplica()
+   {
+      ConcurrentMapCrdt replica1 = new ConcurrentMapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+
+      replica1.put("KEY1", "VALUE1");
+      replica2.put("KEY2", "VALUE2");
+      replica1.merge(replica2);
+      replica2.merge(replica1);
+      replica2.delete("KEY1");
+      replica1.merge(replica2);
+
+      assertNull(replica1.get("KEY1"));
+      assertEquals("VALUE2", replica1.get("KEY2"));
+      assertEquals("VALUE2", replica2.get("KEY2"));
+   }
+
+   /**
+   * This test checks that puts and deletes done by concurrent threads are all applied.
+   **/
+   @Test
+   public void testConcurrentPutDelete()
+   {
+      final ConcurrentMapCrdt replica = new ConcurrentMapCrdt(4);
+
+      this.runThreads(new ThreadTask()
+      {
+         public void run(int index)
+         {
+            for (int i = 0; i < N_KEYS; i++)
+            {
+               replica.put("KEY" + index + "_" + i, "VALUE" + i);
+               if (i % 2 == 0)
+               {
+                  replica.delete("KEY" + index + "_" + i);
+               }
+            }
+         }
+      });
+
+      for (int index = 0; index < N_THREADS; index++)
+      {
+         for (int i = 0; i < N_KEYS; i++)
+         {
+            String value = replica.get("KEY" + index + "_" + i);
+            if (i % 2 == 0)
+            {
+               assertNull(value);
+            }
+            else
+            {
+               assertEquals("VALUE" + i, value);
+            }
+         }
+      }
+   }
+
+   /**
+   * This test checks that the metrics count the operations of concurrent threads, each put and
+   * delete waiting once for its stripe.
+   **/
+   @Test
+   public void testConcurrentMetrics()
+   {
+      final ConcurrentMapCrdt replica = new ConcurrentMapCrdt(4);
+      MapCrdtMetrics metrics = replica.enableMetrics();
+
+      this.runThreads(new ThreadTask()
+      {
+         public void run(int index)
+         {
+            for (int i = 0; i < N_KEYS; i++)
+            {
+               replica.put("KEY" + index + "_" + i, "VALUE" + i);
+               replica.get("KEY" + index + "_" + i);
+               if (i % 2 == 0)
+               {
+                  replica.delete("KEY" + index + "_" + i);
+               }
+            }
+         }
+      });
+
+      assertEquals(N_THREADS * N_KEYS, metrics.getPutCount());
+      assertEquals(N_THREADS * N_KEYS, metrics.getGetCount());
+      assertEquals(N_THREADS * N_KEYS / 2, metrics.getDeleteCount());
+      assertEquals(N_THREADS * N_KEYS * 3 / 2, metrics.getLockWaitCount());
+      assertEquals(N_THREADS * N_KEYS, metrics.getLogSize());
+      assertEquals(N_THREADS * N_KEYS / 2, metrics.getTombstoneCount());
+
+      MapCrdt other = new MapCrdt();
+      other.put("KEY0_0", "NEW");
+      replica.merge(other);
+      assertEquals(1, metrics.getMergeCount());
+      assertEquals(1, metrics.getKeysScanned());
+      assertEquals(1, metrics.getPutWins());
+   }
+
+   /**
+   * This test checks that deltas taken while threads are writing lead to the same state once the
+   * writers are done.
+   **/
+   @Test
+   public void testConcurrentDelta()
+   {
+      final ConcurrentMapCrdt replica = new ConcurrentMapCrdt();
+      final MapCrdt follower = new MapCrdt();
+
+      Thread syncer = new Thread()
+      {
+         public void run()
+         {
+            while (this.isInterrupted() == false)
+            {
+               long since = follower.getAcknowledgedVersion(replica.getReplicaId());
+               follower.mergeDelta(replica.delta(since));
+            }
+         }
+      };
+      syncer.start();
+
+      this.runThreads(new ThreadTask()
+      {
+         public void run(int index)
+         {
+            for (int i = 0; i < N_KEYS; i++)
+            {
+               replica.put("KEY" + index + "_" + i, "VALUE" + i);
+               if (i % 3 == 0)
+               {
+                  replica.delete("KEY" + index + "_" + (i / 2));
+               }
+            }
+         }
+      });
+
+      syncer.interrupt();
+      try
+      {
+         syncer.join();
+      }
+      catch (InterruptedException e)
+      {
+      }
+
+      follower.mergeDelta(replica.delta(follower.getAcknowledgedVersion(replica.getReplicaId())));
+
+      assertEquals(replica.getVersion(), follower.getAcknowledgedVersion(replica.getReplicaId()));
+      for (int index = 0; index < N_THREADS; index++)
+      {
+         for (int i = 0; i < N_KEYS; i++)
+         {
+            String key = "KEY" + index + "_" + i;
+            assertEquals(replica.get(key), follower.get(key));
+         }
+      }
+   }
+
+   /**
+   * This test checks that a merge running alongside writers ends with every key written.
+   **/
+   @Test
+   public void testMergeAlongsideWriters()
+   {
+      final ConcurrentMapCrdt replica = new ConcurrentMapCrdt();
+      final ConcurrentMapCrdt other = new ConcurrentMapCrdt();
+
+      for (int i = 0; i < N_KEYS; i++)
+      {
+         other.put("OTHER" + i, "VALUE" + i);
+      }
+
+      this.runThreads(new ThreadTask()
+      {
+         public void run(int index)
+         {
+            if (index == 0)
+            {
+               replica.merge(other);
+               return;
+            }
+
+            for (int i = 0; i < N_KEYS; i++)
+            {
+               replica.put("KEY" + index + "_" + i, "VALUE" + i);
+            }
+         }
+      });
+
+      for (int i = 0; i < N_KEYS; i++)
+      {
+         assertEquals("VALUE" + i, replica.get("OTHER" + i));
+         assertTrue(replica.get("KEY1_" + i) != null);
+      }
+   }
+
+   /**
+   * This test checks that concurrent batches over overlapping stripes neither deadlock nor lose
+   * keys, and converge with a sequential replica after a merge.
+   **/
+   @Test
+   public void testConcurrentBatches()
+   {
+      final ConcurrentMapCrdt replica = new ConcurrentMapCrdt(8);
+
+      this.runThreads(new ThreadTask()
+      {
+         public void run(int index)
+         {
+            for (int i = 0; i < N_KEYS; i += 20)
+            {
+               Map<String, String> entries = new HashMap<String, String>();
+               List<String> keys = new ArrayList<String>();
+               for (int j = i; j < i + 20; j++)
+               {
+                  entries.put("KEY" + j, "VALUE" + index);
+                  keys.add("KEY" + (N_KEYS - j));
+               }
+               replica.putAll(entries);
+               replica.deleteAll(keys);
+               replica.getAll(keys);
+            }
+         }
+      });
+
+      MapCrdt sequential = new MapCrdt();
+      sequential.merge(replica);
+      List<String> keys = new ArrayList<String>();
+      for (Map.Entry<String, MapCrdtLogEntry> entry : sequential.logs)
+      {
+         keys.add(entry.getKey());
+      }
+      Map<String, String> values = replica.getAll(keys);
+      for (String key : keys)
+      {
+         assertEquals(sequential.get(key), values.get(key));
+      }
+      assertEquals(N_KEYS, sequential.logs.size());
+   }
+
+   /**
+   * This test checks that the hash tree updated by concurrent writers equals the tree of a
+   * sequential replica holding the same logs.
+   **/
+   @Test
+   public void testConcurrentMerkleTree()
+   {
+      final ConcurrentMapCrdt replica = new ConcurrentMapCrdt();
+      replica.getMerkleTree();
+
+      this.runThreads(new ThreadTask()
+      {
+         public void run(int index)
+         {
+            for (int i = 0; i < N_KEYS; i++)
+            {
+               replica.put("KEY" + (i % 500), "VALUE" + index);
+               if (i % 3 == 0)
+               {
+                  replica.delete("KEY" + ((i + 7) % 500));
+               }
+            }
+         }
+      });
+
+      MapCrdt sequential = new MapCrdt();
+      sequential.merge(replica);
+      assertEquals(sequential.getMerkleTree().getRootHash(),
+                   replica.getMerkleTree().getRootHash());
+
+      ConcurrentMapCrdt other = new ConcurrentMapCrdt();
+      other.mergeDifferences(replica);
+      assertTrue(other.getMerkleTree().differences(replica.getMerkleTree()).isEmpty());
+   }
+
+   /**
+   * This test checks that tombstones collected while threads are writing and replicas exchange
+   * deltas do not change the values seen on both replicas.
+   **/
+   @Test
+   public void testConcurrentTombstoneCollection()
+   {
+      final ConcurrentMapCrdt replica = new ConcurrentMapCrdt();
+      final MapCrdt peer = new MapCrdt();
+      replica.addPeer(peer.getReplicaId());
+      peer.addPeer(replica.getReplicaId());
+
+      Thread collector = new Thread()
+      {
+         public void run()
+         {
+            while (this.isInterrupted() == false)
+            {
+               exchangeDeltas(replica, peer);
+               replica.collectGarbage();
+            }
+         }
+      };
+      collector.start();
+
+      this.runThreads(new ThreadTask()
+      {
+         public void run(int index)
+         {
+            for (int i = 0; i < N_KEYS; i++)
+            {
+               replica.put("KEY" + index + "_" + (i % 100), "VALUE" + i);
+               if (i % 3 == 0)
+               {
+                  replica.delete("KEY" + index + "_" + ((i + 50) % 100));
+               }
+            }
+         }
+      });
+
+      collector.interrupt();
+      try
+      {
+         collector.join();
+      }
+      catch (InterruptedException e)
+      {
+      }
+
+      exchangeDeltas(replica, peer);
+      exchangeDeltas(replica, peer);
+      replica.collectGarbage();
+      peer.collectGarbage();
+
+      assertTrue(replica.getReclaimedTombstones() > 0);
+      for (int index = 0; index < N_THREADS; index++)
+      {
+         for (int i = 0; i < 100; i++)
+         {
+            String key = "KEY" + index + "_" + i;
+            assertEquals(peer.get(key), replica.get(key));
+            assertEquals(peer.containsKey(key), replica.containsKey(key));
+         }
+      }
+   }
+
+   /**
+   * This test checks that a sequential and a concurrent replica written by threads can merge each
+   * other at the same time, and converge once the writers are done.
+   **/
+   @Test
+   public void testMutualMerges()
+   {
+      final MapCrdt[] replicas = new MapCrdt[] { new MapCrdt(), new ConcurrentMapCrdt() };
+
+      this.runThreads(new ThreadTask()
+      {
+         public void run(int index)
+         {
+            MapCrdt local = replicas[index % 2];
+            MapCrdt other = replicas[(index + 1) % 2];
+
+            for (int i = 0; i < N_KEYS; i++)
+            {
+               local.put("KEY" + (i % 300), "VALUE" + index + "_" + i);
+               if (i % 4 == 0)
+               {
+                  local.delete("KEY" + ((i + 100) % 300));
+               }
+               if (i % 100 == 0)
+               {
+                  local.merge(other);
+               }
+            }
+         }
+      });
+
+      replicas[0].merge(replicas[1]);
+      replicas[1].merge(replicas[0]);
+      for (int i = 0; i < 300; i++)
+      {
+         assertEquals(replicas[0].get("KEY" + i), replicas[1].get("KEY" + i));
+      }
+      assertTrue(replicas[0].snapshots.isEmpty() && replicas[1].snapshots.isEmpty());
+   }
+
+   /**
+   * This test checks that a parallel merge ends with the same logs as a sequential merge.
+   **/
+   @Test
+   public void testParallelMerge()
+   {
+      MapCrdt other = new MapCrdt();
+      MapCrdt sequential = new MapCrdt();
+      ConcurrentMapCrdt parallel = new ConcurrentMapCrdt();
+
+      for (int i = 0; i < 10 * N_KEYS; i++)
+      {
+         if (i % 2 == 0)
+         {
+            sequential.put("KEY" + i, "OLD");
+            parallel.put("KEY" + i, "OLD");
+         }
+         other.put("KEY" + i, "VALUE" + i);
+         if (i % 5 == 0)
+         {
+            other.delete("KEY" + i);
+         }
+      }
+
+      ForkJoinPool pool = new ForkJoinPool(N_THREADS);
+      sequential.merge(other);
+      parallel.mergeParallel(other, pool, 100);
+      pool.shutdown();
+
+      assertEquals(sequential.logs.size(), parallel.logs.size());
+      for (Map.Entry<String, MapCrdtLogEntry> entry : sequential.logs)
+      {
+         assertEquals(0, entry.getValue().compareTo(parallel.logs.get(entry.getKey())));
+      }
+
+      try
+      {
+         parallel.mergeParallel(other, ForkJoinPool.commonPool(), 0);
+         assertTrue(false);
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+   }
+
+   /**
+   * Sends to each replica the delta of the other replica it has not acknowledged yet.
+   * @param replica1 the first replica.
+   * @param replica2 the second replica.
+   **/
+   protected static void exchangeDeltas(MapCrdt replica1, MapCrdt replica2)
+   {
+      replica2.mergeDelta(replica1.delta(replica2.getAcknowledgedVersion(replica1.getReplicaId())));
+      replica1.mergeDelta(replica2.delta(replica1.getAcknowledgedVersion(replica2.getReplicaId())));
+   }
+}
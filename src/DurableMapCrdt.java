@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+* Represents a state-based map CRDT replica whose modifications are appended to a write-ahead log.
+* A put or a delete returns once its modification is durable, and modifications waiting at the
+* same time are forced together (group commit).
+* <p>
+* Reopening the replica merges the last checkpoint and the log into a new replica with a new unique
+* id: modifications which were not durable when the process stopped may have been sent to other
+* replicas, so the local versions of the previous replica cannot be reused. The ids given by the
+* process are only unique within the process, so a replica reopened by a new process, or exchanging
+* deltas with the replicas of other processes, should be given an id which differs from the ids of
+* its peers and of its previous incarnations.
+**/
+public class DurableMapCrdt extends MapCrdt
+{
+   /**
+   * The write-ahead log of the replica, null while the log is replayed.
+   **/
+   protected MapCrdtWriteAheadLog wal;
+
+   /**
+   * The sequence number in the log of the last modification of the replica.
+   **/
+   protected long sequence;
+
+   /**
+   * Opens the replica stored in a directory with the default group commit configuration, or
+   * creates a new replica if the directory does not contain one.
+   * @param directory the directory containing the log and the checkpoints.
+   * @throws IOException if the files cannot be read.
+   **/
+   public DurableMapCrdt(Path directory) throws IOException
+   {
+      this(nextReplicaId(), directory);
+   }
+
+   /**
+   * Opens the replica stored in a directory with a given unique id and the default group commit
+   * configuration, or creates a new replica if the directory does not contain one.
+   * @param replicaId the unique id of the replica, positive, which should differ from the ids of
+   * its peers and of the previous replicas of the directory.
+   * @param directory the directory containing the log and the checkpoints.
+   * @throws IOException if the files cannot be read.
+   **/
+   public DurableMapCrdt(int replicaId, Path directory) throws IOException
+   {
+      this(replicaId, directory, MapCrdtWriteAheadLog.DEFAULT_MAX_BATCH_COUNT,
+           MapCrdtWriteAheadLog.DEFAULT_MAX_BATCH_BYTES, MapCrdtWriteAheadLog.DEFAULT_MAX_DELAY);
+   }
+
+   /**
+   * Opens the replica stored in a directory with a given group commit configuration. A batch of
+   * modifications is forced when it contains maxBatchCount modifications, maxBatchBytes bytes or
+   * when its oldest modification has waited maxDelay milliseconds.
+   * @param directory the directory containing the log and the checkpoints.
+   * @param maxBatchCount the maximum number of modifications of a batch.
+   * @param maxBatchBytes the maximum number of bytes of a batch.
+   * @param maxDelay the maximum number of milliseconds a modification waits before being forced.
+   * @throws IOException if the files cannot be read.
+   **/
+   public DurableMapCrdt(Path directory, int maxBatchCount, int maxBatchBytes, long maxDelay)
+      throws IOException
+   {
+      this(nextReplicaId(), directory, maxBatchCount, maxBatchBytes, maxDelay);
+   }
+
+   /**
+   * Opens the replica stored in a directory with a given unique id and a given group commit
+   * configuration.
+   * @param replicaId the unique id of the replica, positive, which should differ from the ids of
+   * its peers and of the previous replicas of the directory.
+   * @param directory the directory containing the log and the checkpoints.
+   * @param maxBatchCount the maximum number of modifications of a batch.
+   * @param maxBatchBytes the maximum number of bytes of a batch.
+   * @param maxDelay the maximum number of milliseconds a modification waits before being forced.
+   * @throws IOException if the files cannot be read.
+   **/
+   public DurableMapCrdt(int replicaId, Path directory, int maxBatchCount, int maxBatchBytes,
+                         long maxDelay) throws IOException
+   {
+      super(replicaId, new MapCrdtHybridClock(), new MapCrdtHashStorage());
+
+      MapCrdtWriteAheadLog wal = new MapCrdtWriteAheadLog(directory, maxBatchCount, maxBatchBytes,
+                                                          maxDelay);
+
+      // The recovered entries are already in the log, they are not appended again.
+      this.mergeDelta(wal.recover());
+      wal.start();
+      this.wal = wal;
+   }
+
+   /**
+   * Writes a snapshot of the replica and truncates the log accordingly.
+   * @throws IOException if the snapshot cannot be written.
+   **/
+   public void checkpoint() throws IOException
+   {
+      this.wal.checkpoint(this);
+   }
+
+   /**
+   * Flushes the pending modifications and closes the log, the replica should not be used anymore.
+   * @throws IOException if the pending modifications cannot be written.
+   **/
+   public void close() throws IOException
+   {
+      this.wal.close();
+   }
+
+   /**
+   * Deletes the value associated to a key, returns once the deletion is durable.
+   * @param key the key that should be deleted.
+   **/
+   public void delete(String key)
+   {
+      long sequence;
+
+      synchronized (this)
+      {
+         super.delete(key);
+         sequence = this.sequence;
+      }
+
+      this.wal.sync(sequence);
+   }
+
+   /**
+   * Deletes given keys, returns once all the deletions are durable.
+   * @param keys the keys that should be deleted.
+   **/
+   public void deleteAll(Collection<String> keys)
+   {
+      long sequence;
+
+      synchronized (this)
+      {
+         super.deleteAll(keys);
+         sequence = this.sequence;
+      }
+
+      this.wal.sync(sequence);
+   }
+
+   /**
+   * Merges a delta produced by an other replica, returns once the merged entries are durable.
+   * @param delta the delta that should be merged with the local replica.
+   **/
+   public void mergeDelta(MapCrdtDelta delta)
+   {
+      long sequence;
+
+      synchronized (this)
+      {
+         super.mergeDelta(delta);
+         sequence = this.sequence;
+      }
+
+      if (this.wal != null)
+      {
+         this.wal.sync(sequence);
+      }
+   }
+
+   /**
+   * Merges a snapshot of an other replica, returns once the merged entries are durable.
+   * @param snapshot the snapshot that should be merged with the local replica.
+   **/
+   public void mergeSnapshot(MapCrdtSnapshot snapshot)
+   {
+      long sequence;
+
+      synchronized (this)
+      {
+         super.mergeSnapshot(snapshot);
+         sequence = this.sequence;
+      }
+
+      this.wal.sync(sequence);
+   }
+
+   /**
+   * Puts a key value pair into the map, returns once the modification is durable.
+   * @param key the key that is targeted
+   * @param value the value that should be assigned to the key
+   **/
+   public void put(String key, String value)
+   {
+      long sequence;
+
+      synchronized (this)
+      {
+         super.put(key, value);
+         sequence = this.sequence;
+      }
+
+      this.wal.sync(sequence);
+   }
+
+   /**
+   * Puts key value pairs into the map, returns once all the modifications are durable.
+   * @param entries the values that should be assigned to the keys.
+   **/
+   public void putAll(Map<String, String> entries)
+   {
+      long sequence;
+
+      synchronized (this)
+      {
+         super.putAll(entries);
+         sequence = this.sequence;
+      }
+
+      this.wal.sync(sequence);
+   }
+
+   /**
+   * Appends a log entry to the write-ahead log, then stores it in the local logs.
+   * @param key the key of the log entry.
+   * @param info the new log entry of the key.
+   **/
+   protected void update(String key, MapCrdtLogEntry info)
+   {
+      if (this.wal != null)
+      {
+         this.sequence = this.wal.append(key, info);
+      }
+
+      super.update(key, info);
+   }
+}
@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the map CRDT replica with a write-ahead log.
+**/
+public class DurableMapCrdtTest
+{
+   /**
+   * The directory containing the files of the replicas of a test.
+   **/
+   protected Path directory;
+
+   /**
+   * Default constructor.
+   **/
+   public DurableMapCrdtTest()
+   {
+   }
+
+   /**
+   * Creates the directory of the test.
+   **/
+   @Before
+   public void createDirectory() throws IOException
+   {
+      this.directory = Files.createTempDirectory("mapcrdt");
+   }
+
+   /**
+   * Deletes the directory of the test.
+   **/
+   @After
+   public void deleteDirectory() throws IOException
+   {
+      try (Stream<Path> files = Files.walk(this.directory))
+      {
+         Path[] paths = files.sorted(Comparator.reverseOrder()).toArray(Path[]::new);
+         for (Path path : paths)
+         {
+            Files.delete(path);
+         }
+      }
+   }
+
+   /**
+   * This test checks that acknowledged modifications are recovered by a new replica, even if the
+   * previous replica has not been closed.
+   **/
+   @Test
+   public void testRecovery() throws IOException
+   {
+      DurableMapCrdt replica = new DurableMapCrdt(this.directory);
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.delete("KEY1");
+      replica.put("NULL", null);
+
+      DurableMapCrdt recovered = new DurableMapCrdt(this.directory);
+      assertTrue(replica.getReplicaId() != recovered.getReplicaId());
+      assertNull(recovered.get("KEY1"));
+      assertTrue(recovered.containsKey("KEY1") == false);
+      assertEquals("VALUE2", recovered.get("KEY2"));
+      assertNull(recovered.get("NULL"));
+      assertTrue(recovered.containsKey("NULL"));
+
+      replica.close();
+      recovered.close();
+   }
+
+   /**
+   * This test checks that modifications of concurrent writers are forced in batches and all
+   * recovered.
+   **/
+   @Test
+   public void testGroupCommit() throws Exception
+   {
+      final DurableMapCrdt replica = new DurableMapCrdt(this.directory, 16, 4096, 5);
+      Thread[] threads = new Thread[8];
+
+      for (int t = 0; t < threads.length; t++)
+      {
+         final int thread = t;
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               for (int i = 0; i < 50; i++)
+               {
+                  replica.put("KEY" + thread + "_" + i, "VALUE" + i);
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+      replica.close();
+
+      DurableMapCrdt recovered = new DurableMapCrdt(this.directory);
+      for (int t = 0; t < threads.length; t++)
+      {
+         for (int i = 0; i < 50; i++)
+         {
+            assertEquals("VALUE" + i, recovered.get("KEY" + t + "_" + i));
+         }
+      }
+      recovered.close();
+   }
+
+   /**
+   * This test checks that a checkpoint deletes the previous log files and that modifications
+   * following it are recovered with the snapshot.
+   **/
+   @Test
+   public void testCheckpoint() throws IOException
+   {
+      DurableMapCrdt replica = new DurableMapCrdt(this.directory);
+      for (int i = 0; i < 100; i++)
+      {
+         replica.put("KEY" + i, "VALUE" + i);
+      }
+      replica.checkpoint();
+      replica.delete("KEY0");
+      replica.put("KEY1", "NEW");
+      replica.close();
+
+      assertFalse(Files.exists(this.directory.resolve("wal.0")));
+      assertTrue(Files.exists(this.directory.resolve("snapshot.1")));
+      assertTrue(Files.exists(this.directory.resolve("wal.1")));
+
+      DurableMapCrdt recovered = new DurableMapCrdt(this.directory);
+      assertNull(recovered.get("KEY0"));
+      assertEquals("NEW", recovered.get("KEY1"));
+      assertEquals("VALUE99", recovered.get("KEY99"));
+      recovered.checkpoint();
+      recovered.close();
+
+      assertFalse(Files.exists(this.directory.resolve("snapshot.1")));
+      assertTrue(Files.exists(this.directory.resolve("snapshot.2")));
+   }
+
+   /**
+   * This test checks that a replica reopened with a given id recovers the modifications of the
+   * replica with an other id.
+   **/
+   @Test
+   public void testReplicaId() throws IOException
+   {
+      DurableMapCrdt replica = new DurableMapCrdt(1000, this.directory);
+      assertEquals(1000, replica.getReplicaId());
+      replica.put("KEY1", "VALUE1");
+      replica.close();
+
+      DurableMapCrdt reopened = new DurableMapCrdt(1001, this.directory);
+      assertEquals(1001, reopened.getReplicaId());
+      assertEquals("VALUE1", reopened.get("KEY1"));
+      assertTrue(new MapCrdt().getReplicaId() > 1001);
+      reopened.close();
+   }
+
+   /**
+   * This test checks that the tombstones replayed from the log keep the dot of their deletion, so
+   * a replica which has merged them does not get them again.
+   **/
+   @Test
+   public void testRecoveredTombstones() throws IOException
+   {
+      DurableMapCrdt replica = new DurableMapCrdt(this.directory);
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.delete("KEY1");
+      MapCrdt peer = new MapCrdt();
+      peer.mergeMissing(replica);
+      replica.close();
+
+      DurableMapCrdt reopened = new DurableMapCrdt(this.directory);
+      assertTrue(reopened.logs.get("KEY1").hasDot());
+      assertEquals(0, reopened.delta(peer.getVersionVector()).size());
+      reopened.close();
+   }
+
+   /**
+   * This test checks that an interrupted writer waits until its modification is durable and keeps
+   * its interruption.
+   **/
+   @Test
+   public void testInterruptedWriter() throws IOException
+   {
+      DurableMapCrdt replica = new DurableMapCrdt(this.directory, 16, 4096, 50);
+
+      Thread.currentThread().interrupt();
+      replica.put("KEY1", "VALUE1");
+      assertTrue(Thread.interrupted());
+      replica.close();
+
+      DurableMapCrdt recovered = new DurableMapCrdt(this.directory);
+      assertEquals("VALUE1", recovered.get("KEY1"));
+      recovered.close();
+   }
+
+   /**
+   * This test checks that a record torn by a crash ends the replay and is truncated.
+   **/
+   @Test
+   public void testTornRecord() throws IOException
+   {
+      DurableMapCrdt replica = new DurableMapCrdt(this.directory);
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.close();
+
+      Path log = this.directory.resolve("wal.0");
+      long size = Files.size(log);
+      try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE))
+      {
+         // Half of a record: its length and a wrong checksum.
+         channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 20, 1, 2, 3, 4, 5, 6 }), size);
+      }
+
+      DurableMapCrdt recovered = new DurableMapCrdt(this.directory);
+      assertEquals("VALUE1", recovered.get("KEY1"));
+      assertEquals("VALUE2", recovered.get("KEY2"));
+      recovered.put("KEY3", "VALUE3");
+      recovered.close();
+
+      DurableMapCrdt reopened = new DurableMapCrdt(this.directory);
+      assertEquals("VALUE3", reopened.get("KEY3"));
+      reopened.close();
+   }
+}
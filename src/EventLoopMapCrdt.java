@@ -0,0 +1,533 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+* Represents a state-based map CRDT replica modified by a single thread. The clients submit their
+* puts, deletes and merges as commands into a ring buffer without taking any lock, and the owning
+* thread of the replica takes them by batches and applies them in the order of the ring, holding
+* the monitor once per batch. The logs are stored in an immutable trie: once a batch is applied, the
+* owning thread publishes the root of the trie, and the reads are served from the last published
+* root without locking, so they never wait for the writers and always see whole batches.
+* <p>
+* The synchronous operations wait until their command is applied, so a client reads its own
+* writes; the asynchronous ones return as soon as their command is in the ring. When the ring is
+* full, the clients wait for the owning thread to free slots.
+**/
+public class EventLoopMapCrdt extends MapCrdt
+{
+   /**
+   * The default number of slots of the ring.
+   **/
+   public static final int DEFAULT_CAPACITY = 1024;
+
+   /**
+   * The maximum number of commands applied while holding the monitor once.
+   **/
+   protected static final int MAX_BATCH_SIZE = 256;
+
+   /**
+   * The number of times the owning thread polls the empty ring before parking.
+   **/
+   protected static final int SPINS = 100;
+
+   /**
+   * The storage of the logs, also referenced by the logs of the replica.
+   **/
+   protected MapCrdtHamtStorage hamtLogs;
+
+   /**
+   * The commands submitted by the clients.
+   **/
+   protected MapCrdtRingBuffer<Command> ring;
+
+   /**
+   * The thread applying the commands.
+   **/
+   protected Thread owner;
+
+   /**
+   * The version of the logs read by the clients, published after each batch.
+   **/
+   protected volatile MapCrdtHamt published;
+
+   /**
+   * True while the owning thread is parked, or about to be, waiting for commands.
+   **/
+   protected volatile boolean ownerParked;
+
+   /**
+   * True once the replica has been closed.
+   **/
+   protected volatile boolean closed;
+
+   /**
+   * Default constructor.
+   **/
+   public EventLoopMapCrdt()
+   {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+   * Creates a replica whose ring has a given number of slots.
+   * @param capacity the number of slots of the ring, rounded up to a power of two.
+   **/
+   public EventLoopMapCrdt(int capacity)
+   {
+      this(capacity, new MapCrdtHybridClock());
+   }
+
+   /**
+   * Creates a replica whose ring has a given number of slots and whose timestamps are given by a
+   * given clock.
+   * @param capacity the number of slots of the ring, rounded up to a power of two.
+   * @param clock the clock of the replica.
+   **/
+   public EventLoopMapCrdt(int capacity, MapCrdtClock clock)
+   {
+      super(clock, new MapCrdtHamtStorage());
+
+      this.hamtLogs = (MapCrdtHamtStorage) this.logs;
+      this.ring = new MapCrdtRingBuffer<Command>(capacity);
+      this.published = this.hamtLogs.getMap();
+
+      this.owner = new Thread("map-crdt-event-loop")
+      {
+         public void run()
+         {
+            EventLoopMapCrdt.this.runLoop();
+         }
+      };
+      this.owner.setDaemon(true);
+      this.owner.start();
+   }
+
+   /**
+   * Applies a batch of commands while holding the monitor, publishes the resulting version of the
+   * logs, then completes the commands.
+   * @param batch the commands, in the order of the ring.
+   **/
+   protected void apply(List<Command> batch)
+   {
+      RuntimeException[] failures = new RuntimeException[batch.size()];
+
+      synchronized (this)
+      {
+         for (int i = 0; i < failures.length; i++)
+         {
+            try
+            {
+               batch.get(i).apply();
+            }
+            catch (RuntimeException e)
+            {
+               failures[i] = e;
+            }
+         }
+
+         this.published = this.hamtLogs.getMap();
+      }
+
+      for (int i = 0; i < failures.length; i++)
+      {
+         if (failures[i] == null)
+         {
+            batch.get(i).complete(null);
+         }
+         else
+         {
+            batch.get(i).completeExceptionally(failures[i]);
+         }
+      }
+   }
+
+   /**
+   * Waits until a command is applied.
+   * @param command the command.
+   **/
+   protected void await(CompletableFuture<Void> command)
+   {
+      try
+      {
+         command.join();
+      }
+      catch (CompletionException e)
+      {
+         if (e.getCause() instanceof RuntimeException)
+         {
+            throw (RuntimeException) e.getCause();
+         }
+         throw e;
+      }
+   }
+
+   /**
+   * Stops the owning thread once the commands already submitted are applied, the replica should
+   * not be modified anymore. The commands submitted concurrently which the owning thread did not
+   * take are failed.
+   **/
+   public void close()
+   {
+      this.closed = true;
+      LockSupport.unpark(this.owner);
+
+      // The owning thread applies the remaining commands itself once its command returns.
+      if (Thread.currentThread() != this.owner)
+      {
+         this.failRemaining();
+      }
+   }
+
+   /**
+   * Reclaims the tombstones every peer has merged, then publishes the logs without them.
+   * @return the number of tombstones reclaimed.
+   **/
+   public synchronized int collectGarbage()
+   {
+      int reclaimed = super.collectGarbage();
+      this.published = this.hamtLogs.getMap();
+
+      return reclaimed;
+   }
+
+   /**
+   * Deletes a given key, once the command is applied by the owning thread.
+   * @param key the key that should be deleted.
+   **/
+   public void delete(final String key)
+   {
+      this.await(this.deleteAsync(key));
+   }
+
+   /**
+   * Deletes given keys in a single command, so that the deletes are published together.
+   * @param keys the keys that should be deleted.
+   **/
+   public void deleteAll(final Collection<String> keys)
+   {
+      this.await(this.submit(new Command()
+      {
+         protected void apply()
+         {
+            EventLoopMapCrdt.super.deleteAll(keys);
+         }
+      }));
+   }
+
+   /**
+   * Submits the delete of a given key without waiting for it.
+   * @param key the key that should be deleted.
+   * @return the future completed once the delete is applied.
+   **/
+   public CompletableFuture<Void> deleteAsync(final String key)
+   {
+      return this.submit(new Command()
+      {
+         protected void apply()
+         {
+            EventLoopMapCrdt.super.delete(key);
+         }
+      });
+   }
+
+   /**
+   * Waits until the owning thread has stopped, then fails the commands left in the ring. The ring
+   * is drained by a single thread at a time, the owning thread being stopped.
+   **/
+   protected void failRemaining()
+   {
+      boolean interrupted = false;
+
+      while (true)
+      {
+         try
+         {
+            this.owner.join();
+            break;
+         }
+         catch (InterruptedException e)
+         {
+            interrupted = true;
+         }
+      }
+
+      List<Command> remaining = new ArrayList<Command>();
+      synchronized (this.ring)
+      {
+         this.ring.drain(remaining, Integer.MAX_VALUE);
+      }
+
+      for (Command command : remaining)
+      {
+         command.completeExceptionally(new IllegalStateException("The replica is closed."));
+      }
+
+      if (interrupted == true)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+   * Waits until every command submitted before is applied and published.
+   **/
+   public void flush()
+   {
+      this.await(this.submit(new Command()));
+   }
+
+   /**
+   * Gets the value corresponding to a given key from the last published version of the logs,
+   * without locking.
+   * @param key the key that should be looked for.
+   * @return the value associated to the key, or null if the key is not present in the logs or last
+   * operation is a delete.
+   **/
+   public String get(String key)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      MapCrdtLogEntry info = this.published.get(key);
+      String value = info == null || info.isDelete() == true ? null : info.value;
+
+      if (metrics != null)
+      {
+         metrics.getGetLatency().record(System.nanoTime() - start);
+      }
+
+      return value;
+   }
+
+   /**
+   * Gets the values corresponding to given keys from the same published version of the logs.
+   * @param keys the keys that should be looked for.
+   * @return a map giving the value of each key, null if the key is not present in the logs or last
+   * operation is a delete.
+   **/
+   public Map<String, String> getAll(Collection<String> keys)
+   {
+      MapCrdtHamt published = this.published;
+      Map<String, String> values = new HashMap<String, String>();
+
+      for (String key : keys)
+      {
+         MapCrdtLogEntry info = published.get(key);
+         values.put(key, info == null || info.isDelete() == true ? null : info.value);
+      }
+
+      return values;
+   }
+
+   /**
+   * Gets the log entry of a key from the last published version of the logs.
+   * @param key the key.
+   * @return the log entry, null if the key has no entry.
+   **/
+   protected MapCrdtLogEntry getEntry(String key)
+   {
+      return this.published.get(key);
+   }
+
+   /**
+   * Merges a delta produced by an other replica, once the command is applied by the owning thread.
+   * @param delta the delta that should be merged with the local replica.
+   **/
+   public void mergeDelta(final MapCrdtDelta delta)
+   {
+      this.await(this.submit(new Command()
+      {
+         protected void apply()
+         {
+            EventLoopMapCrdt.super.mergeDelta(delta);
+         }
+      }));
+   }
+
+   /**
+   * Merges the log entries of a snapshot of an other replica, once the command is applied by the
+   * owning thread.
+   * @param snapshot the snapshot that should be merged with the local replica.
+   **/
+   public void mergeSnapshot(final MapCrdtSnapshot snapshot)
+   {
+      this.await(this.submit(new Command()
+      {
+         protected void apply()
+         {
+            EventLoopMapCrdt.super.mergeSnapshot(snapshot);
+         }
+      }));
+   }
+
+   /**
+   * Puts a key value pair into the map, once the command is applied by the owning thread.
+   * @param key the key that is targeted
+   * @param value the value that should be assigned to the key
+   **/
+   public void put(String key, String value)
+   {
+      this.await(this.putAsync(key, value));
+   }
+
+   /**
+   * Puts key value pairs into the map in a single command, so that the values are published
+   * together.
+   * @param entries the values that should be assigned to the keys.
+   **/
+   public void putAll(final Map<String, String> entries)
+   {
+      this.await(this.submit(new Command()
+      {
+         protected void apply()
+         {
+            EventLoopMapCrdt.super.putAll(entries);
+         }
+      }));
+   }
+
+   /**
+   * Submits the put of a key value pair without waiting for it.
+   * @param key the key that is targeted
+   * @param value the value that should be assigned to the key
+   * @return the future completed once the put is applied.
+   **/
+   public CompletableFuture<Void> putAsync(final String key, final String value)
+   {
+      return this.submit(new Command()
+      {
+         protected void apply()
+         {
+            EventLoopMapCrdt.super.put(key, value);
+         }
+      });
+   }
+
+   /**
+   * Applies the commands of the ring by batches until the replica is closed, spinning for a while
+   * then parking when the ring is empty.
+   **/
+   protected void runLoop()
+   {
+      List<Command> batch = new ArrayList<Command>(MAX_BATCH_SIZE);
+      int idle = 0;
+
+      while (true)
+      {
+         // Read before draining, so every command submitted before the close is applied.
+         boolean closed = this.closed;
+
+         if (this.ring.drain(batch, MAX_BATCH_SIZE) > 0)
+         {
+            this.apply(batch);
+            batch.clear();
+            idle = 0;
+         }
+         else if (closed == true)
+         {
+            return;
+         }
+         else if (idle < SPINS)
+         {
+            idle++;
+            Thread.onSpinWait();
+         }
+         else
+         {
+            // The flag is set before checking the ring again, so a client offering a command
+            // after the check sees it and unparks the thread.
+            this.ownerParked = true;
+            if (this.ring.isEmpty() == true && this.closed == false)
+            {
+               LockSupport.park(this);
+            }
+            this.ownerParked = false;
+         }
+      }
+   }
+
+   /**
+   * Takes a point-in-time snapshot of the logs: the last published version of the trie, which is
+   * never modified, so nothing is copied and nothing is preserved by the replica.
+   * @return the snapshot.
+   **/
+   public MapCrdtSnapshot snapshot()
+   {
+      return new MapCrdtSnapshot(null, new MapCrdtHamtStorage(this.published));
+   }
+
+   /**
+   * Submits a command to the owning thread, applying it directly if the caller is the owning
+   * thread.
+   * @param command the command.
+   * @return the command, completed once it is applied, or failed if the replica is closed before.
+   * @throws IllegalStateException if the replica is closed.
+   **/
+   protected Command submit(Command command)
+   {
+      if (Thread.currentThread() == this.owner)
+      {
+         command.apply();
+         command.complete(null);
+         return command;
+      }
+
+      if (this.closed == true)
+      {
+         throw new IllegalStateException("The replica is closed.");
+      }
+
+      while (this.ring.offer(command) == false)
+      {
+         if (this.closed == true)
+         {
+            throw new IllegalStateException("The replica is closed.");
+         }
+
+         // The ring is full, the owning thread is woken up to free slots.
+         LockSupport.unpark(this.owner);
+         Thread.yield();
+      }
+
+      if (this.ownerParked == true)
+      {
+         LockSupport.unpark(this.owner);
+      }
+
+      // The replica may have been closed while the command was offered, after the owning thread
+      // drained the ring for the last time: the command is then failed instead of never applied.
+      if (this.closed == true)
+      {
+         this.failRemaining();
+      }
+
+      return command;
+   }
+
+   /**
+   * Represents a command submitted to the owning thread, completed once applied.
+   **/
+   protected class Command extends CompletableFuture<Void>
+   {
+      /**
+      * Default constructor.
+      **/
+      public Command()
+      {
+      }
+
+      /**
+      * Applies the command to the replica, called by the owning thread while holding the monitor.
+      * Does nothing by default.
+      **/
+      protected void apply()
+      {
+      }
+   }
+}
@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the map CRDT replica modified by a single thread.
+**/
+public class EventLoopMapCrdtTest
+{
+   /**
+   * The number of keys written by each client of the tests.
+   **/
+   protected static final int N_KEYS = 5000;
+
+   /**
+   * Default constructor.
+   **/
+   public EventLoopMapCrdtTest()
+   {
+   }
+
+   /**
+   * This test evaluates the scenario: Put Del Get, including batches, and checks that a closed
+   * replica refuses the commands.
+   **/
+   @Test
+   public void testPutDelGet()
+   {
+      EventLoopMapCrdt replica = new EventLoopMapCrdt(4);
+
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.delete("KEY1");
+      Map<String, String> entries = new HashMap<String, String>();
+      for (int i = 0; i < 100; i++)
+      {
+         entries.put("BATCH" + i, "VALUE" + i);
+      }
+      replica.putAll(entries);
+      replica.deleteAll(Arrays.asList("BATCH0", "BATCH1"));
+
+      assertNull(replica.get("KEY1"));
+      assertEquals("VALUE2", replica.get("KEY2"));
+      assertNull(replica.get("BATCH1"));
+      assertEquals("VALUE99", replica.getAll(Arrays.asList("BATCH99")).get("BATCH99"));
+      assertEquals(102, replica.getLogSize());
+      assertEquals(102, replica.delta(0).size());
+
+      replica.close();
+      try
+      {
+         replica.put("KEY3", "VALUE3");
+         assertTrue(false);
+      }
+      catch (IllegalStateException e)
+      {
+      }
+   }
+
+   /**
+   * This test checks that the commands of concurrent clients, sent through a ring smaller than the
+   * number of commands, are all applied, and that each client reads its own writes.
+   **/
+   @Test
+   public void testConcurrentClients() throws InterruptedException
+   {
+      final EventLoopMapCrdt replica = new EventLoopMapCrdt(64);
+      final boolean[] readOwnWrites = new boolean[4];
+      List<Thread> clients = new ArrayList<Thread>();
+
+      for (int t = 0; t < readOwnWrites.length; t++)
+      {
+         final int client = t;
+         clients.add(new Thread()
+         {
+            public void run()
+            {
+               boolean read = true;
+               for (int i = 0; i < N_KEYS; i++)
+               {
+                  replica.put("CLIENT" + client + ":" + i, "VALUE" + i);
+                  read &= ("VALUE" + i).equals(replica.get("CLIENT" + client + ":" + i));
+               }
+               readOwnWrites[client] = read;
+            }
+         });
+      }
+
+      for (Thread client : clients)
+      {
+         client.start();
+      }
+      for (Thread client : clients)
+      {
+         client.join();
+      }
+
+      assertEquals(readOwnWrites.length * N_KEYS, replica.getLogSize());
+      for (int t = 0; t < readOwnWrites.length; t++)
+      {
+         assertTrue(readOwnWrites[t]);
+         assertEquals("VALUE7", replica.get("CLIENT" + t + ":7"));
+      }
+
+      replica.close();
+   }
+
+   /**
+   * This test checks that the commands submitted while the replica is closed are either applied or
+   * failed, so no client waits forever.
+   **/
+   @Test
+   public void testConcurrentClose() throws Exception
+   {
+      for (int round = 0; round < 20; round++)
+      {
+         final EventLoopMapCrdt replica = new EventLoopMapCrdt(16);
+         final List<CompletableFuture<Void>> commands = new ArrayList<CompletableFuture<Void>>();
+         Thread client = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = 0; i < N_KEYS; i++)
+                  {
+                     commands.add(replica.putAsync("KEY" + i, "VALUE" + i));
+                  }
+               }
+               catch (IllegalStateException e)
+               {
+               }
+            }
+         };
+
+         client.start();
+         replica.close();
+         client.join();
+
+         for (CompletableFuture<Void> command : commands)
+         {
+            try
+            {
+               command.get(10, TimeUnit.SECONDS);
+            }
+            catch (ExecutionException e)
+            {
+               assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+         }
+      }
+   }
+
+   /**
+   * This test checks that the asynchronous operations are applied in order once flushed.
+   **/
+   @Test
+   public void testAsync()
+   {
+      EventLoopMapCrdt replica = new EventLoopMapCrdt(16);
+      List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+
+      for (int i = 0; i < N_KEYS; i++)
+      {
+         futures.add(replica.putAsync("KEY" + (i % 10), "VALUE" + i));
+      }
+      futures.add(replica.deleteAsync("KEY0"));
+      replica.flush();
+
+      for (CompletableFuture<Void> future : futures)
+      {
+         assertTrue(future.isDone());
+      }
+      assertNull(replica.get("KEY0"));
+      assertEquals("VALUE" + (N_KEYS - 1), replica.get("KEY9"));
+      assertEquals(10, replica.getLogSize());
+
+      replica.close();
+   }
+
+   /**
+   * This test checks that the replica merges and is merged by the other replicas, through
+   * snapshots and deltas, and that its snapshots are not modified by later writes.
+   **/
+   @Test
+   public void testMerge()
+   {
+      EventLoopMapCrdt replica = new EventLoopMapCrdt();
+      MapCrdt other = new MapCrdt();
+      ConcurrentMapCrdt concurrent = new ConcurrentMapCrdt();
+
+      replica.put("KEY1", "LOCAL");
+      // The other replica overwrites the key after merging it, so its put is the newest.
+      other.merge(replica);
+      other.put("KEY1", "OTHER");
+      other.put("KEY2", "VALUE2");
+      concurrent.put("KEY3", "VALUE3");
+      replica.merge(other);
+      replica.mergeDelta(concurrent.delta(0));
+
+      assertEquals("OTHER", replica.get("KEY1"));
+      assertEquals("VALUE2", replica.get("KEY2"));
+      assertEquals("VALUE3", replica.get("KEY3"));
+      assertEquals(concurrent.getVersion(),
+                   replica.getAcknowledgedVersion(concurrent.getReplicaId()));
+
+      MapCrdtSnapshot snapshot = replica.snapshot();
+      replica.delete("KEY2");
+      replica.put("KEY4", "VALUE4");
+      assertEquals("VALUE2", snapshot.get("KEY2").value);
+      assertNull(snapshot.get("KEY4"));
+      snapshot.close();
+
+      other.merge(replica);
+      concurrent.mergeDelta(replica.delta(0));
+      assertEquals(replica.getMerkleTree().getRootHash(), other.getMerkleTree().getRootHash());
+      assertEquals(replica.getMerkleTree().getRootHash(), concurrent.getMerkleTree().getRootHash());
+      assertNull(other.get("KEY2"));
+      assertEquals("VALUE4", concurrent.get("KEY4"));
+
+      replica.close();
+   }
+
+   /**
+   * This test checks the trie: versions sharing their nodes, keys whose hashes are equal, and the
+   * removal of keys down to the empty trie.
+   **/
+   @Test
+   public void testHamt()
+   {
+      MapCrdtLogEntry info = new MapCrdtLogEntry(1, 1, MapCrdtLogEntry.Type.PUT, "VALUE");
+      MapCrdtHamt map = MapCrdtHamt.EMPTY;
+
+      // "Aa" and "BB" have the same hash, so do "AaAa", "AaBB", "BBAa" and "BBBB".
+      List<String> keys = new ArrayList<String>(Arrays.asList("Aa", "BB", "AaAa", "AaBB", "BBAa",
+                                                              "BBBB"));
+      for (int i = 0; i < N_KEYS; i++)
+      {
+         keys.add("KEY" + i);
+      }
+      for (String key : keys)
+      {
+         map = map.put(key, info);
+      }
+
+      MapCrdtHamt previous = map;
+      map = map.put("Aa", info.delete());
+      assertEquals(keys.size(), map.size());
+      assertFalse(previous.get("Aa").isDelete());
+      assertTrue(map.get("Aa").isDelete());
+      assertEquals("VALUE", map.get("BB").value);
+      assertEquals(map, map.put("BB", map.get("BB")));
+      assertEquals(map, map.remove("CC"));
+
+      int count = 0;
+      for (Map.Entry<String, MapCrdtLogEntry> entry : map)
+      {
+         assertEquals(map.get(entry.getKey()), entry.getValue());
+         count++;
+      }
+      assertEquals(keys.size(), count);
+
+      for (String key : keys)
+      {
+         map = map.remove(key);
+         assertNull(map.get(key));
+      }
+      assertEquals(0, map.size());
+      assertFalse(map.iterator().hasNext());
+      assertEquals(keys.size(), previous.size());
+      assertEquals("VALUE", previous.get("BBBB").value);
+   }
+}
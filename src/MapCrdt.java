@@ -1,7 +1,20 @@
-import java.sql.Timestamp;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 
 /**
 * Represents a state-based map CRDT replica.
@@ -9,9 +22,9 @@ import java.util.Set;
 public class MapCrdt
 {
    /**
-   * A hashmap storing logs information relative to the last operation of each key.
+   * The storage of the logs information relative to the last operation of each key.
    */
-   protected HashMap<String, MapCrdtLogEntry> logs;
+   protected MapCrdtStorage logs;
 
    /**
    * A unique id for the current replica.
@@ -24,104 +37,1017 @@ public class MapCrdt
    protected static Integer replicaIdCpt = 1;
 
    /**
-   * Default constructor
+   * The local version of the replica, incremented each time a log entry is modified.
+   **/
+   protected long version;
+
+   /**
+   * The local version at which the log entry of each key has been modified for the last time.
+   **/
+   protected Map<String, Long> versions;
+
+   /**
+   * The keys modified in the replica indexed by the local version of their last modification.
+   **/
+   protected NavigableMap<Long, String> changes;
+
+   /**
+   * The last version of each other replica whose delta has been merged into the local replica.
+   **/
+   protected Map<Integer, Long> acknowledgements;
+
+   /**
+   * The timestamp of the last operation of each replica whose every entry is held by the local
+   * replica.
+   **/
+   protected MapCrdtVersionVector versionVector;
+
+   /**
+   * The clock giving the timestamps of the local operations.
+   **/
+   protected MapCrdtClock clock;
+
+   /**
+   * The hash tree over the logs, null until it is asked for the first time.
+   **/
+   protected volatile MapCrdtMerkleTree tree;
+
+   /**
+   * The sorted index of the keys of the logs, null until a range of keys is scanned for the first
+   * time.
+   **/
+   protected volatile MapCrdtSortedIndex sortedIndex;
+
+   /**
+   * The index of the keys of the logs by the dot of their entry, null until a delta after a version
+   * vector is asked for the first time.
+   **/
+   protected volatile MapCrdtDotIndex dotIndex;
+
+   /**
+   * The replicas which should have merged a tombstone before it can be reclaimed.
+   **/
+   protected Set<Integer> peers;
+
+   /**
+   * The last local version each peer has acknowledged, learned from the deltas of the peer.
+   **/
+   protected Map<Integer, Long> peerAcknowledgements;
+
+   /**
+   * The local version up to which tombstones have been reclaimed.
+   **/
+   protected long collectedVersion;
+
+   /**
+   * The number of tombstones reclaimed since the creation of the replica.
+   **/
+   protected long reclaimedTombstones;
+
+   /**
+   * The open snapshots of the logs, given the previous entry of each modified key.
+   **/
+   protected List<MapCrdtSnapshot> snapshots;
+
+   /**
+   * The metrics recording the activity of the replica, null until they are enabled.
+   **/
+   protected volatile MapCrdtMetrics metrics;
+
+   /**
+   * The feed publishing the changes of the values of the keys, null if it is not enabled.
+   **/
+   protected volatile MapCrdtChangeFeed changeFeed;
+
+   /**
+   * The table interning the values put and merged, null if the values are not interned.
+   **/
+   protected volatile MapCrdtInterner interner;
+
+   /**
+   * Default constructor, timestamps are given by a hybrid logical clock and logs are stored in a
+   * hash map.
    */
    public MapCrdt()
    {
-      this.logs = new HashMap<String, MapCrdtLogEntry>();
-      
-      synchronized(replicaIdCpt)
+      this(new MapCrdtHybridClock());
+   }
+
+   /**
+   * Creates a replica whose timestamps are given by a given clock.
+   * @param clock the clock of the replica.
+   **/
+   public MapCrdt(MapCrdtClock clock)
+   {
+      this(clock, new MapCrdtHashStorage());
+   }
+
+   /**
+   * Creates a replica whose logs are stored in a given storage.
+   * @param storage the empty storage of the logs.
+   **/
+   public MapCrdt(MapCrdtStorage storage)
+   {
+      this(new MapCrdtHybridClock(), storage);
+   }
+
+   /**
+   * Creates a replica whose timestamps are given by a given clock and whose logs are stored in a
+   * given storage.
+   * @param clock the clock of the replica.
+   * @param storage the empty storage of the logs.
+   **/
+   public MapCrdt(MapCrdtClock clock, MapCrdtStorage storage)
+   {
+      this(nextReplicaId(), clock, storage);
+   }
+
+   /**
+   * Creates a replica with a given unique id, whose timestamps are given by a given clock and whose
+   * logs are stored in a given storage. The id is reserved, so the replicas created afterwards in
+   * the process get other ids, but the replicas of different processes should be given different
+   * ids.
+   * @param replicaId the unique id of the replica, positive.
+   * @param clock the clock of the replica.
+   * @param storage the empty storage of the logs.
+   **/
+   public MapCrdt(int replicaId, MapCrdtClock clock, MapCrdtStorage storage)
+   {
+      if (replicaId < 1)
+      {
+         throw new IllegalArgumentException("The replica id should be positive.");
+      }
+
+      this.replicaId = replicaId;
+      reserveReplicaId(replicaId);
+      this.clock = clock;
+      this.logs = storage;
+      this.version = 0;
+      this.versions = new HashMap<String, Long>();
+      this.changes = new TreeMap<Long, String>();
+      this.acknowledgements = new HashMap<Integer, Long>();
+      this.versionVector = new MapCrdtVersionVector();
+      this.peers = new HashSet<Integer>();
+      this.peerAcknowledgements = new HashMap<Integer, Long>();
+      this.snapshots = new CopyOnWriteArrayList<MapCrdtSnapshot>();
+   }
+
+   /**
+   * Records the local version acknowledged by the replica which produced a delta, the highest one
+   * is kept. The acknowledgements are only recorded once the version of the delta is acknowledged,
+   * stale deltas included but not incomplete ones: the deltas the other replica produced before
+   * are then ignored by mergeDelta, so they cannot bring back a reclaimed tombstone.
+   * @param delta a delta produced by an other replica.
+   **/
+   protected void acknowledgedBy(MapCrdtDelta delta)
+   {
+      if (delta.toVersion > this.getAcknowledgedVersion(delta.replicaId))
+      {
+         return;
+      }
+
+      Long reported = delta.acknowledgements.get(this.replicaId);
+      Long known = this.peerAcknowledgements.get(delta.replicaId);
+
+      if (reported != null && (known == null || known < reported))
+      {
+         this.peerAcknowledgements.put(delta.replicaId, reported);
+      }
+   }
+
+   /**
+   * Declares a replica as a peer: tombstones are reclaimed only once every peer has merged them, so
+   * every replica that can send a delta to the local replica should be declared.
+   * @param replicaId the unique identifier of the peer.
+   **/
+   public synchronized void addPeer(int replicaId)
+   {
+      this.peers.add(replicaId);
+   }
+
+   /**
+   * Creates a delta containing the log entries of the keys of given buckets of the hash tree. The
+   * delta is not acknowledged when merged since it does not contain every modification.
+   * @param buckets the indexes of the buckets.
+   * @return the delta containing the entries of the buckets.
+   **/
+   public synchronized MapCrdtDelta bucketDelta(List<Integer> buckets)
+   {
+      MapCrdtMerkleTree tree = this.getMerkleTree();
+      long current = this.getVersion();
+      MapCrdtDelta delta = new MapCrdtDelta(this.replicaId, current, current);
+
+      for (int bucket : buckets)
+      {
+         for (String key : tree.getKeys(bucket))
+         {
+            delta.entries.put(key, this.logs.get(key));
+         }
+      }
+
+      return delta;
+   }
+
+   /**
+   * Builds the index of the keys by dot from the current logs, the caller should prevent
+   * modifications.
+   * @return the index of the keys by dot.
+   **/
+   protected MapCrdtDotIndex buildDotIndex()
+   {
+      MapCrdtDotIndex index = new MapCrdtDotIndex();
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : this.logs)
+      {
+         index.add(entry.getKey(), entry.getValue());
+      }
+
+      return index;
+   }
+
+   /**
+   * Builds the hash tree from the current logs, the caller should prevent modifications.
+   * @return the hash tree.
+   **/
+   protected MapCrdtMerkleTree buildMerkleTree()
+   {
+      MapCrdtMerkleTree tree = new MapCrdtMerkleTree(MapCrdtMerkleTree.DEFAULT_DEPTH);
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : this.logs)
+      {
+         tree.update(entry.getKey(), null, entry.getValue());
+      }
+
+      return tree;
+   }
+
+   /**
+   * Builds the sorted index from the current logs, the caller should prevent modifications.
+   * @return the sorted index.
+   **/
+   protected MapCrdtSortedIndex buildSortedIndex()
+   {
+      MapCrdtSortedIndex index = new MapCrdtSortedIndex();
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : this.logs)
+      {
+         index.add(entry.getKey());
+      }
+
+      return index;
+   }
+
+   /**
+   * Reclaims the tombstones every peer has merged. A tombstone is stable once every peer has
+   * acknowledged a local version after its modification: peers then hold the tombstone or a newer
+   * entry, so they cannot send again the PUT it deleted, and older deltas still in transit are
+   * ignored by mergeDelta. No tombstone is reclaimed while no peer is declared, while a snapshot
+   * is open or if the storage cannot remove entries.
+   * @return the number of tombstones reclaimed.
+   **/
+   public synchronized int collectGarbage()
+   {
+      long stable = this.getStableVersion();
+      int reclaimed = 0;
+
+      if (stable <= this.collectedVersion || this.snapshots.isEmpty() == false ||
+          this.logs.canRemove() == false)
+      {
+         return 0;
+      }
+
+      // Keys modified before the previous collection and not reclaimed are not tombstones.
+      List<Map.Entry<Long, String>> candidates = new ArrayList<Map.Entry<Long, String>>(
+         this.changes.subMap(this.collectedVersion, false, stable, true).entrySet());
+
+      for (Map.Entry<Long, String> candidate : candidates)
+      {
+         String key = candidate.getValue();
+         MapCrdtLogEntry info = this.logs.get(key);
+
+         if (info.isDelete() == true)
+         {
+            this.remove(key, candidate.getKey(), info);
+            reclaimed++;
+         }
+      }
+
+      this.collectedVersion = stable;
+      this.reclaimedTombstones += reclaimed;
+
+      return reclaimed;
+   }
+
+   /**
+   * Gives information about the presence of a given key in the map.
+   * @param key the key that should be looked for.
+   * @return true if the key is in the logs and last operation is a put, false otherwise.
+   **/
+   protected synchronized boolean containsKey(String key)
+   {
+      MapCrdtLogEntry info = this.logs.get(key);
+
+      return info != null && info.isDelete() == false;
+   }
+
+   /**
+   * Deletes a given key if it is present in the logs and has not been yet deleted.
+   * @param key the key that should be deleted.
+   **/
+   public void delete(String key)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      synchronized (this)
+      {
+         if (metrics != null)
+         {
+            metrics.getLockWait().record(System.nanoTime() - start);
+         }
+
+         if (this.containsKey(key) == true)
+         {
+            this.update(key, this.logs.get(key).delete(this.replicaId, this.clock.now()));
+         }
+      }
+
+      if (metrics != null)
+      {
+         metrics.getDeleteLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Deletes given keys, exactly as deleting them one by one but holding the monitor and reading
+   * the clock once: the keys are distinct so their deletions can share a timestamp.
+   * @param keys the keys that should be deleted.
+   **/
+   public synchronized void deleteAll(Collection<String> keys)
+   {
+      long time = this.clock.now();
+
+      for (String key : keys)
+      {
+         if (this.containsKey(key) == true)
+         {
+            this.update(key, this.logs.get(key).delete(this.replicaId, time));
+         }
+      }
+   }
+
+   /**
+   * Deletes a given key given as bytes.
+   * @param key the bytes of the key that should be deleted.
+   **/
+   public void deleteBytes(byte[] key)
+   {
+      this.delete(MapCrdtBytes.wrap(key));
+   }
+
+   /**
+   * Deletes a given key given as the remaining bytes of a buffer, whose position is not moved.
+   * @param key the buffer holding the bytes of the key that should be deleted.
+   **/
+   public void deleteBytes(ByteBuffer key)
+   {
+      this.delete(MapCrdtBytes.wrap(key));
+   }
+
+   /**
+   * Creates a delta containing the log entries modified after a given local version.
+   * @param since the version after which modifications are wanted, 0 to get the whole state.
+   * @return the delta going from the given version to the current version of the replica.
+   **/
+   public synchronized MapCrdtDelta delta(long since)
+   {
+      MapCrdtDelta delta = new MapCrdtDelta(this.replicaId, since, this.version);
+      delta.acknowledgements.putAll(this.acknowledgements);
+      delta.versionVector = this.versionVector.copy();
+
+      for (String key : this.changes.tailMap(since, false).values())
+      {
+         delta.entries.put(key, this.logs.get(key));
+      }
+
+      return delta;
+   }
+
+   /**
+   * Creates a delta containing the log entries whose dot is after a version vector: a replica
+   * giving its own vector gets exactly the entries it is missing, found through the index of the
+   * keys by dot without walking the logs.
+   * @param since the version vector after which modifications are wanted.
+   * @return the delta going from the given vector to the current version of the replica.
+   **/
+   public synchronized MapCrdtDelta delta(MapCrdtVersionVector since)
+   {
+      MapCrdtDelta delta = new MapCrdtDelta(this.replicaId, 0, this.getVersion());
+      delta.acknowledgements.putAll(this.acknowledgements);
+      delta.sinceVector = since.copy();
+      delta.versionVector = this.versionVector.copy();
+
+      for (String key : this.getDotIndex().keysAfter(since))
+      {
+         delta.entries.put(key, this.logs.get(key));
+      }
+
+      return delta;
+   }
+
+   /**
+   * Enables the feed publishing the changes of the values of the keys made from now on.
+   * @return the feed of the replica, the same one if it was already enabled.
+   **/
+   public MapCrdtChangeFeed enableChangeFeed()
+   {
+      return this.enableChangeFeed(MapCrdtChangeFeed.DEFAULT_MAX_BATCH_SIZE,
+                                   Flow.defaultBufferSize(), ForkJoinPool.commonPool());
+   }
+
+   /**
+   * Enables the feed publishing the changes of the values of the keys made from now on.
+   * @param maxBatchSize the maximum number of changes of a batch.
+   * @param maxBufferCapacity the maximum number of batches not yet consumed by a subscriber.
+   * @param executor the executor delivering the batches to the subscribers.
+   * @return the feed of the replica, the same one if it was already enabled.
+   **/
+   public synchronized MapCrdtChangeFeed enableChangeFeed(int maxBatchSize, int maxBufferCapacity,
+                                                          Executor executor)
+   {
+      if (this.changeFeed == null)
+      {
+         this.changeFeed = new MapCrdtChangeFeed(maxBatchSize, maxBufferCapacity, executor);
+      }
+
+      return this.changeFeed;
+   }
+
+   /**
+   * Enables the interning of the values put into the replica and merged from other replicas, in a
+   * table of its own.
+   * @return the table interning the values, the same one if the interning was already enabled.
+   **/
+   public MapCrdtInterner enableInterning()
+   {
+      return this.enableInterning(new MapCrdtInterner());
+   }
+
+   /**
+   * Enables the interning of the values put into the replica and merged from other replicas, in a
+   * given table which may be shared with other replicas.
+   * @param interner the table interning the values.
+   * @return the table interning the values, the one already used if the interning was enabled.
+   **/
+   public synchronized MapCrdtInterner enableInterning(MapCrdtInterner interner)
+   {
+      if (this.interner == null)
+      {
+         this.interner = interner;
+      }
+
+      return this.interner;
+   }
+
+   /**
+   * Enables the metrics recording the activity of the replica.
+   * @return the metrics of the replica, the same ones if they were already enabled.
+   **/
+   public synchronized MapCrdtMetrics enableMetrics()
+   {
+      if (this.metrics == null)
+      {
+         this.metrics = new MapCrdtMetrics(this);
+      }
+
+      return this.metrics;
+   }
+
+   /**
+   * Gets the value corresponding to a given key.
+   * @param key the key that should be looked for.
+   * @return the value associated to the key, or null if the key is not presente in the logs or last
+   * operation is a delete.
+   **/
+   public String get(String key)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+      String value = null;
+
+      synchronized (this)
+      {
+         if (metrics != null)
+         {
+            metrics.getLockWait().record(System.nanoTime() - start);
+         }
+
+         if (this.containsKey(key) == true)
+         {
+            value = this.logs.get(key).value;
+         }
+      }
+
+      if (metrics != null)
+      {
+         metrics.getGetLatency().record(System.nanoTime() - start);
+      }
+
+      return value;
+   }
+
+   /**
+   * Gets the last version of a given replica whose delta has been merged into the local replica.
+   * @param replicaId the unique identifier of the other replica.
+   * @return the version to ask the other replica a delta from, 0 if no delta has been merged yet.
+   **/
+   public synchronized long getAcknowledgedVersion(int replicaId)
+   {
+      Long acknowledged = this.acknowledgements.get(replicaId);
+
+      if (acknowledged == null)
+      {
+         return 0;
+      }
+
+      return acknowledged;
+   }
+
+   /**
+   * Gets the values corresponding to given keys, holding the monitor once.
+   * @param keys the keys that should be looked for.
+   * @return a map giving the value of each key, null if the key is not present in the logs or last
+   * operation is a delete.
+   **/
+   public synchronized Map<String, String> getAll(Collection<String> keys)
+   {
+      Map<String, String> values = new HashMap<String, String>();
+
+      for (String key : keys)
+      {
+         values.put(key, this.get(key));
+      }
+
+      return values;
+   }
+
+   /**
+   * Gets the value, as bytes, corresponding to a given key given as bytes. Keys given as bytes and
+   * keys given as strings share the same keys: the bytes of a key are the key whose chars have
+   * their codes (see MapCrdtBytes), so a value put with put on such a key is read here too, and
+   * its chars are taken as bytes.
+   * @param key the bytes of the key that should be looked for.
+   * @return the bytes of the value associated to the key, or null if the key is not present in the
+   * logs or last operation is a delete.
+   * @throws IllegalArgumentException if the value was put as a string holding a char which does
+   * not fit in a byte.
+   **/
+   public byte[] getBytes(byte[] key)
+   {
+      return MapCrdtBytes.unwrap(this.get(MapCrdtBytes.wrap(key)));
+   }
+
+   /**
+   * Gets the value, as bytes, corresponding to a given key given as the remaining bytes of a
+   * buffer, whose position is not moved. See getBytes(byte[]).
+   * @param key the buffer holding the bytes of the key that should be looked for.
+   * @return the bytes of the value associated to the key, or null if the key is not present in the
+   * logs or last operation is a delete.
+   * @throws IllegalArgumentException if the value was put as a string holding a char which does
+   * not fit in a byte.
+   **/
+   public byte[] getBytes(ByteBuffer key)
+   {
+      return MapCrdtBytes.unwrap(this.get(MapCrdtBytes.wrap(key)));
+   }
+
+   /**
+   * Gets the feed publishing the changes of the values of the keys.
+   * @return the feed, or null if it is not enabled.
+   **/
+   public MapCrdtChangeFeed getChangeFeed()
+   {
+      return this.changeFeed;
+   }
+
+   /**
+   * Gets the index of the keys of the logs by dot, built from the logs the first time it is asked
+   * for and then updated by every modification.
+   * @return the index of the keys by dot.
+   **/
+   public MapCrdtDotIndex getDotIndex()
+   {
+      MapCrdtDotIndex index = this.dotIndex;
+      if (index != null)
+      {
+         return index;
+      }
+
+      synchronized (this)
+      {
+         if (this.dotIndex == null)
+         {
+            this.dotIndex = this.buildDotIndex();
+         }
+
+         return this.dotIndex;
+      }
+   }
+
+   /**
+   * Gets the log entry of a key, without holding the monitor if the logs can be read while they are
+   * modified.
+   * @param key the key.
+   * @return the log entry, null if the key has no entry.
+   **/
+   protected MapCrdtLogEntry getEntry(String key)
+   {
+      if (this.logs.isConcurrent() == true)
+      {
+         return this.logs.get(key);
+      }
+
+      synchronized (this)
+      {
+         return this.logs.get(key);
+      }
+   }
+
+   /**
+   * Gets the table interning the values.
+   * @return the table, or null if the values are not interned.
+   **/
+   public MapCrdtInterner getInterner()
+   {
+      return this.interner;
+   }
+
+   /**
+   * Gets the number of log entries of the replica, tombstones included.
+   * @return the size of the logs.
+   **/
+   public synchronized int getLogSize()
+   {
+      return this.logs.size();
+   }
+
+   /**
+   * Gets the hash tree over the logs, the tree is built the first time and then updated with the
+   * logs.
+   * @return the hash tree.
+   **/
+   public MapCrdtMerkleTree getMerkleTree()
+   {
+      MapCrdtMerkleTree tree = this.tree;
+      if (tree != null)
+      {
+         return tree;
+      }
+
+      synchronized (this)
+      {
+         if (this.tree == null)
+         {
+            this.tree = this.buildMerkleTree();
+         }
+
+         return this.tree;
+      }
+   }
+
+   /**
+   * Gets the metrics recording the activity of the replica.
+   * @return the metrics, null if they are not enabled.
+   **/
+   public MapCrdtMetrics getMetrics()
+   {
+      return this.metrics;
+   }
+
+   /**
+   * Gets the number of tombstones reclaimed since the creation of the replica, a tombstone merged
+   * again after being reclaimed is counted again when reclaimed again.
+   * @return the number of reclaimed tombstones.
+   **/
+   public synchronized long getReclaimedTombstones()
+   {
+      return this.reclaimedTombstones;
+   }
+
+   /**
+   * Gets the unique identifier of the current replica.
+   * @return the unique identifier.
+   **/
+   public synchronized int getReplicaId()
+   {
+      return this.replicaId;
+   }
+
+   /**
+   * Gets the sorted index of the keys of the logs, built from the logs the first time it is asked
+   * for and then updated by every modification.
+   * @return the sorted index.
+   **/
+   public MapCrdtSortedIndex getSortedIndex()
+   {
+      MapCrdtSortedIndex index = this.sortedIndex;
+      if (index != null)
+      {
+         return index;
+      }
+
+      synchronized (this)
       {
-         this.replicaId = this.replicaIdCpt++;
+         if (this.sortedIndex == null)
+         {
+            this.sortedIndex = this.buildSortedIndex();
+         }
+
+         return this.sortedIndex;
       }
    }
 
    /**
-   * Gives information about the presence of a given key in the map.
-   * @param key the key that should be looked for.
-   * @return true if the key is in the logs and last operation is a put, false otherwise.
+   * Gets the last local version every peer has acknowledged, tombstones modified up to this version
+   * can be reclaimed.
+   * @return the stable version, 0 if no peer is declared.
    **/
-   protected synchronized boolean containsKey(String key)
+   public synchronized long getStableVersion()
    {
-      return this.logs.containsKey(key) == true &&
-             this.logs.get(key).type.equals("DELETE") == false;
+      if (this.peers.isEmpty() == true)
+      {
+         return 0;
+      }
+
+      long stable = Long.MAX_VALUE;
+      for (int peer : this.peers)
+      {
+         Long acknowledged = this.peerAcknowledgements.get(peer);
+         stable = Math.min(stable, acknowledged == null ? 0 : acknowledged);
+      }
+
+      return stable;
    }
 
    /**
-   * Deletes a given key if it is present in the logs and has not been yet deleted.
-   * @param key the key that should be deleted.
+   * Counts the tombstones in the logs, walking the whole logs.
+   * @return the number of keys whose last operation is a delete.
    **/
-   public synchronized void delete(String key)
+   public synchronized int getTombstoneCount()
    {
-      if (this.containsKey(key) == false)
+      int count = 0;
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : this.logs)
       {
-         return;
+         if (entry.getValue().isDelete() == true)
+         {
+            count++;
+         }
       }
 
-      MapCrdtLogEntry info = this.logs.get(key);
-      info.type = "DELETE";
-      info.value = null;
-      this.logs.put(key, info);
+      return count;
    }
 
    /**
-   * Gets the value corresponding to a given key.
-   * @param key the key that should be looked for.
-   * @return the value associated to the key, or null if the key is not presente in the logs or last
-   * operation is a delete.
+   * Gets the local version of the current replica.
+   * @return the version of the last modification of the logs, 0 if logs have never been modified.
+   **/
+   public synchronized long getVersion()
+   {
+      return this.version;
+   }
+
+   /**
+   * Gets the version vector of the current replica, to ask an other replica for the entries the
+   * current replica is missing.
+   * @return a copy of the version vector.
+   **/
+   public synchronized MapCrdtVersionVector getVersionVector()
+   {
+      return this.versionVector.copy();
+   }
+
+   /**
+   * Gives the value stored for a put, its interned instance if the values are interned.
+   * @param value the value put.
+   * @return the value that should be stored in the log entry.
+   **/
+   protected String intern(String value)
+   {
+      MapCrdtInterner interner = this.interner;
+
+      return interner == null ? value : interner.intern(value);
+   }
+
+   /**
+   * Tells if merging a delta gives the local replica every log entry the producing replica held at
+   * the version of the delta: either the delta starts from a local version the local replica has
+   * acknowledged, or it starts from a version vector the vector of the local replica covers.
+   * @param delta a delta produced by an other replica.
+   * @param acknowledged the version of the producing replica acknowledged by the local replica.
+   * @return true if the delta does not miss any modification.
    **/
-   public synchronized String get(String key)
+   protected boolean isComplete(MapCrdtDelta delta, long acknowledged)
    {
-      if (this.containsKey(key) == false)
+      if (delta.sinceVector != null)
       {
-         return null;
+         return this.versionVector.covers(delta.sinceVector);
       }
 
-      return this.logs.get(key).value;
+      return delta.fromVersion <= acknowledged;
    }
 
    /**
-   * Gets the unique identifier of the current replica.
-   * @return the unique identifier.
+   * Tells if a delta should be ignored because it does not follow the deltas of its replica
+   * already merged: it ends before the acknowledged version, so it has been superseded, or it
+   * starts after it, so it misses modifications. A delta after a version vector starts from 0, and
+   * a delta of buckets, which covers no version, is merged without being acknowledged.
+   * @param delta a delta produced by an other replica.
+   * @param acknowledged the version of the producing replica acknowledged by the local replica.
+   * @return true if the delta should be ignored.
    **/
-   public synchronized int getReplicaId()
+   protected boolean isOutOfOrder(MapCrdtDelta delta, long acknowledged)
    {
-      return this.replicaId;
+      if (acknowledged > 0 && delta.toVersion <= acknowledged)
+      {
+         return true;
+      }
+
+      return delta.fromVersion > acknowledged && delta.fromVersion < delta.toVersion;
    }
 
    /**
    * Merges informations contained in a given replica into the local replica, the merge is
-   * unilateral and only local replica is modified.
+   * unilateral and only local replica is modified. The other replica is read through a snapshot,
+   * so its monitor is not held during the merge: two replicas can merge each other concurrently.
    * @param other the other replica of the map that should be merge with the local replica.
    **/
-   public synchronized void merge(MapCrdt other)
+   public void merge(MapCrdt other)
    {
-      for (String key : other.logs.keySet())
+      MapCrdtSnapshot snapshot = other.snapshot();
+      try
       {
-         boolean makeUpdate = false;
-         MapCrdtLogEntry otherInfo = other.logs.get(key);
-         MapCrdtLogEntry localInfo = null;
-         
-         if (this.logs.containsKey(key) == false)
-         {
-            makeUpdate = true;
-         }
-         else
+         this.mergeSnapshot(snapshot);
+      }
+      finally
+      {
+         snapshot.close();
+      }
+   }
+
+   /**
+   * Merges a delta produced by an other replica into the local replica. The result is the same as
+   * merging the whole other replica if every previous delta of this replica has been merged. The
+   * deltas of a replica are acknowledged in order: a delta starting after the acknowledged version
+   * of its replica misses modifications and is ignored, as is a delta ending before it. Only a
+   * complete delta is acknowledged, and the acknowledgements of local versions a delta carries are
+   * only recorded once its version is acknowledged, so a tombstone is only reclaimed once the
+   * deltas which could bring back its PUT are ignored.
+   * @param delta the delta that should be merged with the local replica.
+   **/
+   public void mergeDelta(MapCrdtDelta delta)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      try
+      {
+         synchronized (this)
          {
-            localInfo = this.logs.get(key);
-            
-            if (localInfo.compareTo(otherInfo) < 0)
+            if (metrics != null)
+            {
+               metrics.getLockWait().record(System.nanoTime() - start);
+            }
+
+            // A delta covering only acknowledged versions has been superseded by the deltas merged
+            // since, its entries may be older than reclaimed tombstones.
+            long acknowledged = this.getAcknowledgedVersion(delta.replicaId);
+            if (this.isOutOfOrder(delta, acknowledged) == false)
             {
-               makeUpdate = true;
+               boolean complete = this.isComplete(delta, acknowledged);
+               for (Map.Entry<String, MapCrdtLogEntry> entry : delta.entries.entrySet())
+               {
+                  this.mergeEntry(entry.getKey(), entry.getValue());
+               }
+
+               // The delta is acknowledged, and the vector advanced, only if no modification is
+               // missing.
+               if (complete == true && acknowledged < delta.toVersion)
+               {
+                  this.acknowledgements.put(delta.replicaId, delta.toVersion);
+               }
+               if (complete == true && delta.versionVector != null)
+               {
+                  this.versionVector.merge(delta.versionVector);
+               }
             }
+
+            this.acknowledgedBy(delta);
+         }
+      }
+      finally
+      {
+         if (metrics != null)
+         {
+            metrics.getMergeLatency().record(System.nanoTime() - start);
+         }
+      }
+   }
+
+   /**
+   * Merges the buckets of an other replica which differ from the local buckets. The hash trees
+   * of both replicas are compared first, so the cost only depends on the number of differing
+   * buckets: replicas already converged exchange no entry.
+   * @param other the other replica of the map.
+   **/
+   public void mergeDifferences(MapCrdt other)
+   {
+      List<Integer> buckets = this.getMerkleTree().differences(other.getMerkleTree());
+
+      if (buckets.isEmpty() == false)
+      {
+         this.mergeDelta(other.bucketDelta(buckets));
+      }
+   }
+
+   /**
+   * Merges the log entries of an other replica the local replica is missing, asking the other
+   * replica for the entries after the version vector of the local replica. The cost only depends
+   * on the number of entries sent, and the local replica advances its vector to the vector of the
+   * other replica.
+   * @param other the other replica of the map.
+   **/
+   public void mergeMissing(MapCrdt other)
+   {
+      this.mergeDelta(other.delta(this.getVersionVector()));
+   }
+
+   /**
+   * Merges the log entries of a snapshot of an other replica into the local replica.
+   * @param snapshot the snapshot that should be merged with the local replica.
+   **/
+   public void mergeSnapshot(MapCrdtSnapshot snapshot)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      synchronized (this)
+      {
+         if (metrics != null)
+         {
+            metrics.getLockWait().record(System.nanoTime() - start);
          }
 
-         if (makeUpdate == true)
+         for (Map.Entry<String, MapCrdtLogEntry> entry : snapshot)
          {
-            localInfo = new MapCrdtLogEntry(otherInfo);
-            this.logs.put(key, localInfo);
+            this.mergeEntry(entry.getKey(), entry.getValue());
          }
       }
+
+      if (metrics != null)
+      {
+         metrics.getMergeLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Merges a log entry coming from an other replica into the local logs.
+   * @param key the key of the log entry.
+   * @param otherInfo the log entry of the other replica.
+   * @return true if the local log entry has been replaced, false otherwise.
+   **/
+   protected boolean mergeEntry(String key, MapCrdtLogEntry otherInfo)
+   {
+      this.clock.update(otherInfo.time);
+
+      MapCrdtLogEntry localInfo = this.logs.get(key);
+      boolean replaced = localInfo == null || localInfo.compareTo(otherInfo) < 0;
+
+      if (replaced == true)
+      {
+         // Log entries are immutable so the entry of the other replica is shared, unless its value
+         // is replaced by the interned instance.
+         MapCrdtInterner interner = this.interner;
+         this.update(key, interner == null ? otherInfo : interner.intern(otherInfo));
+      }
+
+      MapCrdtMetrics metrics = this.metrics;
+      if (metrics != null)
+      {
+         metrics.mergedEntry(localInfo, otherInfo, replaced);
+      }
+
+      return replaced;
+   }
+
+   /**
+   * Iterates over the keys starting with a prefix and their values, in the order of the keys.
+   * @param prefix the prefix of the keys.
+   * @return a weakly consistent iterator over the keys and values, skipping deleted keys.
+   **/
+   public Iterator<Map.Entry<String, String>> prefix(String prefix)
+   {
+      return new ScanIterator(this.getSortedIndex().prefix(prefix));
    }
 
    /**
@@ -129,11 +1055,176 @@ public class MapCrdt
    * @param key the key that is targeted
    * @param value the value that should be assigned to the key
    **/
-   public synchronized void put(String key, String value)
+   public void put(String key, String value)
+   {
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      synchronized (this)
+      {
+         if (metrics != null)
+         {
+            metrics.getLockWait().record(System.nanoTime() - start);
+         }
+
+         long time = this.clock.now();
+         MapCrdtLogEntry info = new MapCrdtLogEntry(this.replicaId, time, MapCrdtLogEntry.Type.PUT,
+                                                    this.intern(value));
+         this.update(key, info);
+      }
+
+      if (metrics != null)
+      {
+         metrics.getPutLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Puts key value pairs into the map, exactly as putting them one by one but holding the monitor
+   * and reading the clock once: the keys are distinct so they can share a timestamp.
+   * @param entries the values that should be assigned to the keys.
+   **/
+   public synchronized void putAll(Map<String, String> entries)
+   {
+      long time = this.clock.now();
+
+      for (Map.Entry<String, String> entry : entries.entrySet())
+      {
+         this.update(entry.getKey(), new MapCrdtLogEntry(this.replicaId, time,
+                                                         MapCrdtLogEntry.Type.PUT,
+                                                         this.intern(entry.getValue())));
+      }
+   }
+
+   /**
+   * Puts a key value pair given as bytes into the map. The bytes are stored in strings holding a
+   * byte per char, see MapCrdtBytes, so they are neither decoded nor inflated. Keys given as bytes
+   * and keys given as strings share the same keys: the key put here is the string whose chars have
+   * the codes of the bytes, and get on it gives the value as such a string.
+   * @param key the bytes of the key that is targeted.
+   * @param value the bytes of the value that should be assigned to the key.
+   **/
+   public void putBytes(byte[] key, byte[] value)
+   {
+      this.put(MapCrdtBytes.wrap(key), MapCrdtBytes.wrap(value));
+   }
+
+   /**
+   * Puts a key value pair given as the remaining bytes of buffers into the map, the positions of
+   * the buffers are not moved. See putBytes(byte[], byte[]).
+   * @param key the buffer holding the bytes of the key that is targeted.
+   * @param value the buffer holding the bytes of the value that should be assigned to the key.
+   **/
+   public void putBytes(ByteBuffer key, ByteBuffer value)
+   {
+      this.put(MapCrdtBytes.wrap(key), MapCrdtBytes.wrap(value));
+   }
+
+   /**
+   * Removes a reclaimed tombstone from the logs, the caller should prevent modifications of the
+   * key.
+   * @param key the key of the tombstone.
+   * @param version the local version of the tombstone.
+   * @param info the tombstone.
+   **/
+   protected void remove(String key, long version, MapCrdtLogEntry info)
+   {
+      this.logs.remove(key);
+      this.versions.remove(key);
+      this.changes.remove(version);
+
+      MapCrdtDotIndex dotIndex = this.dotIndex;
+      if (dotIndex != null)
+      {
+         dotIndex.remove(key, info);
+      }
+
+      MapCrdtSortedIndex sortedIndex = this.sortedIndex;
+      if (sortedIndex != null)
+      {
+         sortedIndex.remove(key);
+      }
+
+      if (this.tree != null)
+      {
+         this.tree.remove(key, info);
+      }
+   }
+
+   /**
+   * Removes a replica from the peers, when it has left the system for good.
+   * @param replicaId the unique identifier of the peer.
+   **/
+   public synchronized void removePeer(int replicaId)
+   {
+      this.peers.remove(replicaId);
+      this.peerAcknowledgements.remove(replicaId);
+   }
+
+   /**
+   * Gives a new unique identifier to a replica created without one.
+   * @return the identifier, which is not given to any other replica of the process.
+   **/
+   protected static int nextReplicaId()
+   {
+      synchronized(MapCrdt.class)
+      {
+         return replicaIdCpt++;
+      }
+   }
+
+   /**
+   * Makes sure that the unique identifiers given to new replicas differ from a given identifier,
+   * used by replicas restoring their identifier.
+   * @param replicaId the identifier that should not be given to new replicas.
+   **/
+   protected static void reserveReplicaId(int replicaId)
+   {
+      synchronized(MapCrdt.class)
+      {
+         if (replicaIdCpt <= replicaId)
+         {
+            replicaIdCpt = replicaId + 1;
+         }
+      }
+   }
+
+   /**
+   * Iterates over the keys of a range and their values, in the order of the keys. The values are
+   * read as the iteration goes, so the results are not copied and deleted keys are skipped when
+   * they are reached.
+   * @param from the first key of the range (included), null to start from the first key.
+   * @param to the last key of the range (excluded), null to go up to the last key.
+   * @return a weakly consistent iterator over the keys and values, skipping deleted keys.
+   **/
+   public Iterator<Map.Entry<String, String>> scan(String from, String to)
+   {
+      return new ScanIterator(this.getSortedIndex().range(from, to));
+   }
+
+   /**
+   * Takes a point-in-time snapshot of the logs, read without blocking the modifications of the
+   * replica. The snapshot should be closed once read. The logs are copied if their storage cannot
+   * be read while it is modified.
+   * @return the snapshot.
+   **/
+   public synchronized MapCrdtSnapshot snapshot()
    {
-      Timestamp time = new Timestamp(System.currentTimeMillis());
-      MapCrdtLogEntry info = new MapCrdtLogEntry(this.replicaId, time, "PUT", value);
-      this.logs.put(key, info);
+      if (this.logs.isConcurrent() == false)
+      {
+         MapCrdtStorage copy = new MapCrdtHashStorage();
+         for (Map.Entry<String, MapCrdtLogEntry> entry : this.logs)
+         {
+            copy.put(entry.getKey(), entry.getValue());
+         }
+
+         return new MapCrdtSnapshot(null, copy);
+      }
+
+      MapCrdtSnapshot snapshot = new MapCrdtSnapshot(this, this.logs);
+      this.snapshots.add(snapshot);
+
+      return snapshot;
    }
 
    /**
@@ -142,13 +1233,136 @@ public class MapCrdt
    **/
    public synchronized String toString()
    {
-      String string = "LOGS OF REPLICA " + this.replicaId + "\n";
+      StringBuilder builder = new StringBuilder();
+      builder.append("LOGS OF REPLICA ").append(this.replicaId).append("\n");
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : this.logs)
+      {
+         builder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+      }
+
+      return builder.toString();
+   }
+
+   /**
+   * Stores a log entry in the local logs and records the modification of its key.
+   * @param key the key of the log entry.
+   * @param info the new log entry of the key.
+   **/
+   protected void update(String key, MapCrdtLogEntry info)
+   {
+      for (MapCrdtSnapshot snapshot : this.snapshots)
+      {
+         snapshot.preserve(key, this.logs.get(key));
+      }
+
+      MapCrdtLogEntry previous = this.logs.put(key, info);
+      if (this.tree != null)
+      {
+         this.tree.update(key, previous, info);
+      }
+
+      MapCrdtSortedIndex sortedIndex = this.sortedIndex;
+      if (previous == null && sortedIndex != null)
+      {
+         sortedIndex.add(key);
+      }
+
+      MapCrdtChangeFeed changeFeed = this.changeFeed;
+      if (changeFeed != null)
+      {
+         changeFeed.changed(key, previous, info);
+      }
+
+      MapCrdtDotIndex dotIndex = this.dotIndex;
+      if (dotIndex != null)
+      {
+         dotIndex.update(key, previous, info);
+      }
+
+      // Every operation of the replica is in its logs, or replaced by a newer entry.
+      if (info.getDotReplicaId() == this.replicaId)
+      {
+         this.versionVector.advance(this.replicaId, info.getDotTime());
+      }
+
+      Long previousVersion = this.versions.put(key, ++this.version);
+      if (previousVersion != null)
+      {
+         this.changes.remove(previousVersion);
+      }
+      this.changes.put(this.version, key);
+   }
+
+   /**
+   * Iterates over keys of the sorted index and their values, reading the log entry of each key
+   * when it is reached and skipping the keys whose entry is a tombstone.
+   **/
+   protected class ScanIterator implements Iterator<Map.Entry<String, String>>
+   {
+      /**
+      * The iterator over the keys of the range.
+      **/
+      protected Iterator<String> keys;
+
+      /**
+      * The next key and value, null at the end of the range.
+      **/
+      protected Map.Entry<String, String> next;
+
+      /**
+      * Creates an iterator.
+      * @param keys the iterator over the keys of the range.
+      **/
+      public ScanIterator(Iterator<String> keys)
+      {
+         this.keys = keys;
+         this.advance();
+      }
+
+      /**
+      * Moves to the next key which has a value.
+      **/
+      protected void advance()
+      {
+         this.next = null;
+
+         while (this.next == null && this.keys.hasNext() == true)
+         {
+            String key = this.keys.next();
+            MapCrdtLogEntry info = MapCrdt.this.getEntry(key);
+
+            if (info != null && info.isDelete() == false)
+            {
+               this.next = new AbstractMap.SimpleImmutableEntry<String, String>(key, info.value);
+            }
+         }
+      }
 
-      for (String key : this.logs.keySet())
+      /**
+      * Tells if there is a next key.
+      * @return true if there is a next key.
+      **/
+      public boolean hasNext()
       {
-         string += key + ": " + this.logs.get(key) + "\n";
+         return this.next != null;
       }
 
-      return string;
+      /**
+      * Gets the next key and its value.
+      * @return the next key and its value.
+      **/
+      public Map.Entry<String, String> next()
+      {
+         if (this.hasNext() == false)
+         {
+            throw new NoSuchElementException();
+         }
+
+         Map.Entry<String, String> entry = this.next;
+         this.advance();
+
+         return entry;
+      }
    }
 }
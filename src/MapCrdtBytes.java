@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+* Converts the byte arrays used as keys and values into the strings stored by the replicas, and
+* back. Each byte is stored as the char of the same code in ISO-8859-1, so the conversion never
+* fails and gives back the same bytes; as the chars of such strings all fit in a byte, the JVM
+* stores them one byte per char instead of two, and the conversion is a copy of the bytes. The keys
+* are hashed and compared as they are, without any decoding, and two keys compare as their bytes
+* taken unsigned, in lexicographic order; the codec writes these strings as their bytes.
+**/
+public class MapCrdtBytes
+{
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtBytes()
+   {
+   }
+
+   /**
+   * Gives the bytes held by a string.
+   * @param string the string, each of its chars holding a byte.
+   * @return the bytes, or null if the string is null.
+   * @throws IllegalArgumentException if a char of the string does not fit in a byte.
+   **/
+   public static byte[] unwrap(String string)
+   {
+      if (string == null)
+      {
+         return null;
+      }
+
+      // Chars which do not fit in a byte would silently be replaced by '?'.
+      for (int i = 0; i < string.length(); i++)
+      {
+         if (string.charAt(i) > 0xff)
+         {
+            throw new IllegalArgumentException("The string does not hold bytes.");
+         }
+      }
+
+      return string.getBytes(StandardCharsets.ISO_8859_1);
+   }
+
+   /**
+   * Gives the string holding given bytes.
+   * @param bytes the bytes.
+   * @return the string, or null if the bytes are null.
+   **/
+   public static String wrap(byte[] bytes)
+   {
+      return bytes == null ? null : new String(bytes, StandardCharsets.ISO_8859_1);
+   }
+
+   /**
+   * Gives the string holding the remaining bytes of a buffer, without moving its position.
+   * @param buffer the buffer.
+   * @return the string, or null if the buffer is null.
+   **/
+   public static String wrap(ByteBuffer buffer)
+   {
+      if (buffer == null)
+      {
+         return null;
+      }
+
+      if (buffer.hasArray() == true)
+      {
+         return new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                           buffer.remaining(), StandardCharsets.ISO_8859_1);
+      }
+
+      // The bytes of a direct buffer have to be copied on the heap to build the string.
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.duplicate().get(bytes);
+
+      return new String(bytes, StandardCharsets.ISO_8859_1);
+   }
+}
@@ -0,0 +1,54 @@
+/**
+* Represents a change of the visible value of a key of a replica, emitted by its change feed. A
+* change is immutable so it can be shared by the subscribers of the feed.
+**/
+public class MapCrdtChange
+{
+   /**
+   * The key whose value changed.
+   **/
+   public final String key;
+
+   /**
+   * The log entry which won for the key, a DELETE if the key has been deleted.
+   **/
+   public final MapCrdtLogEntry info;
+
+   /**
+   * Default constructor.
+   * @param key the key whose value changed.
+   * @param info the new log entry of the key.
+   **/
+   public MapCrdtChange(String key, MapCrdtLogEntry info)
+   {
+      this.key = key;
+      this.info = info;
+   }
+
+   /**
+   * Gets the new value of the key.
+   * @return the value, or null if the key has been deleted.
+   **/
+   public String getValue()
+   {
+      return this.info.isDelete() == true ? null : this.info.value;
+   }
+
+   /**
+   * Tells if the key has been deleted.
+   * @return true if the new log entry of the key is a DELETE.
+   **/
+   public boolean isDelete()
+   {
+      return this.info.isDelete();
+   }
+
+   /**
+   * Creates a string describing the change.
+   * @return the key and the new log entry.
+   **/
+   public String toString()
+   {
+      return this.key + ": " + this.info;
+   }
+}
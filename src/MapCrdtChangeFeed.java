@@ -0,0 +1,261 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Publishes the changes of the visible values of the keys of a replica, made by its puts, deletes
+* and merges, to Flow subscribers. A modification which leaves the value of its key unchanged,
+* such as a merged entry replacing a tombstone by an other tombstone or a put of the same value,
+* is not published.
+* <p>
+* The replica only adds its changes to a pending batch, without waiting for the subscribers. A
+* thread of the feed publishes the pending changes by batches of at most maxBatchSize changes, each
+* subscriber receiving the batches it requested through its subscription; the thread waits while a
+* subscriber has maxBufferCapacity batches not yet consumed. While it waits, the pending changes of
+* a key are coalesced, only the last one being kept, so a slow subscriber neither blocks the
+* replica nor makes the pending batch grow beyond the number of keys. Subscribers which mirror the
+* values of the keys, such as caches or indexes, end up with the same values as the replica.
+* <p>
+* Changes made before the first subscriber has subscribed are not published.
+**/
+public class MapCrdtChangeFeed implements Flow.Publisher<List<MapCrdtChange>>, AutoCloseable
+{
+   /**
+   * The default maximum number of changes of a batch.
+   **/
+   public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+   /**
+   * The publisher delivering the batches to the subscribers.
+   **/
+   protected SubmissionPublisher<List<MapCrdtChange>> publisher;
+
+   /**
+   * The changes not yet published, in the order of their first change, indexed by key.
+   **/
+   protected LinkedHashMap<String, MapCrdtChange> pending;
+
+   /**
+   * The maximum number of changes of a batch.
+   **/
+   protected int maxBatchSize;
+
+   /**
+   * The thread publishing the pending changes.
+   **/
+   protected Thread publishing;
+
+   /**
+   * True once a subscriber has subscribed, read without locking the publisher which is held while
+   * the publishing thread waits for a subscriber.
+   **/
+   protected volatile boolean subscribed;
+
+   /**
+   * True once the feed has been closed.
+   **/
+   protected boolean closed;
+
+   /**
+   * The number of changes published.
+   **/
+   protected AtomicLong changesPublished;
+
+   /**
+   * The number of batches published.
+   **/
+   protected AtomicLong batchesPublished;
+
+   /**
+   * The number of pending changes replaced by a later change of their key.
+   **/
+   protected long changesCoalesced;
+
+   /**
+   * Creates a feed.
+   * @param maxBatchSize the maximum number of changes of a batch.
+   * @param maxBufferCapacity the maximum number of batches not yet consumed by a subscriber.
+   * @param executor the executor delivering the batches to the subscribers.
+   **/
+   public MapCrdtChangeFeed(int maxBatchSize, int maxBufferCapacity, Executor executor)
+   {
+      this.publisher = new SubmissionPublisher<List<MapCrdtChange>>(executor, maxBufferCapacity);
+      this.pending = new LinkedHashMap<String, MapCrdtChange>();
+      this.maxBatchSize = maxBatchSize;
+      this.changesPublished = new AtomicLong();
+      this.batchesPublished = new AtomicLong();
+
+      this.publishing = new Thread("map-crdt-change-feed")
+      {
+         public void run()
+         {
+            MapCrdtChangeFeed.this.publishLoop();
+         }
+      };
+      this.publishing.setDaemon(true);
+      this.publishing.start();
+   }
+
+   /**
+   * Records the modification of a key, called by the replica while it holds the lock of the key.
+   * @param key the modified key.
+   * @param previous the previous log entry of the key, null if the key had no entry.
+   * @param info the new log entry of the key.
+   **/
+   public void changed(String key, MapCrdtLogEntry previous, MapCrdtLogEntry info)
+   {
+      if (this.subscribed == false)
+      {
+         return;
+      }
+
+      String value = info.isDelete() == true ? null : info.value;
+      String previousValue = previous == null || previous.isDelete() == true ? null :
+                             previous.value;
+      if (Objects.equals(previousValue, value) == true)
+      {
+         return;
+      }
+
+      synchronized (this)
+      {
+         if (this.closed == true)
+         {
+            return;
+         }
+
+         if (this.pending.isEmpty() == true)
+         {
+            this.notifyAll();
+         }
+         if (this.pending.put(key, new MapCrdtChange(key, info)) != null)
+         {
+            this.changesCoalesced++;
+         }
+      }
+   }
+
+   /**
+   * Publishes the pending changes, then completes the subscriptions once they are delivered.
+   **/
+   public void close()
+   {
+      synchronized (this)
+      {
+         this.closed = true;
+         this.notifyAll();
+      }
+   }
+
+   /**
+   * Gets the number of batches published.
+   * @return the number of batches.
+   **/
+   public long getBatchesPublished()
+   {
+      return this.batchesPublished.get();
+   }
+
+   /**
+   * Gets the number of pending changes replaced by a later change of their key, because a
+   * subscriber was not consuming the batches fast enough.
+   * @return the number of coalesced changes.
+   **/
+   public synchronized long getChangesCoalesced()
+   {
+      return this.changesCoalesced;
+   }
+
+   /**
+   * Gets the number of changes published.
+   * @return the number of changes.
+   **/
+   public long getChangesPublished()
+   {
+      return this.changesPublished.get();
+   }
+
+   /**
+   * Gets the number of subscribers of the feed.
+   * @return the number of subscribers.
+   **/
+   public int getNumberOfSubscribers()
+   {
+      return this.publisher.getNumberOfSubscribers();
+   }
+
+   /**
+   * Takes the next batch of pending changes, waiting until there is one.
+   * @return the batch, or null once the feed is closed and every change has been published.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   **/
+   protected synchronized List<MapCrdtChange> nextBatch() throws InterruptedException
+   {
+      while (this.pending.isEmpty() == true && this.closed == false)
+      {
+         this.wait();
+      }
+
+      if (this.pending.isEmpty() == true)
+      {
+         return null;
+      }
+
+      List<MapCrdtChange> batch = new ArrayList<MapCrdtChange>(Math.min(this.pending.size(),
+                                                                        this.maxBatchSize));
+      Iterator<MapCrdtChange> iterator = this.pending.values().iterator();
+      while (iterator.hasNext() == true && batch.size() < this.maxBatchSize)
+      {
+         batch.add(iterator.next());
+         iterator.remove();
+      }
+
+      return Collections.unmodifiableList(batch);
+   }
+
+   /**
+   * Publishes the pending changes by batches until the feed is closed, waiting while a subscriber
+   * has too many batches not yet consumed.
+   **/
+   protected void publishLoop()
+   {
+      try
+      {
+         List<MapCrdtChange> batch = this.nextBatch();
+
+         while (batch != null)
+         {
+            this.publisher.submit(batch);
+            this.changesPublished.addAndGet(batch.size());
+            this.batchesPublished.incrementAndGet();
+
+            batch = this.nextBatch();
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      finally
+      {
+         this.publisher.close();
+      }
+   }
+
+   /**
+   * Adds a subscriber, which receives the changes made from now on.
+   * @param subscriber the subscriber.
+   **/
+   public void subscribe(Flow.Subscriber<? super List<MapCrdtChange>> subscriber)
+   {
+      this.publisher.subscribe(subscriber);
+      this.subscribed = true;
+   }
+}
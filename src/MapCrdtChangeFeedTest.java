@@ -0,0 +1,289 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the change feed of replicas.
+**/
+public class MapCrdtChangeFeedTest
+{
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtChangeFeedTest()
+   {
+   }
+
+   /**
+   * Represents a subscriber keeping the changes it receives and the values they give to the keys.
+   * It requests one batch at a time, once its gate is open.
+   **/
+   protected static class Mirror implements Flow.Subscriber<List<MapCrdtChange>>
+   {
+      /**
+      * The changes received, in order.
+      **/
+      protected List<MapCrdtChange> changes;
+
+      /**
+      * The values of the keys given by the changes received.
+      **/
+      protected Map<String, String> values;
+
+      /**
+      * The number of batches received.
+      **/
+      protected int batches;
+
+      /**
+      * The latch the subscriber waits for before requesting a batch.
+      **/
+      protected CountDownLatch gate;
+
+      /**
+      * The latch released once the feed has completed.
+      **/
+      protected CountDownLatch completed;
+
+      /**
+      * The subscription of the subscriber.
+      **/
+      protected Flow.Subscription subscription;
+
+      /**
+      * Creates a subscriber.
+      * @param gate the latch the subscriber waits for before requesting a batch.
+      **/
+      public Mirror(CountDownLatch gate)
+      {
+         this.changes = new ArrayList<MapCrdtChange>();
+         this.values = new HashMap<String, String>();
+         this.gate = gate;
+         this.completed = new CountDownLatch(1);
+      }
+
+      /**
+      * Waits until a number of changes has been received.
+      * @param count the number of changes.
+      **/
+      public synchronized void awaitChanges(int count) throws InterruptedException
+      {
+         long deadline = System.currentTimeMillis() + 10000;
+
+         while (this.changes.size() < count && System.currentTimeMillis() < deadline)
+         {
+            this.wait(10);
+         }
+         assertEquals(count, this.changes.size());
+      }
+
+      /**
+      * Waits until the feed has completed.
+      **/
+      public void awaitCompletion() throws InterruptedException
+      {
+         assertTrue(this.completed.await(10, TimeUnit.SECONDS));
+      }
+
+      /**
+      * Releases the waiters once the feed has completed.
+      **/
+      public void onComplete()
+      {
+         this.completed.countDown();
+      }
+
+      /**
+      * Fails the waiters.
+      * @param throwable the failure.
+      **/
+      public void onError(Throwable throwable)
+      {
+         throwable.printStackTrace();
+      }
+
+      /**
+      * Keeps the changes of a batch, then requests the next one once the gate is open.
+      * @param batch the batch.
+      **/
+      public synchronized void onNext(List<MapCrdtChange> batch)
+      {
+         this.batches++;
+         for (MapCrdtChange change : batch)
+         {
+            this.changes.add(change);
+            this.values.put(change.key, change.getValue());
+         }
+         this.notifyAll();
+
+         this.request();
+      }
+
+      /**
+      * Keeps the subscription, then requests the first batch once the gate is open.
+      * @param subscription the subscription.
+      **/
+      public void onSubscribe(Flow.Subscription subscription)
+      {
+         this.subscription = subscription;
+         this.request();
+      }
+
+      /**
+      * Requests a batch once the gate is open.
+      **/
+      protected void request()
+      {
+         try
+         {
+            this.gate.await();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+
+         this.subscription.request(1);
+      }
+   }
+
+   /**
+   * This test checks that puts, deletes and merges publish a change only when they change the
+   * value of their key.
+   **/
+   @Test
+   public void testChanges() throws InterruptedException
+   {
+      MapCrdt replica = new MapCrdt();
+      MapCrdtChangeFeed feed = replica.enableChangeFeed();
+      Mirror mirror = new Mirror(new CountDownLatch(0));
+      feed.subscribe(mirror);
+
+      // Each change is awaited, so that it is not coalesced with the next one.
+      replica.put("KEY1", "VALUE1");
+      mirror.awaitChanges(1);
+      replica.put("KEY1", "VALUE1");
+      replica.delete("KEY1");
+      mirror.awaitChanges(2);
+      replica.delete("KEY1");
+      replica.delete("KEY2");
+
+      MapCrdt other = new MapCrdt();
+      other.put("KEY2", "VALUE2");
+      other.put("KEY3", "VALUE3");
+      other.delete("KEY3");
+      replica.merge(other);
+      mirror.awaitChanges(3);
+      replica.merge(other);
+
+      // An older put loses against the local value and changes nothing.
+      MapCrdtDelta delta = new MapCrdtDelta(other.getReplicaId(), 0, 1);
+      delta.entries.put("KEY2", new MapCrdtLogEntry(other.getReplicaId(), 1,
+                                                    MapCrdtLogEntry.Type.PUT, "OLD"));
+      replica.mergeDelta(delta);
+
+      feed.close();
+      mirror.awaitCompletion();
+
+      assertEquals(3, mirror.changes.size());
+      assertEquals("KEY1", mirror.changes.get(0).key);
+      assertEquals("VALUE1", mirror.changes.get(0).getValue());
+      assertEquals("KEY1", mirror.changes.get(1).key);
+      assertTrue(mirror.changes.get(1).isDelete());
+      assertEquals("KEY2", mirror.changes.get(2).key);
+      assertEquals("VALUE2", mirror.changes.get(2).getValue());
+      assertEquals(other.getReplicaId(), mirror.changes.get(2).info.replicaId);
+      assertEquals(3, feed.getChangesPublished());
+   }
+
+   /**
+   * This test checks that a slow subscriber blocks neither the replica nor the feed, that its
+   * pending changes are coalesced, and that it ends up with the values of the replica.
+   **/
+   @Test
+   public void testBackpressure() throws InterruptedException
+   {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      MapCrdt replica = new ConcurrentMapCrdt();
+      MapCrdtChangeFeed feed = replica.enableChangeFeed(16, 1, executor);
+      CountDownLatch gate = new CountDownLatch(1);
+      Mirror mirror = new Mirror(gate);
+      feed.subscribe(mirror);
+
+      // The subscriber consumes nothing until the replica has made every modification.
+      for (int i = 0; i < 100000; i++)
+      {
+         replica.put("KEY" + (i % 100), "VALUE" + i);
+      }
+      assertTrue(feed.getChangesCoalesced() > 0);
+
+      gate.countDown();
+      feed.close();
+      mirror.awaitCompletion();
+
+      assertEquals(100, mirror.values.size());
+      for (Map.Entry<String, String> entry : mirror.values.entrySet())
+      {
+         assertEquals(replica.get(entry.getKey()), entry.getValue());
+      }
+      assertTrue(mirror.batches > 1);
+      assertTrue(feed.getChangesPublished() < 100000);
+
+      executor.shutdown();
+   }
+
+   /**
+   * This test checks that the changes of concurrent writers give a subscriber the values of the
+   * replica.
+   **/
+   @Test
+   public void testConcurrentWriters() throws InterruptedException
+   {
+      final MapCrdt replica = new ConcurrentMapCrdt();
+      MapCrdtChangeFeed feed = replica.enableChangeFeed();
+      Mirror mirror = new Mirror(new CountDownLatch(0));
+      feed.subscribe(mirror);
+
+      Thread[] threads = new Thread[4];
+      for (int i = 0; i < threads.length; i++)
+      {
+         final int index = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               for (int j = 0; j < 5000; j++)
+               {
+                  replica.put("KEY" + (j % 50), "VALUE" + index + "_" + j);
+                  if (j % 7 == 0)
+                  {
+                     replica.delete("KEY" + ((j + index) % 50));
+                  }
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+
+      feed.close();
+      mirror.awaitCompletion();
+
+      for (int i = 0; i < 50; i++)
+      {
+         assertEquals(replica.get("KEY" + i), mirror.values.get("KEY" + i));
+      }
+   }
+}
@@ -0,0 +1,616 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+* Sends requests to a MapCrdtServer over a single connection. The asynchronous methods append their
+* request to a buffer and return a future completed by the thread reading the responses: requests
+* are pipelined, and the buffered requests are sent together by flush, or once the buffer is full.
+* The synchronous methods flush the buffer and wait for their response.
+* <p>
+* A client can be used by several threads. Once the connection fails, every pending and following
+* request fails; a response longer than the maximum frame size of the client fails the connection.
+**/
+public class MapCrdtClient implements AutoCloseable
+{
+   /**
+   * The number of buffered bytes after which the requests are sent without waiting for flush.
+   **/
+   public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+   /**
+   * The connection to the server.
+   **/
+   protected SocketChannel channel;
+
+   /**
+   * The requests not yet sent, in write mode.
+   **/
+   protected ByteBuffer output;
+
+   /**
+   * The maximum number of bytes following the length of a response.
+   **/
+   protected int maxFrameSize;
+
+   /**
+   * The requests waiting for their response, indexed by id.
+   **/
+   protected Map<Integer, Call<?>> pending;
+
+   /**
+   * The id of the next request.
+   **/
+   protected int nextRequestId;
+
+   /**
+   * The failure of the connection, null while it works.
+   **/
+   protected volatile IOException failure;
+
+   /**
+   * The thread reading the responses.
+   **/
+   protected Thread reader;
+
+   /**
+   * Connects to a server listening on a port of the loopback interface.
+   * @param port the port of the server.
+   * @throws IOException if the connection fails.
+   **/
+   public MapCrdtClient(int port) throws IOException
+   {
+      this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+   }
+
+   /**
+   * Connects to a server, accepting responses of the default maximum frame size.
+   * @param address the address of the server.
+   * @throws IOException if the connection fails.
+   **/
+   public MapCrdtClient(InetSocketAddress address) throws IOException
+   {
+      this(address, MapCrdtProtocol.DEFAULT_MAX_FRAME_SIZE);
+   }
+
+   /**
+   * Connects to a server.
+   * @param address the address of the server.
+   * @param maxFrameSize the maximum number of bytes following the length of a response, a larger
+   * response fails the connection.
+   * @throws IOException if the connection fails.
+   **/
+   public MapCrdtClient(InetSocketAddress address, int maxFrameSize) throws IOException
+   {
+      this.channel = SocketChannel.open(address);
+      this.channel.socket().setTcpNoDelay(true);
+      this.maxFrameSize = maxFrameSize;
+      this.output = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+      this.pending = new ConcurrentHashMap<Integer, Call<?>>();
+      this.nextRequestId = 0;
+
+      this.reader = new Thread("map-crdt-client-reader")
+      {
+         public void run()
+         {
+            MapCrdtClient.this.readLoop();
+         }
+      };
+      this.reader.setDaemon(true);
+      this.reader.start();
+   }
+
+   /**
+   * Waits for the response of a request.
+   * @param call the request.
+   * @return the result of the request.
+   * @throws IOException if the request or the connection failed.
+   **/
+   protected static <T> T await(CompletableFuture<T> call) throws IOException
+   {
+      try
+      {
+         return call.get();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while waiting for a response.");
+      }
+      catch (ExecutionException e)
+      {
+         if (e.getCause() instanceof IOException)
+         {
+            throw (IOException) e.getCause();
+         }
+
+         throw new IOException(e.getCause());
+      }
+   }
+
+   /**
+   * Closes the connection, the pending requests fail.
+   * @throws IOException if the connection cannot be closed.
+   **/
+   public void close() throws IOException
+   {
+      this.channel.close();
+      this.fail(new IOException("The client is closed."));
+   }
+
+   /**
+   * Deletes the value associated to a key.
+   * @param key the key that should be deleted.
+   * @throws IOException if the request fails.
+   **/
+   public void delete(String key) throws IOException
+   {
+      CompletableFuture<Void> call = this.deleteAsync(key);
+      this.flush();
+      await(call);
+   }
+
+   /**
+   * Deletes given keys, in a single request.
+   * @param keys the keys that should be deleted.
+   * @throws IOException if the request fails.
+   **/
+   public void deleteAll(Collection<String> keys) throws IOException
+   {
+      int size = MapCrdtCodec.varLongSize(keys.size());
+      for (String key : keys)
+      {
+         size += MapCrdtProtocol.keySize(key);
+      }
+
+      Call<Void> call = new Call<Void>();
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.DELETE_ALL, size);
+         MapCrdtCodec.putVarLong(body, keys.size());
+         for (String key : keys)
+         {
+            MapCrdtProtocol.putKey(body, key);
+         }
+         this.flush();
+      }
+      await(call);
+   }
+
+   /**
+   * Buffers a request deleting the value associated to a key.
+   * @param key the key that should be deleted.
+   * @return a future completed once the key has been deleted.
+   * @throws IOException if the connection has failed.
+   **/
+   public CompletableFuture<Void> deleteAsync(String key) throws IOException
+   {
+      Call<Void> call = new Call<Void>();
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.DELETE, MapCrdtProtocol.keySize(key));
+         MapCrdtProtocol.putKey(body, key);
+      }
+
+      return call;
+   }
+
+   /**
+   * Gets the delta of the remote replica since a version, to merge it into an other replica.
+   * @param since the version after which the modified entries are returned (excluded).
+   * @return the delta of the remote replica.
+   * @throws IOException if the request fails.
+   **/
+   public MapCrdtDelta delta(long since) throws IOException
+   {
+      Call<MapCrdtDelta> call = new Call<MapCrdtDelta>()
+      {
+         protected MapCrdtDelta decode(ByteBuffer body) throws IOException
+         {
+            return MapCrdtCodec.decode(body);
+         }
+      };
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.DELTA, MapCrdtCodec.varLongSize(since));
+         MapCrdtCodec.putVarLong(body, since);
+         this.flush();
+      }
+
+      return await(call);
+   }
+
+   /**
+   * Gets the delta of the remote replica after a version vector, to merge the entries an other
+   * replica is missing into it.
+   * @param since the version vector after which the modified entries are returned, usually the
+   * vector of the replica the delta will be merged into.
+   * @return the delta of the remote replica.
+   * @throws IOException if the request fails.
+   **/
+   public MapCrdtDelta delta(MapCrdtVersionVector since) throws IOException
+   {
+      Call<MapCrdtDelta> call = new Call<MapCrdtDelta>()
+      {
+         protected MapCrdtDelta decode(ByteBuffer body) throws IOException
+         {
+            return MapCrdtCodec.decode(body);
+         }
+      };
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.DELTA_AFTER,
+                                     MapCrdtCodec.versionVectorSize(since));
+         MapCrdtCodec.putVersionVector(body, since);
+         this.flush();
+      }
+
+      return await(call);
+   }
+
+   /**
+   * Fails the pending requests and the following ones.
+   * @param failure the failure of the connection.
+   **/
+   protected void fail(IOException failure)
+   {
+      synchronized (this)
+      {
+         if (this.failure == null)
+         {
+            this.failure = failure;
+         }
+      }
+
+      for (Call<?> call : this.pending.values())
+      {
+         call.completeExceptionally(this.failure);
+      }
+      this.pending.clear();
+   }
+
+   /**
+   * Sends the buffered requests.
+   * @throws IOException if the connection fails.
+   **/
+   public synchronized void flush() throws IOException
+   {
+      if (this.failure != null)
+      {
+         throw this.failure;
+      }
+
+      this.output.flip();
+      try
+      {
+         while (this.output.hasRemaining() == true)
+         {
+            this.channel.write(this.output);
+         }
+      }
+      catch (IOException e)
+      {
+         this.fail(e);
+         throw e;
+      }
+      finally
+      {
+         this.output.clear();
+      }
+   }
+
+   /**
+   * Gets the value corresponding to a key.
+   * @param key the key that should be looked for.
+   * @return the value, null if the key is not present or last operation is a delete.
+   * @throws IOException if the request fails.
+   **/
+   public String get(String key) throws IOException
+   {
+      CompletableFuture<String> call = this.getAsync(key);
+      this.flush();
+
+      return await(call);
+   }
+
+   /**
+   * Gets the values corresponding to given keys, in a single request.
+   * @param keys the keys that should be looked for.
+   * @return a map giving the value of each key, null if the key is not present in the logs or last
+   * operation is a delete.
+   * @throws IOException if the request fails.
+   **/
+   public Map<String, String> getAll(Collection<String> keys) throws IOException
+   {
+      int size = MapCrdtCodec.varLongSize(keys.size());
+      for (String key : keys)
+      {
+         size += MapCrdtProtocol.keySize(key);
+      }
+
+      Call<Map<String, String>> call = new Call<Map<String, String>>()
+      {
+         protected Map<String, String> decode(ByteBuffer body)
+         {
+            Map<String, String> values = new HashMap<String, String>();
+            for (long count = MapCrdtCodec.getVarLong(body); count > 0; count--)
+            {
+               String key = MapCrdtProtocol.getKey(body);
+               values.put(key, MapCrdtProtocol.getValue(body));
+            }
+
+            return values;
+         }
+      };
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.GET_ALL, size);
+         MapCrdtCodec.putVarLong(body, keys.size());
+         for (String key : keys)
+         {
+            MapCrdtProtocol.putKey(body, key);
+         }
+         this.flush();
+      }
+
+      return await(call);
+   }
+
+   /**
+   * Buffers a request getting the value corresponding to a key.
+   * @param key the key that should be looked for.
+   * @return a future completed with the value, null if the key is not present or last operation
+   * is a delete.
+   * @throws IOException if the connection has failed.
+   **/
+   public CompletableFuture<String> getAsync(String key) throws IOException
+   {
+      Call<String> call = new Call<String>()
+      {
+         protected String decode(ByteBuffer body)
+         {
+            return MapCrdtProtocol.getValue(body);
+         }
+      };
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.GET, MapCrdtProtocol.keySize(key));
+         MapCrdtProtocol.putKey(body, key);
+      }
+
+      return call;
+   }
+
+   /**
+   * Merges a delta produced by an other replica into the remote replica.
+   * @param delta the delta that should be merged.
+   * @throws IOException if the request fails.
+   **/
+   public void mergeDelta(MapCrdtDelta delta) throws IOException
+   {
+      Call<Void> call = new Call<Void>();
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.MERGE_DELTA,
+                                     MapCrdtCodec.encodedSize(delta));
+         MapCrdtCodec.encode(delta, body);
+         this.flush();
+      }
+      await(call);
+   }
+
+   /**
+   * Puts a key value pair into the remote replica.
+   * @param key the key that is targeted.
+   * @param value the value that should be assigned to the key.
+   * @throws IOException if the request fails.
+   **/
+   public void put(String key, String value) throws IOException
+   {
+      CompletableFuture<Void> call = this.putAsync(key, value);
+      this.flush();
+      await(call);
+   }
+
+   /**
+   * Puts key value pairs into the remote replica, in a single request.
+   * @param entries the values that should be assigned to the keys.
+   * @throws IOException if the request fails.
+   **/
+   public void putAll(Map<String, String> entries) throws IOException
+   {
+      int size = MapCrdtCodec.varLongSize(entries.size());
+      for (Map.Entry<String, String> entry : entries.entrySet())
+      {
+         size += MapCrdtProtocol.keySize(entry.getKey());
+         size += MapCrdtProtocol.valueSize(entry.getValue());
+      }
+
+      Call<Void> call = new Call<Void>();
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.PUT_ALL, size);
+         MapCrdtCodec.putVarLong(body, entries.size());
+         for (Map.Entry<String, String> entry : entries.entrySet())
+         {
+            MapCrdtProtocol.putKey(body, entry.getKey());
+            MapCrdtProtocol.putValue(body, entry.getValue());
+         }
+         this.flush();
+      }
+      await(call);
+   }
+
+   /**
+   * Buffers a request putting a key value pair into the remote replica.
+   * @param key the key that is targeted.
+   * @param value the value that should be assigned to the key.
+   * @return a future completed once the pair has been put.
+   * @throws IOException if the connection has failed.
+   **/
+   public CompletableFuture<Void> putAsync(String key, String value) throws IOException
+   {
+      Call<Void> call = new Call<Void>();
+      synchronized (this)
+      {
+         ByteBuffer body = this.send(call, MapCrdtProtocol.PUT, MapCrdtProtocol.keySize(key) +
+                                                               MapCrdtProtocol.valueSize(value));
+         MapCrdtProtocol.putKey(body, key);
+         MapCrdtProtocol.putValue(body, value);
+      }
+
+      return call;
+   }
+
+   /**
+   * Reads a given number of bytes from the connection.
+   * @param buffer the buffer, in write mode, whose remaining bytes should be read.
+   * @throws IOException if the connection fails or is at its end.
+   **/
+   protected void readFully(ByteBuffer buffer) throws IOException
+   {
+      while (buffer.hasRemaining() == true)
+      {
+         if (this.channel.read(buffer) < 0)
+         {
+            throw new EOFException("The server closed the connection.");
+         }
+      }
+   }
+
+   /**
+   * Reads the responses and completes their requests until the connection fails, then closes it.
+   **/
+   protected void readLoop()
+   {
+      ByteBuffer header = ByteBuffer.allocate(MapCrdtProtocol.HEADER_SIZE);
+
+      try
+      {
+         while (true)
+         {
+            header.clear();
+            this.readFully(header);
+
+            int length = header.getInt(0);
+            if (length < MapCrdtProtocol.HEADER_SIZE - 4 || length > this.maxFrameSize)
+            {
+               throw new StreamCorruptedException("Invalid frame length: " + length + ".");
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(length - (MapCrdtProtocol.HEADER_SIZE - 4));
+            this.readFully(body);
+            body.flip();
+
+            Call<?> call = this.pending.remove(header.getInt(4));
+            if (call != null)
+            {
+               call.respond(header.get(8), body);
+            }
+         }
+      }
+      catch (IOException e)
+      {
+         this.fail(e);
+         try
+         {
+            this.channel.close();
+         }
+         catch (IOException ignored)
+         {
+         }
+      }
+   }
+
+   /**
+   * Registers a request and appends its header to the buffer, sending the buffered requests first
+   * if they are too many. The caller should hold the monitor of the client until the body is
+   * written.
+   * @param call the request.
+   * @param opcode the opcode of the request.
+   * @param bodySize the number of bytes of the body of the request.
+   * @return the buffer the body should be written to.
+   * @throws IOException if the connection has failed.
+   **/
+   protected ByteBuffer send(Call<?> call, byte opcode, int bodySize)
+      throws IOException
+   {
+      if (this.output.position() >= DEFAULT_BUFFER_SIZE)
+      {
+         this.flush();
+      }
+
+      if (this.failure != null)
+      {
+         throw this.failure;
+      }
+
+      int requestId = this.nextRequestId++;
+      this.pending.put(requestId, call);
+      this.output = MapCrdtProtocol.ensureRemaining(this.output,
+                                                    MapCrdtProtocol.HEADER_SIZE + bodySize);
+      MapCrdtProtocol.putHeader(this.output, requestId, opcode, bodySize);
+
+      return this.output;
+   }
+
+   /**
+   * Represents a request waiting for its response.
+   **/
+   protected static class Call<T> extends CompletableFuture<T>
+   {
+      /**
+      * Default constructor.
+      **/
+      public Call()
+      {
+      }
+
+      /**
+      * Decodes the body of a successful response.
+      * @param body the body of the response.
+      * @return the result of the request, null by default.
+      * @throws IOException if the body is invalid.
+      **/
+      protected T decode(ByteBuffer body) throws IOException
+      {
+         return null;
+      }
+
+      /**
+      * Completes the request with its response.
+      * @param status the status of the response.
+      * @param body the body of the response.
+      **/
+      protected void respond(byte status, ByteBuffer body)
+      {
+         try
+         {
+            if (status == MapCrdtProtocol.OK)
+            {
+               this.complete(this.decode(body));
+            }
+            else
+            {
+               this.completeExceptionally(new IOException("The server failed: " +
+                                                          MapCrdtProtocol.getKey(body)));
+            }
+         }
+         catch (IOException | RuntimeException e)
+         {
+            this.completeExceptionally(e);
+         }
+      }
+   }
+}
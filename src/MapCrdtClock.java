@@ -0,0 +1,57 @@
+/**
+* Represents the source of the timestamps of the operations of a replica. A timestamp packs a
+* physical time, in milliseconds since the epoch, in its 48 highest bits and a logical counter in
+* its 16 lowest bits, so timestamps of all clocks are ordered as longs and fit in the time of a log
+* entry.
+**/
+public interface MapCrdtClock
+{
+   /**
+   * The number of bits of the logical counter of a timestamp.
+   **/
+   int LOGICAL_BITS = 16;
+
+   /**
+   * Gets the logical counter of a timestamp.
+   * @param timestamp the timestamp.
+   * @return the logical counter.
+   **/
+   static int logicalTime(long timestamp)
+   {
+      return (int) (timestamp & ((1L << LOGICAL_BITS) - 1));
+   }
+
+   /**
+   * Gives the timestamp of a new local operation. The timestamps given by a clock must be strictly
+   * increasing: the version vectors assume that a dot identifies an operation of its replica.
+   * @return a timestamp greater than every timestamp given before.
+   **/
+   long now();
+
+   /**
+   * Gets the physical time of a timestamp.
+   * @param timestamp the timestamp.
+   * @return the physical time in milliseconds since the epoch.
+   **/
+   static long physicalTime(long timestamp)
+   {
+      return timestamp >>> LOGICAL_BITS;
+   }
+
+   /**
+   * Creates a timestamp.
+   * @param physicalTime the physical time in milliseconds since the epoch.
+   * @param logicalTime the logical counter.
+   * @return the timestamp.
+   **/
+   static long timestamp(long physicalTime, int logicalTime)
+   {
+      return (physicalTime << LOGICAL_BITS) | logicalTime;
+   }
+
+   /**
+   * Observes the timestamp of an operation coming from an other replica.
+   * @param timestamp the timestamp of the remote operation.
+   **/
+   void update(long timestamp);
+}
@@ -0,0 +1,1061 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* Encodes and decodes the state of map CRDT replicas in a compact binary format. A snapshot of a
+* replica is encoded as its delta from version 0, so snapshots and deltas share the same format:
+* <pre>
+* magic (4 bytes) | format (1 byte) | replicaId | fromVersion | toVersion | acknowledgements |
+* sinceVector | versionVector | count | entries
+* acknowledgements: count | (replicaId | version)*
+* sinceVector, versionVector: 0 (none) | count + 1, (replicaId | time)*
+* entry: key | (replicaId &#60;&#60; 1) + isDelete | time | value (PUT) |
+*        deleteReplicaId | deleteTime (DELETE)
+* key: (length &#60;&#60; 1) + isLatin1, bytes
+* value: 0 (null) | (length &#60;&#60; 2) + (isLatin1 &#60;&#60; 1) + 1, bytes (new value) |
+*        (index &#60;&#60; 1) + 2 (known value)
+* </pre>
+* Integers are encoded as unsigned variable-length integers (7 bits per byte), strings as their
+* bytes prefixed with their length, in UTF-8 or, when their chars all fit in a byte and are not all
+* ASCII as in the strings holding bytes (see MapCrdtBytes), in ISO-8859-1: the bytes are then
+* written as is instead of taking two bytes each from 128 up. The values are dictionary
+* encoded: the first occurrence of a value in a delta is written in full and numbered, the next ones
+* only give its number, so a value repeated by many keys is written once and decoded as a single
+* string. The value of a DELETE is not encoded. A log entry written alone, as a record of the
+* write-ahead log, has the same layout and always writes its value in full.
+**/
+public class MapCrdtCodec
+{
+   /**
+   * The magic number starting every encoded delta.
+   **/
+   public static final int MAGIC = 0x4d435244;
+
+   /**
+   * The version of the encoding format.
+   **/
+   public static final byte FORMAT = 1;
+
+   /**
+   * The default size of the buffers used to read from and write to channels.
+   **/
+   public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtCodec()
+   {
+   }
+
+   /**
+   * Decodes a delta from a buffer, the position of the buffer is moved after the delta.
+   * @param buffer the buffer containing the encoded delta.
+   * @return the decoded delta.
+   * @throws IOException if the buffer does not contain a whole valid delta.
+   **/
+   public static MapCrdtDelta decode(ByteBuffer buffer) throws IOException
+   {
+      try
+      {
+         decodeFormat(buffer);
+         MapCrdtDelta delta = decodeHeader(buffer);
+         List<String> dictionary = new ArrayList<String>();
+         long count = getVarLong(buffer);
+
+         for (long i = 0; i < count; i++)
+         {
+            decodeEntry(buffer, delta, dictionary);
+         }
+
+         return delta;
+      }
+      catch (BufferUnderflowException e)
+      {
+         throw new EOFException("Truncated map CRDT delta.");
+      }
+      catch (IllegalStateException e)
+      {
+         throw new StreamCorruptedException(e.getMessage());
+      }
+   }
+
+   /**
+   * Decodes a log entry written alone at the position of a buffer, as by encodeEntry without
+   * dictionary, and adds it to a delta.
+   * @param buffer the buffer containing the encoded entry.
+   * @param delta the delta the entry is added to.
+   * @throws BufferUnderflowException if the buffer does not contain the whole entry.
+   **/
+   protected static void decodeEntry(ByteBuffer buffer, MapCrdtDelta delta)
+   {
+      decodeEntry(buffer, delta, null);
+   }
+
+   /**
+   * Decodes the entry at the position of a buffer and adds it to a delta.
+   * @param buffer the buffer containing the encoded entry.
+   * @param delta the delta the entry is added to.
+   * @param dictionary the values already decoded from the delta, to which a new value is added,
+   * null for an entry written alone.
+   * @throws BufferUnderflowException if the buffer does not contain the whole entry.
+   **/
+   protected static void decodeEntry(ByteBuffer buffer, MapCrdtDelta delta,
+                                     List<String> dictionary)
+   {
+      String key = getKey(buffer);
+      long idAndType = getVarLong(buffer);
+      long time = getVarLong(buffer);
+      int replicaId = (int) (idAndType >>> 1);
+      MapCrdtLogEntry info;
+
+      if ((idAndType & 1) == 1)
+      {
+         int deleteReplicaId = getVarInt(buffer);
+         info = new MapCrdtLogEntry(replicaId, time, MapCrdtLogEntry.Type.DELETE, null,
+                                    deleteReplicaId, getVarLong(buffer));
+      }
+      else
+      {
+         info = new MapCrdtLogEntry(replicaId, time, MapCrdtLogEntry.Type.PUT,
+                                    getValue(buffer, dictionary));
+      }
+
+      delta.entries.put(key, info);
+   }
+
+   /**
+   * Decodes the magic number and the format starting a delta.
+   * @param buffer the buffer containing the encoded delta.
+   * @throws IOException if the delta has no valid magic number or format.
+   * @throws BufferUnderflowException if the buffer does not contain the magic number and format.
+   **/
+   protected static void decodeFormat(ByteBuffer buffer) throws IOException
+   {
+      if (buffer.getInt() != MAGIC)
+      {
+         throw new StreamCorruptedException("Not a map CRDT delta.");
+      }
+
+      byte format = buffer.get();
+      if (format != FORMAT)
+      {
+         throw new StreamCorruptedException("Unsupported map CRDT format: " + format + ".");
+      }
+   }
+
+   /**
+   * Decodes the header of a delta.
+   * @param buffer the buffer containing the encoded header.
+   * @return an empty delta corresponding to the header.
+   * @throws BufferUnderflowException if the buffer does not contain the whole header.
+   **/
+   protected static MapCrdtDelta decodeHeader(ByteBuffer buffer)
+   {
+      int replicaId = getVarInt(buffer);
+      long fromVersion = getVarLong(buffer);
+      long toVersion = getVarLong(buffer);
+      MapCrdtDelta delta = new MapCrdtDelta(replicaId, fromVersion, toVersion);
+
+      int count = getVarInt(buffer);
+      for (int i = 0; i < count; i++)
+      {
+         int otherId = getVarInt(buffer);
+         delta.acknowledgements.put(otherId, getVarLong(buffer));
+      }
+
+      delta.sinceVector = getVersionVector(buffer);
+      delta.versionVector = getVersionVector(buffer);
+
+      return delta;
+   }
+
+   /**
+   * Decodes a snapshot from a buffer and rebuilds a replica from it. The rebuilt replica gets a
+   * new unique id since it may have missed operations registered by the original replica after the
+   * snapshot.
+   * @param buffer the buffer containing the encoded snapshot.
+   * @return a new replica containing the logs of the snapshot.
+   * @throws IOException if the buffer does not contain a whole valid snapshot.
+   **/
+   public static MapCrdt decodeSnapshot(ByteBuffer buffer) throws IOException
+   {
+      MapCrdt replica = new MapCrdt();
+      replica.mergeDelta(decode(buffer));
+
+      return replica;
+   }
+
+   /**
+   * Encodes a delta into a newly allocated buffer.
+   * @param delta the delta that should be encoded.
+   * @return a buffer, ready to be read, containing exactly the encoded delta.
+   **/
+   public static ByteBuffer encode(MapCrdtDelta delta)
+   {
+      ByteBuffer buffer = ByteBuffer.allocate(encodedSize(delta));
+      encode(delta, buffer);
+      buffer.flip();
+
+      return buffer;
+   }
+
+   /**
+   * Encodes a delta at the position of a buffer.
+   * @param delta the delta that should be encoded.
+   * @param buffer the buffer the delta is written to.
+   * @throws java.nio.BufferOverflowException if the buffer is too small, see encodedSize.
+   **/
+   public static void encode(MapCrdtDelta delta, ByteBuffer buffer)
+   {
+      encodeHeader(delta, buffer);
+      Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : delta.entries.entrySet())
+      {
+         encodeEntry(entry.getKey(), entry.getValue(), buffer, dictionary);
+      }
+   }
+
+   /**
+   * Encodes a log entry written alone at the position of a buffer, its value in full.
+   * @param key the key of the log entry.
+   * @param info the log entry.
+   * @param buffer the buffer the entry is written to.
+   **/
+   protected static void encodeEntry(String key, MapCrdtLogEntry info, ByteBuffer buffer)
+   {
+      encodeEntry(key, info, buffer, null);
+   }
+
+   /**
+   * Encodes a log entry at the position of a buffer.
+   * @param key the key of the log entry.
+   * @param info the log entry.
+   * @param buffer the buffer the entry is written to.
+   * @param dictionary the numbers of the values already encoded in the delta, to which a new value
+   * is added, or null for an entry written alone.
+   **/
+   protected static void encodeEntry(String key, MapCrdtLogEntry info, ByteBuffer buffer,
+                                     Map<String, Integer> dictionary)
+   {
+      putKey(buffer, key);
+      putVarLong(buffer, ((long) info.replicaId << 1) | (info.isDelete() ? 1 : 0));
+      putVarLong(buffer, info.time);
+
+      if (info.isDelete() == true)
+      {
+         putVarLong(buffer, info.deleteReplicaId);
+         putVarLong(buffer, info.deleteTime);
+      }
+      else
+      {
+         putValue(buffer, info.value, dictionary);
+      }
+   }
+
+   /**
+   * Encodes the header of a delta, including the number of entries, at the position of a buffer.
+   * @param delta the delta whose header should be encoded.
+   * @param buffer the buffer the header is written to.
+   **/
+   protected static void encodeHeader(MapCrdtDelta delta, ByteBuffer buffer)
+   {
+      buffer.putInt(MAGIC);
+      buffer.put(FORMAT);
+      putVarLong(buffer, delta.replicaId);
+      putVarLong(buffer, delta.fromVersion);
+      putVarLong(buffer, delta.toVersion);
+      putVarLong(buffer, delta.acknowledgements.size());
+      for (Map.Entry<Integer, Long> acknowledgement : delta.acknowledgements.entrySet())
+      {
+         putVarLong(buffer, acknowledgement.getKey());
+         putVarLong(buffer, acknowledgement.getValue());
+      }
+      putVersionVector(buffer, delta.sinceVector);
+      putVersionVector(buffer, delta.versionVector);
+      putVarLong(buffer, delta.entries.size());
+   }
+
+   /**
+   * Encodes a snapshot of a replica into a newly allocated buffer.
+   * @param replica the replica whose logs should be encoded.
+   * @return a buffer, ready to be read, containing exactly the encoded snapshot.
+   **/
+   public static ByteBuffer encodeSnapshot(MapCrdt replica)
+   {
+      return encode(replica.delta(0));
+   }
+
+   /**
+   * Computes the number of bytes needed to encode a delta.
+   * @param delta the delta that should be encoded.
+   * @return the size of the encoded delta in bytes.
+   **/
+   public static int encodedSize(MapCrdtDelta delta)
+   {
+      long size = headerSize(delta);
+      Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : delta.entries.entrySet())
+      {
+         MapCrdtLogEntry info = entry.getValue();
+         size += entrySize(entry.getKey(), info, dictionary);
+
+         if (info.isDelete() == false && info.value != null)
+         {
+            dictionary.putIfAbsent(info.value, dictionary.size());
+         }
+      }
+
+      if (size > Integer.MAX_VALUE)
+      {
+         throw new IllegalArgumentException("Delta too large to be encoded in a buffer.");
+      }
+
+      return (int) size;
+   }
+
+   /**
+   * Computes the number of bytes needed to encode a log entry written alone.
+   * @param key the key of the log entry.
+   * @param info the log entry.
+   * @return the size of the encoded entry in bytes.
+   **/
+   protected static int entrySize(String key, MapCrdtLogEntry info)
+   {
+      return entrySize(key, info, null);
+   }
+
+   /**
+   * Computes the number of bytes needed to encode a log entry.
+   * @param key the key of the log entry.
+   * @param info the log entry.
+   * @param dictionary the numbers of the values already encoded in the delta, which is not
+   * modified, or null for an entry written alone.
+   * @return the size of the encoded entry in bytes.
+   **/
+   protected static int entrySize(String key, MapCrdtLogEntry info,
+                                  Map<String, Integer> dictionary)
+   {
+      int size = keySize(key) + varLongSize(((long) info.replicaId << 1) | 1) +
+                 varLongSize(info.time);
+
+      if (info.isDelete() == true)
+      {
+         size += varLongSize(info.deleteReplicaId) + varLongSize(info.deleteTime);
+      }
+      else
+      {
+         size += valueSize(info.value, dictionary);
+      }
+
+      return size;
+   }
+
+   /**
+   * Decodes a key at the position of a buffer, prefixed with its length and its encoding.
+   * @param buffer the buffer containing the encoded key.
+   * @return the decoded key.
+   * @throws BufferUnderflowException if the buffer does not contain the whole key.
+   **/
+   protected static String getKey(ByteBuffer buffer)
+   {
+      long tag = getVarLong(buffer);
+
+      if ((tag >>> 1) > Integer.MAX_VALUE)
+      {
+         throw new IllegalStateException("Key length out of range: " + (tag >>> 1) + ".");
+      }
+
+      return getString(buffer, (int) (tag >>> 1), (tag & 1) == 1 ? StandardCharsets.ISO_8859_1 :
+                                                                   StandardCharsets.UTF_8);
+   }
+
+   /**
+   * Decodes a string of a given number of UTF-8 bytes at the position of a buffer.
+   * @param buffer the buffer containing the encoded string.
+   * @param length the number of bytes of the string.
+   * @return the decoded string.
+   * @throws BufferUnderflowException if the buffer does not contain the whole string.
+   **/
+   protected static String getString(ByteBuffer buffer, int length)
+   {
+      return getString(buffer, length, StandardCharsets.UTF_8);
+   }
+
+   /**
+   * Decodes a string of a given number of bytes in a given charset at the position of a buffer.
+   * @param buffer the buffer containing the encoded string.
+   * @param length the number of bytes of the string.
+   * @param charset the charset of the bytes, UTF-8 or ISO-8859-1.
+   * @return the decoded string.
+   * @throws BufferUnderflowException if the buffer does not contain the whole string.
+   **/
+   protected static String getString(ByteBuffer buffer, int length, Charset charset)
+   {
+      if (buffer.remaining() < length)
+      {
+         throw new BufferUnderflowException();
+      }
+
+      if (buffer.hasArray() == true)
+      {
+         int offset = buffer.arrayOffset() + buffer.position();
+         buffer.position(buffer.position() + length);
+
+         return new String(buffer.array(), offset, length, charset);
+      }
+
+      // The bytes of a direct buffer have to be copied on the heap to build the string.
+      byte[] bytes = new byte[length];
+      buffer.get(bytes, 0, length);
+
+      return new String(bytes, charset);
+   }
+
+   /**
+   * Decodes a dictionary encoded value at the position of a buffer.
+   * @param buffer the buffer containing the encoded value.
+   * @param dictionary the values already decoded from the delta, to which a new value is added,
+   * null for a value written alone.
+   * @return the decoded value, the instance of the dictionary if the value is already known.
+   * @throws BufferUnderflowException if the buffer does not contain the whole value.
+   **/
+   protected static String getValue(ByteBuffer buffer, List<String> dictionary)
+   {
+      long tag = getVarLong(buffer);
+
+      if (tag == 0)
+      {
+         return null;
+      }
+
+      if ((tag & 1) == 1)
+      {
+         long length = tag >>> 2;
+         if (length > Integer.MAX_VALUE)
+         {
+            throw new IllegalStateException("Value length out of range: " + length + ".");
+         }
+
+         String value = getString(buffer, (int) length, (tag & 2) != 0 ?
+                                                        StandardCharsets.ISO_8859_1 :
+                                                        StandardCharsets.UTF_8);
+         if (dictionary != null)
+         {
+            dictionary.add(value);
+         }
+
+         return value;
+      }
+
+      long index = (tag >>> 1) - 1;
+      if (dictionary == null || index >= dictionary.size())
+      {
+         throw new IllegalStateException("Unknown value: " + index + ".");
+      }
+
+      return dictionary.get((int) index);
+   }
+
+   /**
+   * Decodes an unsigned varint which should fit in an int at the position of a buffer.
+   * @param buffer the buffer containing the encoded varint.
+   * @return the decoded integer.
+   * @throws BufferUnderflowException if the buffer does not contain the whole varint.
+   **/
+   protected static int getVarInt(ByteBuffer buffer)
+   {
+      long value = getVarLong(buffer);
+
+      if (value < 0 || value > Integer.MAX_VALUE)
+      {
+         throw new IllegalStateException("Varint out of range: " + value + ".");
+      }
+
+      return (int) value;
+   }
+
+   /**
+   * Decodes an unsigned varint at the position of a buffer.
+   * @param buffer the buffer containing the encoded varint.
+   * @return the decoded long.
+   * @throws BufferUnderflowException if the buffer does not contain the whole varint.
+   **/
+   protected static long getVarLong(ByteBuffer buffer)
+   {
+      long value = 0;
+
+      for (int shift = 0; shift < 64; shift += 7)
+      {
+         byte b = buffer.get();
+         value |= (long) (b & 0x7f) << shift;
+
+         if (b >= 0)
+         {
+            return value;
+         }
+      }
+
+      throw new IllegalStateException("Malformed varint.");
+   }
+
+   /**
+   * Decodes a version vector at the position of a buffer, prefixed with its size plus one.
+   * @param buffer the buffer containing the encoded vector.
+   * @return the decoded vector, null if the buffer gives no vector.
+   * @throws BufferUnderflowException if the buffer does not contain the whole vector.
+   **/
+   protected static MapCrdtVersionVector getVersionVector(ByteBuffer buffer)
+   {
+      int count = getVarInt(buffer);
+      if (count == 0)
+      {
+         return null;
+      }
+
+      MapCrdtVersionVector vector = new MapCrdtVersionVector();
+      for (int i = 1; i < count; i++)
+      {
+         int replicaId = getVarInt(buffer);
+         vector.advance(replicaId, getVarLong(buffer));
+      }
+
+      return vector;
+   }
+
+   /**
+   * Computes the number of bytes needed to encode the header of a delta.
+   * @param delta the delta whose header should be encoded.
+   * @return the size of the encoded header in bytes.
+   **/
+   protected static int headerSize(MapCrdtDelta delta)
+   {
+      int size = 5 + varLongSize(delta.replicaId) + varLongSize(delta.fromVersion) +
+                 varLongSize(delta.toVersion) + varLongSize(delta.acknowledgements.size()) +
+                 versionVectorSize(delta.sinceVector) + versionVectorSize(delta.versionVector) +
+                 varLongSize(delta.entries.size());
+
+      for (Map.Entry<Integer, Long> acknowledgement : delta.acknowledgements.entrySet())
+      {
+         size += varLongSize(acknowledgement.getKey()) + varLongSize(acknowledgement.getValue());
+      }
+
+      return size;
+   }
+
+   /**
+   * Tells if a string should be written in ISO-8859-1: its chars all fit in a byte and some of them
+   * are not ASCII, as the strings holding bytes.
+   * @param string the string.
+   * @return true if the ISO-8859-1 bytes of the string are fewer than its UTF-8 bytes.
+   **/
+   protected static boolean isLatin1(String string)
+   {
+      boolean ascii = true;
+
+      for (int i = 0; i < string.length(); i++)
+      {
+         char c = string.charAt(i);
+
+         if (c > 0xff)
+         {
+            return false;
+         }
+         ascii &= c < 0x80;
+      }
+
+      return ascii == false;
+   }
+
+   /**
+   * Computes the number of bytes needed to encode a key, consistently with putKey.
+   * @param key the key.
+   * @return the size of the encoded key in bytes.
+   **/
+   protected static int keySize(String key)
+   {
+      boolean latin1 = isLatin1(key);
+      int length = latin1 == true ? key.length() : utf8Length(key);
+
+      return varLongSize(((long) length << 1) | (latin1 == true ? 1 : 0)) + length;
+   }
+
+   /**
+   * Encodes a key with its length and its encoding at the position of a buffer.
+   * @param buffer the buffer the key is written to.
+   * @param key the key.
+   **/
+   protected static void putKey(ByteBuffer buffer, String key)
+   {
+      if (isLatin1(key) == true)
+      {
+         putVarLong(buffer, ((long) key.length() << 1) | 1);
+         putLatin1(buffer, key);
+      }
+      else
+      {
+         putVarLong(buffer, (long) utf8Length(key) << 1);
+         putUtf8(buffer, key);
+      }
+   }
+
+   /**
+   * Encodes the ISO-8859-1 bytes of a string whose chars all fit in a byte at the position of a
+   * buffer, one byte per char.
+   * @param buffer the buffer the string is written to.
+   * @param string the string that should be encoded.
+   **/
+   protected static void putLatin1(ByteBuffer buffer, String string)
+   {
+      for (int i = 0; i < string.length(); i++)
+      {
+         buffer.put((byte) string.charAt(i));
+      }
+   }
+
+   /**
+   * Encodes a string with its length at the position of a buffer.
+   * @param buffer the buffer the string is written to.
+   * @param string the string that should be encoded.
+   * @param length the number of UTF-8 bytes of the string.
+   **/
+   protected static void putString(ByteBuffer buffer, String string, int length)
+   {
+      putVarLong(buffer, length);
+      putUtf8(buffer, string);
+   }
+
+   /**
+   * Encodes the UTF-8 bytes of a string at the position of a buffer without intermediate array.
+   * Unpaired surrogates are encoded as '?', as String.getBytes does.
+   * @param buffer the buffer the string is written to.
+   * @param string the string that should be encoded.
+   **/
+   protected static void putUtf8(ByteBuffer buffer, String string)
+   {
+      int length = string.length();
+
+      for (int i = 0; i < length; i++)
+      {
+         char c = string.charAt(i);
+
+         if (c < 0x80)
+         {
+            buffer.put((byte) c);
+         }
+         else if (c < 0x800)
+         {
+            buffer.put((byte) (0xc0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3f)));
+         }
+         else if (Character.isSurrogate(c) == false)
+         {
+            buffer.put((byte) (0xe0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+            buffer.put((byte) (0x80 | (c & 0x3f)));
+         }
+         else if (Character.isHighSurrogate(c) == true && i + 1 < length &&
+                  Character.isLowSurrogate(string.charAt(i + 1)) == true)
+         {
+            int codePoint = Character.toCodePoint(c, string.charAt(++i));
+            buffer.put((byte) (0xf0 | (codePoint >> 18)));
+            buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+            buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+         }
+         else
+         {
+            buffer.put((byte) '?');
+         }
+      }
+   }
+
+   /**
+   * Encodes a value at the position of a buffer, as the number of the value if it is already in
+   * the dictionary, and otherwise in full, adding it to the dictionary.
+   * @param buffer the buffer the value is written to.
+   * @param value the value that should be encoded, may be null.
+   * @param dictionary the numbers of the values already encoded in the delta, null for a value
+   * written alone.
+   **/
+   protected static void putValue(ByteBuffer buffer, String value, Map<String, Integer> dictionary)
+   {
+      if (value == null)
+      {
+         putVarLong(buffer, 0);
+         return;
+      }
+
+      Integer index = dictionary == null ? null : dictionary.get(value);
+      if (index != null)
+      {
+         putVarLong(buffer, ((long) index << 1) + 2);
+         return;
+      }
+
+      if (isLatin1(value) == true)
+      {
+         putVarLong(buffer, ((long) value.length() << 2) + 3);
+         putLatin1(buffer, value);
+      }
+      else
+      {
+         putVarLong(buffer, ((long) utf8Length(value) << 2) + 1);
+         putUtf8(buffer, value);
+      }
+      if (dictionary != null)
+      {
+         dictionary.put(value, dictionary.size());
+      }
+   }
+
+   /**
+   * Encodes an unsigned varint at the position of a buffer.
+   * @param buffer the buffer the varint is written to.
+   * @param value the value that should be encoded.
+   **/
+   protected static void putVarLong(ByteBuffer buffer, long value)
+   {
+      while ((value & ~0x7fL) != 0)
+      {
+         buffer.put((byte) ((value & 0x7f) | 0x80));
+         value >>>= 7;
+      }
+
+      buffer.put((byte) value);
+   }
+
+   /**
+   * Encodes a version vector at the position of a buffer, prefixed with its size plus one.
+   * @param buffer the buffer the vector is written to.
+   * @param vector the vector that should be encoded, may be null.
+   **/
+   protected static void putVersionVector(ByteBuffer buffer, MapCrdtVersionVector vector)
+   {
+      if (vector == null)
+      {
+         putVarLong(buffer, 0);
+         return;
+      }
+
+      putVarLong(buffer, vector.size() + 1);
+      for (Map.Entry<Integer, Long> time : vector.getTimes().entrySet())
+      {
+         putVarLong(buffer, time.getKey());
+         putVarLong(buffer, time.getValue());
+      }
+   }
+
+   /**
+   * Reads a delta from a channel. Bytes are read by blocks so the channel should not contain
+   * anything after the delta.
+   * @param channel the channel the delta is read from.
+   * @return the decoded delta.
+   * @throws IOException if the channel fails or does not provide a whole valid delta.
+   **/
+   public static MapCrdtDelta read(ReadableByteChannel channel) throws IOException
+   {
+      return read(channel, DEFAULT_BUFFER_SIZE);
+   }
+
+   /**
+   * Reads a delta from a channel using a buffer of a given size. Entries larger than the buffer
+   * are read in a larger temporary buffer.
+   * @param channel the channel the delta is read from.
+   * @param bufferSize the size of the buffer used to read the channel.
+   * @return the decoded delta.
+   * @throws IOException if the channel fails or does not provide a whole valid delta.
+   **/
+   public static MapCrdtDelta read(ReadableByteChannel channel, int bufferSize) throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.allocate(Math.max(bufferSize, 64));
+      buffer.flip();
+
+      // The header and the entries are decoded from the buffered bytes and more bytes are read
+      // from the channel each time the buffer ends in the middle of an element.
+      MapCrdtDelta delta = null;
+      List<String> dictionary = null;
+      long count = 0;
+      while (true)
+      {
+         buffer.mark();
+         try
+         {
+            if (delta == null)
+            {
+               decodeFormat(buffer);
+               MapCrdtDelta header = decodeHeader(buffer);
+               count = getVarLong(buffer);
+               delta = header;
+               dictionary = new ArrayList<String>();
+            }
+            else if (count == 0)
+            {
+               return delta;
+            }
+            else
+            {
+               decodeEntry(buffer, delta, dictionary);
+               count--;
+            }
+         }
+         catch (BufferUnderflowException e)
+         {
+            buffer.reset();
+            buffer = fill(channel, buffer);
+         }
+         catch (IllegalStateException e)
+         {
+            throw new StreamCorruptedException(e.getMessage());
+         }
+      }
+   }
+
+   /**
+   * Reads a snapshot from a channel and rebuilds a replica from it.
+   * @param channel the channel the snapshot is read from.
+   * @return a new replica containing the logs of the snapshot.
+   * @throws IOException if the channel fails or does not provide a whole valid snapshot.
+   **/
+   public static MapCrdt readSnapshot(ReadableByteChannel channel) throws IOException
+   {
+      MapCrdt replica = new MapCrdt();
+      replica.mergeDelta(read(channel));
+
+      return replica;
+   }
+
+   /**
+   * Computes the number of UTF-8 bytes of a string, consistently with putUtf8.
+   * @param string the string whose length should be computed.
+   * @return the number of bytes.
+   **/
+   protected static int utf8Length(String string)
+   {
+      int length = string.length();
+      int size = length;
+
+      for (int i = 0; i < length; i++)
+      {
+         char c = string.charAt(i);
+
+         if (c >= 0x80)
+         {
+            if (c < 0x800)
+            {
+               size += 1;
+            }
+            else if (Character.isSurrogate(c) == false)
+            {
+               size += 2;
+            }
+            else if (Character.isHighSurrogate(c) == true && i + 1 < length &&
+                     Character.isLowSurrogate(string.charAt(i + 1)) == true)
+            {
+               // Both chars of the pair are encoded on 4 bytes.
+               size += 2;
+               i++;
+            }
+         }
+      }
+
+      return size;
+   }
+
+   /**
+   * Computes the number of bytes needed to encode a value with a dictionary, consistently with
+   * putValue.
+   * @param value the value that should be encoded, may be null.
+   * @param dictionary the numbers of the values already encoded in the delta, null for a value
+   * written alone.
+   * @return the size of the encoded value in bytes.
+   **/
+   protected static int valueSize(String value, Map<String, Integer> dictionary)
+   {
+      if (value == null)
+      {
+         return 1;
+      }
+
+      Integer index = dictionary == null ? null : dictionary.get(value);
+      if (index != null)
+      {
+         return varLongSize(((long) index << 1) + 2);
+      }
+
+      if (isLatin1(value) == true)
+      {
+         return varLongSize(((long) value.length() << 2) + 3) + value.length();
+      }
+
+      int length = utf8Length(value);
+      return varLongSize(((long) length << 2) + 1) + length;
+   }
+
+   /**
+   * Computes the number of bytes of an unsigned varint.
+   * @param value the value that should be encoded.
+   * @return the size of the varint in bytes.
+   **/
+   protected static int varLongSize(long value)
+   {
+      int size = 1;
+
+      while ((value & ~0x7fL) != 0)
+      {
+         value >>>= 7;
+         size++;
+      }
+
+      return size;
+   }
+
+   /**
+   * Computes the number of bytes needed to encode a version vector, consistently with
+   * putVersionVector.
+   * @param vector the vector that should be encoded, may be null.
+   * @return the size of the encoded vector in bytes.
+   **/
+   protected static int versionVectorSize(MapCrdtVersionVector vector)
+   {
+      if (vector == null)
+      {
+         return 1;
+      }
+
+      int size = varLongSize(vector.size() + 1);
+      for (Map.Entry<Integer, Long> time : vector.getTimes().entrySet())
+      {
+         size += varLongSize(time.getKey()) + varLongSize(time.getValue());
+      }
+
+      return size;
+   }
+
+   /**
+   * Writes a delta to a channel.
+   * @param delta the delta that should be written.
+   * @param channel the channel the delta is written to.
+   * @throws IOException if the channel fails.
+   **/
+   public static void write(MapCrdtDelta delta, WritableByteChannel channel) throws IOException
+   {
+      write(delta, channel, DEFAULT_BUFFER_SIZE);
+   }
+
+   /**
+   * Writes a delta to a channel using a buffer of a given size. The buffer is flushed to the
+   * channel each time the next entry does not fit in it.
+   * @param delta the delta that should be written.
+   * @param channel the channel the delta is written to.
+   * @param bufferSize the size of the buffer used to write the channel.
+   * @throws IOException if the channel fails.
+   **/
+   public static void write(MapCrdtDelta delta, WritableByteChannel channel, int bufferSize)
+      throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, headerSize(delta)));
+      encodeHeader(delta, buffer);
+      Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : delta.entries.entrySet())
+      {
+         int size = entrySize(entry.getKey(), entry.getValue(), dictionary);
+
+         if (size > buffer.remaining())
+         {
+            flush(channel, buffer);
+         }
+
+         if (size > buffer.remaining())
+         {
+            ByteBuffer large = ByteBuffer.allocate(size);
+            encodeEntry(entry.getKey(), entry.getValue(), large, dictionary);
+            flush(channel, large);
+         }
+         else
+         {
+            encodeEntry(entry.getKey(), entry.getValue(), buffer, dictionary);
+         }
+      }
+
+      flush(channel, buffer);
+   }
+
+   /**
+   * Writes a snapshot of a replica to a channel. The snapshot is taken before writing so the
+   * replica is not locked while the channel is written.
+   * @param replica the replica whose logs should be written.
+   * @param channel the channel the snapshot is written to.
+   * @throws IOException if the channel fails.
+   **/
+   public static void writeSnapshot(MapCrdt replica, WritableByteChannel channel)
+      throws IOException
+   {
+      write(replica.delta(0), channel);
+   }
+
+   /**
+   * Reads more bytes from a channel after the unread bytes of a buffer, the buffer is grown when
+   * it is full.
+   * @param channel the channel the bytes are read from.
+   * @param buffer the buffer, ready to be read, containing the unread bytes.
+   * @return the buffer, ready to be read, containing the unread bytes followed by the new ones.
+   * @throws IOException if the channel fails or is at its end.
+   **/
+   protected static ByteBuffer fill(ReadableByteChannel channel, ByteBuffer buffer)
+      throws IOException
+   {
+      if (buffer.position() == 0 && buffer.limit() == buffer.capacity())
+      {
+         ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+         larger.put(buffer);
+         buffer = larger;
+      }
+      else
+      {
+         buffer.compact();
+      }
+
+      int read = channel.read(buffer);
+      buffer.flip();
+
+      if (read < 0)
+      {
+         throw new EOFException("Truncated map CRDT delta.");
+      }
+
+      return buffer;
+   }
+
+   /**
+   * Writes the content of a buffer to a channel and clears the buffer.
+   * @param channel the channel the bytes are written to.
+   * @param buffer the buffer whose content should be written.
+   * @throws IOException if the channel fails.
+   **/
+   protected static void flush(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+   {
+      buffer.flip();
+
+      while (buffer.hasRemaining() == true)
+      {
+         channel.write(buffer);
+      }
+
+      buffer.clear();
+   }
+}
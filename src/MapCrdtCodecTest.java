@@ -0,0 +1,292 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the binary encoding of map CRDT replicas.
+**/
+public class MapCrdtCodecTest
+{
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtCodecTest()
+   {
+   }
+
+   /**
+   * Creates a replica containing puts, deletes, a null value and non-ASCII strings.
+   * @return the replica.
+   **/
+   protected MapCrdt createReplica()
+   {
+      MapCrdt replica = new MapCrdt();
+
+      replica.put("KEY", "VALUE");
+      replica.put("DELETED", "VALUE");
+      replica.delete("DELETED");
+      replica.put("NULL", null);
+      replica.put("cl\u00e9", "\u00e9t\u00e9 \u20ac \ud83d\ude00");
+
+      for (int i = 0; i < 1000; i++)
+      {
+         replica.put("KEY" + i, "VALUE" + i);
+      }
+
+      return replica;
+   }
+
+   /**
+   * Checks that two replicas have the same log entries.
+   * @param expected the replica whose logs are expected.
+   * @param actual the replica whose logs are checked.
+   **/
+   protected void assertSameLogs(MapCrdt expected, MapCrdt actual)
+   {
+      assertEquals(expected.logs.size(), actual.logs.size());
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : expected.logs)
+      {
+         MapCrdtLogEntry expectedInfo = entry.getValue();
+         MapCrdtLogEntry actualInfo = actual.logs.get(entry.getKey());
+
+         assertEquals(0, expectedInfo.compareTo(actualInfo));
+         assertEquals(expectedInfo.value, actualInfo.value);
+      }
+   }
+
+   /**
+   * This test encodes a snapshot into a buffer and rebuilds a replica from it.
+   **/
+   @Test
+   public void testSnapshotBuffer() throws IOException
+   {
+      MapCrdt replica = this.createReplica();
+
+      ByteBuffer buffer = MapCrdtCodec.encodeSnapshot(replica);
+      assertEquals(MapCrdtCodec.encodedSize(replica.delta(0)), buffer.remaining());
+
+      MapCrdt rebuilt = MapCrdtCodec.decodeSnapshot(buffer);
+
+      assertEquals(0, buffer.remaining());
+      assertTrue(rebuilt.getReplicaId() != replica.getReplicaId());
+      this.assertSameLogs(replica, rebuilt);
+      assertNull(rebuilt.get("DELETED"));
+      assertNull(rebuilt.get("NULL"));
+      assertEquals("\u00e9t\u00e9 \u20ac \ud83d\ude00", rebuilt.get("cl\u00e9"));
+   }
+
+   /**
+   * This test checks that unpaired surrogates are encoded as '?'.
+   **/
+   @Test
+   public void testUnpairedSurrogate() throws IOException
+   {
+      MapCrdt replica = new MapCrdt();
+      replica.put("UNPAIRED", "\ud83d!");
+
+      MapCrdt rebuilt = MapCrdtCodec.decodeSnapshot(MapCrdtCodec.encodeSnapshot(replica));
+
+      assertEquals("?!", rebuilt.get("UNPAIRED"));
+   }
+
+   /**
+   * This test writes a snapshot to a channel and reads it back with buffers smaller than the
+   * entries.
+   **/
+   @Test
+   public void testSnapshotChannel() throws IOException
+   {
+      MapCrdt replica = this.createReplica();
+      StringBuilder large = new StringBuilder();
+      for (int i = 0; i < 500; i++)
+      {
+         large.append("LARGE VALUE ");
+      }
+      replica.put("LARGE", large.toString());
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      MapCrdtCodec.write(replica.delta(0), Channels.newChannel(output), 100);
+      byte[] bytes = output.toByteArray();
+
+      assertEquals(MapCrdtCodec.encodedSize(replica.delta(0)), bytes.length);
+
+      ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+      MapCrdtDelta delta = MapCrdtCodec.read(Channels.newChannel(input), 100);
+      MapCrdt rebuilt = new MapCrdt();
+      rebuilt.mergeDelta(delta);
+
+      this.assertSameLogs(replica, rebuilt);
+      assertEquals(large.toString(), rebuilt.get("LARGE"));
+   }
+
+   /**
+   * This test encodes deltas and checks that merging the decoded delta acknowledges it and that
+   * the acknowledgements of the producing replica are decoded.
+   **/
+   @Test
+   public void testDeltaRoundTrip() throws IOException
+   {
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+
+      replica1.put("KEY1", "VALUE1");
+      replica1.put("KEY2", "VALUE2");
+      replica1.delete("KEY1");
+
+      MapCrdtDelta delta = MapCrdtCodec.decode(MapCrdtCodec.encode(replica1.delta(0)));
+      replica2.mergeDelta(delta);
+
+      assertEquals(replica1.getReplicaId(), delta.getReplicaId());
+      assertEquals(replica1.getVersion(), replica2.getAcknowledgedVersion(replica1.getReplicaId()));
+      this.assertSameLogs(replica1, replica2);
+
+      // The acknowledgements are carried back to the producing replica.
+      delta = MapCrdtCodec.decode(MapCrdtCodec.encode(replica2.delta(0)));
+      assertEquals(replica2.delta(0).getAcknowledgements(), delta.getAcknowledgements());
+      assertEquals(Long.valueOf(replica1.getVersion()),
+                   delta.getAcknowledgements().get(replica1.getReplicaId()));
+   }
+
+   /**
+   * This test checks that the version vectors of deltas are encoded, and that a delta after a
+   * version vector decoded then merged advances the vector of the merging replica.
+   **/
+   @Test
+   public void testVersionVectors() throws IOException
+   {
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+
+      replica1.put("KEY1", "VALUE1");
+      replica2.mergeDelta(MapCrdtCodec.decode(MapCrdtCodec.encode(replica1.delta(0))));
+      replica1.put("KEY2", "VALUE2");
+      replica2.put("KEY3", "VALUE3");
+
+      MapCrdtDelta delta = replica1.delta(replica2.getVersionVector());
+      MapCrdtDelta decoded = MapCrdtCodec.decode(MapCrdtCodec.encode(delta));
+      assertEquals(delta.getSinceVector().getTimes(), decoded.getSinceVector().getTimes());
+      assertEquals(delta.getVersionVector().getTimes(), decoded.getVersionVector().getTimes());
+      assertEquals(1, decoded.size());
+
+      replica2.mergeDelta(decoded);
+      assertTrue(replica2.getVersionVector().covers(replica1.getVersionVector()));
+      assertEquals("VALUE2", replica2.get("KEY2"));
+
+      // A delta of buckets has no version vector.
+      decoded = MapCrdtCodec.decode(MapCrdtCodec.encode(replica1.bucketDelta(Arrays.asList(0))));
+      assertNull(decoded.getSinceVector());
+      assertNull(decoded.getVersionVector());
+   }
+
+   /**
+   * This test checks that repeated values are encoded once and decoded as a single string.
+   **/
+   @Test
+   public void testDictionary() throws IOException
+   {
+      MapCrdt replica = new MapCrdt();
+      String blob = "{\"status\": \"ACTIVE\", \"plan\": \"PREMIUM\", \"region\": \"EU\"}";
+      for (int i = 0; i < 1000; i++)
+      {
+         replica.put("KEY" + i, new String(i % 2 == 0 ? blob : "INACTIVE"));
+      }
+      replica.put("NULL", null);
+
+      MapCrdtDelta delta = replica.delta(0);
+      int literalSize = MapCrdtCodec.headerSize(delta);
+      for (Map.Entry<String, MapCrdtLogEntry> entry : delta.getEntries().entrySet())
+      {
+         literalSize += MapCrdtCodec.entrySize(entry.getKey(), entry.getValue());
+      }
+      ByteBuffer buffer = MapCrdtCodec.encode(delta);
+      assertTrue(buffer.remaining() < literalSize / 2);
+
+      MapCrdt rebuilt = MapCrdtCodec.decodeSnapshot(buffer);
+      this.assertSameLogs(replica, rebuilt);
+      assertSame(rebuilt.get("KEY0"), rebuilt.get("KEY998"));
+      assertSame(rebuilt.get("KEY1"), rebuilt.get("KEY999"));
+   }
+
+   /**
+   * This test checks that keys and values put as bytes are written as is, one byte per char, and
+   * read back as the same bytes.
+   **/
+   @Test
+   public void testBytes() throws IOException
+   {
+      MapCrdt replica = new MapCrdt();
+      Random random = new Random(42);
+      List<byte[]> keys = new ArrayList<byte[]>();
+      for (int i = 0; i < 1000; i++)
+      {
+         byte[] key = new byte[16];
+         byte[] value = new byte[100];
+         random.nextBytes(key);
+         random.nextBytes(value);
+         keys.add(key);
+         replica.putBytes(key, value);
+      }
+      replica.putBytes(new byte[] {(byte) 0xff}, new byte[0]);
+
+      MapCrdtDelta delta = replica.delta(0);
+      int utf8Size = MapCrdtCodec.headerSize(delta);
+      for (Map.Entry<String, MapCrdtLogEntry> entry : delta.getEntries().entrySet())
+      {
+         utf8Size += MapCrdtCodec.utf8Length(entry.getKey()) +
+                     MapCrdtCodec.utf8Length(entry.getValue().value);
+      }
+      ByteBuffer buffer = MapCrdtCodec.encode(delta);
+      assertTrue(buffer.remaining() < utf8Size * 4 / 5);
+
+      MapCrdt rebuilt = MapCrdtCodec.decodeSnapshot(buffer);
+      this.assertSameLogs(replica, rebuilt);
+      for (byte[] key : keys)
+      {
+         assertTrue(Arrays.equals(replica.getBytes(key), rebuilt.getBytes(key)));
+      }
+      assertEquals(0, rebuilt.getBytes(new byte[] {(byte) 0xff}).length);
+   }
+
+   /**
+   * This test checks that truncated and corrupted buffers are rejected.
+   **/
+   @Test
+   public void testInvalidBuffers() throws IOException
+   {
+      ByteBuffer buffer = MapCrdtCodec.encodeSnapshot(this.createReplica());
+      buffer.limit(buffer.limit() - 1);
+
+      try
+      {
+         MapCrdtCodec.decode(buffer);
+         assertTrue(false);
+      }
+      catch (EOFException e)
+      {
+      }
+
+      try
+      {
+         MapCrdtCodec.decode(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+         assertTrue(false);
+      }
+      catch (StreamCorruptedException e)
+      {
+      }
+   }
+}
@@ -0,0 +1,166 @@
+import java.util.HashMap;
+
+/**
+* Represents a delta of a map CRDT replica: the log entries modified in the replica between two of
+* its local versions. The delta also carries the versions of the other replicas that the producing
+* replica has acknowledged, so that a replica learns which of its modifications its peers have
+* merged, and the version vector of the producing replica, which the merging replica advances to
+* once it holds every entry of the producing replica. A delta can also contain the log entries
+* whose dot is after a version vector instead of the entries modified after a local version.
+**/
+public class MapCrdtDelta
+{
+   /**
+   * The unique id of the replica that produced the delta.
+   **/
+   protected int replicaId;
+
+   /**
+   * The local version of the producing replica after which the entries have been modified
+   * (excluded).
+   **/
+   protected long fromVersion;
+
+   /**
+   * The local version of the producing replica covered by the delta (included).
+   **/
+   protected long toVersion;
+
+   /**
+   * The log entries modified between the two versions, indexed by key.
+   **/
+   protected HashMap<String, MapCrdtLogEntry> entries;
+
+   /**
+   * The last version of each other replica whose delta had been merged into the producing replica.
+   **/
+   protected HashMap<Integer, Long> acknowledgements;
+
+   /**
+   * The version vector after which the entries have been modified, null if they have been modified
+   * after the local version the delta starts from.
+   **/
+   protected MapCrdtVersionVector sinceVector;
+
+   /**
+   * The version vector of the producing replica at the version of the delta, null if the delta
+   * does not contain every modification, as the deltas of buckets.
+   **/
+   protected MapCrdtVersionVector versionVector;
+
+   /**
+   * Default constructor.
+   * @param replicaId the id of the replica producing the delta.
+   * @param fromVersion the version after which entries have been modified.
+   * @param toVersion the last version covered by the delta.
+   **/
+   public MapCrdtDelta(int replicaId, long fromVersion, long toVersion)
+   {
+      this.replicaId = replicaId;
+      this.fromVersion = fromVersion;
+      this.toVersion = toVersion;
+      this.entries = new HashMap<String, MapCrdtLogEntry>();
+      this.acknowledgements = new HashMap<Integer, Long>();
+   }
+
+   /**
+   * Gets the versions of the other replicas acknowledged by the producing replica.
+   * @return the acknowledged versions indexed by replica's id.
+   **/
+   public HashMap<Integer, Long> getAcknowledgements()
+   {
+      return this.acknowledgements;
+   }
+
+   /**
+   * Gets the unique identifier of the replica that produced the delta.
+   * @return the unique identifier.
+   **/
+   public int getReplicaId()
+   {
+      return this.replicaId;
+   }
+
+   /**
+   * Gets the version after which the entries of the delta have been modified.
+   * @return the version (excluded) the delta starts from.
+   **/
+   public long getFromVersion()
+   {
+      return this.fromVersion;
+   }
+
+   /**
+   * Gets the version vector after which the entries of the delta have been modified.
+   * @return the version vector (excluded) the delta starts from, null if the delta starts from a
+   * local version.
+   **/
+   public MapCrdtVersionVector getSinceVector()
+   {
+      return this.sinceVector;
+   }
+
+   /**
+   * Gets the last version of the producing replica covered by the delta, that is the version to
+   * acknowledge once the delta has been merged.
+   * @return the version (included) the delta goes up to.
+   **/
+   public long getVersion()
+   {
+      return this.toVersion;
+   }
+
+   /**
+   * Gets the version vector of the producing replica at the version of the delta.
+   * @return the version vector, null if the delta does not contain every modification.
+   **/
+   public MapCrdtVersionVector getVersionVector()
+   {
+      return this.versionVector;
+   }
+
+   /**
+   * Gets the log entries contained in the delta.
+   * @return the log entries indexed by key.
+   **/
+   public HashMap<String, MapCrdtLogEntry> getEntries()
+   {
+      return this.entries;
+   }
+
+   /**
+   * Gets the number of log entries contained in the delta.
+   * @return the number of entries.
+   **/
+   public int size()
+   {
+      return this.entries.size();
+   }
+
+   /**
+   * Creates a string containing the entries of the delta.
+   * @return a string containing the delta's information.
+   **/
+   public String toString()
+   {
+      StringBuilder builder = new StringBuilder();
+      builder.append("DELTA OF REPLICA ").append(this.replicaId);
+      if (this.sinceVector == null)
+      {
+         builder.append(" (").append(this.fromVersion).append(", ").append(this.toVersion);
+         builder.append("]\n");
+      }
+      else
+      {
+         builder.append(" AFTER ").append(this.sinceVector).append(" UP TO ");
+         builder.append(this.toVersion).append("\n");
+      }
+
+      for (String key : this.entries.keySet())
+      {
+         builder.append(key).append(": ").append(this.entries.get(key)).append("\n");
+      }
+
+      return builder.toString();
+   }
+}
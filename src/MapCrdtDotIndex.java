@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+* Represents the keys of the logs of a replica indexed by the dot of their log entry: the id of the
+* replica which made the operation and its timestamp, the deletion for a tombstone. The keys of
+* each replica are held by a concurrent skip list ordered by timestamp, so the keys whose entry is
+* after a version vector are found by walking the tail of each list, at a cost proportional to
+* their number and not to the size of the logs. Keys sharing a timestamp, as the keys of a batch,
+* are ordered by key. The tombstones whose deletion is unknown are held apart and are after every
+* version vector.
+**/
+public class MapCrdtDotIndex
+{
+   /**
+   * The dots of the log entries of each replica, indexed by replica's id.
+   **/
+   protected ConcurrentHashMap<Integer, ConcurrentSkipListSet<Dot>> dots;
+
+   /**
+   * The keys of the tombstones whose deletion is unknown.
+   **/
+   protected Set<String> unknown;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtDotIndex()
+   {
+      this.dots = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<Dot>>();
+      this.unknown = ConcurrentHashMap.<String>newKeySet();
+   }
+
+   /**
+   * Adds the dot of the log entry of a key.
+   * @param key the key.
+   * @param info the log entry of the key.
+   **/
+   public void add(String key, MapCrdtLogEntry info)
+   {
+      if (info.hasDot() == false)
+      {
+         this.unknown.add(key);
+         return;
+      }
+
+      int replicaId = info.getDotReplicaId();
+      ConcurrentSkipListSet<Dot> replicaDots = this.dots.get(replicaId);
+
+      if (replicaDots == null)
+      {
+         replicaDots = new ConcurrentSkipListSet<Dot>();
+         ConcurrentSkipListSet<Dot> previous = this.dots.putIfAbsent(replicaId, replicaDots);
+         if (previous != null)
+         {
+            replicaDots = previous;
+         }
+      }
+
+      replicaDots.add(new Dot(info.getDotTime(), key));
+   }
+
+   /**
+   * Gives the keys whose log entry is after a version vector, that is whose timestamp is after the
+   * timestamp of its replica in the vector, and the keys of the tombstones whose deletion is
+   * unknown.
+   * @param since the version vector.
+   * @return the keys, the keys modified while they are walked may be missed or given twice.
+   **/
+   public List<String> keysAfter(MapCrdtVersionVector since)
+   {
+      List<String> keys = new ArrayList<String>(this.unknown);
+
+      for (Map.Entry<Integer, ConcurrentSkipListSet<Dot>> entry : this.dots.entrySet())
+      {
+         // The dot without key follows every key of its timestamp.
+         Dot last = new Dot(since.get(entry.getKey()), null);
+
+         for (Dot dot : entry.getValue().tailSet(last, false))
+         {
+            keys.add(dot.key);
+         }
+      }
+
+      return keys;
+   }
+
+   /**
+   * Removes the dot of the log entry of a key.
+   * @param key the key.
+   * @param info the log entry of the key.
+   **/
+   public void remove(String key, MapCrdtLogEntry info)
+   {
+      if (info.hasDot() == false)
+      {
+         this.unknown.remove(key);
+         return;
+      }
+
+      ConcurrentSkipListSet<Dot> replicaDots = this.dots.get(info.getDotReplicaId());
+
+      if (replicaDots != null)
+      {
+         replicaDots.remove(new Dot(info.getDotTime(), key));
+      }
+   }
+
+   /**
+   * Replaces the dot of the log entry of a key by the dot of its new entry. The new dot is added
+   * first, so a walk never misses the key.
+   * @param key the key.
+   * @param previous the previous log entry of the key, null if it had none.
+   * @param info the new log entry of the key.
+   **/
+   public void update(String key, MapCrdtLogEntry previous, MapCrdtLogEntry info)
+   {
+      this.add(key, info);
+
+      if (previous != null && (previous.getDotReplicaId() != info.getDotReplicaId() ||
+                               previous.getDotTime() != info.getDotTime()))
+      {
+         this.remove(key, previous);
+      }
+   }
+
+   /**
+   * Represents the dot of the log entry of a key, ordered by timestamp then by key.
+   **/
+   protected static class Dot implements Comparable<Dot>
+   {
+      /**
+      * The timestamp of the log entry.
+      **/
+      protected long time;
+
+      /**
+      * The key, null for a dot following every key of its timestamp.
+      **/
+      protected String key;
+
+      /**
+      * Default constructor.
+      * @param time the timestamp of the log entry.
+      * @param key the key, null for a dot following every key of its timestamp.
+      **/
+      public Dot(long time, String key)
+      {
+         this.time = time;
+         this.key = key;
+      }
+
+      /**
+      * Compares two dots by timestamp then by key.
+      * @param other the other dot.
+      * @return a negative integer, 0 or a positive integer if this dot is before, equal or after
+      * the other one.
+      **/
+      public int compareTo(Dot other)
+      {
+         if (this.time != other.time)
+         {
+            return this.time < other.time ? -1 : 1;
+         }
+
+         if (this.key == null || other.key == null)
+         {
+            return this.key == other.key ? 0 : (this.key == null ? 1 : -1);
+         }
+
+         return this.key.compareTo(other.key);
+      }
+   }
+}
@@ -0,0 +1,507 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Pushes the modifications of a replica to its peers in periodic rounds. Each round selects fanout
+* peers, randomly or in turn, and sends each of them the delta of the local replica since the
+* version it has acknowledged, so a replica only sends its modifications, including the ones it
+* merged from other replicas, once to each peer. The acknowledged version is read from the peer
+* after each merge: a delta the peer ignored, or did not acknowledge, is sent again.
+* <p>
+* The interval between two rounds adapts to the divergence: it is doubled, up to a maximum, after a
+* round which had nothing to send, and is reset to its minimum as soon as a round sends a delta.
+* <p>
+* Deltas are merged into the peers by the threads of the gossip, as many as the fanout, through a
+* bounded queue: a round never waits for a merge, a peer has at most one delta queued or being
+* merged, so a slow peer only holds one thread while the peers of the round are merged by the
+* others, and a delta which does not fit in the queue is dropped and sent again by a following
+* round. The merge runs as any merge of the peer: a MapCrdt peer holds its monitor for the whole
+* delta, so its writers wait for the merge, while a ConcurrentMapCrdt peer only locks the stripe of
+* each merged key.
+**/
+public class MapCrdtGossip implements AutoCloseable
+{
+   /**
+   * The ways of selecting the peers of a round.
+   **/
+   public enum Selection
+   {
+      RANDOM,
+      ROUND_ROBIN
+   }
+
+   /**
+   * The default maximum number of deltas waiting to be merged.
+   **/
+   public static final int DEFAULT_MAX_PENDING_DELTAS = 16;
+
+   /**
+   * The local replica whose modifications are sent.
+   **/
+   protected MapCrdt replica;
+
+   /**
+   * The peers the modifications are sent to.
+   **/
+   protected List<MapCrdt> peers;
+
+   /**
+   * The number of peers selected by a round.
+   **/
+   protected int fanout;
+
+   /**
+   * The way of selecting the peers of a round.
+   **/
+   protected Selection selection;
+
+   /**
+   * The interval between two rounds while the replicas diverge, in milliseconds.
+   **/
+   protected long minInterval;
+
+   /**
+   * The interval between two rounds once the replicas have converged, in milliseconds.
+   **/
+   protected long maxInterval;
+
+   /**
+   * The current interval between two rounds, in milliseconds.
+   **/
+   protected volatile long interval;
+
+   /**
+   * The version of the local replica acknowledged by each peer, read after each merge.
+   **/
+   protected Map<MapCrdt, Long> acknowledgedVersions;
+
+   /**
+   * The peers which have a delta waiting to be merged.
+   **/
+   protected Set<MapCrdt> inFlight;
+
+   /**
+   * The index of the next peer selected in turn.
+   **/
+   protected int nextPeer;
+
+   /**
+   * The random generator selecting the peers.
+   **/
+   protected Random random;
+
+   /**
+   * The executor running the rounds.
+   **/
+   protected ScheduledExecutorService scheduler;
+
+   /**
+   * Tells if the scheduler has been created by the gossip, and should be shut down with it.
+   **/
+   protected boolean ownsScheduler;
+
+   /**
+   * The executor merging the deltas into the peers, with a thread per selected peer and a bounded
+   * queue.
+   **/
+   protected ThreadPoolExecutor merger;
+
+   /**
+   * The next round, null if the gossip is not started.
+   **/
+   protected ScheduledFuture<?> nextRound;
+
+   /**
+   * Tells if the gossip has been closed.
+   **/
+   protected volatile boolean closed;
+
+   /**
+   * The number of rounds.
+   **/
+   protected AtomicLong rounds;
+
+   /**
+   * The number of deltas merged into peers, which have acknowledged them.
+   **/
+   protected AtomicLong deltasSent;
+
+   /**
+   * The number of log entries merged into peers.
+   **/
+   protected AtomicLong entriesSent;
+
+   /**
+   * The number of bytes of the encoded deltas merged into peers.
+   **/
+   protected AtomicLong bytesSent;
+
+   /**
+   * The number of deltas dropped because the queue was full.
+   **/
+   protected AtomicLong droppedDeltas;
+
+   /**
+   * The number of deltas merged into peers which have not acknowledged them.
+   **/
+   protected AtomicLong ignoredDeltas;
+
+   /**
+   * Creates the gossip of a replica, running on its own thread, with the default queue size.
+   * @param replica the local replica.
+   * @param fanout the number of peers selected by a round.
+   * @param selection the way of selecting the peers of a round.
+   * @param minInterval the interval between two rounds while the replicas diverge, in milliseconds.
+   * @param maxInterval the interval between two rounds once the replicas have converged.
+   **/
+   public MapCrdtGossip(MapCrdt replica, int fanout, Selection selection, long minInterval,
+                        long maxInterval)
+   {
+      this(replica, fanout, selection, minInterval, maxInterval, DEFAULT_MAX_PENDING_DELTAS, null);
+   }
+
+   /**
+   * Creates the gossip of a replica.
+   * @param replica the local replica.
+   * @param fanout the number of peers selected by a round.
+   * @param selection the way of selecting the peers of a round.
+   * @param minInterval the interval between two rounds while the replicas diverge, in milliseconds.
+   * @param maxInterval the interval between two rounds once the replicas have converged.
+   * @param maxPendingDeltas the maximum number of deltas waiting to be merged.
+   * @param scheduler the executor running the rounds, which may be shared by the gossips of many
+   * replicas, null to run them on a thread of the gossip.
+   **/
+   public MapCrdtGossip(MapCrdt replica, int fanout, Selection selection, long minInterval,
+                        long maxInterval, int maxPendingDeltas, ScheduledExecutorService scheduler)
+   {
+      if (fanout < 1 || minInterval < 1 || maxInterval < minInterval || maxPendingDeltas < 1)
+      {
+         throw new IllegalArgumentException("Invalid gossip configuration.");
+      }
+
+      this.replica = replica;
+      this.peers = new CopyOnWriteArrayList<MapCrdt>();
+      this.fanout = fanout;
+      this.selection = selection;
+      this.minInterval = minInterval;
+      this.maxInterval = maxInterval;
+      this.interval = minInterval;
+      this.acknowledgedVersions = new ConcurrentHashMap<MapCrdt, Long>();
+      this.inFlight = ConcurrentHashMap.<MapCrdt>newKeySet();
+      this.nextPeer = 0;
+      this.random = new Random();
+      this.rounds = new AtomicLong();
+      this.deltasSent = new AtomicLong();
+      this.entriesSent = new AtomicLong();
+      this.bytesSent = new AtomicLong();
+      this.droppedDeltas = new AtomicLong();
+      this.ignoredDeltas = new AtomicLong();
+
+      ThreadFactory threads = new ThreadFactory()
+      {
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "map-crdt-gossip");
+            thread.setDaemon(true);
+
+            return thread;
+         }
+      };
+
+      this.ownsScheduler = scheduler == null;
+      this.scheduler = scheduler == null ? Executors.newSingleThreadScheduledExecutor(threads) :
+                                           scheduler;
+      this.merger = new ThreadPoolExecutor(fanout, fanout, 1, TimeUnit.SECONDS,
+                                           new ArrayBlockingQueue<Runnable>(maxPendingDeltas),
+                                           threads);
+      this.merger.allowCoreThreadTimeOut(true);
+   }
+
+   /**
+   * Adds a peer the modifications are sent to.
+   * @param peer the peer.
+   **/
+   public void addPeer(MapCrdt peer)
+   {
+      if (peer != this.replica && this.peers.contains(peer) == false)
+      {
+         this.peers.add(peer);
+      }
+   }
+
+   /**
+   * Stops the rounds, the deltas already queued are still merged.
+   **/
+   public synchronized void close()
+   {
+      this.closed = true;
+
+      if (this.nextRound != null)
+      {
+         this.nextRound.cancel(false);
+      }
+
+      this.merger.shutdown();
+      if (this.ownsScheduler == true)
+      {
+         this.scheduler.shutdown();
+      }
+   }
+
+   /**
+   * Gets the number of bytes of the encoded deltas merged into peers.
+   * @return the number of bytes.
+   **/
+   public long getBytesSent()
+   {
+      return this.bytesSent.get();
+   }
+
+   /**
+   * Gets the number of deltas merged into peers which have acknowledged them.
+   * @return the number of deltas.
+   **/
+   public long getDeltasSent()
+   {
+      return this.deltasSent.get();
+   }
+
+   /**
+   * Gets the number of deltas dropped because the queue was full.
+   * @return the number of dropped deltas.
+   **/
+   public long getDroppedDeltas()
+   {
+      return this.droppedDeltas.get();
+   }
+
+   /**
+   * Gets the number of log entries merged into peers.
+   * @return the number of entries.
+   **/
+   public long getEntriesSent()
+   {
+      return this.entriesSent.get();
+   }
+
+   /**
+   * Gets the number of deltas merged into peers which have not acknowledged them, and which are
+   * sent again by a following round.
+   * @return the number of ignored deltas.
+   **/
+   public long getIgnoredDeltas()
+   {
+      return this.ignoredDeltas.get();
+   }
+
+   /**
+   * Gets the current interval between two rounds.
+   * @return the interval in milliseconds.
+   **/
+   public long getInterval()
+   {
+      return this.interval;
+   }
+
+   /**
+   * Gets the number of rounds.
+   * @return the number of rounds.
+   **/
+   public long getRounds()
+   {
+      return this.rounds.get();
+   }
+
+   /**
+   * Merges a delta into a peer, then records the version the peer has acknowledged, which is older
+   * than the delta if the peer ignored it. The delta is counted as sent only if the acknowledged
+   * version moved forward, as ignored otherwise.
+   * @param peer the peer.
+   * @param delta the delta of the local replica.
+   **/
+   protected void merge(MapCrdt peer, MapCrdtDelta delta)
+   {
+      try
+      {
+         peer.mergeDelta(delta);
+         long acknowledged = peer.getAcknowledgedVersion(this.replica.getReplicaId());
+         Long previous = this.acknowledgedVersions.put(peer, acknowledged);
+
+         if (acknowledged <= (previous == null ? 0 : previous))
+         {
+            this.ignoredDeltas.incrementAndGet();
+            return;
+         }
+
+         this.deltasSent.incrementAndGet();
+         this.entriesSent.addAndGet(delta.size());
+         this.bytesSent.addAndGet(MapCrdtCodec.encodedSize(delta));
+      }
+      finally
+      {
+         this.inFlight.remove(peer);
+      }
+   }
+
+   /**
+   * Removes a peer, the modifications are not sent to it anymore.
+   * @param peer the peer.
+   **/
+   public void removePeer(MapCrdt peer)
+   {
+      this.peers.remove(peer);
+      this.acknowledgedVersions.remove(peer);
+   }
+
+   /**
+   * Runs a round: queues the delta of the local replica for each selected peer which has not
+   * acknowledged every modification yet.
+   * @return the number of selected peers which had not acknowledged every modification.
+   **/
+   public synchronized int round()
+   {
+      this.rounds.incrementAndGet();
+
+      long version = this.replica.getVersion();
+      int diverging = 0;
+
+      for (final MapCrdt peer : this.selectPeers())
+      {
+         Long acknowledged = this.acknowledgedVersions.get(peer);
+         long since = acknowledged == null ? 0 : acknowledged;
+
+         if (since >= version)
+         {
+            continue;
+         }
+
+         diverging++;
+
+         // A peer whose previous delta is still queued gets a delta in a following round.
+         if (this.inFlight.add(peer) == false)
+         {
+            continue;
+         }
+
+         final MapCrdtDelta delta = this.replica.delta(since);
+         try
+         {
+            this.merger.execute(new Runnable()
+            {
+               public void run()
+               {
+                  MapCrdtGossip.this.merge(peer, delta);
+               }
+            });
+         }
+         catch (RejectedExecutionException e)
+         {
+            this.inFlight.remove(peer);
+            this.droppedDeltas.incrementAndGet();
+         }
+      }
+
+      return diverging;
+   }
+
+   /**
+   * Schedules the next round after the current interval.
+   **/
+   protected synchronized void schedule()
+   {
+      if (this.closed == true)
+      {
+         return;
+      }
+
+      this.nextRound = this.scheduler.schedule(new Runnable()
+      {
+         public void run()
+         {
+            MapCrdtGossip.this.scheduledRound();
+         }
+      }, this.interval, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+   * Runs a scheduled round, adapts the interval to its result and schedules the next round.
+   **/
+   protected void scheduledRound()
+   {
+      try
+      {
+         if (this.round() > 0)
+         {
+            this.interval = this.minInterval;
+         }
+         else
+         {
+            this.interval = Math.min(2 * this.interval, this.maxInterval);
+         }
+      }
+      finally
+      {
+         this.schedule();
+      }
+   }
+
+   /**
+   * Selects the peers of a round.
+   * @return at most fanout peers, all different.
+   **/
+   protected List<MapCrdt> selectPeers()
+   {
+      List<MapCrdt> peers = new ArrayList<MapCrdt>(this.peers);
+      int count = Math.min(this.fanout, peers.size());
+      List<MapCrdt> selected = new ArrayList<MapCrdt>(count);
+
+      for (int i = 0; i < count; i++)
+      {
+         if (this.selection == Selection.RANDOM)
+         {
+            // Partial Fisher-Yates shuffle: the first i peers are already selected.
+            int j = i + this.random.nextInt(peers.size() - i);
+            MapCrdt peer = peers.get(j);
+            peers.set(j, peers.get(i));
+            peers.set(i, peer);
+            selected.add(peer);
+         }
+         else
+         {
+            selected.add(peers.get((this.nextPeer + i) % peers.size()));
+         }
+      }
+
+      if (peers.isEmpty() == false)
+      {
+         this.nextPeer = (this.nextPeer + count) % peers.size();
+      }
+
+      return selected;
+   }
+
+   /**
+   * Starts the rounds.
+   **/
+   public synchronized void start()
+   {
+      if (this.nextRound == null)
+      {
+         this.schedule();
+      }
+   }
+}
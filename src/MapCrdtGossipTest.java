@@ -0,0 +1,289 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the gossip of replicas.
+**/
+public class MapCrdtGossipTest
+{
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtGossipTest()
+   {
+   }
+
+   /**
+   * Tells if replicas hold the same logs.
+   * @param replicas the replicas.
+   * @return true if the root hashes of their hash trees are equal.
+   **/
+   protected static boolean converged(MapCrdt[] replicas)
+   {
+      long hash = replicas[0].getMerkleTree().getRootHash();
+
+      for (MapCrdt replica : replicas)
+      {
+         if (replica.getMerkleTree().getRootHash() != hash)
+         {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+   * Creates the gossips of a cluster where every replica is a peer of every other one.
+   * @param replicas the replicas of the cluster.
+   * @param selection the way of selecting the peers of a round.
+   * @param scheduler the executor running the rounds of every gossip.
+   * @return the gossip of each replica, not started.
+   **/
+   protected static MapCrdtGossip[] gossips(MapCrdt[] replicas, MapCrdtGossip.Selection selection,
+                                            ScheduledExecutorService scheduler)
+   {
+      MapCrdtGossip[] gossips = new MapCrdtGossip[replicas.length];
+
+      for (int i = 0; i < replicas.length; i++)
+      {
+         gossips[i] = new MapCrdtGossip(replicas[i], 3, selection, 2, 64,
+                                        MapCrdtGossip.DEFAULT_MAX_PENDING_DELTAS, scheduler);
+         for (MapCrdt peer : replicas)
+         {
+            gossips[i].addPeer(peer);
+         }
+      }
+
+      return gossips;
+   }
+
+   /**
+   * This test checks that a cluster of 50 replicas converges with both peer selections, and that
+   * the interval grows to its maximum once the replicas have converged.
+   **/
+   @Test
+   public void testConvergence() throws InterruptedException
+   {
+      ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+      for (MapCrdtGossip.Selection selection : MapCrdtGossip.Selection.values())
+      {
+         MapCrdt[] replicas = new MapCrdt[50];
+         for (int i = 0; i < replicas.length; i++)
+         {
+            replicas[i] = i % 2 == 0 ? new MapCrdt() : new ConcurrentMapCrdt();
+            replicas[i].put("KEY" + i, "VALUE" + i);
+            replicas[i].put("SHARED", "VALUE" + i);
+         }
+         replicas[7].delete("KEY7");
+
+         MapCrdtGossip[] gossips = gossips(replicas, selection, scheduler);
+         for (MapCrdtGossip gossip : gossips)
+         {
+            gossip.start();
+         }
+
+         long deadline = System.currentTimeMillis() + 20000;
+         while (converged(replicas) == false && System.currentTimeMillis() < deadline)
+         {
+            Thread.sleep(5);
+         }
+         assertTrue(converged(replicas));
+         assertEquals("VALUE1", replicas[49].get("KEY1"));
+         assertTrue(replicas[0].containsKey("KEY7") == false);
+
+         // Once converged, the rounds find nothing to send and back off.
+         deadline = System.currentTimeMillis() + 20000;
+         while (gossips[0].getInterval() < 64 && System.currentTimeMillis() < deadline)
+         {
+            Thread.sleep(5);
+         }
+         assertEquals(64, gossips[0].getInterval());
+
+         long bytes = 0;
+         for (MapCrdtGossip gossip : gossips)
+         {
+            bytes += gossip.getBytesSent();
+            gossip.close();
+         }
+         assertTrue(bytes > 0);
+      }
+
+      scheduler.shutdown();
+   }
+
+   /**
+   * This test checks that a replica only sends the modifications a peer has not merged yet.
+   **/
+   @Test
+   public void testDeltas() throws InterruptedException
+   {
+      MapCrdt local = new MapCrdt();
+      MapCrdt peer = new MapCrdt();
+      MapCrdtGossip gossip = new MapCrdtGossip(local, 1, MapCrdtGossip.Selection.ROUND_ROBIN, 1,
+                                               1);
+      gossip.addPeer(peer);
+
+      local.put("KEY1", "VALUE1");
+      local.put("KEY2", "VALUE2");
+      assertEquals(1, gossip.round());
+      while (gossip.getDeltasSent() < 1)
+      {
+         Thread.sleep(1);
+      }
+      assertEquals("VALUE2", peer.get("KEY2"));
+      assertEquals(0, gossip.round());
+
+      local.put("KEY3", "VALUE3");
+      assertEquals(1, gossip.round());
+      while (gossip.getDeltasSent() < 2)
+      {
+         Thread.sleep(1);
+      }
+      assertEquals("VALUE3", peer.get("KEY3"));
+      assertEquals(3, gossip.getEntriesSent());
+
+      gossip.close();
+   }
+
+   /**
+   * This test checks that a delta ignored by a peer is sent again by the following rounds.
+   **/
+   @Test
+   public void testIgnoredDelta() throws InterruptedException
+   {
+      MapCrdt local = new MapCrdt();
+      MapCrdt peer = new MapCrdt()
+      {
+         protected boolean ignored = false;
+
+         public void mergeDelta(MapCrdtDelta delta)
+         {
+            if (this.ignored == false)
+            {
+               this.ignored = true;
+               return;
+            }
+            super.mergeDelta(delta);
+         }
+      };
+      MapCrdtGossip gossip = new MapCrdtGossip(local, 1, MapCrdtGossip.Selection.ROUND_ROBIN, 1,
+                                               1);
+      gossip.addPeer(peer);
+
+      local.put("KEY1", "VALUE1");
+      assertEquals(1, gossip.round());
+      while (gossip.getIgnoredDeltas() < 1)
+      {
+         Thread.sleep(1);
+      }
+      assertNull(peer.get("KEY1"));
+      assertEquals(0, gossip.getDeltasSent());
+      assertEquals(0, gossip.getEntriesSent());
+
+      assertEquals(1, gossip.round());
+      while (gossip.getDeltasSent() < 1)
+      {
+         Thread.sleep(1);
+      }
+      assertEquals("VALUE1", peer.get("KEY1"));
+      assertEquals(1, gossip.getEntriesSent());
+      assertEquals(1, gossip.getIgnoredDeltas());
+      assertEquals(0, gossip.round());
+
+      gossip.close();
+   }
+
+   /**
+   * This test checks that a round does not wait for blocked peers, and that the deltas which do
+   * not fit in the queue are dropped, then sent again once the peers are unblocked.
+   **/
+   @Test
+   public void testBoundedQueue() throws InterruptedException
+   {
+      MapCrdt local = new MapCrdt();
+      MapCrdt[] peers = new MapCrdt[4];
+      MapCrdtGossip gossip = new MapCrdtGossip(local, 2, MapCrdtGossip.Selection.ROUND_ROBIN, 1,
+                                               1, 1, null);
+      for (int i = 0; i < peers.length; i++)
+      {
+         peers[i] = new MapCrdt();
+         gossip.addPeer(peers[i]);
+      }
+      local.put("KEY1", "VALUE1");
+
+      // The deltas of the first round are being merged by the two threads, the third one is
+      // queued and the fourth one is dropped.
+      synchronized (peers[0])
+      {
+         synchronized (peers[1])
+         {
+            synchronized (peers[2])
+            {
+               synchronized (peers[3])
+               {
+                  assertEquals(2, gossip.round());
+                  assertEquals(2, gossip.round());
+                  assertEquals(1, gossip.getDroppedDeltas());
+               }
+            }
+         }
+      }
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (gossip.getDeltasSent() < 4 && System.currentTimeMillis() < deadline)
+      {
+         gossip.round();
+         Thread.sleep(1);
+      }
+      for (MapCrdt peer : peers)
+      {
+         assertEquals("VALUE1", peer.get("KEY1"));
+      }
+
+      gossip.close();
+   }
+
+   /**
+   * This test checks that a peer blocked in a merge does not delay the deltas of the other peers
+   * of the round.
+   **/
+   @Test
+   public void testSlowPeer() throws InterruptedException
+   {
+      MapCrdt local = new MapCrdt();
+      MapCrdt slow = new MapCrdt();
+      MapCrdt fast = new MapCrdt();
+      MapCrdtGossip gossip = new MapCrdtGossip(local, 2, MapCrdtGossip.Selection.ROUND_ROBIN, 1,
+                                               1);
+      gossip.addPeer(slow);
+      gossip.addPeer(fast);
+      local.put("KEY1", "VALUE1");
+
+      synchronized (slow)
+      {
+         assertEquals(2, gossip.round());
+         long deadline = System.currentTimeMillis() + 10000;
+         while (gossip.getDeltasSent() < 1 && System.currentTimeMillis() < deadline)
+         {
+            Thread.sleep(1);
+         }
+         assertEquals("VALUE1", fast.get("KEY1"));
+         assertEquals(1, gossip.getDeltasSent());
+      }
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (gossip.getDeltasSent() < 2 && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(1);
+      }
+      assertEquals("VALUE1", slow.get("KEY1"));
+
+      gossip.close();
+   }
+}
@@ -0,0 +1,483 @@
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+* Represents an immutable map from keys to log entries, stored in a hash array mapped trie. Each
+* node of the trie covers 5 bits of the hash of the keys, and only holds the slots of the values of
+* those bits which are used, given by a bitmap; keys whose hashes are equal are kept in a collision
+* node below the last level. Putting or removing a key copies the nodes on the path to the key and
+* shares all the other nodes with the previous map, so a modification costs a few small copies and
+* every version of the map can be read by any number of threads without locking.
+**/
+public class MapCrdtHamt implements Iterable<Map.Entry<String, MapCrdtLogEntry>>
+{
+   /**
+   * The number of bits of the hash covered by a level of the trie.
+   **/
+   protected static final int BITS = 5;
+
+   /**
+   * The empty map.
+   **/
+   public static final MapCrdtHamt EMPTY = new MapCrdtHamt(new Node(0, new Object[0], false), 0);
+
+   /**
+   * The root node of the trie.
+   **/
+   protected final Node root;
+
+   /**
+   * The number of keys of the map.
+   **/
+   protected final int size;
+
+   /**
+   * Creates a map.
+   * @param root the root node of the trie.
+   * @param size the number of keys of the trie.
+   **/
+   protected MapCrdtHamt(Node root, int size)
+   {
+      this.root = root;
+      this.size = size;
+   }
+
+   /**
+   * Gets the log entry of a key.
+   * @param key the key.
+   * @return the log entry, null if the map has no entry for the key.
+   **/
+   public MapCrdtLogEntry get(String key)
+   {
+      return this.root.get(key, key.hashCode(), 0);
+   }
+
+   /**
+   * Iterates over the entries of the map, in the order of the trie.
+   * @return an iterator over the entries indexed by key.
+   **/
+   public Iterator<Map.Entry<String, MapCrdtLogEntry>> iterator()
+   {
+      return new EntryIterator(this.root);
+   }
+
+   /**
+   * Gives the map with the entry of a key set.
+   * @param key the key.
+   * @param info the log entry.
+   * @return the new map, sharing its unmodified nodes with this one.
+   **/
+   public MapCrdtHamt put(String key, MapCrdtLogEntry info)
+   {
+      boolean[] added = new boolean[1];
+      Node root = this.root.put(key, key.hashCode(), 0, info, added);
+
+      return root == this.root ? this : new MapCrdtHamt(root, added[0] == true ? this.size + 1 :
+                                                                                 this.size);
+   }
+
+   /**
+   * Gives the map without the entry of a key.
+   * @param key the key.
+   * @return the new map, this one if the key had no entry.
+   **/
+   public MapCrdtHamt remove(String key)
+   {
+      Node root = this.root.remove(key, key.hashCode(), 0);
+
+      if (root == this.root)
+      {
+         return this;
+      }
+
+      return root == null ? EMPTY : new MapCrdtHamt(root, this.size - 1);
+   }
+
+   /**
+   * Gets the number of keys of the map.
+   * @return the number of keys.
+   **/
+   public int size()
+   {
+      return this.size;
+   }
+
+   /**
+   * Represents a node of the trie, never modified once created. The array holds a pair of slots per
+   * used value of the bits of the level: the key and its log entry, or null and the child node of
+   * the keys sharing those bits. A collision node holds pairs of keys and entries only.
+   **/
+   protected static class Node
+   {
+      /**
+      * The values of the bits of the level which are used, a bit per value.
+      **/
+      protected final int bitmap;
+
+      /**
+      * The pairs of slots of the used values, in the order of the values.
+      **/
+      protected final Object[] array;
+
+      /**
+      * True if the node holds keys whose hashes are equal.
+      **/
+      protected final boolean collision;
+
+      /**
+      * Creates a node.
+      * @param bitmap the values of the bits of the level which are used.
+      * @param array the pairs of slots of the used values.
+      * @param collision true if the node holds keys whose hashes are equal.
+      **/
+      public Node(int bitmap, Object[] array, boolean collision)
+      {
+         this.bitmap = bitmap;
+         this.array = array;
+         this.collision = collision;
+      }
+
+      /**
+      * Creates the node holding two keys which share the bits of the levels above it.
+      * @param shift the number of bits of the hash covered by the levels above the node.
+      * @param key1 the first key.
+      * @param info1 the log entry of the first key.
+      * @param hash2 the hash of the second key.
+      * @param key2 the second key.
+      * @param info2 the log entry of the second key.
+      * @return the node.
+      **/
+      protected static Node create(int shift, String key1, MapCrdtLogEntry info1, int hash2,
+                                   String key2, MapCrdtLogEntry info2)
+      {
+         int hash1 = key1.hashCode();
+
+         if (hash1 == hash2)
+         {
+            return new Node(0, new Object[] {key1, info1, key2, info2}, true);
+         }
+
+         boolean[] added = new boolean[1];
+         return EMPTY.root.put(key1, hash1, shift, info1, added)
+                          .put(key2, hash2, shift, info2, added);
+      }
+
+      /**
+      * Gets the log entry of a key below the node.
+      * @param key the key.
+      * @param hash the hash of the key.
+      * @param shift the number of bits of the hash covered by the levels above the node.
+      * @return the log entry, null if the key has no entry.
+      **/
+      public MapCrdtLogEntry get(String key, int hash, int shift)
+      {
+         if (this.collision == true)
+         {
+            int index = this.indexOf(key);
+            return index < 0 ? null : (MapCrdtLogEntry) this.array[index + 1];
+         }
+
+         int bit = 1 << ((hash >>> shift) & 31);
+         if ((this.bitmap & bit) == 0)
+         {
+            return null;
+         }
+
+         int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+         Object slot = this.array[index];
+         if (slot == null)
+         {
+            return ((Node) this.array[index + 1]).get(key, hash, shift + BITS);
+         }
+
+         return key.equals(slot) == true ? (MapCrdtLogEntry) this.array[index + 1] : null;
+      }
+
+      /**
+      * Gets the index of the slot of a key in a collision node.
+      * @param key the key.
+      * @return the index of the slot, -1 if the node does not hold the key.
+      **/
+      protected int indexOf(String key)
+      {
+         for (int i = 0; i < this.array.length; i += 2)
+         {
+            if (key.equals(this.array[i]) == true)
+            {
+               return i;
+            }
+         }
+
+         return -1;
+      }
+
+      /**
+      * Gives the node with the entry of a key set below it.
+      * @param key the key.
+      * @param hash the hash of the key.
+      * @param shift the number of bits of the hash covered by the levels above the node.
+      * @param info the log entry.
+      * @param added set to true if the key had no entry.
+      * @return the new node, this one if the key already had the entry.
+      **/
+      public Node put(String key, int hash, int shift, MapCrdtLogEntry info, boolean[] added)
+      {
+         if (this.collision == true)
+         {
+            int own = this.array[0].hashCode();
+            if (hash != own)
+            {
+               // The key only shares the bits of the levels above, the node moves below a level.
+               Node node = new Node(1 << ((own >>> shift) & 31), new Object[] {null, this}, false);
+               return node.put(key, hash, shift, info, added);
+            }
+
+            int index = this.indexOf(key);
+            if (index < 0)
+            {
+               added[0] = true;
+               return new Node(0, insert(this.array, this.array.length, key, info), true);
+            }
+
+            return this.array[index + 1] == info ? this : this.with(index + 1, info);
+         }
+
+         int bit = 1 << ((hash >>> shift) & 31);
+         int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+
+         if ((this.bitmap & bit) == 0)
+         {
+            added[0] = true;
+            return new Node(this.bitmap | bit, insert(this.array, index, key, info), false);
+         }
+
+         Object slot = this.array[index];
+         Object value = this.array[index + 1];
+
+         if (slot == null)
+         {
+            Node child = ((Node) value).put(key, hash, shift + BITS, info, added);
+            return child == value ? this : this.with(index + 1, child);
+         }
+
+         if (key.equals(slot) == true)
+         {
+            return value == info ? this : this.with(index + 1, info);
+         }
+
+         // Both keys share the bits of this level, they are moved to a child node.
+         added[0] = true;
+         Node child = create(shift + BITS, (String) slot, (MapCrdtLogEntry) value, hash, key, info);
+         Object[] array = this.array.clone();
+         array[index] = null;
+         array[index + 1] = child;
+
+         return new Node(this.bitmap, array, false);
+      }
+
+      /**
+      * Gives the node without the entry of a key below it.
+      * @param key the key.
+      * @param hash the hash of the key.
+      * @param shift the number of bits of the hash covered by the levels above the node.
+      * @return the new node, this one if the key has no entry, null if the node becomes empty.
+      **/
+      public Node remove(String key, int hash, int shift)
+      {
+         if (this.collision == true)
+         {
+            int index = this.indexOf(key);
+            if (index < 0)
+            {
+               return this;
+            }
+
+            return this.array.length == 2 ? null : new Node(0, delete(this.array, index), true);
+         }
+
+         int bit = 1 << ((hash >>> shift) & 31);
+         if ((this.bitmap & bit) == 0)
+         {
+            return this;
+         }
+
+         int index = 2 * Integer.bitCount(this.bitmap & (bit - 1));
+         Object slot = this.array[index];
+
+         if (slot == null)
+         {
+            Node child = ((Node) this.array[index + 1]).remove(key, hash, shift + BITS);
+            if (child == this.array[index + 1])
+            {
+               return this;
+            }
+            if (child != null)
+            {
+               return this.with(index + 1, child);
+            }
+         }
+         else if (key.equals(slot) == false)
+         {
+            return this;
+         }
+
+         if (this.bitmap == bit)
+         {
+            return null;
+         }
+
+         return new Node(this.bitmap & ~bit, delete(this.array, index), false);
+      }
+
+      /**
+      * Copies the node with a slot replaced.
+      * @param index the index of the slot.
+      * @param value the new value of the slot.
+      * @return the copy.
+      **/
+      protected Node with(int index, Object value)
+      {
+         Object[] array = this.array.clone();
+         array[index] = value;
+
+         return new Node(this.bitmap, array, this.collision);
+      }
+
+      /**
+      * Copies an array of pairs of slots with a pair inserted.
+      * @param array the array.
+      * @param index the index of the inserted pair.
+      * @param key the key of the pair.
+      * @param value the value of the pair.
+      * @return the copy.
+      **/
+      protected static Object[] insert(Object[] array, int index, Object key, Object value)
+      {
+         Object[] copy = new Object[array.length + 2];
+         System.arraycopy(array, 0, copy, 0, index);
+         copy[index] = key;
+         copy[index + 1] = value;
+         System.arraycopy(array, index, copy, index + 2, array.length - index);
+
+         return copy;
+      }
+
+      /**
+      * Copies an array of pairs of slots with a pair removed.
+      * @param array the array.
+      * @param index the index of the removed pair.
+      * @return the copy.
+      **/
+      protected static Object[] delete(Object[] array, int index)
+      {
+         Object[] copy = new Object[array.length - 2];
+         System.arraycopy(array, 0, copy, 0, index);
+         System.arraycopy(array, index + 2, copy, index, array.length - index - 2);
+
+         return copy;
+      }
+   }
+
+   /**
+   * Iterates over the entries of a trie, walking down its nodes depth first.
+   **/
+   protected static class EntryIterator implements Iterator<Map.Entry<String, MapCrdtLogEntry>>
+   {
+      /**
+      * The nodes on the path to the next entry, from the root.
+      **/
+      protected Node[] nodes;
+
+      /**
+      * The index of the next slot of each node of the path.
+      **/
+      protected int[] indexes;
+
+      /**
+      * The depth of the last node of the path, -1 once every entry has been given.
+      **/
+      protected int depth;
+
+      /**
+      * The next entry, null at the end of the trie.
+      **/
+      protected Map.Entry<String, MapCrdtLogEntry> next;
+
+      /**
+      * Creates an iterator.
+      * @param root the root node of the trie.
+      **/
+      public EntryIterator(Node root)
+      {
+         // A 32-bit hash is covered by 7 levels, the collision nodes are on the eighth one.
+         this.nodes = new Node[32 / BITS + 2];
+         this.indexes = new int[this.nodes.length];
+         this.nodes[0] = root;
+         this.depth = 0;
+         this.advance();
+      }
+
+      /**
+      * Moves to the next entry.
+      **/
+      protected void advance()
+      {
+         this.next = null;
+
+         while (this.next == null && this.depth >= 0)
+         {
+            Node node = this.nodes[this.depth];
+            int index = this.indexes[this.depth];
+
+            if (index >= node.array.length)
+            {
+               this.indexes[this.depth] = 0;
+               this.depth--;
+               continue;
+            }
+
+            this.indexes[this.depth] = index + 2;
+            Object slot = node.array[index];
+            if (slot == null)
+            {
+               this.depth++;
+               this.nodes[this.depth] = (Node) node.array[index + 1];
+               this.indexes[this.depth] = 0;
+            }
+            else
+            {
+               this.next = new AbstractMap.SimpleImmutableEntry<String, MapCrdtLogEntry>(
+                  (String) slot, (MapCrdtLogEntry) node.array[index + 1]);
+            }
+         }
+      }
+
+      /**
+      * Tells if there is a next entry.
+      * @return true if there is a next entry.
+      **/
+      public boolean hasNext()
+      {
+         return this.next != null;
+      }
+
+      /**
+      * Gets the next entry.
+      * @return the next entry.
+      **/
+      public Map.Entry<String, MapCrdtLogEntry> next()
+      {
+         if (this.hasNext() == false)
+         {
+            throw new NoSuchElementException();
+         }
+
+         Map.Entry<String, MapCrdtLogEntry> entry = this.next;
+         this.advance();
+
+         return entry;
+      }
+   }
+}
@@ -0,0 +1,116 @@
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+* Represents a storage of a replica whose states are immutable: the entries are stored in a hash
+* array mapped trie, and each modification replaces the trie by a new version sharing most of its
+* nodes with the previous one. A reader gets the current version and reads it without locking, and
+* an iteration covers the entries the storage had when it started. The modifications should be
+* made by one thread at a time, as the replicas do while holding their monitor.
+**/
+public class MapCrdtHamtStorage implements MapCrdtStorage
+{
+   /**
+   * The current version of the entries indexed by key.
+   **/
+   protected volatile MapCrdtHamt map;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtHamtStorage()
+   {
+      this(MapCrdtHamt.EMPTY);
+   }
+
+   /**
+   * Creates a storage holding the entries of a version of a trie.
+   * @param map the version of the trie.
+   **/
+   public MapCrdtHamtStorage(MapCrdtHamt map)
+   {
+      this.map = map;
+   }
+
+   /**
+   * Tells if the storage can remove the log entry of a key.
+   * @return true, entries are removed from the map.
+   **/
+   public boolean canRemove()
+   {
+      return true;
+   }
+
+   /**
+   * Gets the log entry of a key.
+   * @param key the key.
+   * @return the log entry, null if the storage has no entry for the key.
+   **/
+   public MapCrdtLogEntry get(String key)
+   {
+      return this.map.get(key);
+   }
+
+   /**
+   * Gets the current version of the trie, which is never modified.
+   * @return the version of the trie.
+   **/
+   public MapCrdtHamt getMap()
+   {
+      return this.map;
+   }
+
+   /**
+   * Tells if the storage can be read while it is modified.
+   * @return true, the versions of the trie are immutable.
+   **/
+   public boolean isConcurrent()
+   {
+      return true;
+   }
+
+   /**
+   * Iterates over the log entries of the current version of the trie.
+   * @return an iterator over the entries indexed by key.
+   **/
+   public Iterator<Map.Entry<String, MapCrdtLogEntry>> iterator()
+   {
+      return this.map.iterator();
+   }
+
+   /**
+   * Stores the log entry of a key, replacing its previous entry.
+   * @param key the key.
+   * @param info the log entry.
+   * @return the previous log entry of the key, null if there was none.
+   **/
+   public MapCrdtLogEntry put(String key, MapCrdtLogEntry info)
+   {
+      MapCrdtHamt map = this.map;
+      this.map = map.put(key, info);
+
+      return map.get(key);
+   }
+
+   /**
+   * Removes the log entry of a key.
+   * @param key the key.
+   * @return the removed log entry, null if there was none.
+   **/
+   public MapCrdtLogEntry remove(String key)
+   {
+      MapCrdtHamt map = this.map;
+      this.map = map.remove(key);
+
+      return map.get(key);
+   }
+
+   /**
+   * Gets the number of keys which have a log entry.
+   * @return the number of keys.
+   **/
+   public int size()
+   {
+      return this.map.size();
+   }
+}
@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Represents a histogram of non-negative values, such as latencies in nanoseconds, with a bucket
+* per power of two: the bucket b counts the values v such that 2^(b - 1) &#60;= v &#60; 2^b, and
+* the bucket 0 counts the zeros. Recording a value adds to two striped counters, so it does not
+* allocate nor contend between threads; percentiles are only known up to their power of two.
+**/
+public class MapCrdtHistogram
+{
+   /**
+   * The number of values recorded in each bucket.
+   **/
+   protected LongAdder[] buckets;
+
+   /**
+   * The sum of the recorded values.
+   **/
+   protected LongAdder sum;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtHistogram()
+   {
+      this.buckets = new LongAdder[64];
+      for (int i = 0; i < this.buckets.length; i++)
+      {
+         this.buckets[i] = new LongAdder();
+      }
+      this.sum = new LongAdder();
+   }
+
+   /**
+   * Gets the number of recorded values.
+   * @return the number of values.
+   **/
+   public long getCount()
+   {
+      long count = 0;
+
+      for (LongAdder bucket : this.buckets)
+      {
+         count += bucket.sum();
+      }
+
+      return count;
+   }
+
+   /**
+   * Gets the mean of the recorded values.
+   * @return the mean, 0 if no value has been recorded.
+   **/
+   public double getMean()
+   {
+      long count = this.getCount();
+
+      return count == 0 ? 0 : (double) this.sum.sum() / count;
+   }
+
+   /**
+   * Gets an upper bound of a percentile of the recorded values: the largest value of the bucket
+   * containing the percentile.
+   * @param percentile the percentile, between 0 and 100.
+   * @return the upper bound, 0 if no value has been recorded.
+   **/
+   public long getPercentile(double percentile)
+   {
+      long[] counts = new long[this.buckets.length];
+      long count = 0;
+
+      for (int i = 0; i < counts.length; i++)
+      {
+         counts[i] = this.buckets[i].sum();
+         count += counts[i];
+      }
+
+      long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+      long seen = 0;
+
+      for (int i = 0; i < counts.length; i++)
+      {
+         seen += counts[i];
+
+         if (seen >= rank && counts[i] > 0)
+         {
+            return (1L << i) - 1;
+         }
+      }
+
+      return 0;
+   }
+
+   /**
+   * Gets the sum of the recorded values.
+   * @return the sum.
+   **/
+   public long getSum()
+   {
+      return this.sum.sum();
+   }
+
+   /**
+   * Records a value, negative values are recorded as zeros.
+   * @param value the value.
+   **/
+   public void record(long value)
+   {
+      value = Math.max(value, 0);
+
+      this.buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+      this.sum.add(value);
+   }
+}
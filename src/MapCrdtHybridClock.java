@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Represents a hybrid logical clock. A timestamp is the greatest of the physical time and the
+* timestamps previously given or observed, incremented by one if it was given or observed, so the
+* timestamps given by the clock are strictly increasing and greater than the timestamps of every
+* merged operation. Operations of a replica whose physical clock runs behind thus win over the
+* operations they have seen, and operations of the same millisecond do not tie. When more than
+* 65536 operations happen in the same millisecond the counter carries over to the physical time,
+* which then runs slightly ahead of the physical clock.
+* <p>
+* A remote timestamp is only observed up to a maximum drift ahead of the physical clock: a replica
+* whose clock runs far ahead, or a corrupted timestamp, cannot drag the clock further, nor make its
+* timestamps overflow.
+**/
+public class MapCrdtHybridClock implements MapCrdtClock
+{
+   /**
+   * The default maximum drift of the observed timestamps ahead of the physical clock, one day in
+   * milliseconds.
+   **/
+   public static final long DEFAULT_MAX_DRIFT = 24 * 3600 * 1000L;
+
+   /**
+   * The last timestamp given or observed by the clock.
+   **/
+   protected AtomicLong last;
+
+   /**
+   * The maximum drift of the observed timestamps ahead of the physical clock, in milliseconds.
+   **/
+   protected long maxDrift;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtHybridClock()
+   {
+      this(DEFAULT_MAX_DRIFT);
+   }
+
+   /**
+   * Creates a clock observing the remote timestamps up to a given drift.
+   * @param maxDrift the maximum drift of the observed timestamps ahead of the physical clock, in
+   * milliseconds.
+   **/
+   public MapCrdtHybridClock(long maxDrift)
+   {
+      // The bound of the observed timestamps should fit in the 47 bits of a positive timestamp.
+      if (maxDrift < 0 || maxDrift > (1L << (62 - LOGICAL_BITS)))
+      {
+         throw new IllegalArgumentException("Invalid maximum drift.");
+      }
+
+      this.last = new AtomicLong();
+      this.maxDrift = maxDrift;
+   }
+
+   /**
+   * Gets the maximum drift of the observed timestamps ahead of the physical clock.
+   * @return the maximum drift in milliseconds.
+   **/
+   public long getMaxDrift()
+   {
+      return this.maxDrift;
+   }
+
+   /**
+   * Gives the timestamp of a new local operation, without locking nor allocating.
+   * @return a timestamp greater than every timestamp given or observed before.
+   **/
+   public long now()
+   {
+      long physical = MapCrdtClock.timestamp(this.physicalTime(), 0);
+
+      while (true)
+      {
+         long last = this.last.get();
+         long next = Math.max(last + 1, physical);
+
+         if (this.last.compareAndSet(last, next) == true)
+         {
+            return next;
+         }
+      }
+   }
+
+   /**
+   * Reads the physical clock.
+   * @return the physical time in milliseconds since the epoch.
+   **/
+   protected long physicalTime()
+   {
+      return System.currentTimeMillis();
+   }
+
+   /**
+   * Observes the timestamp of an operation coming from an other replica, the next timestamps
+   * given by the clock will be greater. A timestamp beyond the maximum drift ahead of the physical
+   * clock is clamped to it.
+   * @param timestamp the timestamp of the remote operation.
+   **/
+   public void update(long timestamp)
+   {
+      long bound = MapCrdtClock.timestamp(this.physicalTime() + this.maxDrift, 0);
+      long observed = Math.min(timestamp, bound);
+      long last = this.last.get();
+
+      while (last < observed && this.last.compareAndSet(last, observed) == false)
+      {
+         last = this.last.get();
+      }
+   }
+}
@@ -0,0 +1,143 @@
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Represents a bounded table of interned values, shared by the replicas which should store a value
+* once however many keys, replicas or snapshots hold it. The table has a fixed number of slots and
+* a value may only be in the slot given by its hash: interning a value gives the instance of the
+* slot if it is equal, and otherwise puts the value in the slot in place of the previous one. The
+* slots hold the values weakly, so a value no log entry references anymore is reclaimed by the
+* garbage collector, and the table never grows. Neither interning nor reading takes a lock.
+**/
+public class MapCrdtInterner
+{
+   /**
+   * The default number of slots.
+   **/
+   public static final int DEFAULT_CAPACITY = 4096;
+
+   /**
+   * The values, indexed by their hash modulo the capacity.
+   **/
+   protected AtomicReferenceArray<WeakReference<String>> slots;
+
+   /**
+   * The mask giving the slot of a hash.
+   **/
+   protected int mask;
+
+   /**
+   * The number of values replaced by an equal interned instance.
+   **/
+   protected LongAdder hits;
+
+   /**
+   * The number of values put in the table.
+   **/
+   protected LongAdder misses;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtInterner()
+   {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+   * Creates an empty table.
+   * @param capacity the number of slots, rounded up to a power of two.
+   **/
+   public MapCrdtInterner(int capacity)
+   {
+      if (capacity < 1)
+      {
+         throw new IllegalArgumentException("The capacity should be positive.");
+      }
+
+      int size = Integer.highestOneBit(capacity);
+      if (size < capacity)
+      {
+         size <<= 1;
+      }
+
+      this.slots = new AtomicReferenceArray<WeakReference<String>>(size);
+      this.mask = size - 1;
+      this.hits = new LongAdder();
+      this.misses = new LongAdder();
+   }
+
+   /**
+   * Gets the number of slots.
+   * @return the capacity, a power of two.
+   **/
+   public int getCapacity()
+   {
+      return this.slots.length();
+   }
+
+   /**
+   * Gets the number of values replaced by an equal interned instance.
+   * @return the number of hits.
+   **/
+   public long getHits()
+   {
+      return this.hits.sum();
+   }
+
+   /**
+   * Gets the number of values put in the table, because their slot was empty or held an other
+   * value.
+   * @return the number of misses.
+   **/
+   public long getMisses()
+   {
+      return this.misses.sum();
+   }
+
+   /**
+   * Gives the interned instance of a value.
+   * @param value the value, may be null.
+   * @return the instance of the table equal to the value, or the value itself once put in its
+   * slot.
+   **/
+   public String intern(String value)
+   {
+      if (value == null)
+      {
+         return null;
+      }
+
+      int hash = value.hashCode();
+      int index = (hash ^ (hash >>> 16)) & this.mask;
+
+      WeakReference<String> reference = this.slots.get(index);
+      String interned = reference == null ? null : reference.get();
+      if (value.equals(interned) == true)
+      {
+         this.hits.increment();
+         return interned;
+      }
+
+      // Two threads interning different values of the slot keep the last one, which is harmless.
+      this.slots.set(index, new WeakReference<String>(value));
+      this.misses.increment();
+
+      return value;
+   }
+
+   /**
+   * Gives a log entry whose value is the interned instance of the value of a given entry.
+   * @param info the log entry.
+   * @return the entry itself if its value is already the interned instance, or a copy of the entry
+   * with the interned value.
+   **/
+   public MapCrdtLogEntry intern(MapCrdtLogEntry info)
+   {
+      String value = this.intern(info.value);
+
+      return value == info.value ? info : new MapCrdtLogEntry(info.replicaId, info.time,
+                                                              info.type, value);
+   }
+}
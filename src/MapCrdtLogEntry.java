@@ -1,55 +1,88 @@
 import java.sql.Timestamp;
 
 /**
-* Represents a log entry used into map CRDT replicas' logs.
+* Represents a log entry used into map CRDT replicas' logs. A log entry is immutable so it can be
+* shared by the logs of different replicas.
+* <p>
+* The id of the replica and the timestamp of an operation, its dot, identify the operation. A
+* DELETE keeps the id and timestamp of the PUT it deletes, so that it only wins over this PUT, and
+* records the dot of the deletion itself apart: the version vectors have to know when the key has
+* been deleted. The dot of a deletion read from a log which does not store it is unknown.
 **/
 public class MapCrdtLogEntry
 {
+   /**
+   * The types of operation a log entry can correspond to.
+   **/
+   public enum Type
+   {
+      PUT,
+      DELETE
+   }
+
    /**
    * The unique id of the replica responsible for the operation.
    **/
-   public int replicaId;
-   
+   public final int replicaId;
+
+   /**
+   * The timestamp at which the operation has been initiated, packing a physical time and a logical
+   * counter as described in MapCrdtClock.
+   **/
+   public final long time;
+
+   /**
+   * The type of the operation, can be PUT or DELETE.
+   **/
+   public final Type type;
+
    /**
-   * The timestamp at which the operation has been initiated.
+   * The value associated to the operation, is null if operation is a DELETE.
    **/
-   public Timestamp time;
+   public final String value;
 
    /**
-   * The type of the operation, can be 'PUT' or 'DELETE'.
+   * The unique id of the replica which deleted the key, 0 if the entry is a PUT or if the deletion
+   * is unknown.
    **/
-   public String type;
+   public final int deleteReplicaId;
 
    /**
-   * The value associated to the operation, is null if operation is a 'DELETE'.
+   * The timestamp at which the key has been deleted, 0 if the entry is a PUT or if the deletion is
+   * unknown.
    **/
-   public String value;
+   public final long deleteTime;
 
    /**
    * Default constructor.
    * @param replicaId the id of the replica.
    * @param time the timestamp corrsponding to the current operation.
-   * @param type the type of the opeartion: 'PUT' or 'DELETE'.
+   * @param type the type of the opeartion: PUT or DELETE.
    * @param value the value associated to the operation.
    **/
-   public MapCrdtLogEntry(int replicaId, Timestamp time, String type, String value)
+   public MapCrdtLogEntry(int replicaId, long time, Type type, String value)
    {
-      this.replicaId = replicaId;
-      this.time = time;
-      this.type = type;
-      this.value = value;
+      this(replicaId, time, type, value, 0, 0);
    }
 
    /**
-   * Copy constructor.
-   * @param other the MapCrdtLogEntry instance that should be copied.
+   * Creates a log entry whose deletion is known.
+   * @param replicaId the id of the replica.
+   * @param time the timestamp corrsponding to the current operation.
+   * @param type the type of the opeartion: PUT or DELETE.
+   * @param value the value associated to the operation.
+   * @param deleteReplicaId the id of the replica which deleted the key, 0 if unknown.
+   * @param deleteTime the timestamp at which the key has been deleted, 0 if unknown.
    **/
-   public MapCrdtLogEntry(MapCrdtLogEntry other)
+   public MapCrdtLogEntry(int replicaId, long time, Type type, String value, int deleteReplicaId,
+                          long deleteTime)
    {
-      this.replicaId = other.replicaId;
-      this.time = other.time;
-      this.type = other.type;
-      this.value = other.value;
+      this.replicaId = replicaId;
+      this.time = time;
+      this.type = type;
+      this.value = value;
+      this.deleteReplicaId = deleteReplicaId;
+      this.deleteTime = deleteTime;
    }
 
    /**
@@ -61,21 +94,88 @@ public class MapCrdtLogEntry
    public int compareTo(MapCrdtLogEntry other)
    {
       // First we compare timestamp
-      int compTime = this.time.compareTo(other.time);
-
-      if (compTime != 0)
+      if (this.time != other.time)
       {
-         return compTime;
+         return this.time < other.time ? -1 : 1;
       }
-      
+
       // If both timestamp are equals we compare replicas' id
       if (this.replicaId != other.replicaId)
       {
-         return - (this.replicaId - other.replicaId);
+         return this.replicaId < other.replicaId ? 1 : -1;
       }
 
-      // If both replicas' id are equals 'DELETE' wins because it deleles the 'PUT'.
-      return - this.type.compareTo(other.type);
+      // If both replicas' id are equals DELETE wins because it deleles the PUT.
+      return this.type.ordinal() - other.type.ordinal();
+   }
+
+   /**
+   * Creates the log entry of the deletion of the operation.
+   * @return a DELETE entry with the timestamp and replica's id of this entry, or this entry if it
+   * is already a DELETE.
+   **/
+   public MapCrdtLogEntry delete()
+   {
+      if (this.type == Type.DELETE)
+      {
+         return this;
+      }
+
+      return new MapCrdtLogEntry(this.replicaId, this.time, Type.DELETE, null);
+   }
+
+   /**
+   * Creates the log entry of the deletion of the operation by a given replica.
+   * @param deleteReplicaId the id of the replica deleting the key.
+   * @param deleteTime the timestamp at which the key is deleted.
+   * @return a DELETE entry with the timestamp and replica's id of this entry and the dot of the
+   * deletion, or this entry if it is already a DELETE.
+   **/
+   public MapCrdtLogEntry delete(int deleteReplicaId, long deleteTime)
+   {
+      if (this.type == Type.DELETE)
+      {
+         return this;
+      }
+
+      return new MapCrdtLogEntry(this.replicaId, this.time, Type.DELETE, null, deleteReplicaId,
+                                 deleteTime);
+   }
+
+   /**
+   * Gets the id of the replica which made the operation of the entry, the deletion for a DELETE.
+   * @return the id of the replica of the dot of the entry.
+   **/
+   public int getDotReplicaId()
+   {
+      return this.type == Type.DELETE ? this.deleteReplicaId : this.replicaId;
+   }
+
+   /**
+   * Gets the timestamp of the operation of the entry, the deletion for a DELETE.
+   * @return the timestamp of the dot of the entry, 0 if the deletion is unknown.
+   **/
+   public long getDotTime()
+   {
+      return this.type == Type.DELETE ? this.deleteTime : this.time;
+   }
+
+   /**
+   * Tells if the dot of the operation of the entry is known, which is always true for a PUT.
+   * @return true if the dot is known, false for a DELETE whose deletion is unknown.
+   **/
+   public boolean hasDot()
+   {
+      return this.getDotTime() != 0;
+   }
+
+   /**
+   * Tells if the operation is a DELETE.
+   * @return true if the operation is a DELETE, false if it is a PUT.
+   **/
+   public boolean isDelete()
+   {
+      return this.type == Type.DELETE;
    }
 
    /**
@@ -84,6 +184,7 @@ public class MapCrdtLogEntry
    **/
    public String toString()
    {
-      return "(" + this.replicaId + ", " + this.time + ", " + this.type + ", " + this.value + ")";
+      return "(" + this.replicaId + ", " + new Timestamp(MapCrdtClock.physicalTime(this.time)) +
+             "+" + MapCrdtClock.logicalTime(this.time) + ", " + this.type + ", " + this.value + ")";
    }
 }
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+* Represents a file mapped in memory by segments of a fixed size. Segments are mapped the first
+* time they are accessed and the file grows accordingly, so the file can be larger than the maximum
+* size of a mapped buffer. Primitives should be accessed at positions aligned on their size so they
+* never cross two segments, byte arrays can.
+**/
+public class MapCrdtMappedFile extends MapCrdtMemory
+{
+   /**
+   * The channel of the mapped file.
+   **/
+   protected FileChannel channel;
+
+   /**
+   * Opens a file, creating it if it does not exist.
+   * @param path the path of the file.
+   * @param segmentSize the size of a segment, a power of two greater than or equal to 8.
+   * @throws IOException if the file cannot be opened.
+   **/
+   public MapCrdtMappedFile(Path path, int segmentSize) throws IOException
+   {
+      super(segmentSize);
+
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                      StandardOpenOption.WRITE);
+   }
+
+   /**
+   * Maps a segment of the file, the file grows if the segment is after its end.
+   * @param index the index of the segment.
+   * @return the mapped segment.
+   **/
+   protected ByteBuffer allocate(int index)
+   {
+      try
+      {
+         long size = 1L << this.shift;
+         MappedByteBuffer segment = this.channel.map(FileChannel.MapMode.READ_WRITE, index * size,
+                                                     size);
+         segment.order(ByteOrder.LITTLE_ENDIAN);
+
+         return segment;
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException("Cannot map the segment " + index + ".", e);
+      }
+   }
+
+   /**
+   * Forces the modifications of the mapped segments to the storage device and closes the file.
+   * @throws IOException if the file cannot be closed.
+   **/
+   public void close() throws IOException
+   {
+      this.force();
+      super.close();
+      this.channel.close();
+   }
+
+   /**
+   * Forces the modifications of the mapped segments to the storage device.
+   **/
+   public void force()
+   {
+      for (ByteBuffer segment : this.segments)
+      {
+         if (segment != null)
+         {
+            ((MappedByteBuffer) segment).force();
+         }
+      }
+   }
+
+   /**
+   * Gets the size of the file, which includes the segments not mapped yet.
+   * @return the size in bytes.
+   **/
+   public long size()
+   {
+      try
+      {
+         return this.channel.size();
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException("Cannot read the size of the file.", e);
+      }
+   }
+}
@@ -0,0 +1,1122 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+* Represents the logs of a map CRDT replica stored in memory-mapped files, so that they survive the
+* restart of the replica and can be larger than the heap. The logs of a generation are made of
+* three files:
+* <ul>
+* <li>log.N: an append-only log of records, one per modification, ordered by local version;</li>
+* <li>index.N: an open-addressing hash table (linear probing) giving the offset of the last record
+* of each key;</li>
+* <li>checkpoints.N: the (version, offset) of a record every CHECKPOINT_INTERVAL bytes of log, to
+* find the records modified after a given version without scanning the whole log.</li>
+* </ul>
+* When superseded records take more than half of the log, or when the index is too full, the live
+* records are copied into a new generation and the file CURRENT is atomically replaced to point to
+* it. A record is committed by writing its length last, records appended after the end recorded in
+* the header of the log are indexed again when the logs are opened: each record carries the CRC32C
+* of its content, so the recovery stops at the first record which is torn, corrupted or runs past
+* the end of the file. The value of a DELETE being
+* null, the record of a DELETE holds the dot of the deletion in place of the value, when it is
+* known.
+* <p>
+* Logs created without a directory keep the same three structures in direct memory instead of
+* files: keys, values and entries are then stored outside of the heap but do not survive the
+* replica.
+**/
+public class MapCrdtMappedLogs extends AbstractMap<String, MapCrdtLogEntry>
+   implements MapCrdtStorage
+{
+   /**
+   * The default size of the mapped segments of the files.
+   **/
+   public static final int DEFAULT_SEGMENT_SIZE = 1 << 26;
+
+   /**
+   * The magic number starting the header of the files.
+   **/
+   protected static final int MAGIC = 0x4d434c47;
+
+   /**
+   * The version of the format of the files.
+   **/
+   protected static final int FORMAT = 2;
+
+   /**
+   * The size of the header of the files.
+   **/
+   protected static final int HEADER_SIZE = 64;
+
+   /**
+   * The size of the header of a record: length, hash, version, time, replica's id, type, length of
+   * the key, length of the value and CRC32C of the rest of the record.
+   **/
+   protected static final int RECORD_HEADER_SIZE = 44;
+
+   /**
+   * The size of the dot of a deletion stored in place of the value: replica's id and time.
+   **/
+   protected static final int DELETE_DOT_SIZE = 12;
+
+   /**
+   * The initial number of slots of the index.
+   **/
+   protected static final long INITIAL_CAPACITY = 1024;
+
+   /**
+   * The number of bytes of log between two checkpoints.
+   **/
+   protected static final long CHECKPOINT_INTERVAL = 64 * 1024;
+
+   /**
+   * The minimum number of bytes of superseded records before the log is compacted.
+   **/
+   protected static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+   /**
+   * The mask of the offset of a record in a slot of the index, the other bits store the highest
+   * bits of the hash of the key.
+   **/
+   protected static final long OFFSET_MASK = (1L << 48) - 1;
+
+   /**
+   * The directory containing the files, null if the logs are kept in direct memory.
+   **/
+   protected Path directory;
+
+   /**
+   * The size of the mapped segments of the files.
+   **/
+   protected int segmentSize;
+
+   /**
+   * The generation of the files currently used.
+   **/
+   protected long generation;
+
+   /**
+   * The log of records.
+   **/
+   protected MapCrdtMemory log;
+
+   /**
+   * The index giving the offset of the last record of each key.
+   **/
+   protected MapCrdtMemory index;
+
+   /**
+   * The checkpoints of the log.
+   **/
+   protected MapCrdtMemory checkpoints;
+
+   /**
+   * The unique id of the replica owning the logs.
+   **/
+   protected int replicaId;
+
+   /**
+   * The version of the last record.
+   **/
+   protected long version;
+
+   /**
+   * The offset of the end of the committed records.
+   **/
+   protected long end;
+
+   /**
+   * The number of keys.
+   **/
+   protected long count;
+
+   /**
+   * The number of bytes of superseded records.
+   **/
+   protected long garbage;
+
+   /**
+   * The number of slots of the index, a power of two.
+   **/
+   protected long capacity;
+
+   /**
+   * The number of checkpoints.
+   **/
+   protected long checkpointCount;
+
+   /**
+   * The offset from which the next record is checkpointed.
+   **/
+   protected long nextCheckpoint;
+
+   /**
+   * Creates empty logs in direct memory.
+   * @param segmentSize the size of the segments of memory, a power of two multiple of 8.
+   * @param replicaId the unique id of the replica.
+   **/
+   public MapCrdtMappedLogs(int segmentSize, int replicaId)
+   {
+      this.segmentSize = segmentSize;
+      this.replicaId = replicaId;
+
+      try
+      {
+         this.create(0, INITIAL_CAPACITY);
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException("Cannot allocate the map CRDT logs.", e);
+      }
+      this.writeHeader();
+   }
+
+   /**
+   * Opens the logs stored in a directory, creating them if the directory does not contain logs.
+   * @param directory the directory containing the files.
+   * @param segmentSize the size of the mapped segments, a power of two multiple of 8.
+   * @param replicaId the unique id of the replica, used only if the logs are created.
+   * @throws IOException if the files cannot be opened or are not valid.
+   **/
+   public MapCrdtMappedLogs(Path directory, int segmentSize, int replicaId) throws IOException
+   {
+      this.directory = directory;
+      this.segmentSize = segmentSize;
+
+      Files.createDirectories(directory);
+      Path current = directory.resolve("CURRENT");
+
+      if (Files.exists(current) == false)
+      {
+         this.replicaId = replicaId;
+         this.create(0, INITIAL_CAPACITY);
+         this.writeHeader();
+         this.switchGeneration();
+         return;
+      }
+
+      this.generation = Long.parseLong(new String(Files.readAllBytes(current),
+                                                  StandardCharsets.US_ASCII).trim());
+      this.open(this.generation);
+
+      if (this.log.getInt(0) != MAGIC || this.log.getInt(4) != FORMAT ||
+          this.index.getInt(0) != MAGIC)
+      {
+         throw new IOException("Invalid map CRDT logs in " + directory + ".");
+      }
+
+      this.replicaId = this.log.getInt(8);
+      this.version = this.log.getLong(16);
+      this.end = this.log.getLong(24);
+      this.count = this.log.getLong(32);
+      this.garbage = this.log.getLong(40);
+      this.capacity = this.index.getLong(8);
+      this.checkpointCount = this.checkpoints.getLong(0);
+      this.nextCheckpoint = HEADER_SIZE;
+      if (this.checkpointCount > 0)
+      {
+         long last = this.checkpoints.getLong(HEADER_SIZE + (this.checkpointCount - 1) * 16 + 8);
+         this.nextCheckpoint = (last / CHECKPOINT_INTERVAL + 1) * CHECKPOINT_INTERVAL;
+      }
+
+      this.recover();
+      this.deleteOtherGenerations();
+   }
+
+   /**
+   * Appends a record at the end of the log and commits it.
+   * @param hash the hash of the key.
+   * @param key the UTF-8 bytes of the key.
+   * @param info the log entry.
+   * @return the offset of the record.
+   **/
+   protected long append(int hash, byte[] key, MapCrdtLogEntry info)
+   {
+      byte[] value = info.value == null ? null : info.value.getBytes(StandardCharsets.UTF_8);
+      if (info.isDelete() == true && info.hasDot() == true)
+      {
+         value = ByteBuffer.allocate(DELETE_DOT_SIZE).putInt(info.deleteReplicaId)
+                           .putLong(info.deleteTime).array();
+      }
+      int valueLength = value == null ? -1 : value.length;
+      long offset = this.end;
+      long length = align(RECORD_HEADER_SIZE + key.length + Math.max(valueLength, 0));
+
+      if (length > Integer.MAX_VALUE)
+      {
+         throw new IllegalArgumentException("Log entry too large to be stored.");
+      }
+
+      this.log.putInt(offset + 4, hash);
+      this.log.putLong(offset + 8, ++this.version);
+      this.log.putLong(offset + 16, info.time);
+      this.log.putInt(offset + 24, info.replicaId);
+      this.log.putInt(offset + 28, info.type.ordinal());
+      this.log.putInt(offset + 32, key.length);
+      this.log.putInt(offset + 36, valueLength);
+      this.log.put(offset + RECORD_HEADER_SIZE, key, 0, key.length);
+      if (value != null)
+      {
+         this.log.put(offset + RECORD_HEADER_SIZE + key.length, value, 0, value.length);
+      }
+      this.log.putInt(offset + 40, this.checksum(offset));
+
+      // The length of the next record is cleared before the record is committed, so bytes left by
+      // a record which has never been committed cannot be taken for a record when recovering.
+      this.log.putInt(offset + length, 0);
+      this.log.putInt(offset, (int) length);
+      this.end = offset + length;
+
+      return offset;
+   }
+
+   /**
+   * Rounds a size up to the next multiple of 8.
+   * @param size the size.
+   * @return the aligned size.
+   **/
+   protected static long align(long size)
+   {
+      return (size + 7) & ~7L;
+   }
+
+   /**
+   * Tells if the logs can remove the log entry of a key.
+   * @return false, the records of the log are only reclaimed by its compaction, which keeps the
+   * last record of each key, so tombstones are kept.
+   **/
+   public boolean canRemove()
+   {
+      return false;
+   }
+
+   /**
+   * Adds the log entries modified after a given version to a map.
+   * @param since the version after which modifications are wanted.
+   * @param entries the map the log entries are added to, indexed by key.
+   **/
+   public void changesSince(long since, Map<String, MapCrdtLogEntry> entries)
+   {
+      // The last checkpoint whose version is not after the wanted version is looked for.
+      long offset = HEADER_SIZE;
+      long low = 0;
+      long high = this.checkpointCount - 1;
+      while (low <= high)
+      {
+         long middle = (low + high) >>> 1;
+         long position = HEADER_SIZE + middle * 16;
+
+         if (this.checkpoints.getLong(position) <= since)
+         {
+            offset = this.checkpoints.getLong(position + 8);
+            low = middle + 1;
+         }
+         else
+         {
+            high = middle - 1;
+         }
+      }
+
+      while (offset < this.end)
+      {
+         int length = this.log.getInt(offset);
+
+         if (this.log.getLong(offset + 8) > since && this.isLive(offset) == true)
+         {
+            entries.put(this.readKey(offset), this.readEntry(offset));
+         }
+
+         offset += length;
+      }
+   }
+
+   /**
+   * Computes the CRC32C of a record: its header from the hash to the length of the value, its key
+   * and its value.
+   * @param offset the offset of the record.
+   * @return the checksum.
+   **/
+   protected int checksum(long offset)
+   {
+      int keyLength = this.log.getInt(offset + 32);
+      int valueLength = Math.max(this.log.getInt(offset + 36), 0);
+      byte[] bytes = new byte[36 + keyLength + valueLength];
+      this.log.get(offset + 4, bytes, 0, 36);
+      this.log.get(offset + RECORD_HEADER_SIZE, bytes, 36, keyLength + valueLength);
+
+      CRC32C crc = new CRC32C();
+      crc.update(bytes, 0, bytes.length);
+
+      return (int) crc.getValue();
+   }
+
+   /**
+   * Forces the modifications to the storage device and closes the files.
+   * @throws IOException if the files cannot be closed.
+   **/
+   public void close() throws IOException
+   {
+      this.log.close();
+      this.index.close();
+      this.checkpoints.close();
+   }
+
+   /**
+   * Copies the live records into a new generation and switches to it.
+   * @param newCapacity the number of slots of the index of the new generation.
+   **/
+   protected void compact(long newCapacity)
+   {
+      MapCrdtMemory oldLog = this.log;
+      MapCrdtMemory oldIndex = this.index;
+      MapCrdtMemory oldCheckpoints = this.checkpoints;
+      long oldCapacity = this.capacity;
+      long oldEnd = this.end;
+
+      try
+      {
+         this.create(this.generation + 1, newCapacity);
+
+         // Records are copied in the order of the log so the new log is still ordered by version.
+         long offset = HEADER_SIZE;
+         byte[] record = new byte[0];
+         while (offset < oldEnd)
+         {
+            int length = oldLog.getInt(offset);
+
+            if (this.isLive(oldIndex, oldCapacity, oldLog, offset) == true)
+            {
+               if (record.length < length)
+               {
+                  record = new byte[length];
+               }
+
+               long newOffset = this.end;
+               oldLog.get(offset, record, 0, length);
+               this.log.putInt(newOffset + length, 0);
+               this.log.put(newOffset, record, 0, length);
+               this.end = newOffset + length;
+
+               int hash = this.log.getInt(newOffset + 4);
+               long position = this.slotPosition(this.emptySlot(hash));
+               this.index.putLong(position, this.slot(hash, newOffset));
+               this.checkpoint(this.log.getLong(newOffset + 8), newOffset);
+            }
+
+            offset += length;
+         }
+
+         this.garbage = 0;
+         this.writeHeader();
+         this.log.force();
+         this.index.force();
+         this.checkpoints.force();
+         this.switchGeneration();
+
+         oldLog.close();
+         oldIndex.close();
+         oldCheckpoints.close();
+         this.deleteOtherGenerations();
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException("Cannot compact the map CRDT logs.", e);
+      }
+   }
+
+   /**
+   * Tells if the logs contain a given key.
+   * @param key the key that should be looked for.
+   * @return true if the logs contain an entry for the key.
+   **/
+   public boolean containsKey(Object key)
+   {
+      return this.get(key) != null;
+   }
+
+   /**
+   * Creates the files of a new generation and makes them the current files, the generation is
+   * used only once switchGeneration is called.
+   * @param generation the generation.
+   * @param capacity the number of slots of the index.
+   * @throws IOException if the files cannot be created.
+   **/
+   protected void create(long generation, long capacity) throws IOException
+   {
+      this.generation = generation;
+      this.open(generation);
+
+      this.end = HEADER_SIZE;
+      this.log.putInt(HEADER_SIZE, 0);
+      this.capacity = capacity;
+      this.index.putInt(0, MAGIC);
+      this.index.putLong(8, capacity);
+      this.checkpointCount = 0;
+      this.checkpoints.putLong(0, 0);
+      this.nextCheckpoint = HEADER_SIZE;
+   }
+
+   /**
+   * Records a checkpoint if a record is the first one of an interval of the log.
+   * @param recordVersion the version of the record.
+   * @param offset the offset of the record.
+   **/
+   protected void checkpoint(long recordVersion, long offset)
+   {
+      if (offset < this.nextCheckpoint)
+      {
+         return;
+      }
+
+      long position = HEADER_SIZE + this.checkpointCount * 16;
+      this.checkpoints.putLong(position, recordVersion);
+      this.checkpoints.putLong(position + 8, offset);
+      this.checkpoints.putLong(0, ++this.checkpointCount);
+      this.nextCheckpoint = (offset / CHECKPOINT_INTERVAL + 1) * CHECKPOINT_INTERVAL;
+   }
+
+   /**
+   * Deletes the files of the generations other than the current one.
+   * @throws IOException if a file cannot be deleted.
+   **/
+   protected void deleteOtherGenerations() throws IOException
+   {
+      if (this.directory == null)
+      {
+         return;
+      }
+
+      String suffix = "." + this.generation;
+
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory))
+      {
+         for (Path file : files)
+         {
+            String name = file.getFileName().toString();
+
+            if ((name.startsWith("log.") || name.startsWith("index.") ||
+                 name.startsWith("checkpoints.")) && name.endsWith(suffix) == false)
+            {
+               Files.deleteIfExists(file);
+            }
+         }
+      }
+   }
+
+   /**
+   * Finds the first empty slot of the probe sequence of a hash.
+   * @param hash the hash of the key.
+   * @return the index of the empty slot.
+   **/
+   protected long emptySlot(int hash)
+   {
+      long mask = this.capacity - 1;
+      long i = hash & mask;
+
+      while (this.index.getLong(this.slotPosition(i)) != 0)
+      {
+         i = (i + 1) & mask;
+      }
+
+      return i;
+   }
+
+   /**
+   * Gets a set view of the entries of the logs, iterating over the slots of the index.
+   * @return the set of entries.
+   **/
+   public Set<Map.Entry<String, MapCrdtLogEntry>> entrySet()
+   {
+      return new AbstractSet<Map.Entry<String, MapCrdtLogEntry>>()
+      {
+         public Iterator<Map.Entry<String, MapCrdtLogEntry>> iterator()
+         {
+            return new EntryIterator();
+         }
+
+         public int size()
+         {
+            return MapCrdtMappedLogs.this.size();
+         }
+      };
+   }
+
+   /**
+   * Finds the slot of a key, or the empty slot where it should be inserted.
+   * @param key the UTF-8 bytes of the key.
+   * @param hash the hash of the key.
+   * @return the index of the slot.
+   **/
+   protected long findSlot(byte[] key, int hash)
+   {
+      long mask = this.capacity - 1;
+      long i = hash & mask;
+
+      while (true)
+      {
+         long slot = this.index.getLong(this.slotPosition(i));
+
+         if (slot == 0)
+         {
+            return i;
+         }
+
+         if ((int) (slot >>> 48) == (hash >>> 16) && this.keyEquals(slot & OFFSET_MASK, key))
+         {
+            return i;
+         }
+
+         i = (i + 1) & mask;
+      }
+   }
+
+   /**
+   * Gets the log entry of a given key.
+   * @param key the key that should be looked for.
+   * @return the log entry, or null if the logs do not contain the key.
+   **/
+   public MapCrdtLogEntry get(Object key)
+   {
+      if (key instanceof String == false)
+      {
+         return null;
+      }
+
+      byte[] bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+      long slot = this.index.getLong(this.slotPosition(this.findSlot(bytes, hash(bytes))));
+
+      if (slot == 0)
+      {
+         return null;
+      }
+
+      return this.readEntry(slot & OFFSET_MASK);
+   }
+
+   /**
+   * Gets the log entry of a given key.
+   * @param key the key that should be looked for.
+   * @return the log entry, or null if the logs do not contain the key.
+   **/
+   public MapCrdtLogEntry get(String key)
+   {
+      return this.get((Object) key);
+   }
+
+   /**
+   * Gets the unique id of the replica owning the logs.
+   * @return the unique id.
+   **/
+   public int getReplicaId()
+   {
+      return this.replicaId;
+   }
+
+   /**
+   * Gets the version of the last record.
+   * @return the version, 0 if no record has been stored.
+   **/
+   public long getVersion()
+   {
+      return this.version;
+   }
+
+   /**
+   * Computes the hash of a key.
+   * @param key the UTF-8 bytes of the key.
+   * @return the hash.
+   **/
+   protected static int hash(byte[] key)
+   {
+      int hash = 0x9747b28c;
+
+      for (byte b : key)
+      {
+         hash = (hash ^ b) * 0x01000193;
+      }
+
+      hash ^= hash >>> 16;
+      hash *= 0x85ebca6b;
+      hash ^= hash >>> 13;
+
+      return hash;
+   }
+
+   /**
+   * Tells if the logs can be read while they are modified.
+   * @return false, a modification may compact the logs or grow the index.
+   **/
+   public boolean isConcurrent()
+   {
+      return false;
+   }
+
+   /**
+   * Tells if a record is the last record of its key.
+   * @param offset the offset of the record.
+   * @return true if the index points to the record.
+   **/
+   protected boolean isLive(long offset)
+   {
+      return this.isLive(this.index, this.capacity, this.log, offset);
+   }
+
+   /**
+   * Tells if a record of a given log is the last record of its key in a given index.
+   * @param index the index.
+   * @param capacity the number of slots of the index.
+   * @param log the log containing the record.
+   * @param offset the offset of the record.
+   * @return true if the index points to the record.
+   **/
+   protected boolean isLive(MapCrdtMemory index, long capacity, MapCrdtMemory log, long offset)
+   {
+      long mask = capacity - 1;
+      long i = log.getInt(offset + 4) & mask;
+
+      while (true)
+      {
+         long slot = index.getLong(HEADER_SIZE + i * 8);
+
+         if (slot == 0)
+         {
+            return false;
+         }
+
+         if ((slot & OFFSET_MASK) == offset)
+         {
+            return true;
+         }
+
+         i = (i + 1) & mask;
+      }
+   }
+
+   /**
+   * Tells if a committed record is stored at a given offset: its lengths fit in the record and in
+   * the file, and its checksum matches its content.
+   * @param offset the offset of the record.
+   * @param size the size of the log file.
+   * @return true if the record is valid.
+   **/
+   protected boolean isValidRecord(long offset, long size)
+   {
+      if (offset + RECORD_HEADER_SIZE > size)
+      {
+         return false;
+      }
+
+      int length = this.log.getInt(offset);
+      if (length < RECORD_HEADER_SIZE || length % 8 != 0 || offset + length > size)
+      {
+         return false;
+      }
+
+      // The lengths are checked against the record before its content is read.
+      long keyLength = this.log.getInt(offset + 32);
+      long valueLength = this.log.getInt(offset + 36);
+      int type = this.log.getInt(offset + 28);
+
+      return keyLength >= 0 && valueLength >= -1 &&
+             align(RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0)) == length &&
+             type >= 0 && type < MapCrdtLogEntry.Type.values().length &&
+             this.log.getInt(offset + 40) == this.checksum(offset);
+   }
+
+   /**
+   * Iterates over the entries of the logs by walking the slots of the index.
+   * @return an iterator over the entries indexed by key.
+   **/
+   public Iterator<Map.Entry<String, MapCrdtLogEntry>> iterator()
+   {
+      return new EntryIterator();
+   }
+
+   /**
+   * Compares the key of a record with a given key.
+   * @param offset the offset of the record.
+   * @param key the UTF-8 bytes of the key.
+   * @return true if the keys are equal.
+   **/
+   protected boolean keyEquals(long offset, byte[] key)
+   {
+      if (this.log.getInt(offset + 32) != key.length)
+      {
+         return false;
+      }
+
+      for (int i = 0; i < key.length; i++)
+      {
+         if (this.log.get(offset + RECORD_HEADER_SIZE + i) != key[i])
+         {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+   * Opens the files of a generation, or allocates its memories if the logs have no directory.
+   * @param generation the generation.
+   * @throws IOException if the files cannot be opened.
+   **/
+   protected void open(long generation) throws IOException
+   {
+      if (this.directory == null)
+      {
+         this.log = new MapCrdtMemory(this.segmentSize);
+         this.index = new MapCrdtMemory(this.segmentSize);
+         this.checkpoints = new MapCrdtMemory(this.segmentSize);
+         return;
+      }
+
+      this.log = new MapCrdtMappedFile(this.directory.resolve("log." + generation),
+                                       this.segmentSize);
+      this.index = new MapCrdtMappedFile(this.directory.resolve("index." + generation),
+                                         this.segmentSize);
+      this.checkpoints = new MapCrdtMappedFile(this.directory.resolve("checkpoints." + generation),
+                                               this.segmentSize);
+   }
+
+   /**
+   * Stores a log entry, the previous entry of the key is returned.
+   * @param key the key of the log entry.
+   * @param info the log entry.
+   * @return the previous log entry of the key, or null if there was none.
+   **/
+   public MapCrdtLogEntry put(String key, MapCrdtLogEntry info)
+   {
+      MapCrdtLogEntry previous = this.get(key);
+      this.store(key, info);
+
+      return previous;
+   }
+
+   /**
+   * Reads the log entry of a record.
+   * @param offset the offset of the record.
+   * @return the log entry.
+   **/
+   protected MapCrdtLogEntry readEntry(long offset)
+   {
+      int keyLength = this.log.getInt(offset + 32);
+      int valueLength = this.log.getInt(offset + 36);
+      byte[] bytes = null;
+
+      if (valueLength >= 0)
+      {
+         bytes = new byte[valueLength];
+         this.log.get(offset + RECORD_HEADER_SIZE + keyLength, bytes, 0, valueLength);
+      }
+
+      MapCrdtLogEntry.Type type = MapCrdtLogEntry.Type.values()[this.log.getInt(offset + 28)];
+      int replicaId = this.log.getInt(offset + 24);
+      long time = this.log.getLong(offset + 16);
+
+      if (type == MapCrdtLogEntry.Type.DELETE && valueLength == DELETE_DOT_SIZE)
+      {
+         ByteBuffer dot = ByteBuffer.wrap(bytes);
+         return new MapCrdtLogEntry(replicaId, time, type, null, dot.getInt(), dot.getLong());
+      }
+
+      return new MapCrdtLogEntry(replicaId, time, type,
+                                 bytes == null || type == MapCrdtLogEntry.Type.DELETE ? null :
+                                 new String(bytes, StandardCharsets.UTF_8));
+   }
+
+   /**
+   * Reads the key of a record.
+   * @param offset the offset of the record.
+   * @return the key.
+   **/
+   protected String readKey(long offset)
+   {
+      byte[] bytes = new byte[this.log.getInt(offset + 32)];
+      this.log.get(offset + RECORD_HEADER_SIZE, bytes, 0, bytes.length);
+
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /**
+   * Removing a log entry is not supported, the last record of a key is kept by the compactions (see
+   * canRemove).
+   * @param key the key.
+   * @return never returns.
+   **/
+   public MapCrdtLogEntry remove(String key)
+   {
+      throw new UnsupportedOperationException("The mapped logs keep the last record of each key.");
+   }
+
+   /**
+   * Indexes the records committed after the end recorded in the header of the log, that is the
+   * records appended by a replica that stopped before updating the header. The recovery stops at
+   * the first record which does not fit in the file or whose checksum does not match.
+   **/
+   protected void recover()
+   {
+      long recorded = this.end;
+      long size = this.log.size();
+      long offset = recorded;
+
+      while (this.isValidRecord(offset, size) == true)
+      {
+         offset += this.log.getInt(offset);
+      }
+      this.end = offset;
+
+      // The index may point to the records after a torn or corrupted record, so it is rebuilt from
+      // the valid records.
+      if (offset < size && this.log.getInt(offset) != 0)
+      {
+         this.reindex();
+      }
+      else if (offset != recorded)
+      {
+         for (long record = recorded; record < offset; record += this.log.getInt(record))
+         {
+            this.version = Math.max(this.version, this.log.getLong(record + 8));
+            this.index(record);
+         }
+
+         // The index may already point to some of the recovered records, in which case the
+         // number of keys has not been counted, so the keys are counted again.
+         this.count = 0;
+         for (long i = 0; i < this.capacity; i++)
+         {
+            if (this.index.getLong(this.slotPosition(i)) != 0)
+            {
+               this.count++;
+            }
+         }
+      }
+
+      this.log.putInt(this.end, 0);
+      this.writeHeader();
+   }
+
+   /**
+   * Rebuilds the index and the checkpoints from the records of the log up to its end.
+   **/
+   protected void reindex()
+   {
+      for (long i = 0; i < this.capacity; i++)
+      {
+         this.index.putLong(this.slotPosition(i), 0);
+      }
+
+      this.count = 0;
+      this.garbage = 0;
+      this.checkpointCount = 0;
+      this.checkpoints.putLong(0, 0);
+      this.nextCheckpoint = HEADER_SIZE;
+
+      for (long offset = HEADER_SIZE; offset < this.end; offset += this.log.getInt(offset))
+      {
+         this.version = Math.max(this.version, this.log.getLong(offset + 8));
+         this.index(offset);
+      }
+   }
+
+   /**
+   * Makes the index point to a record of the log and updates the counters.
+   * @param offset the offset of the record.
+   **/
+   protected void index(long offset)
+   {
+      byte[] key = new byte[this.log.getInt(offset + 32)];
+      this.log.get(offset + RECORD_HEADER_SIZE, key, 0, key.length);
+      int hash = this.log.getInt(offset + 4);
+
+      long i = this.findSlot(key, hash);
+      long position = this.slotPosition(i);
+      long previous = this.index.getLong(position);
+
+      if (previous == 0)
+      {
+         this.count++;
+      }
+      else if ((previous & OFFSET_MASK) != offset)
+      {
+         this.garbage += this.log.getInt(previous & OFFSET_MASK);
+      }
+
+      this.index.putLong(position, this.slot(hash, offset));
+      this.checkpoint(this.log.getLong(offset + 8), offset);
+   }
+
+   /**
+   * Gets the number of keys.
+   * @return the number of keys.
+   **/
+   public int size()
+   {
+      return (int) Math.min(this.count, Integer.MAX_VALUE);
+   }
+
+   /**
+   * Builds the value of a slot of the index.
+   * @param hash the hash of the key.
+   * @param offset the offset of the record.
+   * @return the value of the slot.
+   **/
+   protected long slot(int hash, long offset)
+   {
+      return ((long) (hash >>> 16) << 48) | offset;
+   }
+
+   /**
+   * Gives the position of a slot in the index file.
+   * @param i the index of the slot.
+   * @return the position of the slot.
+   **/
+   protected long slotPosition(long i)
+   {
+      return HEADER_SIZE + i * 8;
+   }
+
+   /**
+   * Stores a log entry as the last record of its key. The logs are compacted when the index is too
+   * full or when the log contains too many superseded records.
+   * @param key the key of the log entry.
+   * @param info the log entry.
+   **/
+   public void store(String key, MapCrdtLogEntry info)
+   {
+      byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+      int hash = hash(bytes);
+
+      long previous = this.index.getLong(this.slotPosition(this.findSlot(bytes, hash)));
+      if (previous == 0 && (this.count + 1) * 4 > this.capacity * 3)
+      {
+         this.compact(this.capacity * 2);
+      }
+
+      this.index(this.append(hash, bytes, info));
+      this.writeHeader();
+
+      if (this.garbage > MIN_COMPACTION_SIZE && this.garbage * 2 > this.end)
+      {
+         this.compact(this.capacity);
+      }
+   }
+
+   /**
+   * Makes the file CURRENT point to the current generation, the file is atomically replaced.
+   * @throws IOException if the file cannot be written.
+   **/
+   protected void switchGeneration() throws IOException
+   {
+      if (this.directory == null)
+      {
+         return;
+      }
+
+      Path temporary = this.directory.resolve("CURRENT.tmp");
+      Files.write(temporary, Long.toString(this.generation).getBytes(StandardCharsets.US_ASCII));
+      Files.move(temporary, this.directory.resolve("CURRENT"), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /**
+   * Forces the modifications to the storage device.
+   **/
+   public void sync()
+   {
+      this.log.force();
+      this.index.force();
+      this.checkpoints.force();
+   }
+
+   /**
+   * Writes the counters in the header of the log.
+   **/
+   protected void writeHeader()
+   {
+      this.log.putInt(0, MAGIC);
+      this.log.putInt(4, FORMAT);
+      this.log.putInt(8, this.replicaId);
+      this.log.putLong(16, this.version);
+      this.log.putLong(24, this.end);
+      this.log.putLong(32, this.count);
+      this.log.putLong(40, this.garbage);
+   }
+
+   /**
+   * Iterates over the entries of the logs by walking the slots of the index.
+   **/
+   protected class EntryIterator implements Iterator<Map.Entry<String, MapCrdtLogEntry>>
+   {
+      /**
+      * The index of the next slot to look at.
+      **/
+      protected long next;
+
+      /**
+      * Default constructor.
+      **/
+      public EntryIterator()
+      {
+         this.next = 0;
+         this.skipEmptySlots();
+      }
+
+      /**
+      * Tells if there is a next entry.
+      * @return true if there is a next entry.
+      **/
+      public boolean hasNext()
+      {
+         return this.next < MapCrdtMappedLogs.this.capacity;
+      }
+
+      /**
+      * Gets the next entry.
+      * @return the next entry.
+      **/
+      public Map.Entry<String, MapCrdtLogEntry> next()
+      {
+         if (this.hasNext() == false)
+         {
+            throw new NoSuchElementException();
+         }
+
+         MapCrdtMappedLogs logs = MapCrdtMappedLogs.this;
+         long offset = logs.index.getLong(logs.slotPosition(this.next)) & OFFSET_MASK;
+         this.next++;
+         this.skipEmptySlots();
+
+         String key = logs.readKey(offset);
+         MapCrdtLogEntry info = logs.readEntry(offset);
+
+         return new AbstractMap.SimpleImmutableEntry<String, MapCrdtLogEntry>(key, info);
+      }
+
+      /**
+      * Moves to the next non-empty slot.
+      **/
+      protected void skipEmptySlots()
+      {
+         MapCrdtMappedLogs logs = MapCrdtMappedLogs.this;
+
+         while (this.next < logs.capacity && logs.index.getLong(logs.slotPosition(this.next)) == 0)
+         {
+            this.next++;
+         }
+      }
+   }
+}
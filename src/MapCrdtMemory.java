@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+* Represents a memory made of segments of a fixed size allocated outside of the heap. Segments are
+* allocated the first time they are accessed, zeroed, so the memory can be larger than the maximum
+* size of a buffer. Primitives should be accessed at positions aligned on their size so they never
+* cross two segments, byte arrays can.
+**/
+public class MapCrdtMemory
+{
+   /**
+   * The segments of the memory, null for the segments not yet allocated.
+   **/
+   protected ByteBuffer[] segments;
+
+   /**
+   * The base 2 logarithm of the size of a segment.
+   **/
+   protected int shift;
+
+   /**
+   * Creates an empty memory.
+   * @param segmentSize the size of a segment, a power of two greater than or equal to 8.
+   **/
+   public MapCrdtMemory(int segmentSize)
+   {
+      if (segmentSize < 8 || Integer.bitCount(segmentSize) != 1)
+      {
+         throw new IllegalArgumentException("The segment size should be a power of two.");
+      }
+
+      this.segments = new ByteBuffer[8];
+      this.shift = Integer.numberOfTrailingZeros(segmentSize);
+   }
+
+   /**
+   * Allocates a segment of direct memory, which is released once the memory is not referenced.
+   * @param index the index of the segment.
+   * @return the segment.
+   **/
+   protected ByteBuffer allocate(int index)
+   {
+      return ByteBuffer.allocateDirect(1 << this.shift).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   /**
+   * Releases the segments, the memory should not be used anymore.
+   * @throws IOException if the storage of the segments cannot be released.
+   **/
+   public void close() throws IOException
+   {
+      this.segments = null;
+   }
+
+   /**
+   * Forces the modifications of the segments to their storage device, if they have one.
+   **/
+   public void force()
+   {
+   }
+
+   /**
+   * Reads a byte.
+   * @param position the position of the byte in the memory.
+   * @return the byte.
+   **/
+   public byte get(long position)
+   {
+      return this.segment(position).get(this.offset(position));
+   }
+
+   /**
+   * Reads bytes into an array, the bytes can cross several segments.
+   * @param position the position of the first byte in the memory.
+   * @param bytes the array the bytes are read into.
+   * @param offset the offset in the array of the first byte.
+   * @param length the number of bytes to read.
+   **/
+   public void get(long position, byte[] bytes, int offset, int length)
+   {
+      while (length > 0)
+      {
+         ByteBuffer segment = this.segment(position);
+         int segmentOffset = this.offset(position);
+         int size = Math.min(length, segment.capacity() - segmentOffset);
+
+         segment.get(segmentOffset, bytes, offset, size);
+
+         position += size;
+         offset += size;
+         length -= size;
+      }
+   }
+
+   /**
+   * Reads an int.
+   * @param position the position of the int in the memory, a multiple of 4.
+   * @return the int.
+   **/
+   public int getInt(long position)
+   {
+      return this.segment(position).getInt(this.offset(position));
+   }
+
+   /**
+   * Reads a long.
+   * @param position the position of the long in the memory, a multiple of 8.
+   * @return the long.
+   **/
+   public long getLong(long position)
+   {
+      return this.segment(position).getLong(this.offset(position));
+   }
+
+   /**
+   * Gives the position of a byte in its segment.
+   * @param position the position of the byte in the memory.
+   * @return the position of the byte in its segment.
+   **/
+   protected int offset(long position)
+   {
+      return (int) (position & ((1L << this.shift) - 1));
+   }
+
+   /**
+   * Writes a byte.
+   * @param position the position of the byte in the memory.
+   * @param value the byte.
+   **/
+   public void put(long position, byte value)
+   {
+      this.segment(position).put(this.offset(position), value);
+   }
+
+   /**
+   * Writes bytes from an array, the bytes can cross several segments.
+   * @param position the position of the first byte in the memory.
+   * @param bytes the array containing the bytes.
+   * @param offset the offset in the array of the first byte.
+   * @param length the number of bytes to write.
+   **/
+   public void put(long position, byte[] bytes, int offset, int length)
+   {
+      while (length > 0)
+      {
+         ByteBuffer segment = this.segment(position);
+         int segmentOffset = this.offset(position);
+         int size = Math.min(length, segment.capacity() - segmentOffset);
+
+         segment.put(segmentOffset, bytes, offset, size);
+
+         position += size;
+         offset += size;
+         length -= size;
+      }
+   }
+
+   /**
+   * Writes an int.
+   * @param position the position of the int in the memory, a multiple of 4.
+   * @param value the int.
+   **/
+   public void putInt(long position, int value)
+   {
+      this.segment(position).putInt(this.offset(position), value);
+   }
+
+   /**
+   * Writes a long.
+   * @param position the position of the long in the memory, a multiple of 8.
+   * @param value the long.
+   **/
+   public void putLong(long position, long value)
+   {
+      this.segment(position).putLong(this.offset(position), value);
+   }
+
+   /**
+   * Gets the segment containing a given position, allocating it if needed.
+   * @param position the position in the memory.
+   * @return the segment.
+   **/
+   protected ByteBuffer segment(long position)
+   {
+      int index = (int) (position >>> this.shift);
+
+      if (index >= this.segments.length)
+      {
+         ByteBuffer[] segments = new ByteBuffer[Math.max(index + 1, this.segments.length * 2)];
+         System.arraycopy(this.segments, 0, segments, 0, this.segments.length);
+         this.segments = segments;
+      }
+
+      ByteBuffer segment = this.segments[index];
+      if (segment == null)
+      {
+         segment = this.allocate(index);
+         this.segments[index] = segment;
+      }
+
+      return segment;
+   }
+
+   /**
+   * Gets the size of the memory, the end of the last segment allocated so far.
+   * @return the size in bytes.
+   **/
+   public long size()
+   {
+      for (int i = this.segments.length - 1; i >= 0; i--)
+      {
+         if (this.segments[i] != null)
+         {
+            return (long) (i + 1) << this.shift;
+         }
+      }
+
+      return 0;
+   }
+}
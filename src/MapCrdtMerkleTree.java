@@ -0,0 +1,340 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+* Represents a hash tree over the logs of a replica. Keys are spread in 2^depth buckets by the hash
+* of the key, the hash of a bucket is the XOR of the hashes of its log entries so it is updated in
+* constant time when an entry is replaced, and the hash of an inner node mixes the hashes of its two
+* children. Two replicas whose logs are equal have equal trees; walking down from the root only the
+* nodes whose hashes differ finds the buckets containing different entries.
+* <p>
+* Nodes are numbered as in a binary heap: the root is 1, the children of node n are 2n and 2n + 1,
+* and the buckets are the nodes 2^depth to 2^(depth + 1) - 1. Nodes are updated without locking:
+* replacing an entry updates its bucket then the inner nodes up to the root, so reading a hash
+* costs nothing. Two trees are compared level by level, exchanging the hashes of the children of
+* the nodes which differ only: converged trees only exchange their root hashes, and d differing
+* buckets cost O(d log n) hashes.
+**/
+public class MapCrdtMerkleTree
+{
+   /**
+   * The default depth of the tree, 1024 buckets.
+   **/
+   public static final int DEFAULT_DEPTH = 10;
+
+   /**
+   * The depth of the tree.
+   **/
+   protected int depth;
+
+   /**
+   * The hash of each node, indexed by node, the index 0 is not used.
+   **/
+   protected AtomicLongArray nodes;
+
+   /**
+   * The keys of each bucket.
+   **/
+   protected List<Set<String>> keys;
+
+   /**
+   * Creates an empty tree.
+   * @param depth the depth of the tree, between 1 and 20.
+   **/
+   public MapCrdtMerkleTree(int depth)
+   {
+      if (depth < 1 || depth > 20)
+      {
+         throw new IllegalArgumentException("The depth should be between 1 and 20.");
+      }
+
+      this.depth = depth;
+      this.nodes = new AtomicLongArray(2 << depth);
+      for (int node = (1 << depth) - 1; node >= 1; node--)
+      {
+         this.nodes.set(node, combine(this.nodes.get(2 * node), this.nodes.get(2 * node + 1)));
+      }
+      this.keys = new ArrayList<Set<String>>(1 << depth);
+
+      for (int i = 0; i < (1 << depth); i++)
+      {
+         this.keys.add(ConcurrentHashMap.<String>newKeySet());
+      }
+   }
+
+   /**
+   * Gets the bucket of a key, the same on every replica.
+   * @param key the key.
+   * @return the index of the bucket, between 0 and 2^depth - 1.
+   **/
+   public int bucket(String key)
+   {
+      return (int) (hash(key) >>> (64 - this.depth));
+   }
+
+   /**
+   * Gets the children of nodes, the next level of a comparison.
+   * @param nodes the inner nodes.
+   * @return the children of the nodes, in the order of the nodes.
+   **/
+   public static List<Integer> children(List<Integer> nodes)
+   {
+      List<Integer> children = new ArrayList<Integer>(2 * nodes.size());
+
+      for (int node : nodes)
+      {
+         children.add(2 * node);
+         children.add(2 * node + 1);
+      }
+
+      return children;
+   }
+
+   /**
+   * Computes the hash of an inner node from the hashes of its children.
+   * @param left the hash of the left child.
+   * @param right the hash of the right child.
+   * @return the hash of the node.
+   **/
+   protected static long combine(long left, long right)
+   {
+      return mix(left ^ mix(right + 0x9e3779b97f4a7c15L));
+   }
+
+   /**
+   * Finds the buckets whose hashes differ from the buckets of an other tree of the same depth,
+   * comparing the trees level by level from the root: O(d log n) nodes are compared when d
+   * buckets differ, and only the roots when the trees are equal. An other replica is compared
+   * alike, asking it for getHashes of the nodes given by each level.
+   * @param other the other tree.
+   * @return the indexes of the differing buckets, in increasing order.
+   **/
+   public List<Integer> differences(MapCrdtMerkleTree other)
+   {
+      if (other.depth != this.depth)
+      {
+         throw new IllegalArgumentException("The trees should have the same depth.");
+      }
+
+      List<Integer> nodes = this.differing(Collections.singletonList(1),
+                                           other.getHashes(Collections.singletonList(1)));
+      for (int level = 1; level <= this.depth && nodes.isEmpty() == false; level++)
+      {
+         List<Integer> children = children(nodes);
+         nodes = this.differing(children, other.getHashes(children));
+      }
+
+      List<Integer> differences = new ArrayList<Integer>(nodes.size());
+      for (int node : nodes)
+      {
+         differences.add(node - (1 << this.depth));
+      }
+
+      return differences;
+   }
+
+   /**
+   * Finds the nodes whose hashes differ from the hashes of the same nodes in an other tree.
+   * @param nodes the nodes to compare.
+   * @param otherHashes the hashes of the nodes in the other tree, as returned by getHashes.
+   * @return the differing nodes, in the order of the nodes.
+   **/
+   public List<Integer> differing(List<Integer> nodes, long[] otherHashes)
+   {
+      if (otherHashes.length != nodes.size())
+      {
+         throw new IllegalArgumentException("There should be a hash for each node.");
+      }
+
+      List<Integer> differing = new ArrayList<Integer>();
+
+      for (int i = 0; i < otherHashes.length; i++)
+      {
+         if (this.getHash(nodes.get(i)) != otherHashes[i])
+         {
+            differing.add(nodes.get(i));
+         }
+      }
+
+      return differing;
+   }
+
+   /**
+   * Gets the depth of the tree.
+   * @return the depth.
+   **/
+   public int getDepth()
+   {
+      return this.depth;
+   }
+
+   /**
+   * Gets the hash of a node.
+   * @param node the node, between 1 and 2^(depth + 1) - 1.
+   * @return the hash of the node.
+   **/
+   public long getHash(int node)
+   {
+      return this.nodes.get(node);
+   }
+
+   /**
+   * Gets the hashes of nodes, to be compared with an other tree. Nodes modified meanwhile may be
+   * seen before or after their modification.
+   * @param nodes the nodes.
+   * @return the hashes of the nodes, in the order of the nodes.
+   **/
+   public long[] getHashes(List<Integer> nodes)
+   {
+      long[] hashes = new long[nodes.size()];
+
+      for (int i = 0; i < hashes.length; i++)
+      {
+         hashes[i] = this.nodes.get(nodes.get(i));
+      }
+
+      return hashes;
+   }
+
+   /**
+   * Gets the keys of a bucket, the set should not be modified.
+   * @param bucket the index of the bucket.
+   * @return the keys which have a log entry in the bucket.
+   **/
+   public Set<String> getKeys(int bucket)
+   {
+      return this.keys.get(bucket);
+   }
+
+   /**
+   * Gets the hash of the root, equal on replicas whose logs are equal.
+   * @return the hash of the root.
+   **/
+   public long getRootHash()
+   {
+      return this.nodes.get(1);
+   }
+
+   /**
+   * Computes the 64-bit FNV-1a hash of a string.
+   * @param string the string.
+   * @return the hash.
+   **/
+   protected static long hash(String string)
+   {
+      long hash = 0xcbf29ce484222325L;
+
+      for (int i = 0; i < string.length(); i++)
+      {
+         hash ^= string.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+
+      return mix(hash);
+   }
+
+   /**
+   * Computes the hash of a log entry and its key.
+   * @param key the key of the log entry.
+   * @param info the log entry.
+   * @return the hash.
+   **/
+   protected static long hash(String key, MapCrdtLogEntry info)
+   {
+      long hash = mix(hash(key) ^ info.time);
+      hash = mix(hash ^ (((long) info.replicaId << 1) | (info.isDelete() == true ? 1 : 0)));
+
+      return mix(hash ^ (info.value == null ? 0x5bd1e995L : hash(info.value)));
+   }
+
+   /**
+   * Mixes the bits of a long (finalizer of MurmurHash3).
+   * @param value the long.
+   * @return the mixed long.
+   **/
+   protected static long mix(long value)
+   {
+      value ^= value >>> 33;
+      value *= 0xff51afd7ed558ccdL;
+      value ^= value >>> 33;
+      value *= 0xc4ceb9fe1a85ec53L;
+      value ^= value >>> 33;
+
+      return value;
+   }
+
+   /**
+   * Removes the log entry of a key from the tree, the caller should prevent concurrent updates of
+   * the same key.
+   * @param key the key of the log entry.
+   * @param previous the log entry of the key.
+   **/
+   public void remove(String key, MapCrdtLogEntry previous)
+   {
+      int bucket = this.bucket(key);
+      long change = hash(key, previous);
+
+      this.keys.get(bucket).remove(key);
+      this.updateBucket(bucket, change);
+   }
+
+   /**
+   * Replaces the log entry of a key in the tree, the caller should prevent concurrent updates of
+   * the same key.
+   * @param key the key of the log entry.
+   * @param previous the previous log entry of the key, null if the key had no entry.
+   * @param info the new log entry of the key.
+   **/
+   public void update(String key, MapCrdtLogEntry previous, MapCrdtLogEntry info)
+   {
+      int bucket = this.bucket(key);
+      long change = hash(key, info);
+
+      if (previous == null)
+      {
+         this.keys.get(bucket).add(key);
+      }
+      else
+      {
+         change ^= hash(key, previous);
+      }
+
+      this.updateBucket(bucket, change);
+   }
+
+   /**
+   * Changes the hash of a bucket, then recomputes the inner nodes up to the root. Each node is
+   * replaced only if it has not changed since its children were read, otherwise it is computed
+   * again: a writer of an other bucket sharing the node cannot overwrite it with a stale child.
+   * @param bucket the index of the bucket.
+   * @param change the hash XORed to the hash of the bucket.
+   **/
+   protected void updateBucket(int bucket, long change)
+   {
+      int node = (1 << this.depth) + bucket;
+
+      long hash = this.nodes.get(node);
+      while (this.nodes.compareAndSet(node, hash, hash ^ change) == false)
+      {
+         hash = this.nodes.get(node);
+      }
+
+      for (node >>= 1; node >= 1; node >>= 1)
+      {
+         while (true)
+         {
+            long previous = this.nodes.get(node);
+            long next = combine(this.nodes.get(2 * node), this.nodes.get(2 * node + 1));
+
+            if (this.nodes.compareAndSet(node, previous, next) == true)
+            {
+               break;
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,367 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+* Records the activity of a replica: the latency of its puts, gets, deletes and merges, the time
+* its operations wait for its lock (its monitor, or the stripe of the key for ConcurrentMapCrdt),
+* and how the merged log entries resolved their conflicts. Recording only adds to striped counters,
+* so it does not allocate and threads recording at the same time do not contend; the gauges (size
+* of the logs and number of tombstones) are computed when they are read.
+* <p>
+* The metrics are enabled with MapCrdt.enableMetrics, and can be exported through JMX.
+**/
+public class MapCrdtMetrics implements MapCrdtMetricsMBean
+{
+   /**
+   * The replica whose activity is recorded.
+   **/
+   protected MapCrdt replica;
+
+   /**
+   * The latency of the puts, in nanoseconds.
+   **/
+   protected MapCrdtHistogram putLatency;
+
+   /**
+   * The latency of the gets, in nanoseconds.
+   **/
+   protected MapCrdtHistogram getLatency;
+
+   /**
+   * The latency of the deletes, in nanoseconds.
+   **/
+   protected MapCrdtHistogram deleteLatency;
+
+   /**
+   * The latency of the merges, in nanoseconds.
+   **/
+   protected MapCrdtHistogram mergeLatency;
+
+   /**
+   * The time waited for the lock of the replica, in nanoseconds.
+   **/
+   protected MapCrdtHistogram lockWait;
+
+   /**
+   * The number of log entries compared by the merges.
+   **/
+   protected LongAdder keysScanned;
+
+   /**
+   * The number of merged log entries which replaced the local entry of their key.
+   **/
+   protected LongAdder entriesReplaced;
+
+   /**
+   * The number of merged log entries whose conflict was resolved by the replicas' ids.
+   **/
+   protected LongAdder replicaIdTieBreaks;
+
+   /**
+   * The number of DELETE/PUT conflicts won by the DELETE.
+   **/
+   protected LongAdder deleteWins;
+
+   /**
+   * The number of DELETE/PUT conflicts won by the PUT.
+   **/
+   protected LongAdder putWins;
+
+   /**
+   * The name of the metrics in the platform MBean server, null if they are not registered.
+   **/
+   protected ObjectName objectName;
+
+   /**
+   * Creates the metrics of a replica.
+   * @param replica the replica whose activity is recorded.
+   **/
+   public MapCrdtMetrics(MapCrdt replica)
+   {
+      this.replica = replica;
+      this.putLatency = new MapCrdtHistogram();
+      this.getLatency = new MapCrdtHistogram();
+      this.deleteLatency = new MapCrdtHistogram();
+      this.mergeLatency = new MapCrdtHistogram();
+      this.lockWait = new MapCrdtHistogram();
+      this.keysScanned = new LongAdder();
+      this.entriesReplaced = new LongAdder();
+      this.replicaIdTieBreaks = new LongAdder();
+      this.deleteWins = new LongAdder();
+      this.putWins = new LongAdder();
+   }
+
+   /**
+   * Gets the number of deletes.
+   * @return the number of deletes.
+   **/
+   public long getDeleteCount()
+   {
+      return this.deleteLatency.getCount();
+   }
+
+   /**
+   * Gets the latency of the deletes.
+   * @return the histogram of the latencies in nanoseconds.
+   **/
+   public MapCrdtHistogram getDeleteLatency()
+   {
+      return this.deleteLatency;
+   }
+
+   /**
+   * Gets the 99th percentile of the latency of the deletes.
+   * @return the percentile in nanoseconds.
+   **/
+   public long getDeleteLatencyP99()
+   {
+      return this.deleteLatency.getPercentile(99);
+   }
+
+   /**
+   * Gets the number of conflicts between a DELETE and a PUT met by the merges that the DELETE won.
+   * @return the number of DELETE wins.
+   **/
+   public long getDeleteWins()
+   {
+      return this.deleteWins.sum();
+   }
+
+   /**
+   * Gets the number of merged log entries which replaced the local entry of their key.
+   * @return the number of replaced entries.
+   **/
+   public long getEntriesReplaced()
+   {
+      return this.entriesReplaced.sum();
+   }
+
+   /**
+   * Gets the number of gets.
+   * @return the number of gets.
+   **/
+   public long getGetCount()
+   {
+      return this.getLatency.getCount();
+   }
+
+   /**
+   * Gets the latency of the gets.
+   * @return the histogram of the latencies in nanoseconds.
+   **/
+   public MapCrdtHistogram getGetLatency()
+   {
+      return this.getLatency;
+   }
+
+   /**
+   * Gets the 99th percentile of the latency of the gets.
+   * @return the percentile in nanoseconds.
+   **/
+   public long getGetLatencyP99()
+   {
+      return this.getLatency.getPercentile(99);
+   }
+
+   /**
+   * Gets the number of log entries compared by the merges.
+   * @return the number of scanned keys.
+   **/
+   public long getKeysScanned()
+   {
+      return this.keysScanned.sum();
+   }
+
+   /**
+   * Gets the time waited for the lock of the replica.
+   * @return the histogram of the waits in nanoseconds.
+   **/
+   public MapCrdtHistogram getLockWait()
+   {
+      return this.lockWait;
+   }
+
+   /**
+   * Gets the number of times an operation acquired the lock of the replica.
+   * @return the number of lock acquisitions.
+   **/
+   public long getLockWaitCount()
+   {
+      return this.lockWait.getCount();
+   }
+
+   /**
+   * Gets the 99th percentile of the time waited for the lock of the replica.
+   * @return the percentile in nanoseconds.
+   **/
+   public long getLockWaitP99()
+   {
+      return this.lockWait.getPercentile(99);
+   }
+
+   /**
+   * Gets the total time waited for the lock of the replica.
+   * @return the time in nanoseconds.
+   **/
+   public long getLockWaitTime()
+   {
+      return this.lockWait.getSum();
+   }
+
+   /**
+   * Gets the number of log entries of the replica, tombstones included.
+   * @return the size of the logs.
+   **/
+   public int getLogSize()
+   {
+      return this.replica.getLogSize();
+   }
+
+   /**
+   * Gets the number of merges, of replicas, snapshots or deltas.
+   * @return the number of merges.
+   **/
+   public long getMergeCount()
+   {
+      return this.mergeLatency.getCount();
+   }
+
+   /**
+   * Gets the latency of the merges.
+   * @return the histogram of the latencies in nanoseconds.
+   **/
+   public MapCrdtHistogram getMergeLatency()
+   {
+      return this.mergeLatency;
+   }
+
+   /**
+   * Gets the 99th percentile of the latency of the merges.
+   * @return the percentile in nanoseconds.
+   **/
+   public long getMergeLatencyP99()
+   {
+      return this.mergeLatency.getPercentile(99);
+   }
+
+   /**
+   * Gets the number of puts.
+   * @return the number of puts.
+   **/
+   public long getPutCount()
+   {
+      return this.putLatency.getCount();
+   }
+
+   /**
+   * Gets the latency of the puts.
+   * @return the histogram of the latencies in nanoseconds.
+   **/
+   public MapCrdtHistogram getPutLatency()
+   {
+      return this.putLatency;
+   }
+
+   /**
+   * Gets the 99th percentile of the latency of the puts.
+   * @return the percentile in nanoseconds.
+   **/
+   public long getPutLatencyP99()
+   {
+      return this.putLatency.getPercentile(99);
+   }
+
+   /**
+   * Gets the number of conflicts between a DELETE and a PUT met by the merges that the PUT won.
+   * @return the number of PUT wins.
+   **/
+   public long getPutWins()
+   {
+      return this.putWins.sum();
+   }
+
+   /**
+   * Gets the number of merged log entries whose timestamp was equal to the local one, the conflict
+   * being resolved by the replicas' ids.
+   * @return the number of tie-breaks.
+   **/
+   public long getReplicaIdTieBreaks()
+   {
+      return this.replicaIdTieBreaks.sum();
+   }
+
+   /**
+   * Gets the number of tombstones in the logs of the replica, counted by walking the logs.
+   * @return the number of tombstones.
+   **/
+   public int getTombstoneCount()
+   {
+      return this.replica.getTombstoneCount();
+   }
+
+   /**
+   * Records the merge of a log entry of an other replica.
+   * @param localInfo the local log entry of the key, null if the key had no entry.
+   * @param otherInfo the log entry of the other replica.
+   * @param replaced true if the entry of the other replica replaced the local one.
+   **/
+   public void mergedEntry(MapCrdtLogEntry localInfo, MapCrdtLogEntry otherInfo, boolean replaced)
+   {
+      this.keysScanned.increment();
+
+      if (replaced == true)
+      {
+         this.entriesReplaced.increment();
+      }
+
+      if (localInfo == null)
+      {
+         return;
+      }
+
+      if (localInfo.time == otherInfo.time && localInfo.replicaId != otherInfo.replicaId)
+      {
+         this.replicaIdTieBreaks.increment();
+      }
+
+      if (localInfo.type != otherInfo.type)
+      {
+         MapCrdtLogEntry winner = replaced == true ? otherInfo : localInfo;
+         (winner.isDelete() == true ? this.deleteWins : this.putWins).increment();
+      }
+   }
+
+   /**
+   * Registers the metrics in the platform MBean server, under the name
+   * MapCrdt:type=Replica,id=&#60;replicaId&#62;.
+   * @throws JMException if the metrics cannot be registered.
+   **/
+   public synchronized void register() throws JMException
+   {
+      if (this.objectName != null)
+      {
+         return;
+      }
+
+      ObjectName name = new ObjectName("MapCrdt:type=Replica,id=" + this.replica.getReplicaId());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      this.objectName = name;
+   }
+
+   /**
+   * Unregisters the metrics from the platform MBean server.
+   * @throws JMException if the metrics cannot be unregistered.
+   **/
+   public synchronized void unregister() throws JMException
+   {
+      if (this.objectName == null)
+      {
+         return;
+      }
+
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+      this.objectName = null;
+   }
+}
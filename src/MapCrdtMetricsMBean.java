@@ -0,0 +1,115 @@
+/**
+* Represents the attributes of the metrics of a replica exported through JMX. Latencies and lock
+* waits are in nanoseconds, percentiles are upper bounds of powers of two.
+**/
+public interface MapCrdtMetricsMBean
+{
+   /**
+   * Gets the number of deletes.
+   * @return the number of deletes.
+   **/
+   long getDeleteCount();
+
+   /**
+   * Gets the 99th percentile of the latency of the deletes.
+   * @return the percentile in nanoseconds.
+   **/
+   long getDeleteLatencyP99();
+
+   /**
+   * Gets the number of conflicts between a DELETE and a PUT met by the merges that the DELETE won.
+   * @return the number of DELETE wins.
+   **/
+   long getDeleteWins();
+
+   /**
+   * Gets the number of merged log entries which replaced the local entry of their key.
+   * @return the number of replaced entries.
+   **/
+   long getEntriesReplaced();
+
+   /**
+   * Gets the number of gets.
+   * @return the number of gets.
+   **/
+   long getGetCount();
+
+   /**
+   * Gets the 99th percentile of the latency of the gets.
+   * @return the percentile in nanoseconds.
+   **/
+   long getGetLatencyP99();
+
+   /**
+   * Gets the number of log entries compared by the merges.
+   * @return the number of scanned keys.
+   **/
+   long getKeysScanned();
+
+   /**
+   * Gets the number of times an operation acquired the lock of the replica.
+   * @return the number of lock acquisitions.
+   **/
+   long getLockWaitCount();
+
+   /**
+   * Gets the 99th percentile of the time waited for the lock of the replica.
+   * @return the percentile in nanoseconds.
+   **/
+   long getLockWaitP99();
+
+   /**
+   * Gets the total time waited for the lock of the replica.
+   * @return the time in nanoseconds.
+   **/
+   long getLockWaitTime();
+
+   /**
+   * Gets the number of log entries of the replica, tombstones included.
+   * @return the size of the logs.
+   **/
+   int getLogSize();
+
+   /**
+   * Gets the number of merges, of replicas, snapshots or deltas.
+   * @return the number of merges.
+   **/
+   long getMergeCount();
+
+   /**
+   * Gets the 99th percentile of the latency of the merges.
+   * @return the percentile in nanoseconds.
+   **/
+   long getMergeLatencyP99();
+
+   /**
+   * Gets the number of puts.
+   * @return the number of puts.
+   **/
+   long getPutCount();
+
+   /**
+   * Gets the 99th percentile of the latency of the puts.
+   * @return the percentile in nanoseconds.
+   **/
+   long getPutLatencyP99();
+
+   /**
+   * Gets the number of conflicts between a DELETE and a PUT met by the merges that the PUT won.
+   * @return the number of PUT wins.
+   **/
+   long getPutWins();
+
+   /**
+   * Gets the number of merged log entries whose timestamp was equal to the local one, the conflict
+   * being resolved by the replicas' ids.
+   * @return the number of tie-breaks.
+   **/
+   long getReplicaIdTieBreaks();
+
+   /**
+   * Gets the number of tombstones in the logs of the replica.
+   * @return the number of tombstones.
+   **/
+   int getTombstoneCount();
+}
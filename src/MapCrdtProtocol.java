@@ -0,0 +1,222 @@
+import java.nio.ByteBuffer;
+
+/**
+* Defines the binary protocol between a MapCrdtServer and its clients. Requests and responses are
+* frames prefixed with their length:
+* <pre>
+* request: length (4 bytes) | requestId (4 bytes) | opcode (1 byte) | body
+* response: length (4 bytes) | requestId (4 bytes) | status (1 byte) | body
+* </pre>
+* The length counts the bytes following it. A client can send many requests without waiting for
+* their responses (pipelining), the server answers the requests of a connection in order and the
+* response of a request carries its id. Bodies use the encoding of MapCrdtCodec: integers are
+* unsigned varints, keys are UTF-8 strings prefixed with their length, values are prefixed with
+* their length plus one so that a null value is encoded as 0, and deltas are encoded deltas.
+* <pre>
+* GET: key -&#62; value
+* PUT: key | value -&#62;
+* DELETE: key -&#62;
+* GET_ALL: count | key* -&#62; count | (key | value)*
+* PUT_ALL: count | (key | value)* -&#62;
+* DELETE_ALL: count | key* -&#62;
+* MERGE_DELTA: delta -&#62;
+* DELTA: version -&#62; delta
+* DELTA_AFTER: versionVector -&#62; delta
+* </pre>
+* The body of an ERROR response is the message of the failure, as a key.
+**/
+public class MapCrdtProtocol
+{
+   /**
+   * The number of bytes of the header of a frame: its length, the request's id and the opcode or
+   * the status.
+   **/
+   public static final int HEADER_SIZE = 9;
+
+   /**
+   * The default maximum number of bytes following the length of a frame.
+   **/
+   public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+   /**
+   * Gets the value of a key.
+   **/
+   public static final byte GET = 1;
+
+   /**
+   * Puts a key value pair.
+   **/
+   public static final byte PUT = 2;
+
+   /**
+   * Deletes a key.
+   **/
+   public static final byte DELETE = 3;
+
+   /**
+   * Gets the values of keys.
+   **/
+   public static final byte GET_ALL = 4;
+
+   /**
+   * Puts key value pairs.
+   **/
+   public static final byte PUT_ALL = 5;
+
+   /**
+   * Deletes keys.
+   **/
+   public static final byte DELETE_ALL = 6;
+
+   /**
+   * Merges a delta produced by an other replica.
+   **/
+   public static final byte MERGE_DELTA = 7;
+
+   /**
+   * Gets the delta of the replica since a version.
+   **/
+   public static final byte DELTA = 8;
+
+   /**
+   * Gets the delta of the replica after a version vector.
+   **/
+   public static final byte DELTA_AFTER = 9;
+
+   /**
+   * The status of a successful request.
+   **/
+   public static final byte OK = 0;
+
+   /**
+   * The status of a failed request.
+   **/
+   public static final byte ERROR = 1;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtProtocol()
+   {
+   }
+
+   /**
+   * Makes sure a buffer in write mode has room for a given number of bytes, growing it if needed.
+   * @param buffer the buffer, in write mode.
+   * @param size the number of bytes that should fit after the position of the buffer.
+   * @return the buffer, or a larger one containing the same bytes.
+   **/
+   public static ByteBuffer ensureRemaining(ByteBuffer buffer, int size)
+   {
+      if (buffer.remaining() >= size)
+      {
+         return buffer;
+      }
+
+      long capacity = Math.max(2L * buffer.capacity(), (long) buffer.position() + size);
+      ByteBuffer larger = ByteBuffer.allocate((int) Math.min(capacity, Integer.MAX_VALUE));
+      buffer.flip();
+      larger.put(buffer);
+
+      return larger;
+   }
+
+   /**
+   * Decodes a key at the position of a buffer.
+   * @param buffer the buffer containing the encoded key.
+   * @return the decoded key.
+   **/
+   public static String getKey(ByteBuffer buffer)
+   {
+      return MapCrdtCodec.getString(buffer, MapCrdtCodec.getVarInt(buffer));
+   }
+
+   /**
+   * Decodes a value, which may be null, at the position of a buffer.
+   * @param buffer the buffer containing the encoded value.
+   * @return the decoded value.
+   **/
+   public static String getValue(ByteBuffer buffer)
+   {
+      int length = MapCrdtCodec.getVarInt(buffer);
+
+      if (length == 0)
+      {
+         return null;
+      }
+
+      return MapCrdtCodec.getString(buffer, length - 1);
+   }
+
+   /**
+   * Computes the number of bytes of an encoded key.
+   * @param key the key.
+   * @return the size of the encoded key in bytes.
+   **/
+   public static int keySize(String key)
+   {
+      int length = MapCrdtCodec.utf8Length(key);
+
+      return MapCrdtCodec.varLongSize(length) + length;
+   }
+
+   /**
+   * Encodes the header of a frame at the position of a buffer.
+   * @param buffer the buffer the header is written to.
+   * @param requestId the id of the request.
+   * @param code the opcode of a request or the status of a response.
+   * @param bodySize the number of bytes of the body following the header.
+   **/
+   public static void putHeader(ByteBuffer buffer, int requestId, byte code, int bodySize)
+   {
+      buffer.putInt(HEADER_SIZE - 4 + bodySize);
+      buffer.putInt(requestId);
+      buffer.put(code);
+   }
+
+   /**
+   * Encodes a key at the position of a buffer.
+   * @param buffer the buffer the key is written to.
+   * @param key the key, not null.
+   **/
+   public static void putKey(ByteBuffer buffer, String key)
+   {
+      MapCrdtCodec.putString(buffer, key, MapCrdtCodec.utf8Length(key));
+   }
+
+   /**
+   * Encodes a value, which may be null, at the position of a buffer.
+   * @param buffer the buffer the value is written to.
+   * @param value the value.
+   **/
+   public static void putValue(ByteBuffer buffer, String value)
+   {
+      if (value == null)
+      {
+         MapCrdtCodec.putVarLong(buffer, 0);
+      }
+      else
+      {
+         int length = MapCrdtCodec.utf8Length(value);
+         MapCrdtCodec.putVarLong(buffer, (long) length + 1);
+         MapCrdtCodec.putUtf8(buffer, value);
+      }
+   }
+
+   /**
+   * Computes the number of bytes of an encoded value.
+   * @param value the value, which may be null.
+   * @return the size of the encoded value in bytes.
+   **/
+   public static int valueSize(String value)
+   {
+      if (value == null)
+      {
+         return 1;
+      }
+
+      int length = MapCrdtCodec.utf8Length(value);
+
+      return MapCrdtCodec.varLongSize((long) length + 1) + length;
+   }
+}
@@ -0,0 +1,153 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+* Represents a bounded queue written by many threads and read by a single one, stored in a ring of
+* slots. A producer claims the next position with a compare-and-set, writes its element in the slot
+* and publishes it by setting the sequence of the slot; the consumer takes the published elements
+* in order and frees their slots by advancing their sequences by one turn of the ring. Neither side
+* takes a lock, and an offer to a full ring fails instead of waiting.
+* @param <E> the type of the elements.
+**/
+public class MapCrdtRingBuffer<E>
+{
+   /**
+   * The elements, indexed by position modulo the capacity.
+   **/
+   protected AtomicReferenceArray<E> slots;
+
+   /**
+   * The sequence of each slot: its position when the slot is free for it, its position plus one
+   * once its element is published.
+   **/
+   protected AtomicLongArray sequences;
+
+   /**
+   * The mask giving the slot of a position.
+   **/
+   protected int mask;
+
+   /**
+   * The next position claimed by a producer.
+   **/
+   protected AtomicLong tail;
+
+   /**
+   * The next position read by the consumer, only accessed by the consumer.
+   **/
+   protected long head;
+
+   /**
+   * Creates an empty ring.
+   * @param capacity the number of slots, rounded up to a power of two.
+   **/
+   public MapCrdtRingBuffer(int capacity)
+   {
+      if (capacity < 1)
+      {
+         throw new IllegalArgumentException("The capacity should be positive.");
+      }
+
+      int size = Integer.highestOneBit(capacity);
+      if (size < capacity)
+      {
+         size <<= 1;
+      }
+
+      this.slots = new AtomicReferenceArray<E>(size);
+      this.sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++)
+      {
+         this.sequences.set(i, i);
+      }
+      this.mask = size - 1;
+      this.tail = new AtomicLong();
+   }
+
+   /**
+   * Takes the published elements in order, the caller should be the only consumer.
+   * @param batch the list the elements are added to.
+   * @param max the maximum number of elements taken.
+   * @return the number of elements taken.
+   **/
+   public int drain(List<E> batch, int max)
+   {
+      int count = 0;
+
+      while (count < max)
+      {
+         int index = (int) (this.head & this.mask);
+         if (this.sequences.get(index) != this.head + 1)
+         {
+            break;
+         }
+
+         batch.add(this.slots.get(index));
+         this.slots.lazySet(index, null);
+         this.sequences.set(index, this.head + this.slots.length());
+         this.head++;
+         count++;
+      }
+
+      return count;
+   }
+
+   /**
+   * Gets the number of slots.
+   * @return the capacity, a power of two.
+   **/
+   public int getCapacity()
+   {
+      return this.slots.length();
+   }
+
+   /**
+   * Tells if the ring has no published element, the caller should be the consumer.
+   * @return true if the next element is not published.
+   **/
+   public boolean isEmpty()
+   {
+      return this.sequences.get((int) (this.head & this.mask)) != this.head + 1;
+   }
+
+   /**
+   * Adds an element at the end of the ring, without waiting.
+   * @param element the element.
+   * @return true if the element has been added, false if the ring is full.
+   **/
+   public boolean offer(E element)
+   {
+      long position = this.tail.get();
+
+      while (true)
+      {
+         long sequence = this.sequences.get((int) (position & this.mask));
+
+         if (sequence == position)
+         {
+            if (this.tail.compareAndSet(position, position + 1) == true)
+            {
+               break;
+            }
+            position = this.tail.get();
+         }
+         else if (sequence < position)
+         {
+            // The slot still holds the element of the previous turn.
+            return false;
+         }
+         else
+         {
+            position = this.tail.get();
+         }
+      }
+
+      int index = (int) (position & this.mask);
+      this.slots.lazySet(index, element);
+      this.sequences.set(index, position + 1);
+
+      return true;
+   }
+}
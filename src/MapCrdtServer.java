@@ -0,0 +1,800 @@
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+* Serves a replica over TCP with the protocol of MapCrdtProtocol. A single thread multiplexes the
+* connections with a selector and hands the requests read at once from a connection to a pool of
+* workers, which execute them in order and give their responses back to be written together, so
+* pipelined requests cost a single read and a single write. A connection is not read while its
+* requests are executed or its responses cannot be written.
+* <p>
+* A replica whose operations block (such as DurableMapCrdt, waiting for its write-ahead log) only
+* delays the connection whose request blocks. Consecutive puts read at once from a connection are
+* executed as a single putAll, so a durable replica makes them durable together.
+**/
+public class MapCrdtServer implements AutoCloseable
+{
+   /**
+   * The initial size of the buffers of a connection.
+   **/
+   public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+   /**
+   * The default number of workers executing the requests.
+   **/
+   public static final int DEFAULT_WORKERS = 8;
+
+   /**
+   * The replica served.
+   **/
+   protected MapCrdt replica;
+
+   /**
+   * The selector multiplexing the connections.
+   **/
+   protected Selector selector;
+
+   /**
+   * The channel accepting the connections.
+   **/
+   protected ServerSocketChannel serverChannel;
+
+   /**
+   * The maximum number of bytes following the length of a request.
+   **/
+   protected int maxFrameSize;
+
+   /**
+   * The workers executing the requests.
+   **/
+   protected ExecutorService workers;
+
+   /**
+   * The connections whose requests have been executed, their responses waiting to be written by
+   * the thread of the server.
+   **/
+   protected Queue<SelectionKey> executed;
+
+   /**
+   * The thread of the server, null until it is started.
+   **/
+   protected Thread thread;
+
+   /**
+   * Tells if the server has been closed.
+   **/
+   protected volatile boolean closed;
+
+   /**
+   * Creates a server listening on a local port of the loopback interface.
+   * @param replica the replica served.
+   * @param port the port, 0 for a port chosen by the system.
+   * @throws IOException if the port cannot be bound.
+   **/
+   public MapCrdtServer(MapCrdt replica, int port) throws IOException
+   {
+      this(replica, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+           MapCrdtProtocol.DEFAULT_MAX_FRAME_SIZE);
+   }
+
+   /**
+   * Creates a server listening on a given address, with the default number of workers.
+   * @param replica the replica served.
+   * @param address the address the server listens on.
+   * @param maxFrameSize the maximum number of bytes following the length of a request or a
+   * response, the connections sending larger requests are closed and the larger responses are
+   * replaced by an error.
+   * @throws IOException if the address cannot be bound.
+   **/
+   public MapCrdtServer(MapCrdt replica, InetSocketAddress address, int maxFrameSize)
+      throws IOException
+   {
+      this(replica, address, maxFrameSize, DEFAULT_WORKERS);
+   }
+
+   /**
+   * Creates a server listening on a given address.
+   * @param replica the replica served.
+   * @param address the address the server listens on.
+   * @param maxFrameSize the maximum number of bytes following the length of a request or a
+   * response, the connections sending larger requests are closed and the larger responses are
+   * replaced by an error.
+   * @param nWorkers the number of workers executing the requests, the number of connections whose
+   * requests can block at the same time.
+   * @throws IOException if the address cannot be bound.
+   **/
+   public MapCrdtServer(MapCrdt replica, InetSocketAddress address, int maxFrameSize,
+                        int nWorkers) throws IOException
+   {
+      if (nWorkers < 1)
+      {
+         throw new IllegalArgumentException("The server needs at least one worker.");
+      }
+
+      this.replica = replica;
+      this.maxFrameSize = maxFrameSize;
+      this.executed = new ConcurrentLinkedQueue<SelectionKey>();
+      this.workers = Executors.newFixedThreadPool(nWorkers, new ThreadFactory()
+      {
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "map-crdt-server-worker");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      this.selector = Selector.open();
+      this.serverChannel = ServerSocketChannel.open();
+      this.serverChannel.bind(address);
+      this.serverChannel.configureBlocking(false);
+      this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+   }
+
+   /**
+   * Starts a server on a port of the loopback interface, serving a new ConcurrentMapCrdt with a
+   * given replica id, and prints its port. The replicas of different processes exchanging deltas
+   * should be given different ids.
+   * @param args the port, 0 for a port chosen by the system, and the unique id of the replica.
+   * @throws Exception if the server cannot be started.
+   **/
+   public static void main(String args[]) throws Exception
+   {
+      if (args.length < 2)
+      {
+         System.err.println("Usage: MapCrdtServer <port> <replica id>");
+         System.exit(1);
+      }
+
+      int port = Integer.parseInt(args[0]);
+      int replicaId = Integer.parseInt(args[1]);
+      MapCrdt replica = new ConcurrentMapCrdt(replicaId, ConcurrentMapCrdt.DEFAULT_STRIPES,
+                                              new MapCrdtHybridClock(), new MapCrdtHashStorage());
+      MapCrdtServer server = new MapCrdtServer(replica, port);
+      server.start();
+
+      System.out.println("Listening on port " + server.getPort());
+      System.out.flush();
+      server.thread.join();
+   }
+
+   /**
+   * Accepts a pending connection.
+   * @throws IOException if the connection cannot be configured.
+   **/
+   protected void accept() throws IOException
+   {
+      SocketChannel channel = this.serverChannel.accept();
+
+      if (channel == null)
+      {
+         return;
+      }
+
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      channel.register(this.selector, SelectionKey.OP_READ, new Connection());
+   }
+
+   /**
+   * Checks that the body of a response fits in a frame.
+   * @param bodySize the number of bytes of the body of the response.
+   * @return the number of bytes of the body.
+   * @throws IllegalArgumentException if the response does not fit in a frame.
+   **/
+   protected int checkSize(long bodySize)
+   {
+      if (bodySize > this.maxFrameSize - (MapCrdtProtocol.HEADER_SIZE - 4))
+      {
+         throw new IllegalArgumentException("Response too large: " + bodySize + " bytes.");
+      }
+
+      return (int) bodySize;
+   }
+
+   /**
+   * Stops the server and closes its connections, the replica is not closed.
+   * @throws IOException if the channels cannot be closed.
+   **/
+   public void close() throws IOException
+   {
+      this.closed = true;
+      this.selector.wakeup();
+
+      if (this.thread != null && this.thread != Thread.currentThread())
+      {
+         try
+         {
+            this.thread.join();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      this.workers.shutdown();
+      for (SelectionKey key : this.selector.keys())
+      {
+         key.channel().close();
+      }
+      this.selector.close();
+   }
+
+   /**
+   * Hands the complete requests read from a connection to a worker, unless its previous requests
+   * are still executed. The incomplete last request is kept in the input.
+   * @param key the selection key of the connection.
+   * @throws IOException if a request has an invalid length.
+   **/
+   protected void dispatch(SelectionKey key) throws IOException
+   {
+      final Connection connection = (Connection) key.attachment();
+
+      if (connection.busy == true)
+      {
+         return;
+      }
+
+      final ByteBuffer requests = this.process(connection);
+      if (requests == null)
+      {
+         return;
+      }
+
+      final SelectionKey executedKey = key;
+      connection.busy = true;
+      this.workers.execute(new Runnable()
+      {
+         public void run()
+         {
+            MapCrdtServer.this.executeAll(connection, requests);
+            MapCrdtServer.this.executed.add(executedKey);
+            MapCrdtServer.this.selector.wakeup();
+         }
+      });
+   }
+
+   /**
+   * Appends the error response of a request to the responses of a connection.
+   * @param connection the connection the request was read from.
+   * @param requestId the id of the request.
+   * @param failure the failure of the request.
+   **/
+   protected void error(Connection connection, int requestId, Exception failure)
+   {
+      String message = failure.toString();
+      connection.responses = MapCrdtProtocol.ensureRemaining(connection.responses,
+                                                             MapCrdtProtocol.HEADER_SIZE +
+                                                             MapCrdtProtocol.keySize(message));
+      MapCrdtProtocol.putHeader(connection.responses, requestId, MapCrdtProtocol.ERROR,
+                                MapCrdtProtocol.keySize(message));
+      MapCrdtProtocol.putKey(connection.responses, message);
+   }
+
+   /**
+   * Executes a request and appends its response to the responses of the connection.
+   * @param connection the connection the request was read from.
+   * @param requestId the id of the request.
+   * @param opcode the opcode of the request.
+   * @param body the body of the request.
+   **/
+   protected void execute(Connection connection, int requestId, byte opcode, ByteBuffer body)
+   {
+      try
+      {
+         switch (opcode)
+         {
+            case MapCrdtProtocol.GET:
+               String value = this.replica.get(MapCrdtProtocol.getKey(body));
+               this.reserve(connection, requestId, MapCrdtProtocol.valueSize(value));
+               MapCrdtProtocol.putValue(connection.responses, value);
+               break;
+
+            case MapCrdtProtocol.PUT:
+               String key = MapCrdtProtocol.getKey(body);
+               this.replica.put(key, MapCrdtProtocol.getValue(body));
+               this.reserve(connection, requestId, 0);
+               break;
+
+            case MapCrdtProtocol.DELETE:
+               this.replica.delete(MapCrdtProtocol.getKey(body));
+               this.reserve(connection, requestId, 0);
+               break;
+
+            case MapCrdtProtocol.GET_ALL:
+               this.getAll(connection, requestId, body);
+               break;
+
+            case MapCrdtProtocol.PUT_ALL:
+               Map<String, String> entries = new HashMap<String, String>();
+               for (long count = MapCrdtCodec.getVarLong(body); count > 0; count--)
+               {
+                  String entryKey = MapCrdtProtocol.getKey(body);
+                  entries.put(entryKey, MapCrdtProtocol.getValue(body));
+               }
+               this.replica.putAll(entries);
+               this.reserve(connection, requestId, 0);
+               break;
+
+            case MapCrdtProtocol.DELETE_ALL:
+               List<String> keys = new ArrayList<String>();
+               for (long count = MapCrdtCodec.getVarLong(body); count > 0; count--)
+               {
+                  keys.add(MapCrdtProtocol.getKey(body));
+               }
+               this.replica.deleteAll(keys);
+               this.reserve(connection, requestId, 0);
+               break;
+
+            case MapCrdtProtocol.MERGE_DELTA:
+               this.replica.mergeDelta(MapCrdtCodec.decode(body));
+               this.reserve(connection, requestId, 0);
+               break;
+
+            case MapCrdtProtocol.DELTA:
+               MapCrdtDelta delta = this.replica.delta(MapCrdtCodec.getVarLong(body));
+               this.reserve(connection, requestId, this.checkSize(MapCrdtCodec.encodedSize(delta)));
+               MapCrdtCodec.encode(delta, connection.responses);
+               break;
+
+            case MapCrdtProtocol.DELTA_AFTER:
+               MapCrdtVersionVector since = MapCrdtCodec.getVersionVector(body);
+               if (since == null)
+               {
+                  throw new StreamCorruptedException("Missing version vector.");
+               }
+               MapCrdtDelta missing = this.replica.delta(since);
+               this.reserve(connection, requestId,
+                            this.checkSize(MapCrdtCodec.encodedSize(missing)));
+               MapCrdtCodec.encode(missing, connection.responses);
+               break;
+
+            default:
+               throw new StreamCorruptedException("Unknown opcode: " + opcode + ".");
+         }
+      }
+      catch (IOException | RuntimeException e)
+      {
+         // The response is only reserved once the request has been executed.
+         this.error(connection, requestId, e);
+      }
+   }
+
+   /**
+   * Executes the requests read at once from a connection, in order, and appends their responses
+   * to the responses of the connection. Consecutive puts are executed as a single putAll.
+   * @param connection the connection the requests were read from.
+   * @param requests the complete requests.
+   **/
+   protected void executeAll(Connection connection, ByteBuffer requests)
+   {
+      List<Integer> putIds = new ArrayList<Integer>();
+      Map<String, String> entries = new HashMap<String, String>();
+
+      while (requests.hasRemaining() == true)
+      {
+         int start = requests.position();
+         int length = requests.getInt(start);
+         int requestId = requests.getInt(start + 4);
+         byte opcode = requests.get(start + 8);
+
+         ByteBuffer body = requests.duplicate();
+         body.limit(start + 4 + length);
+         body.position(start + MapCrdtProtocol.HEADER_SIZE);
+         requests.position(start + 4 + length);
+
+         if (opcode == MapCrdtProtocol.PUT)
+         {
+            try
+            {
+               String key = MapCrdtProtocol.getKey(body);
+               String value = MapCrdtProtocol.getValue(body);
+               entries.put(key, value);
+               putIds.add(requestId);
+               continue;
+            }
+            catch (RuntimeException e)
+            {
+               this.executePuts(connection, putIds, entries);
+               this.error(connection, requestId, e);
+               continue;
+            }
+         }
+
+         this.executePuts(connection, putIds, entries);
+         this.execute(connection, requestId, opcode, body);
+      }
+
+      this.executePuts(connection, putIds, entries);
+   }
+
+   /**
+   * Executes consecutive put requests as a single putAll and appends their responses to the
+   * responses of the connection. A key put twice takes the value of its last request.
+   * @param connection the connection the requests were read from.
+   * @param requestIds the ids of the requests, cleared once executed.
+   * @param entries the pairs put by the requests, cleared once executed.
+   **/
+   protected void executePuts(Connection connection, List<Integer> requestIds,
+                              Map<String, String> entries)
+   {
+      if (requestIds.isEmpty() == true)
+      {
+         return;
+      }
+
+      try
+      {
+         if (entries.size() == 1)
+         {
+            Map.Entry<String, String> entry = entries.entrySet().iterator().next();
+            this.replica.put(entry.getKey(), entry.getValue());
+         }
+         else
+         {
+            this.replica.putAll(entries);
+         }
+
+         for (int requestId : requestIds)
+         {
+            this.reserve(connection, requestId, 0);
+         }
+      }
+      catch (RuntimeException e)
+      {
+         for (int requestId : requestIds)
+         {
+            this.error(connection, requestId, e);
+         }
+      }
+
+      requestIds.clear();
+      entries.clear();
+   }
+
+   /**
+   * Executes a GET_ALL request, holding the monitor of the replica once.
+   * @param connection the connection the request was read from.
+   * @param requestId the id of the request.
+   * @param body the body of the request.
+   **/
+   protected void getAll(Connection connection, int requestId, ByteBuffer body)
+   {
+      List<String> keys = new ArrayList<String>();
+      for (long count = MapCrdtCodec.getVarLong(body); count > 0; count--)
+      {
+         keys.add(MapCrdtProtocol.getKey(body));
+      }
+
+      Map<String, String> values = this.replica.getAll(keys);
+      long size = MapCrdtCodec.varLongSize(values.size());
+      for (Map.Entry<String, String> entry : values.entrySet())
+      {
+         size += MapCrdtProtocol.keySize(entry.getKey());
+         size += MapCrdtProtocol.valueSize(entry.getValue());
+      }
+
+      this.reserve(connection, requestId, this.checkSize(size));
+      MapCrdtCodec.putVarLong(connection.responses, values.size());
+      for (Map.Entry<String, String> entry : values.entrySet())
+      {
+         MapCrdtProtocol.putKey(connection.responses, entry.getKey());
+         MapCrdtProtocol.putValue(connection.responses, entry.getValue());
+      }
+   }
+
+   /**
+   * Gets the port the server listens on.
+   * @return the local port.
+   * @throws IOException if the channel is closed.
+   **/
+   public int getPort() throws IOException
+   {
+      return ((InetSocketAddress) this.serverChannel.getLocalAddress()).getPort();
+   }
+
+   /**
+   * Takes the complete requests read from a connection, the incomplete last one is kept in the
+   * input. An input grown for a large request gets back to its initial size once the request has
+   * been taken.
+   * @param connection the connection.
+   * @return the complete requests, null if there is none.
+   * @throws IOException if a request has an invalid length.
+   **/
+   protected ByteBuffer process(Connection connection) throws IOException
+   {
+      ByteBuffer input = connection.input;
+      input.flip();
+
+      int end = input.position();
+      int incomplete = 0;
+      while (input.limit() - end >= 4)
+      {
+         int length = input.getInt(end);
+
+         if (length < MapCrdtProtocol.HEADER_SIZE - 4 || length > this.maxFrameSize)
+         {
+            throw new StreamCorruptedException("Invalid frame length: " + length + ".");
+         }
+
+         if (input.limit() - end < 4 + length)
+         {
+            incomplete = 4 + length;
+            break;
+         }
+
+         end += 4 + length;
+      }
+
+      ByteBuffer requests = null;
+      if (end > input.position())
+      {
+         ByteBuffer complete = input.duplicate();
+         complete.limit(end);
+         requests = ByteBuffer.allocate(end - input.position());
+         requests.put(complete);
+         requests.flip();
+         input.position(end);
+      }
+
+      if (incomplete > input.capacity())
+      {
+         connection.input = ByteBuffer.allocate(incomplete);
+         connection.input.put(input);
+      }
+      else if (input.capacity() > DEFAULT_BUFFER_SIZE && incomplete <= DEFAULT_BUFFER_SIZE &&
+               input.remaining() <= DEFAULT_BUFFER_SIZE)
+      {
+         connection.input = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+         connection.input.put(input);
+      }
+      else
+      {
+         input.compact();
+      }
+
+      return requests;
+   }
+
+   /**
+   * Reads the requests available on a connection, executes them and writes their responses.
+   * @param key the selection key of the connection.
+   * @throws IOException if the connection fails or sends an invalid request.
+   **/
+   protected void read(SelectionKey key) throws IOException
+   {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection connection = (Connection) key.attachment();
+
+      if (channel.read(connection.input) < 0)
+      {
+         channel.close();
+         return;
+      }
+
+      this.dispatch(key);
+      this.write(key);
+   }
+
+   /**
+   * Appends the header of a successful response to the responses of a connection, with room for
+   * its body.
+   * @param connection the connection.
+   * @param requestId the id of the request.
+   * @param bodySize the number of bytes of the body of the response.
+   **/
+   protected void reserve(Connection connection, int requestId, int bodySize)
+   {
+      connection.responses = MapCrdtProtocol.ensureRemaining(connection.responses,
+                                                             MapCrdtProtocol.HEADER_SIZE +
+                                                             bodySize);
+      MapCrdtProtocol.putHeader(connection.responses, requestId, MapCrdtProtocol.OK, bodySize);
+   }
+
+   /**
+   * Appends the responses of the requests executed by the workers to the output of their
+   * connection, and hands the requests read meanwhile to a worker.
+   **/
+   protected void respond()
+   {
+      SelectionKey key;
+
+      while ((key = this.executed.poll()) != null)
+      {
+         Connection connection = (Connection) key.attachment();
+         ByteBuffer responses = connection.responses;
+
+         connection.output = MapCrdtProtocol.ensureRemaining(connection.output,
+                                                             responses.position());
+         responses.flip();
+         connection.output.put(responses);
+         if (responses.capacity() > DEFAULT_BUFFER_SIZE)
+         {
+            connection.responses = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+         }
+         else
+         {
+            responses.clear();
+         }
+         connection.busy = false;
+
+         try
+         {
+            if (key.isValid() == true)
+            {
+               this.dispatch(key);
+               this.write(key);
+            }
+         }
+         catch (IOException e)
+         {
+            try
+            {
+               key.channel().close();
+            }
+            catch (IOException ignored)
+            {
+            }
+         }
+      }
+   }
+
+   /**
+   * Selects and serves the ready connections until the server is closed.
+   **/
+   protected void run()
+   {
+      while (this.closed == false)
+      {
+         try
+         {
+            this.selector.select();
+         }
+         catch (IOException e)
+         {
+            return;
+         }
+
+         this.respond();
+
+         Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+         while (keys.hasNext() == true)
+         {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            try
+            {
+               if (key.isValid() == true && key.isAcceptable() == true)
+               {
+                  this.accept();
+               }
+               else if (key.isValid() == true && key.isWritable() == true)
+               {
+                  this.write(key);
+               }
+               else if (key.isValid() == true && key.isReadable() == true)
+               {
+                  this.read(key);
+               }
+            }
+            catch (IOException e)
+            {
+               // A failed or misbehaving connection is closed without stopping the server.
+               try
+               {
+                  key.channel().close();
+               }
+               catch (IOException ignored)
+               {
+               }
+            }
+         }
+      }
+   }
+
+   /**
+   * Starts the thread of the server.
+   **/
+   public synchronized void start()
+   {
+      if (this.thread != null)
+      {
+         return;
+      }
+
+      this.thread = new Thread("map-crdt-server")
+      {
+         public void run()
+         {
+            MapCrdtServer.this.run();
+         }
+      };
+      this.thread.setDaemon(true);
+      this.thread.start();
+   }
+
+   /**
+   * Writes the pending responses of a connection. While responses remain, the connection waits
+   * for writing and is not read, nor while its requests are executed. An output grown for large
+   * responses gets back to its initial size once they have been written.
+   * @param key the selection key of the connection.
+   * @throws IOException if the connection fails.
+   **/
+   protected void write(SelectionKey key) throws IOException
+   {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection connection = (Connection) key.attachment();
+
+      connection.output.flip();
+      channel.write(connection.output);
+      connection.output.compact();
+
+      if (connection.output.position() > 0)
+      {
+         key.interestOps(SelectionKey.OP_WRITE);
+         return;
+      }
+
+      if (connection.output.capacity() > DEFAULT_BUFFER_SIZE)
+      {
+         connection.output = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+      }
+      key.interestOps(connection.busy == true ? 0 : SelectionKey.OP_READ);
+   }
+
+   /**
+   * Represents the buffers of a connection. The responses are only written by the worker executing
+   * the requests of the connection, the other buffers by the thread of the server.
+   **/
+   protected static class Connection
+   {
+      /**
+      * The bytes read and not yet executed, in write mode.
+      **/
+      protected ByteBuffer input;
+
+      /**
+      * The responses not yet written, in write mode.
+      **/
+      protected ByteBuffer output;
+
+      /**
+      * The responses of the requests being executed, in write mode.
+      **/
+      protected ByteBuffer responses;
+
+      /**
+      * Tells if requests of the connection are being executed by a worker.
+      **/
+      protected boolean busy;
+
+      /**
+      * Default constructor.
+      **/
+      public Connection()
+      {
+         this.input = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+         this.output = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+         this.responses = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+         this.busy = false;
+      }
+   }
+}
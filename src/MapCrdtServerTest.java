@@ -0,0 +1,399 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+* Represents a suite test for the replica server and its client, over the loopback interface.
+**/
+public class MapCrdtServerTest
+{
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtServerTest()
+   {
+   }
+
+   /**
+   * Starts a server in a new process, serving a new replica.
+   * @param replicaId the unique id of the replica.
+   * @return the process, whose first line of output gives the port of the server.
+   **/
+   protected static Process startProcess(int replicaId) throws IOException
+   {
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator +
+                    "java";
+      ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+                                                  System.getProperty("java.class.path"),
+                                                  "MapCrdtServer", "0",
+                                                  String.valueOf(replicaId));
+      builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+      return builder.start();
+   }
+
+   /**
+   * Reads the port printed by a server process.
+   * @param process the process.
+   * @return the port of the server.
+   **/
+   protected static int readPort(Process process) throws IOException
+   {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                                                                       StandardCharsets.UTF_8));
+      String line = reader.readLine();
+      assertTrue(line != null && line.startsWith("Listening on port "));
+
+      return Integer.parseInt(line.substring("Listening on port ".length()));
+   }
+
+   /**
+   * This test checks that every request is executed by the replica of the server.
+   **/
+   @Test
+   public void testRequests() throws IOException
+   {
+      MapCrdt replica = new MapCrdt();
+      MapCrdtServer server = new MapCrdtServer(replica, 0);
+      server.start();
+      MapCrdtClient client = new MapCrdtClient(server.getPort());
+
+      client.put("KEY1", "VALUE1");
+      client.put("KEY2", null);
+      client.put("KEY\u00e9", "VALUE\u20ac");
+      assertEquals("VALUE1", client.get("KEY1"));
+      assertNull(client.get("KEY2"));
+      assertTrue(replica.containsKey("KEY2"));
+      assertEquals("VALUE\u20ac", client.get("KEY\u00e9"));
+      client.delete("KEY1");
+      assertNull(client.get("KEY1"));
+      assertNull(replica.get("KEY1"));
+
+      Map<String, String> entries = new HashMap<String, String>();
+      entries.put("KEY3", "VALUE3");
+      entries.put("KEY4", "VALUE4");
+      client.putAll(entries);
+      client.deleteAll(Arrays.asList("KEY3", "KEY\u00e9"));
+      Map<String, String> values = client.getAll(Arrays.asList("KEY3", "KEY4", "KEY5"));
+      assertEquals(3, values.size());
+      assertNull(values.get("KEY3"));
+      assertEquals("VALUE4", values.get("KEY4"));
+      assertNull(values.get("KEY5"));
+
+      // The delta of the server is merged into a local replica, and the other way around.
+      MapCrdt local = new MapCrdt();
+      local.mergeDelta(client.delta(0));
+      assertEquals("VALUE4", local.get("KEY4"));
+      local.put("KEY6", "VALUE6");
+      client.mergeDelta(local.delta(0));
+      assertEquals("VALUE6", client.get("KEY6"));
+      assertEquals(local.getVersion(), replica.getAcknowledgedVersion(local.getReplicaId()));
+
+      // The delta after the version vector of the local replica only has the new entries.
+      assertEquals(0, client.delta(local.getVersionVector()).size());
+      client.put("KEY7", "VALUE7");
+      MapCrdtDelta missing = client.delta(local.getVersionVector());
+      assertEquals(1, missing.size());
+      local.mergeDelta(missing);
+      assertEquals("VALUE7", local.get("KEY7"));
+      assertTrue(local.getVersionVector().covers(replica.getVersionVector()));
+
+      client.close();
+      server.close();
+   }
+
+   /**
+   * This test checks that pipelined requests of several clients are answered in order.
+   **/
+   @Test
+   public void testPipelining() throws Exception
+   {
+      MapCrdtServer server = new MapCrdtServer(new ConcurrentMapCrdt(), 0);
+      server.start();
+      MapCrdtClient[] clients = new MapCrdtClient[4];
+      List<List<CompletableFuture<String>>> gets = new ArrayList<List<CompletableFuture<String>>>();
+
+      for (int c = 0; c < clients.length; c++)
+      {
+         clients[c] = new MapCrdtClient(server.getPort());
+         gets.add(new ArrayList<CompletableFuture<String>>());
+
+         // A get sent after a put of the same connection sees the put.
+         for (int i = 0; i < 2000; i++)
+         {
+            clients[c].putAsync("KEY" + c + "_" + i, "VALUE" + i);
+            gets.get(c).add(clients[c].getAsync("KEY" + c + "_" + i));
+         }
+      }
+      // Consecutive puts of a key are executed together, the last one wins.
+      List<CompletableFuture<Void>> puts = new ArrayList<CompletableFuture<Void>>();
+      for (int i = 0; i < 100; i++)
+      {
+         puts.add(clients[0].putAsync("LAST", "VALUE" + i));
+      }
+      CompletableFuture<String> last = clients[0].getAsync("LAST");
+      for (MapCrdtClient client : clients)
+      {
+         client.flush();
+      }
+      for (CompletableFuture<Void> put : puts)
+      {
+         put.get();
+      }
+      assertEquals("VALUE99", last.get());
+
+      for (int c = 0; c < clients.length; c++)
+      {
+         for (int i = 0; i < 2000; i++)
+         {
+            assertEquals("VALUE" + i, gets.get(c).get(i).get());
+         }
+         clients[c].close();
+      }
+      server.close();
+   }
+
+   /**
+   * This test checks that a request blocked in the replica does not delay the other connections.
+   **/
+   @Test
+   public void testBlockingReplica() throws Exception
+   {
+      final CountDownLatch released = new CountDownLatch(1);
+      MapCrdt replica = new MapCrdt()
+      {
+         public String get(String key)
+         {
+            if (key.equals("BLOCK") == true)
+            {
+               try
+               {
+                  released.await();
+               }
+               catch (InterruptedException e)
+               {
+                  Thread.currentThread().interrupt();
+               }
+            }
+
+            return super.get(key);
+         }
+      };
+      MapCrdtServer server = new MapCrdtServer(replica, 0);
+      server.start();
+      MapCrdtClient blocked = new MapCrdtClient(server.getPort());
+      MapCrdtClient client = new MapCrdtClient(server.getPort());
+
+      CompletableFuture<String> call = blocked.getAsync("BLOCK");
+      blocked.flush();
+      client.put("KEY1", "VALUE1");
+      assertEquals("VALUE1", client.get("KEY1"));
+      assertTrue(call.isDone() == false);
+
+      released.countDown();
+      assertNull(call.get());
+
+      blocked.close();
+      client.close();
+      server.close();
+   }
+
+   /**
+   * This test checks that the responses larger than the maximum frame size of the server are
+   * replaced by an error, that a response larger than the maximum frame size of the client fails
+   * its connection, and that the input of a connection gets back to its initial size after a
+   * large request.
+   **/
+   @Test
+   public void testFrameSizes() throws Exception
+   {
+      MapCrdt replica = new MapCrdt();
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+      MapCrdtServer small = new MapCrdtServer(replica, address, 1024);
+      small.start();
+      MapCrdtClient client = new MapCrdtClient(small.getPort());
+
+      for (int i = 0; i < 100; i++)
+      {
+         replica.put("KEY" + i, "VALUE" + i);
+      }
+      try
+      {
+         client.delta(0);
+         fail("A delta larger than a frame should fail.");
+      }
+      catch (IOException e)
+      {
+         assertTrue(e.getMessage().contains("Response too large"));
+      }
+      try
+      {
+         client.delta(new MapCrdtVersionVector());
+         fail("A delta larger than a frame should fail.");
+      }
+      catch (IOException e)
+      {
+         assertTrue(e.getMessage().contains("Response too large"));
+      }
+      assertEquals("VALUE1", client.get("KEY1"));
+      client.close();
+      small.close();
+
+      MapCrdtServer server = new MapCrdtServer(replica, 0);
+      server.start();
+      client = new MapCrdtClient(server.getPort());
+      char[] chars = new char[100 * 1024];
+      Arrays.fill(chars, 'V');
+      String large = new String(chars);
+      client.put("LARGE", large);
+      assertEquals(large, client.get("LARGE"));
+      for (SelectionKey key : server.selector.keys())
+      {
+         if (key.attachment() instanceof MapCrdtServer.Connection)
+         {
+            MapCrdtServer.Connection connection = (MapCrdtServer.Connection) key.attachment();
+            assertEquals(MapCrdtServer.DEFAULT_BUFFER_SIZE, connection.input.capacity());
+         }
+      }
+
+      MapCrdtClient limited = new MapCrdtClient(new InetSocketAddress(address.getAddress(),
+                                                                      server.getPort()), 1024);
+      assertEquals("VALUE1", limited.get("KEY1"));
+      try
+      {
+         limited.get("LARGE");
+         fail("A response larger than the frames of the client should fail.");
+      }
+      catch (StreamCorruptedException e)
+      {
+      }
+      try
+      {
+         limited.get("KEY1");
+         fail("The connection of the client should have failed.");
+      }
+      catch (IOException e)
+      {
+      }
+
+      limited.close();
+      client.close();
+      server.close();
+   }
+
+   /**
+   * This test checks that a failed request is answered with an error without closing the
+   * connection, and that closing the server fails the pending requests.
+   **/
+   @Test
+   public void testErrors() throws IOException
+   {
+      MapCrdtServer server = new MapCrdtServer(new MapCrdt(), 0);
+      server.start();
+      MapCrdtClient client = new MapCrdtClient(server.getPort());
+
+      MapCrdtClient.Call<Void> call = new MapCrdtClient.Call<Void>();
+      synchronized (client)
+      {
+         client.send(call, (byte) 99, 0);
+         client.flush();
+      }
+      try
+      {
+         MapCrdtClient.await(call);
+         fail("An unknown opcode should fail.");
+      }
+      catch (IOException e)
+      {
+         assertTrue(e.getMessage().contains("Unknown opcode"));
+      }
+
+      client.put("KEY1", "VALUE1");
+      assertEquals("VALUE1", client.get("KEY1"));
+
+      server.close();
+      try
+      {
+         client.get("KEY1");
+         fail("A closed server should fail the requests.");
+      }
+      catch (IOException e)
+      {
+      }
+      client.close();
+   }
+
+   /**
+   * This test checks that replicas served by several processes on the same host have different
+   * ids and converge when their missing entries are exchanged through clients after their version
+   * vectors.
+   **/
+   @Test
+   public void testProcesses() throws Exception
+   {
+      Process first = startProcess(1);
+      Process second = startProcess(2);
+
+      try
+      {
+         MapCrdtClient firstClient = new MapCrdtClient(readPort(first));
+         MapCrdtClient secondClient = new MapCrdtClient(readPort(second));
+
+         firstClient.put("KEY1", "VALUE1");
+         firstClient.put("KEY2", "VALUE2");
+         secondClient.put("KEY3", "VALUE3");
+         secondClient.delete("KEY3");
+
+         MapCrdtVersionVector firstVector = firstClient.delta(0).getVersionVector();
+         MapCrdtVersionVector secondVector = secondClient.delta(0).getVersionVector();
+         MapCrdtDelta firstDelta = firstClient.delta(secondVector);
+         MapCrdtDelta secondDelta = secondClient.delta(firstVector);
+         assertEquals(1, firstDelta.getReplicaId());
+         assertEquals(2, secondDelta.getReplicaId());
+         assertEquals(2, firstDelta.size());
+         assertEquals(1, secondDelta.size());
+
+         secondClient.mergeDelta(firstDelta);
+         firstClient.mergeDelta(secondDelta);
+         firstClient.delete("KEY2");
+         MapCrdtDelta missing = firstClient.delta(secondClient.delta(0).getVersionVector());
+         assertEquals(1, missing.size());
+         secondClient.mergeDelta(missing);
+
+         Map<String, String> firstValues = firstClient.getAll(Arrays.asList("KEY1", "KEY2",
+                                                                            "KEY3"));
+         assertEquals(firstValues, secondClient.getAll(Arrays.asList("KEY1", "KEY2", "KEY3")));
+         assertEquals("VALUE1", firstValues.get("KEY1"));
+         assertNull(firstValues.get("KEY2"));
+         assertNull(firstValues.get("KEY3"));
+
+         firstClient.close();
+         secondClient.close();
+      }
+      finally
+      {
+         first.destroy();
+         second.destroy();
+         first.waitFor();
+         second.waitFor();
+      }
+   }
+}
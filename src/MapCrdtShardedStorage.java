@@ -0,0 +1,201 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+* Represents a storage of a replica partitioned in shards: the keys are spread over a power of two
+* number of independent storages by their hash, so each shard holds a fraction of the keys and can
+* be read, or merged, independently of the others.
+**/
+public class MapCrdtShardedStorage implements MapCrdtStorage
+{
+   /**
+   * The storage of each shard.
+   **/
+   protected MapCrdtStorage[] shards;
+
+   /**
+   * Creates a storage whose shards are concurrent hash maps.
+   * @param nShards the number of shards, rounded up to a power of two.
+   **/
+   public MapCrdtShardedStorage(int nShards)
+   {
+      if (nShards < 1)
+      {
+         throw new IllegalArgumentException("The number of shards should be positive.");
+      }
+
+      int size = Integer.highestOneBit(nShards);
+      if (size < nShards)
+      {
+         size <<= 1;
+      }
+
+      this.shards = new MapCrdtStorage[size];
+      for (int i = 0; i < size; i++)
+      {
+         this.shards[i] = new MapCrdtHashStorage();
+      }
+   }
+
+   /**
+   * Tells if the storage can remove the log entry of a key.
+   * @return true, entries are removed from their shard.
+   **/
+   public boolean canRemove()
+   {
+      return true;
+   }
+
+   /**
+   * Gets the log entry of a key from its shard.
+   * @param key the key.
+   * @return the log entry, null if the storage has no entry for the key.
+   **/
+   public MapCrdtLogEntry get(String key)
+   {
+      return this.shards[this.shardIndex(key)].get(key);
+   }
+
+   /**
+   * Gets the storage of a shard.
+   * @param index the index of the shard.
+   * @return the storage of the shard.
+   **/
+   public MapCrdtStorage getShard(int index)
+   {
+      return this.shards[index];
+   }
+
+   /**
+   * Gets the number of shards.
+   * @return the number of shards, a power of two.
+   **/
+   public int getShardCount()
+   {
+      return this.shards.length;
+   }
+
+   /**
+   * Tells if the storage can be read while it is modified.
+   * @return true, the shards are concurrent.
+   **/
+   public boolean isConcurrent()
+   {
+      return true;
+   }
+
+   /**
+   * Iterates over the log entries shard after shard, the iteration is weakly consistent.
+   * @return an iterator over the entries indexed by key.
+   **/
+   public Iterator<Map.Entry<String, MapCrdtLogEntry>> iterator()
+   {
+      return new ShardIterator();
+   }
+
+   /**
+   * Stores the log entry of a key in its shard, replacing its previous entry.
+   * @param key the key.
+   * @param info the log entry.
+   * @return the previous log entry of the key, null if there was none.
+   **/
+   public MapCrdtLogEntry put(String key, MapCrdtLogEntry info)
+   {
+      return this.shards[this.shardIndex(key)].put(key, info);
+   }
+
+   /**
+   * Removes the log entry of a key from its shard.
+   * @param key the key.
+   * @return the removed log entry, null if there was none.
+   **/
+   public MapCrdtLogEntry remove(String key)
+   {
+      return this.shards[this.shardIndex(key)].remove(key);
+   }
+
+   /**
+   * Gets the index of the shard holding a given key.
+   * @param key the key.
+   * @return the index of the shard.
+   **/
+   public int shardIndex(String key)
+   {
+      int hash = key.hashCode();
+      hash ^= (hash >>> 16);
+
+      return hash & (this.shards.length - 1);
+   }
+
+   /**
+   * Gets the number of keys which have a log entry.
+   * @return the number of keys of all the shards.
+   **/
+   public int size()
+   {
+      int size = 0;
+
+      for (MapCrdtStorage shard : this.shards)
+      {
+         size += shard.size();
+      }
+
+      return size;
+   }
+
+   /**
+   * Iterates over the entries of the shards, one shard after the other.
+   **/
+   protected class ShardIterator implements Iterator<Map.Entry<String, MapCrdtLogEntry>>
+   {
+      /**
+      * The index of the shard being iterated.
+      **/
+      protected int shard;
+
+      /**
+      * The iterator over the entries of the current shard.
+      **/
+      protected Iterator<Map.Entry<String, MapCrdtLogEntry>> entries;
+
+      /**
+      * Default constructor.
+      **/
+      public ShardIterator()
+      {
+         this.shard = 0;
+         this.entries = MapCrdtShardedStorage.this.shards[0].iterator();
+      }
+
+      /**
+      * Tells if there is a next entry, moving to the next shards while the current one is done.
+      * @return true if there is a next entry.
+      **/
+      public boolean hasNext()
+      {
+         while (this.entries.hasNext() == false &&
+                this.shard + 1 < MapCrdtShardedStorage.this.shards.length)
+         {
+            this.shard++;
+            this.entries = MapCrdtShardedStorage.this.shards[this.shard].iterator();
+         }
+
+         return this.entries.hasNext();
+      }
+
+      /**
+      * Gets the next entry.
+      * @return the next entry.
+      **/
+      public Map.Entry<String, MapCrdtLogEntry> next()
+      {
+         if (this.hasNext() == false)
+         {
+            throw new NoSuchElementException();
+         }
+
+         return this.entries.next();
+      }
+   }
+}
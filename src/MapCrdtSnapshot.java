@@ -0,0 +1,184 @@
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* Represents a point-in-time view of the logs of a replica, read without holding the monitor or the
+* stripes of the replica so its writers are not blocked. Log entries are immutable and the logs are
+* a concurrent storage, so the view reads the current logs: before a key is modified while the view
+* is open, the replica gives the view the entry the key had, which the view returns instead of the
+* current one. Tombstones are not reclaimed while a view is open, so no key leaves the logs.
+* <p>
+* A view should be closed once read, the replica gives the previous entries to its open views only.
+**/
+public class MapCrdtSnapshot implements Iterable<Map.Entry<String, MapCrdtLogEntry>>, AutoCloseable
+{
+   /**
+   * The entry given for a key which had no entry when the view was taken.
+   **/
+   protected static final MapCrdtLogEntry ABSENT = new MapCrdtLogEntry(0, 0,
+                                                                       MapCrdtLogEntry.Type.DELETE,
+                                                                       null);
+
+   /**
+   * The replica of the view, null if the view is a copy of the logs.
+   **/
+   protected MapCrdt replica;
+
+   /**
+   * The logs read by the view.
+   **/
+   protected MapCrdtStorage logs;
+
+   /**
+   * The entries the keys modified since the view was taken had at that time.
+   **/
+   protected Map<String, MapCrdtLogEntry> previousEntries;
+
+   /**
+   * Creates a view of the logs of a replica, the replica should give the view the previous entry
+   * of each key it modifies until the view is closed.
+   * @param replica the replica of the view, null if the logs are a copy no one modifies.
+   * @param logs the logs of the replica, a concurrent storage if the replica is given.
+   **/
+   public MapCrdtSnapshot(MapCrdt replica, MapCrdtStorage logs)
+   {
+      this.replica = replica;
+      this.logs = logs;
+      this.previousEntries = new ConcurrentHashMap<String, MapCrdtLogEntry>();
+   }
+
+   /**
+   * Closes the view, the replica stops giving it the previous entries.
+   **/
+   public void close()
+   {
+      if (this.replica != null)
+      {
+         this.replica.snapshots.remove(this);
+      }
+   }
+
+   /**
+   * Gets the log entry a key had when the view was taken.
+   * @param key the key.
+   * @return the log entry, null if the key had no entry.
+   **/
+   public MapCrdtLogEntry get(String key)
+   {
+      return this.resolve(key, this.logs.get(key));
+   }
+
+   /**
+   * Iterates over the log entries of the view, each key once.
+   * @return an iterator over the entries indexed by key.
+   **/
+   public Iterator<Map.Entry<String, MapCrdtLogEntry>> iterator()
+   {
+      return new EntryIterator();
+   }
+
+   /**
+   * Records the entry a key had before its modification, the first one only. The replica should
+   * call it before modifying the logs.
+   * @param key the key which is modified.
+   * @param previous the entry of the key, null if the key had no entry.
+   **/
+   protected void preserve(String key, MapCrdtLogEntry previous)
+   {
+      this.previousEntries.putIfAbsent(key, previous == null ? ABSENT : previous);
+   }
+
+   /**
+   * Gives the entry a key had when the view was taken from the entry read in the logs. The previous
+   * entries are read after the logs: a key modified after the read has been preserved first.
+   * @param key the key.
+   * @param current the entry read in the logs.
+   * @return the entry of the key in the view, null if the key had no entry.
+   **/
+   protected MapCrdtLogEntry resolve(String key, MapCrdtLogEntry current)
+   {
+      MapCrdtLogEntry previous = this.previousEntries.get(key);
+
+      if (previous == null)
+      {
+         return current;
+      }
+
+      return previous == ABSENT ? null : previous;
+   }
+
+   /**
+   * Iterates over the entries of the logs, replacing the modified ones by their previous entries
+   * and skipping the keys added since the view was taken.
+   **/
+   protected class EntryIterator implements Iterator<Map.Entry<String, MapCrdtLogEntry>>
+   {
+      /**
+      * The iterator over the entries of the logs.
+      **/
+      protected Iterator<Map.Entry<String, MapCrdtLogEntry>> entries;
+
+      /**
+      * The next entry of the view, null at the end of the logs.
+      **/
+      protected Map.Entry<String, MapCrdtLogEntry> next;
+
+      /**
+      * Default constructor.
+      **/
+      public EntryIterator()
+      {
+         this.entries = MapCrdtSnapshot.this.logs.iterator();
+         this.advance();
+      }
+
+      /**
+      * Moves to the next key which had an entry when the view was taken.
+      **/
+      protected void advance()
+      {
+         this.next = null;
+
+         while (this.next == null && this.entries.hasNext() == true)
+         {
+            Map.Entry<String, MapCrdtLogEntry> entry = this.entries.next();
+            MapCrdtLogEntry info = MapCrdtSnapshot.this.resolve(entry.getKey(), entry.getValue());
+
+            if (info != null)
+            {
+               this.next = new AbstractMap.SimpleImmutableEntry<String, MapCrdtLogEntry>(
+                  entry.getKey(), info);
+            }
+         }
+      }
+
+      /**
+      * Tells if there is a next entry.
+      * @return true if there is a next entry.
+      **/
+      public boolean hasNext()
+      {
+         return this.next != null;
+      }
+
+      /**
+      * Gets the next entry.
+      * @return the next entry.
+      **/
+      public Map.Entry<String, MapCrdtLogEntry> next()
+      {
+         if (this.hasNext() == false)
+         {
+            throw new NoSuchElementException();
+         }
+
+         Map.Entry<String, MapCrdtLogEntry> entry = this.next;
+         this.advance();
+
+         return entry;
+      }
+   }
+}
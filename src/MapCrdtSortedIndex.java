@@ -0,0 +1,110 @@
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+* Represents the keys of the logs of a replica in sorted order, used to scan ranges of keys. The
+* index is a concurrent skip list holding every key with a log entry, tombstones included: a key is
+* only added when it gets its first entry and removed when its tombstone is reclaimed, so most
+* modifications leave the index unchanged, and scans skip the tombstones when they read the
+* entries.
+**/
+public class MapCrdtSortedIndex
+{
+   /**
+   * The keys which have a log entry.
+   **/
+   protected ConcurrentSkipListSet<String> keys;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtSortedIndex()
+   {
+      this.keys = new ConcurrentSkipListSet<String>();
+   }
+
+   /**
+   * Adds a key which got its first log entry.
+   * @param key the key.
+   **/
+   public void add(String key)
+   {
+      this.keys.add(key);
+   }
+
+   /**
+   * Gets the first key following all the keys starting with a prefix.
+   * @param prefix the prefix.
+   * @return the key, null if no key follows them.
+   **/
+   protected static String prefixEnd(String prefix)
+   {
+      for (int i = prefix.length() - 1; i >= 0; i--)
+      {
+         char c = prefix.charAt(i);
+
+         if (c != Character.MAX_VALUE)
+         {
+            return prefix.substring(0, i) + (char) (c + 1);
+         }
+      }
+
+      return null;
+   }
+
+   /**
+   * Iterates over the keys starting with a prefix, in order.
+   * @param prefix the prefix.
+   * @return a weakly consistent iterator over the keys.
+   **/
+   public Iterator<String> prefix(String prefix)
+   {
+      return this.range(prefix, prefixEnd(prefix));
+   }
+
+   /**
+   * Iterates over the keys of a range, in order.
+   * @param from the first key of the range (included), null to start from the first key.
+   * @param to the last key of the range (excluded), null to go up to the last key.
+   * @return a weakly consistent iterator over the keys.
+   **/
+   public Iterator<String> range(String from, String to)
+   {
+      NavigableSet<String> range = this.keys;
+
+      if (from != null && to != null && from.compareTo(to) >= 0)
+      {
+         return Collections.<String>emptyIterator();
+      }
+      if (from != null)
+      {
+         range = range.tailSet(from, true);
+      }
+      if (to != null)
+      {
+         range = range.headSet(to, false);
+      }
+
+      return range.iterator();
+   }
+
+   /**
+   * Removes a key whose log entry has been reclaimed.
+   * @param key the key.
+   **/
+   public void remove(String key)
+   {
+      this.keys.remove(key);
+   }
+
+   /**
+   * Gets the number of keys in the index.
+   * @return the number of keys, tombstones included.
+   **/
+   public int size()
+   {
+      return this.keys.size();
+   }
+}
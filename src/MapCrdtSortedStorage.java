@@ -0,0 +1,91 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+* Represents a storage of a replica keeping the keys sorted: a concurrent skip list on the heap,
+* giving logarithmic time accesses, read without locking, and iterated in the order of the keys.
+**/
+public class MapCrdtSortedStorage implements MapCrdtStorage
+{
+   /**
+   * The log entries indexed by key.
+   **/
+   protected ConcurrentSkipListMap<String, MapCrdtLogEntry> entries;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtSortedStorage()
+   {
+      this.entries = new ConcurrentSkipListMap<String, MapCrdtLogEntry>();
+   }
+
+   /**
+   * Tells if the storage can remove the log entry of a key.
+   * @return true, entries are removed from the map.
+   **/
+   public boolean canRemove()
+   {
+      return true;
+   }
+
+   /**
+   * Gets the log entry of a key.
+   * @param key the key.
+   * @return the log entry, null if the storage has no entry for the key.
+   **/
+   public MapCrdtLogEntry get(String key)
+   {
+      return this.entries.get(key);
+   }
+
+   /**
+   * Tells if the storage can be read while it is modified.
+   * @return true, the skip list is concurrent.
+   **/
+   public boolean isConcurrent()
+   {
+      return true;
+   }
+
+   /**
+   * Iterates over the log entries in the order of the keys, the iteration is weakly
+   * consistent.
+   * @return an iterator over the entries indexed by key.
+   **/
+   public Iterator<Map.Entry<String, MapCrdtLogEntry>> iterator()
+   {
+      return this.entries.entrySet().iterator();
+   }
+
+   /**
+   * Stores the log entry of a key, replacing its previous entry.
+   * @param key the key.
+   * @param info the log entry.
+   * @return the previous log entry of the key, null if there was none.
+   **/
+   public MapCrdtLogEntry put(String key, MapCrdtLogEntry info)
+   {
+      return this.entries.put(key, info);
+   }
+
+   /**
+   * Removes the log entry of a key.
+   * @param key the key.
+   * @return the removed log entry, null if there was none.
+   **/
+   public MapCrdtLogEntry remove(String key)
+   {
+      return this.entries.remove(key);
+   }
+
+   /**
+   * Gets the number of keys which have a log entry.
+   * @return the number of keys.
+   **/
+   public int size()
+   {
+      return this.entries.size();
+   }
+}
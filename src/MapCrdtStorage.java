@@ -0,0 +1,53 @@
+import java.util.Map;
+
+/**
+* Represents the storage of the log entries of a replica, one entry per key. The storage only
+* stores entries: conflicts are solved by the replica, which compares the entry of a key with a new
+* entry and stores the new one only if it is newer, while preventing the concurrent modifications
+* of the key. A storage is chosen per replica, to fit the latency and the memory footprint wanted.
+**/
+public interface MapCrdtStorage extends Iterable<Map.Entry<String, MapCrdtLogEntry>>
+{
+   /**
+   * Tells if the storage can remove the log entry of a key. A replica only reclaims tombstones from
+   * a storage which can remove them.
+   * @return true if remove is supported.
+   **/
+   boolean canRemove();
+
+   /**
+   * Gets the log entry of a key.
+   * @param key the key.
+   * @return the log entry, null if the storage has no entry for the key.
+   **/
+   MapCrdtLogEntry get(String key);
+
+   /**
+   * Tells if the storage can be read, and iterated, while it is modified by an other thread. A
+   * replica reads a concurrent storage without locking it; it copies the other storages to take a
+   * snapshot.
+   * @return true if the storage supports concurrent reads.
+   **/
+   boolean isConcurrent();
+
+   /**
+   * Stores the log entry of a key, replacing its previous entry.
+   * @param key the key.
+   * @param info the log entry.
+   * @return the previous log entry of the key, null if there was none.
+   **/
+   MapCrdtLogEntry put(String key, MapCrdtLogEntry info);
+
+   /**
+   * Removes the log entry of a key, used to reclaim tombstones.
+   * @param key the key.
+   * @return the removed log entry, null if there was none.
+   **/
+   MapCrdtLogEntry remove(String key);
+
+   /**
+   * Gets the number of keys which have a log entry.
+   * @return the number of keys.
+   **/
+   int size();
+}
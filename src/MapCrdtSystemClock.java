@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Represents a clock giving the physical time without taking the remote operations into account. A
+* replica whose physical clock runs behind loses against the operations it has seen: this is the
+* behaviour of replicas assuming a unique global source of time. Operations of the same millisecond
+* get increasing logical counters, so the timestamps given by the clock are strictly increasing, as
+* the version vectors require; operations of different replicas which tie are ordered by the ids of
+* their replicas.
+**/
+public class MapCrdtSystemClock implements MapCrdtClock
+{
+   /**
+   * The last timestamp given by the clock.
+   **/
+   protected AtomicLong last;
+
+   /**
+   * Default constructor.
+   **/
+   public MapCrdtSystemClock()
+   {
+      this.last = new AtomicLong();
+   }
+
+   /**
+   * Gives the timestamp of a new local operation.
+   * @return the current physical time, with a logical counter incremented if the clock already
+   * gave a timestamp in the same millisecond.
+   **/
+   public long now()
+   {
+      long physical = MapCrdtClock.timestamp(this.physicalTime(), 0);
+
+      while (true)
+      {
+         long last = this.last.get();
+         long next = Math.max(last + 1, physical);
+
+         if (this.last.compareAndSet(last, next) == true)
+         {
+            return next;
+         }
+      }
+   }
+
+   /**
+   * Reads the physical clock.
+   * @return the physical time in milliseconds since the epoch.
+   **/
+   protected long physicalTime()
+   {
+      return System.currentTimeMillis();
+   }
+
+   /**
+   * Ignores the timestamps of the remote operations.
+   * @param timestamp the timestamp of the remote operation.
+   **/
+   public void update(long timestamp)
+   {
+   }
+}
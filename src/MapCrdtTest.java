@@ -1,5 +1,15 @@
-import java.sql.Timestamp;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -10,11 +20,29 @@ import static org.junit.Assert.assertTrue;
 **/
 public class MapCrdtTest
 {
+   /**
+   * The event-loop replicas created by a test, whose owning threads are stopped after it.
+   **/
+   protected List<EventLoopMapCrdt> eventLoops;
+
    /**
    * Default constructor. 
    **/
    public MapCrdtTest()
    {
+      this.eventLoops = new ArrayList<EventLoopMapCrdt>();
+   }
+
+   /**
+   * Closes the event-loop replicas created by the test.
+   **/
+   @After
+   public void closeEventLoops()
+   {
+      for (EventLoopMapCrdt replica : this.eventLoops)
+      {
+         replica.close();
+      }
    }
 
    /**
@@ -32,17 +60,29 @@ public class MapCrdtTest
       }
    }
 
+   /**
+   * Creates an event-loop replica, closed after the test.
+   * @return the replica.
+   **/
+   protected EventLoopMapCrdt newEventLoop()
+   {
+      EventLoopMapCrdt replica = new EventLoopMapCrdt();
+      this.eventLoops.add(replica);
+
+      return replica;
+   }
+
    /**
    * This test initializes two MapCrdtLogEntry with different timestamps and compares them.
    **/
    @Test
    public void testLogEntryComparatorTime()
    {  
-      Timestamp time1 = new Timestamp(System.currentTimeMillis());
-      MapCrdtLogEntry log1 = new MapCrdtLogEntry(1, time1, "PUT", "VAL");
+      long time1 = System.currentTimeMillis();
+      MapCrdtLogEntry log1 = new MapCrdtLogEntry(1, time1, MapCrdtLogEntry.Type.PUT, "VAL");
       this.delay(1);
-      Timestamp time2 = new Timestamp(System.currentTimeMillis());
-      MapCrdtLogEntry log2 = new MapCrdtLogEntry(1, time2, "PUT", "VAL");
+      long time2 = System.currentTimeMillis();
+      MapCrdtLogEntry log2 = new MapCrdtLogEntry(1, time2, MapCrdtLogEntry.Type.PUT, "VAL");
 
       assertTrue(log1.compareTo(log2) < 0);
       assertTrue(log2.compareTo(log1) > 0);
@@ -55,9 +95,9 @@ public class MapCrdtTest
    @Test
    public void testLogEntryComparatorId()
    {  
-      Timestamp time = new Timestamp(System.currentTimeMillis());
-      MapCrdtLogEntry log1 = new MapCrdtLogEntry(1, time, "PUT", "VAL");
-      MapCrdtLogEntry log2 = new MapCrdtLogEntry(2, time, "PUT", "VAL");
+      long time = System.currentTimeMillis();
+      MapCrdtLogEntry log1 = new MapCrdtLogEntry(1, time, MapCrdtLogEntry.Type.PUT, "VAL");
+      MapCrdtLogEntry log2 = new MapCrdtLogEntry(2, time, MapCrdtLogEntry.Type.PUT, "VAL");
 
       assertTrue(log1.compareTo(log2) > 0);
       assertTrue(log2.compareTo(log1) < 0);
@@ -65,14 +105,14 @@ public class MapCrdtTest
 
    /**
    * This test initializes two MapCrdtLogEntry with the same timestamp and same replica's id but
-   * different operation types (one 'PUT' and one 'DELETE') and compares them.
+   * different operation types (one PUT and one DELETE) and compares them.
    **/
    @Test
    public void testLogEntryComparatorType()
    {  
-      Timestamp time = new Timestamp(System.currentTimeMillis());
-      MapCrdtLogEntry log1 = new MapCrdtLogEntry(1, time, "DELETE", "VAL");
-      MapCrdtLogEntry log2 = new MapCrdtLogEntry(1, time, "PUT", "VAL");
+      long time = System.currentTimeMillis();
+      MapCrdtLogEntry log1 = new MapCrdtLogEntry(1, time, MapCrdtLogEntry.Type.DELETE, "VAL");
+      MapCrdtLogEntry log2 = new MapCrdtLogEntry(1, time, MapCrdtLogEntry.Type.PUT, "VAL");
 
       assertTrue(log1.compareTo(log2) > 0);
       assertTrue(log2.compareTo(log1) < 0);
@@ -543,4 +583,811 @@ public class MapCrdtTest
 
       assertNull(replica3.get(key));
    }
+
+   /**
+   * This test checks that a delta only contains the keys modified after the requested version.
+   **/
+   @Test
+   public void testDeltaContainsModifiedKeys()
+   {
+      MapCrdt replica = new MapCrdt();
+
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      long version = replica.getVersion();
+      replica.put("KEY3", "VALUE3");
+      replica.delete("KEY1");
+
+      MapCrdtDelta delta = replica.delta(version);
+
+      assertEquals(2, delta.size());
+      assertTrue(delta.getEntries().containsKey("KEY1"));
+      assertTrue(delta.getEntries().containsKey("KEY3"));
+      assertEquals(replica.getVersion(), delta.getVersion());
+      assertEquals(0, replica.delta(replica.getVersion()).size());
+   }
+
+   /**
+   * This test checks that merging successive deltas gives the same state as a full merge.
+   **/
+   @Test
+   public void testMergeDeltaEquivalentToMerge()
+   {
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+      MapCrdt replica3 = new MapCrdt();
+
+      replica1.put("KEY1", "VALUE1");
+      replica1.put("KEY2", "VALUE2");
+      replica2.put("KEY2", "OTHER");
+      replica3.mergeDelta(replica1.delta(replica3.getAcknowledgedVersion(replica1.getReplicaId())));
+      this.delay(1);
+      replica1.put("KEY3", "VALUE3");
+      replica1.delete("KEY1");
+      replica2.mergeDelta(replica1.delta(0));
+      replica1.merge(replica2);
+      replica3.mergeDelta(replica1.delta(replica3.getAcknowledgedVersion(replica1.getReplicaId())));
+
+      assertEquals(replica1.getVersion(), replica3.getAcknowledgedVersion(replica1.getReplicaId()));
+      assertNull(replica2.get("KEY1"));
+      assertNull(replica3.get("KEY1"));
+      assertEquals(replica1.get("KEY2"), replica2.get("KEY2"));
+      assertEquals(replica1.get("KEY2"), replica3.get("KEY2"));
+      assertEquals("VALUE3", replica2.get("KEY3"));
+      assertEquals("VALUE3", replica3.get("KEY3"));
+   }
+
+   /**
+   * This test checks that a delta is ignored, and its acknowledgements not recorded, when a
+   * previous delta has been missed, so that a stale delta cannot bring back a reclaimed tombstone.
+   **/
+   @Test
+   public void testMergeDeltaMissingVersions()
+   {
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+      replica2.addPeer(replica1.getReplicaId());
+
+      replica1.put("KEY1", "VALUE1");
+      long version = replica1.getVersion();
+      MapCrdtDelta stale = replica1.delta(0);
+      replica2.mergeDifferences(replica1);
+      replica2.delete("KEY1");
+      replica1.mergeDelta(replica2.delta(0));
+      replica1.put("KEY2", "VALUE2");
+
+      // The delta misses the first version of replica1, it is ignored although it acknowledges
+      // the tombstone.
+      replica2.mergeDelta(replica1.delta(version));
+      assertEquals(0, replica2.getAcknowledgedVersion(replica1.getReplicaId()));
+      assertEquals(0, replica2.getStableVersion());
+      assertNull(replica2.get("KEY2"));
+      assertEquals(0, replica2.collectGarbage());
+
+      replica2.mergeDelta(replica1.delta(0));
+      assertEquals(replica1.getVersion(), replica2.getAcknowledgedVersion(replica1.getReplicaId()));
+      assertEquals("VALUE2", replica2.get("KEY2"));
+      assertEquals(1, replica2.collectGarbage());
+
+      replica2.mergeDelta(stale);
+      assertNull(replica2.get("KEY1"));
+      assertTrue(replica2.delta(0).getEntries().containsKey("KEY1") == false);
+   }
+
+   /**
+   * This test checks that the hybrid logical clock gives strictly increasing timestamps, even
+   * within the same millisecond.
+   **/
+   @Test
+   public void testHybridClockMonotonic()
+   {
+      MapCrdtHybridClock clock = new MapCrdtHybridClock();
+      long previous = clock.now();
+
+      for (int i = 0; i < 100000; i++)
+      {
+         long next = clock.now();
+         assertTrue(next > previous);
+         previous = next;
+      }
+
+      clock.update(previous + 1000);
+      assertTrue(clock.now() > previous + 1000);
+   }
+
+   /**
+   * This test checks that the hybrid logical clock observes remote timestamps only up to its
+   * maximum drift, so a timestamp far ahead cannot make its timestamps overflow.
+   **/
+   @Test
+   public void testHybridClockDrift()
+   {
+      MapCrdtHybridClock clock = new MapCrdtHybridClock();
+      clock.update(Long.MAX_VALUE);
+      long previous = clock.now();
+      assertTrue(previous > 0);
+      assertTrue(MapCrdtClock.physicalTime(previous) <=
+                 System.currentTimeMillis() + MapCrdtHybridClock.DEFAULT_MAX_DRIFT);
+      assertTrue(clock.now() > previous);
+
+      clock = new MapCrdtHybridClock(1000);
+      long within = MapCrdtClock.timestamp(System.currentTimeMillis() + 500, 0);
+      clock.update(within);
+      assertTrue(clock.now() > within);
+
+      clock.update(MapCrdtClock.timestamp(System.currentTimeMillis() + 60000, 0));
+      assertTrue(MapCrdtClock.physicalTime(clock.now()) <= System.currentTimeMillis() + 1000);
+
+      try
+      {
+         new MapCrdtHybridClock(-1);
+         assertTrue(false);
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+   }
+
+   /**
+   * This test checks that a put on a replica whose physical clock runs one hour behind wins over
+   * the operations the replica has merged before.
+   **/
+   @Test
+   public void testMergeAdvancesClock()
+   {
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt(new MapCrdtHybridClock()
+      {
+         protected long physicalTime()
+         {
+            return System.currentTimeMillis() - 3600 * 1000;
+         }
+      });
+
+      replica1.put("KEY", "VALUE1");
+      replica2.merge(replica1);
+      replica2.put("KEY", "VALUE2");
+      replica1.merge(replica2);
+
+      assertEquals("VALUE2", replica1.get("KEY"));
+      assertEquals("VALUE2", replica2.get("KEY"));
+
+      // Without logical clock the put of the late replica is lost.
+      MapCrdt replica3 = new MapCrdt(new MapCrdtSystemClock()
+      {
+         protected long physicalTime()
+         {
+            return System.currentTimeMillis() - 3600 * 1000;
+         }
+      });
+      replica3.merge(replica1);
+      replica3.put("KEY", "VALUE3");
+      replica1.merge(replica3);
+
+      assertEquals("VALUE2", replica1.get("KEY"));
+   }
+
+   /**
+   * This test checks that two writes of the same millisecond on a replica without logical clock
+   * get different dots, so a delta after a version vector does not miss the second one.
+   **/
+   @Test
+   public void testSameMillisecondWrites()
+   {
+      MapCrdt replica1 = new MapCrdt(new MapCrdtSystemClock()
+      {
+         protected long physicalTime()
+         {
+            return 1000;
+         }
+      });
+      MapCrdt replica2 = new MapCrdt();
+
+      replica1.put("KEY1", "VALUE1");
+      replica2.mergeDelta(replica1.delta(replica2.getVersionVector()));
+      replica1.put("KEY2", "VALUE2");
+      MapCrdtDelta delta = replica1.delta(replica2.getVersionVector());
+      assertEquals(1, delta.size());
+      replica2.mergeDelta(delta);
+
+      assertEquals("VALUE1", replica2.get("KEY1"));
+      assertEquals("VALUE2", replica2.get("KEY2"));
+   }
+
+   /**
+   * This test checks that batches behave like the operations applied one by one.
+   **/
+   @Test
+   public void testBatchOperations()
+   {
+      MapCrdt batched = new MapCrdt();
+      MapCrdt single = new MapCrdt();
+      Map<String, String> entries = new HashMap<String, String>();
+
+      for (int i = 0; i < 100; i++)
+      {
+         entries.put("KEY" + i, "VALUE" + i);
+         single.put("KEY" + i, "VALUE" + i);
+      }
+      batched.putAll(entries);
+      batched.deleteAll(Arrays.asList("KEY1", "KEY2", "KEY2", "MISSING"));
+      single.delete("KEY1");
+      single.delete("KEY2");
+      single.delete("MISSING");
+
+      Map<String, String> values = batched.getAll(Arrays.asList("KEY0", "KEY1", "MISSING"));
+      assertEquals(3, values.size());
+      assertEquals("VALUE0", values.get("KEY0"));
+      assertNull(values.get("KEY1"));
+      assertNull(values.get("MISSING"));
+      assertEquals(single.getVersion(), batched.getVersion());
+
+      // A later put wins over the batch, on the replica and after a merge.
+      batched.put("KEY3", "LATER");
+      single.merge(batched);
+      assertEquals("LATER", single.get("KEY3"));
+      for (int i = 4; i < 100; i++)
+      {
+         assertEquals(single.get("KEY" + i), batched.get("KEY" + i));
+      }
+   }
+
+   /**
+   * This test checks that the hash trees find the buckets of the keys modified on one replica only,
+   * and that merging these buckets makes the replicas converge.
+   **/
+   @Test
+   public void testMerkleTreeDifferences()
+   {
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+
+      for (int i = 0; i < 1000; i++)
+      {
+         replica1.put("KEY" + i, "VALUE" + i);
+      }
+      replica2.merge(replica1);
+
+      MapCrdtMerkleTree tree1 = replica1.getMerkleTree();
+      MapCrdtMerkleTree tree2 = replica2.getMerkleTree();
+      assertEquals(tree1.getRootHash(), tree2.getRootHash());
+      assertTrue(tree1.differences(tree2).isEmpty());
+
+      replica1.put("KEY1", "NEW");
+      replica1.delete("KEY2");
+      replica1.put("KEY1000", "VALUE1000");
+
+      // Walking down level by level only compares the children of the differing nodes.
+      List<Integer> nodes = Arrays.asList(1);
+      nodes = tree2.differing(nodes, tree1.getHashes(nodes));
+      for (int level = 1; level <= tree1.getDepth(); level++)
+      {
+         assertTrue(nodes.size() >= 1 && nodes.size() <= 3);
+         nodes = MapCrdtMerkleTree.children(nodes);
+         nodes = tree2.differing(nodes, tree1.getHashes(nodes));
+      }
+      assertTrue(nodes.contains((1 << tree1.getDepth()) + tree1.bucket("KEY1")));
+
+      List<Integer> buckets = tree2.differences(tree1);
+      assertTrue(buckets.size() >= 1 && buckets.size() <= 3);
+      assertTrue(buckets.contains(tree1.bucket("KEY1")));
+      assertTrue(buckets.contains(tree1.bucket("KEY2")));
+      assertTrue(buckets.contains(tree1.bucket("KEY1000")));
+
+      MapCrdtDelta delta = replica1.bucketDelta(buckets);
+      assertTrue(delta.size() < 100);
+      replica2.mergeDifferences(replica1);
+      assertEquals(0, replica2.getAcknowledgedVersion(replica1.getReplicaId()));
+      assertEquals("NEW", replica2.get("KEY1"));
+      assertNull(replica2.get("KEY2"));
+      assertEquals("VALUE1000", replica2.get("KEY1000"));
+      assertEquals(tree1.getRootHash(), tree2.getRootHash());
+
+      // A tree built from scratch equals the tree updated incrementally.
+      MapCrdt replica3 = new MapCrdt();
+      replica3.merge(replica2);
+      assertEquals(tree2.getRootHash(), replica3.getMerkleTree().getRootHash());
+   }
+
+   /**
+   * This test checks that a tombstone is reclaimed once both replicas have merged it, and that a
+   * stale delta cannot bring back the value it deleted.
+   **/
+   @Test
+   public void testTombstoneCollection()
+   {
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+      replica1.addPeer(replica2.getReplicaId());
+      replica2.addPeer(replica1.getReplicaId());
+
+      replica1.put("KEY1", "VALUE1");
+      MapCrdtDelta stale = replica1.delta(0);
+      replica1.put("KEY2", "VALUE2");
+      replica1.delete("KEY1");
+
+      replica2.mergeDelta(replica1.delta(0));
+      assertEquals(0, replica1.collectGarbage());
+
+      replica1.mergeDelta(replica2.delta(0));
+      assertEquals(replica1.getVersion(), replica1.getStableVersion());
+      assertEquals(1, replica1.collectGarbage());
+      assertTrue(replica1.containsKey("KEY1") == false);
+      assertTrue(replica1.delta(0).getEntries().containsKey("KEY1") == false);
+      assertEquals("VALUE2", replica1.get("KEY2"));
+
+      replica2.mergeDelta(replica1.delta(replica2.getAcknowledgedVersion(replica1.getReplicaId())));
+      assertEquals(1, replica2.collectGarbage());
+      assertEquals(1, replica2.getReclaimedTombstones());
+      assertEquals(0, replica2.collectGarbage());
+
+      // The delta was produced before the deletion, it has already been acknowledged.
+      replica2.mergeDelta(stale);
+      assertNull(replica2.get("KEY1"));
+      assertTrue(replica2.delta(0).getEntries().containsKey("KEY1") == false);
+
+      // Without peers, tombstones are kept.
+      MapCrdt replica3 = new MapCrdt();
+      replica3.put("KEY1", "VALUE1");
+      replica3.delete("KEY1");
+      assertEquals(0, replica3.collectGarbage());
+      assertTrue(replica3.delta(0).getEntries().containsKey("KEY1"));
+   }
+
+   /**
+   * This test checks that the garbage collection of a replica stored in mapped logs, which cannot
+   * remove entries, keeps its tombstones.
+   **/
+   @Test
+   public void testMappedStorageCollection()
+   {
+      MapCrdt replica1 = new MapCrdt(new MapCrdtMappedLogs(4096, 0));
+      MapCrdt replica2 = new MapCrdt();
+      replica1.addPeer(replica2.getReplicaId());
+
+      replica1.put("KEY1", "VALUE1");
+      replica1.delete("KEY1");
+      replica2.mergeDelta(replica1.delta(0));
+      replica1.mergeDelta(replica2.delta(0));
+      assertEquals(replica1.getVersion(), replica1.getStableVersion());
+
+      assertEquals(0, replica1.collectGarbage());
+      assertEquals(0, replica1.getReclaimedTombstones());
+      assertTrue(replica1.delta(0).getEntries().get("KEY1").isDelete());
+      assertNull(replica1.get("KEY1"));
+   }
+
+   /**
+   * This test checks that a snapshot keeps the entries the replica had when it was taken, and
+   * that tombstones are not reclaimed while it is open.
+   **/
+   @Test
+   public void testSnapshot()
+   {
+      MapCrdt replica = new MapCrdt();
+      MapCrdt peer = new MapCrdt();
+      replica.addPeer(peer.getReplicaId());
+
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.put("KEY3", "VALUE3");
+      replica.delete("KEY3");
+      peer.mergeDelta(replica.delta(0));
+      replica.mergeDelta(peer.delta(0));
+
+      MapCrdtSnapshot snapshot = replica.snapshot();
+      replica.put("KEY1", "NEW");
+      replica.delete("KEY2");
+      replica.put("KEY4", "VALUE4");
+      assertEquals(0, replica.collectGarbage());
+
+      Map<String, MapCrdtLogEntry> entries = new HashMap<String, MapCrdtLogEntry>();
+      for (Map.Entry<String, MapCrdtLogEntry> entry : snapshot)
+      {
+         assertNull(entries.put(entry.getKey(), entry.getValue()));
+      }
+      assertEquals(3, entries.size());
+      assertEquals("VALUE1", entries.get("KEY1").value);
+      assertTrue(entries.get("KEY2").isDelete() == false);
+      assertTrue(entries.get("KEY3").isDelete());
+      assertNull(snapshot.get("KEY4"));
+      assertEquals("VALUE1", snapshot.get("KEY1").value);
+
+      MapCrdt copy = new MapCrdt();
+      copy.mergeSnapshot(snapshot);
+      assertEquals("VALUE1", copy.get("KEY1"));
+      assertEquals("VALUE2", copy.get("KEY2"));
+      assertTrue(copy.containsKey("KEY4") == false);
+
+      snapshot.close();
+      assertTrue(replica.snapshots.isEmpty());
+      assertEquals(1, replica.collectGarbage());
+   }
+
+   /**
+   * This test checks that replicas storing their logs in different storages solve conflicts the
+   * same way, and that the sorted storage iterates in the order of the keys.
+   **/
+   @Test
+   public void testStorages()
+   {
+      MapCrdt hashed = new MapCrdt();
+      MapCrdt sorted = new MapCrdt(new MapCrdtSortedStorage());
+      MapCrdt mapped = new MapCrdt(new MapCrdtMappedLogs(4096, 0));
+      MapCrdt trie = new MapCrdt(new MapCrdtHamtStorage());
+
+      hashed.put("KEY2", "VALUE2");
+      sorted.put("KEY1", "VALUE1");
+      mapped.put("KEY3", "VALUE3");
+      sorted.merge(hashed);
+      sorted.merge(mapped);
+      trie.mergeDelta(sorted.delta(0));
+      hashed.put("KEY3", "NEW");
+      mapped.delete("KEY3");
+      hashed.mergeDelta(sorted.delta(0));
+      mapped.merge(hashed);
+      sorted.merge(mapped);
+      hashed.merge(sorted);
+      trie.merge(hashed);
+
+      for (MapCrdt replica : Arrays.asList(hashed, sorted, mapped, trie))
+      {
+         assertEquals("VALUE1", replica.get("KEY1"));
+         assertEquals("VALUE2", replica.get("KEY2"));
+         assertEquals(0, replica.logs.get("KEY3").compareTo(hashed.logs.get("KEY3")));
+         assertEquals(3, replica.logs.size());
+      }
+
+      String previous = "";
+      for (Map.Entry<String, MapCrdtLogEntry> entry : sorted.logs)
+      {
+         assertTrue(previous.compareTo(entry.getKey()) < 0);
+         previous = entry.getKey();
+      }
+
+      try
+      {
+         new ConcurrentMapCrdt(4, new MapCrdtHybridClock(), new MapCrdtMappedLogs(4096, 0));
+         assertTrue(false);
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+   }
+
+   /**
+   * This test checks that the metrics count the operations and the conflicts resolved by a merge,
+   * and are exported through JMX.
+   **/
+   @Test
+   public void testMetrics() throws Exception
+   {
+      MapCrdt replica = new MapCrdt();
+      MapCrdtMetrics metrics = replica.enableMetrics();
+      assertTrue(metrics == replica.enableMetrics());
+
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.put("KEY4", "VALUE4");
+      replica.delete("KEY2");
+      assertEquals("VALUE1", replica.get("KEY1"));
+      assertEquals(3, metrics.getPutCount());
+      assertEquals(1, metrics.getDeleteCount());
+      assertEquals(1, metrics.getGetCount());
+      assertEquals(5, metrics.getLockWaitCount());
+
+      // KEY1 ties and is kept, the PUT of KEY2 wins over its tombstone, KEY3 is new and the DELETE
+      // of KEY4 wins over its PUT.
+      MapCrdtLogEntry info1 = replica.logs.get("KEY1");
+      MapCrdtLogEntry info2 = replica.logs.get("KEY2");
+      MapCrdtLogEntry info4 = replica.logs.get("KEY4");
+      MapCrdtDelta delta = new MapCrdtDelta(1000000, 0, 4);
+      delta.entries.put("KEY1", new MapCrdtLogEntry(1000000, info1.time, MapCrdtLogEntry.Type.PUT,
+                                                    "OTHER"));
+      delta.entries.put("KEY2", new MapCrdtLogEntry(1000000, info2.time + 1,
+                                                    MapCrdtLogEntry.Type.PUT, "NEW"));
+      delta.entries.put("KEY3", new MapCrdtLogEntry(1000000, info1.time, MapCrdtLogEntry.Type.PUT,
+                                                    "VALUE3"));
+      delta.entries.put("KEY4", new MapCrdtLogEntry(1000000, info4.time + 1,
+                                                    MapCrdtLogEntry.Type.DELETE, null));
+      replica.mergeDelta(delta);
+
+      assertEquals("VALUE1", replica.get("KEY1"));
+      assertEquals(1, metrics.getMergeCount());
+      assertEquals(4, metrics.getKeysScanned());
+      assertEquals(3, metrics.getEntriesReplaced());
+      assertEquals(1, metrics.getReplicaIdTieBreaks());
+      assertEquals(1, metrics.getPutWins());
+      assertEquals(1, metrics.getDeleteWins());
+      assertEquals(4, metrics.getLogSize());
+      assertEquals(1, metrics.getTombstoneCount());
+      assertTrue(metrics.getPutLatency().getPercentile(100) >= metrics.getPutLatency().getMean());
+
+      metrics.register();
+      ObjectName name = new ObjectName("MapCrdt:type=Replica,id=" + replica.getReplicaId());
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertEquals(3L, server.getAttribute(name, "PutCount"));
+      assertEquals(1, server.getAttribute(name, "TombstoneCount"));
+      metrics.unregister();
+      assertTrue(server.isRegistered(name) == false);
+   }
+
+   /**
+   * Gets the keys given by an iterator over keys and values.
+   * @param entries the iterator.
+   * @return the keys, in the order of the iteration.
+   **/
+   protected static List<String> keys(Iterator<Map.Entry<String, String>> entries)
+   {
+      List<String> keys = new ArrayList<String>();
+
+      while (entries.hasNext() == true)
+      {
+         keys.add(entries.next().getKey());
+      }
+
+      return keys;
+   }
+
+   /**
+   * This test checks that range and prefix scans give the keys with a value in order, whatever
+   * the kind of replica, and that the index follows the modifications made after it is built.
+   **/
+   @Test
+   public void testScan()
+   {
+      MapCrdt other = new MapCrdt();
+      other.put("user:2:a", "OTHER");
+
+      for (MapCrdt replica : Arrays.asList(new MapCrdt(), new ConcurrentMapCrdt(),
+                                           new MapCrdt(new MapCrdtMappedLogs(4096, 0)),
+                                           this.newEventLoop()))
+      {
+         replica.put("user:1:b", "B");
+         replica.put("user:1:a", "A");
+         replica.put("user:12:a", "C");
+         replica.put("user:1:c", "D");
+         replica.delete("user:1:c");
+
+         assertEquals(Arrays.asList("user:1:a", "user:1:b"), keys(replica.prefix("user:1:")));
+         // Keys are compared char by char, and ':' follows the digits.
+         assertEquals(Arrays.asList("user:12:a", "user:1:a", "user:1:b"),
+                      keys(replica.scan("user:1", "user:2")));
+         assertEquals(Arrays.asList("user:12:a"), keys(replica.scan("user:11", "user:13")));
+         assertTrue(replica.scan("user:2", "user:1").hasNext() == false);
+
+         Iterator<Map.Entry<String, String>> entries = replica.prefix("user:1:a");
+         assertEquals("A", entries.next().getValue());
+         assertTrue(entries.hasNext() == false);
+
+         // The index is built, later modifications and merges update it.
+         replica.put("user:1:c", "E");
+         replica.delete("user:1:a");
+         replica.merge(other);
+         assertEquals(Arrays.asList("user:12:a", "user:1:b", "user:1:c", "user:2:a"),
+                      keys(replica.scan(null, null)));
+         assertEquals(5, replica.getSortedIndex().size());
+      }
+
+      // A reclaimed tombstone leaves the index.
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+      replica1.addPeer(replica2.getReplicaId());
+      replica1.put("KEY1", "VALUE1");
+      replica1.put("KEY2", "VALUE2");
+      replica1.delete("KEY1");
+      assertEquals(2, replica1.getSortedIndex().size());
+      replica2.mergeDelta(replica1.delta(0));
+      replica1.mergeDelta(replica2.delta(0));
+      assertEquals(1, replica1.collectGarbage());
+      assertEquals(1, replica1.getSortedIndex().size());
+      assertEquals(Arrays.asList("KEY2"), keys(replica1.scan(null, null)));
+   }
+
+   /**
+   * This test checks that the values put into and merged by replicas sharing an intern table are
+   * stored once, whatever the kind of replica.
+   **/
+   @Test
+   public void testInterning()
+   {
+      MapCrdtInterner interner = new MapCrdtInterner(64);
+      MapCrdt plain = new MapCrdt();
+      ConcurrentMapCrdt concurrent = new ConcurrentMapCrdt();
+      MapCrdt other = new MapCrdt();
+
+      assertNull(plain.getInterner());
+      assertTrue(plain.enableInterning(interner) == interner);
+      assertTrue(plain.enableInterning() == interner);
+      concurrent.enableInterning(interner);
+
+      plain.put("KEY1", new String("ACTIVE"));
+      concurrent.put("KEY2", new String("ACTIVE"));
+      Map<String, String> entries = new HashMap<String, String>();
+      entries.put("KEY3", new String("ACTIVE"));
+      entries.put("KEY4", null);
+      concurrent.putAll(entries);
+      other.put("KEY5", new String("ACTIVE"));
+      plain.mergeDelta(other.delta(0));
+      concurrent.merge(other);
+
+      String value = plain.get("KEY1");
+      assertTrue(value == concurrent.get("KEY2"));
+      assertTrue(value == concurrent.get("KEY3"));
+      assertTrue(value == plain.get("KEY5"));
+      assertTrue(value == concurrent.get("KEY5"));
+      assertNull(concurrent.get("KEY4"));
+      assertEquals(4, interner.getHits());
+      assertEquals(1, interner.getMisses());
+
+      // An entry whose value is already the interned one is shared as is.
+      MapCrdt shared = new MapCrdt();
+      shared.enableInterning(interner);
+      shared.merge(plain);
+      assertTrue(shared.logs.get("KEY5") == plain.logs.get("KEY5"));
+      assertEquals(6, interner.getHits());
+   }
+
+   /**
+   * This test checks that keys and values given as bytes are stored and read back unchanged,
+   * whatever their bytes, and that the keys are ordered as their unsigned bytes.
+   **/
+   @Test
+   public void testBytes()
+   {
+      byte[] all = new byte[256];
+      for (int i = 0; i < all.length; i++)
+      {
+         all[i] = (byte) i;
+      }
+
+      for (MapCrdt replica : Arrays.asList(new MapCrdt(), new ConcurrentMapCrdt(),
+                                           new MapCrdt(new MapCrdtMappedLogs(4096, 0))))
+      {
+         replica.putBytes(all, all);
+         replica.putBytes(new byte[] {0x7f}, new byte[] {1});
+         replica.putBytes(new byte[] {(byte) 0x80}, new byte[] {2});
+         replica.putBytes(new byte[] {(byte) 0xff, 0}, new byte[0]);
+         replica.putBytes(new byte[] {1}, null);
+         replica.deleteBytes(new byte[] {(byte) 0x80});
+
+         assertTrue(Arrays.equals(all, replica.getBytes(all)));
+         assertTrue(Arrays.equals(new byte[0], replica.getBytes(new byte[] {(byte) 0xff, 0})));
+         assertNull(replica.getBytes(new byte[] {(byte) 0x80}));
+         assertNull(replica.getBytes(new byte[] {1}));
+         assertNull(replica.getBytes(new byte[] {2}));
+         assertTrue(Arrays.equals(new byte[] {1}, replica.getBytes(new byte[] {0x7f})));
+
+         List<String> expected = new ArrayList<String>();
+         for (byte[] key : Arrays.asList(all, new byte[] {1}, new byte[] {0x7f},
+                                         new byte[] {(byte) 0xff, 0}))
+         {
+            expected.add(MapCrdtBytes.wrap(key));
+         }
+         assertEquals(expected, keys(replica.scan(null, null)));
+      }
+
+      MapCrdt replica = new MapCrdt();
+      replica.put("KEY", "\u20ac");
+      try
+      {
+         replica.getBytes(MapCrdtBytes.unwrap("KEY"));
+         assertTrue(false);
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+   }
+
+   /**
+   * This test checks that keys and values given as buffers are the same as the keys and values
+   * given as byte arrays, without moving the buffers, and that keys given as bytes and as strings
+   * share the same keys.
+   **/
+   @Test
+   public void testByteBuffers()
+   {
+      MapCrdt replica = new MapCrdt();
+      byte[] key = new byte[] {1, (byte) 0xe9, (byte) 0xff};
+      byte[] value = new byte[] {(byte) 0x80, 0, 2};
+
+      ByteBuffer heapKey = ByteBuffer.allocate(5);
+      heapKey.put((byte) 9).put(key).flip();
+      heapKey.position(1);
+      ByteBuffer directValue = ByteBuffer.allocateDirect(3);
+      directValue.put(value).flip();
+      replica.putBytes(heapKey, directValue);
+      assertEquals(1, heapKey.position());
+      assertEquals(0, directValue.position());
+      assertTrue(Arrays.equals(value, replica.getBytes(key)));
+      assertTrue(Arrays.equals(value, replica.getBytes(ByteBuffer.wrap(key))));
+
+      // The bytes of a key are the key whose chars have their codes.
+      assertEquals(MapCrdtBytes.wrap(value), replica.get("\u0001\u00e9\u00ff"));
+      replica.put("cl\u00e9", "\u00e9t\u00e9");
+      assertTrue(Arrays.equals(new byte[] {(byte) 0xe9, 't', (byte) 0xe9},
+                               replica.getBytes(new byte[] {'c', 'l', (byte) 0xe9})));
+      replica.put("cl\u00e9", "\u20ac");
+      try
+      {
+         replica.getBytes(ByteBuffer.wrap(new byte[] {'c', 'l', (byte) 0xe9}));
+         assertTrue(false);
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+
+      replica.deleteBytes(ByteBuffer.wrap(key));
+      assertNull(replica.getBytes(key));
+   }
+
+   /**
+   * This test checks that a replica asking for the entries after its version vector gets exactly
+   * the entries it is missing, the entries of third replicas included, whatever the kind of
+   * replica, and that deltas missing modifications do not advance the vector.
+   **/
+   @Test
+   public void testVersionVectors()
+   {
+      for (MapCrdt origin : Arrays.asList(new MapCrdt(), new ConcurrentMapCrdt(),
+                                          new MapCrdt(new MapCrdtMappedLogs(4096, 0)),
+                                          this.newEventLoop()))
+      {
+         MapCrdt relay = new ConcurrentMapCrdt();
+         MapCrdt replica = new MapCrdt();
+
+         for (int i = 0; i < 100; i++)
+         {
+            origin.put("KEY" + i, "VALUE" + i);
+         }
+         relay.mergeMissing(origin);
+         relay.put("RELAY", "VALUE");
+
+         // The entries of the origin reach the replica through the relay.
+         replica.mergeMissing(relay);
+         assertEquals(101, replica.getLogSize());
+         assertTrue(replica.getVersionVector().covers(origin.getVersionVector()));
+         assertEquals(relay.getVersion(), replica.getAcknowledgedVersion(relay.getReplicaId()));
+
+         origin.put("KEY1", "NEW");
+         origin.delete("KEY2");
+         origin.put("KEY100", "VALUE100");
+         MapCrdtDelta delta = origin.delta(replica.getVersionVector());
+         assertEquals(3, delta.size());
+         replica.mergeDelta(delta);
+         assertEquals(origin.getVersion(), replica.getAcknowledgedVersion(origin.getReplicaId()));
+
+         // The relay gets the new entries of the origin from the replica, and nothing else.
+         delta = replica.delta(relay.getVersionVector());
+         assertEquals(3, delta.size());
+         relay.mergeDelta(delta);
+         assertEquals(0, relay.delta(replica.getVersionVector()).size());
+         assertEquals(0, replica.delta(relay.getVersionVector()).size());
+         assertEquals("NEW", relay.get("KEY1"));
+         assertNull(relay.get("KEY2"));
+         assertEquals(replica.getMerkleTree().getRootHash(), relay.getMerkleTree().getRootHash());
+      }
+
+      MapCrdt replica1 = new MapCrdt();
+      MapCrdt replica2 = new MapCrdt();
+      MapCrdt replica3 = new MapCrdt();
+      replica1.put("KEY1", "VALUE1");
+      replica2.merge(replica1);
+      replica2.put("KEY2", "VALUE2");
+
+      // A delta after a vector the replica does not cover misses the entries of the first replica.
+      replica3.mergeDelta(replica2.delta(replica1.getVersionVector()));
+      assertEquals(1, replica3.getLogSize());
+      assertEquals(0, replica3.getVersionVector().size());
+      replica3.mergeMissing(replica2);
+      assertEquals(2, replica3.getLogSize());
+      assertTrue(replica3.getVersionVector().covers(replica2.getVersionVector()));
+
+      // Neither merging a snapshot nor the buckets of a tree advances the vector.
+      assertEquals(0, replica2.getVersionVector().get(replica1.getReplicaId()));
+      MapCrdt replica4 = new MapCrdt();
+      replica4.mergeDifferences(replica1);
+      assertEquals("VALUE1", replica4.get("KEY1"));
+      assertEquals(0, replica4.getVersionVector().size());
+   }
 }
@@ -0,0 +1,148 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* Represents a version vector of a map CRDT replica: for each replica which made operations, the
+* timestamp of its last operation the replica has seen. The timestamps given by the clock of a
+* replica increase, so the id of a replica and the timestamp of one of its operations, the dot of
+* the operation, identify it (see MapCrdtLogEntry). A replica whose vector gives a timestamp for
+* an other replica holds the result of every operation of this replica up to the timestamp, or a
+* newer entry of the same key: a peer only has to send the entries whose dot is after the vector,
+* which are exactly the missing ones. The vector can be read and advanced concurrently, a
+* timestamp only increases.
+**/
+public class MapCrdtVersionVector
+{
+   /**
+   * The timestamp of the last operation seen of each replica, indexed by replica's id.
+   **/
+   protected ConcurrentHashMap<Integer, Long> times;
+
+   /**
+   * Default constructor, creates an empty vector.
+   **/
+   public MapCrdtVersionVector()
+   {
+      this.times = new ConcurrentHashMap<Integer, Long>();
+   }
+
+   /**
+   * Advances the timestamp of a replica, unless it is already later.
+   * @param replicaId the unique id of the replica.
+   * @param time the timestamp of an operation of the replica.
+   * @return true if the timestamp of the replica has been advanced, false otherwise.
+   **/
+   public boolean advance(int replicaId, long time)
+   {
+      while (true)
+      {
+         Long known = this.times.putIfAbsent(replicaId, time);
+
+         if (known == null)
+         {
+            return true;
+         }
+         if (known >= time)
+         {
+            return false;
+         }
+         if (this.times.replace(replicaId, known, time) == true)
+         {
+            return true;
+         }
+      }
+   }
+
+   /**
+   * Creates a copy of the vector, which is not modified with the vector.
+   * @return the copy.
+   **/
+   public MapCrdtVersionVector copy()
+   {
+      MapCrdtVersionVector copy = new MapCrdtVersionVector();
+      copy.times.putAll(this.times);
+
+      return copy;
+   }
+
+   /**
+   * Tells if the vector covers the operation of a log entry, the deletion for a tombstone.
+   * @param info the log entry.
+   * @return true if the timestamp of the replica of the dot of the entry is not before the dot's
+   * one, false if the dot is unknown.
+   **/
+   public boolean covers(MapCrdtLogEntry info)
+   {
+      return info.hasDot() == true && info.getDotTime() <= this.get(info.getDotReplicaId());
+   }
+
+   /**
+   * Tells if the vector covers an other vector: each of its timestamps is not before the timestamp
+   * of the same replica in the other vector.
+   * @param other the other vector.
+   * @return true if every operation covered by the other vector is covered by this one.
+   **/
+   public boolean covers(MapCrdtVersionVector other)
+   {
+      for (Map.Entry<Integer, Long> entry : other.times.entrySet())
+      {
+         if (this.get(entry.getKey()) < entry.getValue())
+         {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+   * Gets the timestamp of the last operation seen of a replica.
+   * @param replicaId the unique id of the replica.
+   * @return the timestamp, 0 if no operation of the replica has been seen.
+   **/
+   public long get(int replicaId)
+   {
+      Long time = this.times.get(replicaId);
+
+      return time == null ? 0 : time;
+   }
+
+   /**
+   * Gets the timestamps of the vector.
+   * @return the timestamps indexed by replica's id.
+   **/
+   public Map<Integer, Long> getTimes()
+   {
+      return this.times;
+   }
+
+   /**
+   * Advances the timestamps of the vector to the timestamps of an other vector which are later.
+   * @param other the other vector.
+   **/
+   public void merge(MapCrdtVersionVector other)
+   {
+      for (Map.Entry<Integer, Long> entry : other.times.entrySet())
+      {
+         this.advance(entry.getKey(), entry.getValue());
+      }
+   }
+
+   /**
+   * Gets the number of replicas whose operations have been seen.
+   * @return the number of timestamps of the vector.
+   **/
+   public int size()
+   {
+      return this.times.size();
+   }
+
+   /**
+   * Creates a string containing the timestamps of the vector.
+   * @return a string containing the vector's information.
+   **/
+   public String toString()
+   {
+      return this.times.toString();
+   }
+}
@@ -0,0 +1,709 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+* Represents a write-ahead log of the modifications of a map CRDT replica. Modifications are
+* appended to an in-memory batch, and a flusher thread writes and forces the batch to the current
+* log file when it contains enough records, enough bytes, or when its oldest record has waited long
+* enough (group commit). Each modification gets a sequence number, and a caller can wait until the
+* modification with a given sequence number is durable.
+* <p>
+* Log files are numbered by generation (wal.N). A checkpoint writes a snapshot of the replica
+* (snapshot.N, in the format of MapCrdtCodec) and starts a new generation, then deletes the older
+* log files and snapshots. Recovering the replica merges the last snapshot and the log files written
+* after it; since merges are idempotent, replaying a modification already in the snapshot is
+* harmless. A record is made of its length, the CRC32C of its content and its content (a log entry
+* encoded alone as in MapCrdtCodec, with the dot of a deletion), so a record torn by a crash ends
+* the replay.
+**/
+public class MapCrdtWriteAheadLog
+{
+   /**
+   * The default maximum number of records of a batch.
+   **/
+   public static final int DEFAULT_MAX_BATCH_COUNT = 1024;
+
+   /**
+   * The default maximum number of bytes of a batch.
+   **/
+   public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+
+   /**
+   * The default maximum number of milliseconds a record waits before its batch is flushed.
+   **/
+   public static final long DEFAULT_MAX_DELAY = 2;
+
+   /**
+   * The size of the header of a record: length and CRC32C of the content.
+   **/
+   protected static final int RECORD_HEADER_SIZE = 8;
+
+   /**
+   * The directory containing the log files and the snapshots.
+   **/
+   protected Path directory;
+
+   /**
+   * The maximum number of records of a batch.
+   **/
+   protected int maxBatchCount;
+
+   /**
+   * The maximum number of bytes of a batch.
+   **/
+   protected int maxBatchBytes;
+
+   /**
+   * The maximum number of milliseconds a record waits before its batch is flushed.
+   **/
+   protected long maxDelay;
+
+   /**
+   * The generation of the log file records are appended to.
+   **/
+   protected long generation;
+
+   /**
+   * The channel of the current log file.
+   **/
+   protected FileChannel channel;
+
+   /**
+   * The records appended but not yet written.
+   **/
+   protected ByteBuffer pending;
+
+   /**
+   * The position in the pending records from which records belong to the next generation, -1 if
+   * no new generation has been started since the last flush.
+   **/
+   protected int rollPosition;
+
+   /**
+   * The number of pending records.
+   **/
+   protected int pendingCount;
+
+   /**
+   * The time, in milliseconds, at which the oldest pending record has been appended.
+   **/
+   protected long pendingSince;
+
+   /**
+   * The sequence number of the last appended record.
+   **/
+   protected long appended;
+
+   /**
+   * The sequence number of the last durable record.
+   **/
+   protected long durable;
+
+   /**
+   * The error which stopped the flusher, null if no error occurred.
+   **/
+   protected IOException failure;
+
+   /**
+   * Tells if the log is closed.
+   **/
+   protected boolean closed;
+
+   /**
+   * The thread writing and forcing the batches.
+   **/
+   protected Thread flusher;
+
+   /**
+   * Opens the write-ahead log stored in a directory, recover should be called before start.
+   * @param directory the directory containing the log files and the snapshots.
+   * @param maxBatchCount the maximum number of records of a batch.
+   * @param maxBatchBytes the maximum number of bytes of a batch.
+   * @param maxDelay the maximum number of milliseconds a record waits before being flushed, 0 to
+   * flush as soon as the previous batch has been forced.
+   * @throws IOException if the directory cannot be created.
+   **/
+   public MapCrdtWriteAheadLog(Path directory, int maxBatchCount, int maxBatchBytes, long maxDelay)
+      throws IOException
+   {
+      if (maxBatchCount < 1 || maxBatchBytes < 1 || maxDelay < 0)
+      {
+         throw new IllegalArgumentException("Invalid group commit configuration.");
+      }
+
+      this.directory = directory;
+      this.maxBatchCount = maxBatchCount;
+      this.maxBatchBytes = maxBatchBytes;
+      this.maxDelay = maxDelay;
+      this.pending = ByteBuffer.allocate(Math.min(maxBatchBytes, 64 * 1024));
+      this.rollPosition = -1;
+
+      Files.createDirectories(directory);
+   }
+
+   /**
+   * Appends a modification to the pending batch. The caller blocks while the pending records take
+   * more than four batches, so a slow storage device slows down the modifications.
+   * @param key the key of the modification.
+   * @param info the new log entry of the key.
+   * @return the sequence number of the modification.
+   **/
+   public synchronized long append(String key, MapCrdtLogEntry info)
+   {
+      this.checkOpen();
+
+      boolean interrupted = false;
+      while (this.pending.position() > 4L * this.maxBatchBytes && this.failure == null)
+      {
+         if (this.waitUninterruptibly(0) == true)
+         {
+            interrupted = true;
+         }
+      }
+      this.restoreInterruption(interrupted);
+      this.checkOpen();
+
+      int size = MapCrdtCodec.entrySize(key, info);
+      if (this.pending.remaining() < RECORD_HEADER_SIZE + size)
+      {
+         int capacity = Math.max(this.pending.capacity() * 2,
+                                 this.pending.position() + RECORD_HEADER_SIZE + size);
+         ByteBuffer larger = ByteBuffer.allocate(capacity);
+         this.pending.flip();
+         larger.put(this.pending);
+         this.pending = larger;
+      }
+
+      int start = this.pending.position();
+      this.pending.position(start + RECORD_HEADER_SIZE);
+      MapCrdtCodec.encodeEntry(key, info, this.pending);
+
+      CRC32C crc = new CRC32C();
+      crc.update(this.pending.array(), start + RECORD_HEADER_SIZE, size);
+      this.pending.putInt(start, size);
+      this.pending.putInt(start + 4, (int) crc.getValue());
+
+      if (this.pendingCount == 0)
+      {
+         this.pendingSince = System.currentTimeMillis();
+      }
+      this.pendingCount++;
+      this.notifyAll();
+
+      return ++this.appended;
+   }
+
+   /**
+   * Writes a snapshot of a replica and deletes the log files and snapshots it makes useless. The
+   * snapshot is taken, and a new log generation started, while holding the monitor of the replica
+   * so that every modification is either in the snapshot or in the new generation.
+   * @param replica the replica whose modifications are appended to this log.
+   * @throws IOException if the snapshot cannot be written.
+   **/
+   public void checkpoint(MapCrdt replica) throws IOException
+   {
+      MapCrdtDelta state;
+      long snapshotGeneration;
+      long sequence;
+
+      synchronized (replica)
+      {
+         state = replica.delta(0);
+
+         synchronized (this)
+         {
+            this.checkOpen();
+
+            // Only one generation can be started per batch.
+            boolean interrupted = false;
+            while (this.rollPosition >= 0 && this.failure == null)
+            {
+               if (this.waitUninterruptibly(0) == true)
+               {
+                  interrupted = true;
+               }
+            }
+            this.restoreInterruption(interrupted);
+            this.checkOpen();
+
+            this.rollPosition = this.pending.position();
+            this.generation++;
+            snapshotGeneration = this.generation;
+            sequence = this.appended;
+            this.notifyAll();
+         }
+      }
+
+      // The snapshot is written once the previous generation is durable, before the older files
+      // are deleted.
+      this.sync(sequence);
+
+      Path temporary = this.directory.resolve("snapshot." + snapshotGeneration + ".tmp");
+      try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING))
+      {
+         MapCrdtCodec.write(state, file);
+         file.force(true);
+      }
+      Files.move(temporary, this.directory.resolve("snapshot." + snapshotGeneration),
+                 StandardCopyOption.ATOMIC_MOVE);
+
+      for (Path file : this.listFiles())
+      {
+         if (this.generationOf(file) < snapshotGeneration)
+         {
+            Files.deleteIfExists(file);
+         }
+      }
+   }
+
+   /**
+   * Throws an exception if the log is closed or if the flusher failed.
+   **/
+   protected void checkOpen()
+   {
+      if (this.failure != null)
+      {
+         throw new UncheckedIOException("The write-ahead log failed.", this.failure);
+      }
+
+      if (this.closed == true)
+      {
+         throw new IllegalStateException("The write-ahead log is closed.");
+      }
+   }
+
+   /**
+   * Flushes the pending records, stops the flusher and closes the current log file.
+   * @throws IOException if the pending records cannot be written.
+   **/
+   public void close() throws IOException
+   {
+      Thread flusher;
+
+      synchronized (this)
+      {
+         if (this.closed == true)
+         {
+            return;
+         }
+
+         this.closed = true;
+         flusher = this.flusher;
+         this.notifyAll();
+      }
+
+      if (flusher != null)
+      {
+         try
+         {
+            flusher.join();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      if (this.channel != null)
+      {
+         this.channel.close();
+      }
+
+      if (this.failure != null)
+      {
+         throw this.failure;
+      }
+   }
+
+   /**
+   * Writes and forces batches until the log is closed, run by the flusher thread.
+   **/
+   protected void flushLoop()
+   {
+      ByteBuffer spare = ByteBuffer.allocate(this.pending.capacity());
+
+      while (true)
+      {
+         ByteBuffer batch;
+         int rollPosition;
+         long generation;
+         long sequence;
+
+         synchronized (this)
+         {
+            // The batch is flushed when it is full, when its oldest record has waited long enough,
+            // when a new generation is started or when the log is closed. The flusher is only
+            // stopped by close, an interruption is ignored.
+            while (this.closed == false && this.rollPosition < 0)
+            {
+               if (this.pendingCount == 0)
+               {
+                  this.waitUninterruptibly(0);
+                  continue;
+               }
+
+               long remaining = this.pendingSince + this.maxDelay - System.currentTimeMillis();
+               if (this.pendingCount >= this.maxBatchCount ||
+                   this.pending.position() >= this.maxBatchBytes || remaining <= 0)
+               {
+                  break;
+               }
+
+               this.waitUninterruptibly(remaining);
+            }
+
+            if (this.closed == true && this.pendingCount == 0 && this.rollPosition < 0)
+            {
+               return;
+            }
+
+            batch = this.pending;
+            this.pending = spare;
+            this.pending.clear();
+            // No other generation can be started before the batch is taken.
+            rollPosition = this.rollPosition;
+            generation = this.generation;
+            this.rollPosition = -1;
+            this.pendingCount = 0;
+            sequence = this.appended;
+            this.notifyAll();
+         }
+
+         try
+         {
+            batch.flip();
+            if (rollPosition >= 0)
+            {
+               int limit = batch.limit();
+               batch.limit(rollPosition);
+               this.write(batch);
+               this.channel.close();
+               this.channel = this.openGeneration(generation);
+               batch.limit(limit);
+            }
+            this.write(batch);
+         }
+         catch (IOException e)
+         {
+            synchronized (this)
+            {
+               this.failure = e;
+               this.notifyAll();
+            }
+            return;
+         }
+
+         synchronized (this)
+         {
+            this.durable = sequence;
+            this.notifyAll();
+         }
+
+         spare = batch.capacity() <= 4 * this.maxBatchBytes ? batch : ByteBuffer.allocate(1024);
+      }
+   }
+
+   /**
+   * Gets the generation of a log file or a snapshot from its name.
+   * @param file the path of the file.
+   * @return the generation, or -1 if the file is not a log file nor a snapshot.
+   **/
+   protected long generationOf(Path file)
+   {
+      String name = file.getFileName().toString();
+      int dot = name.indexOf('.');
+
+      if (dot < 0 || (name.startsWith("wal.") == false && name.startsWith("snapshot.") == false))
+      {
+         return -1;
+      }
+
+      try
+      {
+         return Long.parseLong(name.substring(dot + 1));
+      }
+      catch (NumberFormatException e)
+      {
+         return -1;
+      }
+   }
+
+   /**
+   * Lists the log files and snapshots of the directory.
+   * @return the files.
+   * @throws IOException if the directory cannot be read.
+   **/
+   protected List<Path> listFiles() throws IOException
+   {
+      List<Path> files = new ArrayList<Path>();
+
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory))
+      {
+         for (Path file : stream)
+         {
+            if (this.generationOf(file) >= 0)
+            {
+               files.add(file);
+            }
+         }
+      }
+
+      return files;
+   }
+
+   /**
+   * Opens the log file of a generation for appending.
+   * @param generation the generation.
+   * @return the channel of the log file.
+   * @throws IOException if the file cannot be opened.
+   **/
+   protected FileChannel openGeneration(long generation) throws IOException
+   {
+      FileChannel channel = FileChannel.open(this.directory.resolve("wal." + generation),
+                                             StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                             StandardOpenOption.APPEND);
+      this.forceDirectory();
+
+      return channel;
+   }
+
+   /**
+   * Forces the directory so that created and renamed files survive a crash of the system.
+   **/
+   protected void forceDirectory()
+   {
+      try (FileChannel channel = FileChannel.open(this.directory, StandardOpenOption.READ))
+      {
+         channel.force(true);
+      }
+      catch (IOException e)
+      {
+         // Some systems do not allow to open directories, the files are forced anyway.
+      }
+   }
+
+   /**
+   * Reads the last snapshot and the log files written after it. Log files are truncated after
+   * their last valid record.
+   * @return a delta containing the recovered log entries.
+   * @throws IOException if the files cannot be read.
+   **/
+   public MapCrdtDelta recover() throws IOException
+   {
+      TreeMap<Long, Path> logFiles = new TreeMap<Long, Path>();
+      long snapshotGeneration = -1;
+
+      for (Path file : this.listFiles())
+      {
+         long generation = this.generationOf(file);
+
+         if (file.getFileName().toString().startsWith("wal.") == true)
+         {
+            logFiles.put(generation, file);
+         }
+         else
+         {
+            snapshotGeneration = Math.max(snapshotGeneration, generation);
+         }
+      }
+
+      MapCrdtDelta recovered = new MapCrdtDelta(0, 0, 0);
+
+      if (snapshotGeneration >= 0)
+      {
+         Path snapshot = this.directory.resolve("snapshot." + snapshotGeneration);
+         try (FileChannel file = FileChannel.open(snapshot, StandardOpenOption.READ))
+         {
+            recovered = MapCrdtCodec.read(file);
+         }
+      }
+
+      for (Path file : logFiles.tailMap(snapshotGeneration, true).values())
+      {
+         this.replay(file, recovered);
+      }
+
+      this.generation = Math.max(snapshotGeneration, logFiles.isEmpty() ? 0 : logFiles.lastKey());
+
+      return recovered;
+   }
+
+   /**
+   * Replays the records of a log file, the file is truncated after its last valid record.
+   * @param file the log file.
+   * @param recovered the delta the log entries are merged into.
+   * @throws IOException if the file cannot be read.
+   **/
+   protected void replay(Path file, MapCrdtDelta recovered) throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+      MapCrdtDelta record = new MapCrdtDelta(0, 0, 0);
+      CRC32C crc = new CRC32C();
+
+      while (buffer.remaining() >= RECORD_HEADER_SIZE)
+      {
+         int start = buffer.position();
+         int size = buffer.getInt();
+         int checksum = buffer.getInt();
+
+         if (size <= 0 || size > buffer.remaining())
+         {
+            buffer.position(start);
+            break;
+         }
+
+         crc.reset();
+         crc.update(buffer.array(), buffer.position(), size);
+         if ((int) crc.getValue() != checksum)
+         {
+            buffer.position(start);
+            break;
+         }
+
+         record.entries.clear();
+         MapCrdtCodec.decodeEntry(buffer, record);
+         buffer.position(start + RECORD_HEADER_SIZE + size);
+
+         for (Map.Entry<String, MapCrdtLogEntry> entry : record.entries.entrySet())
+         {
+            MapCrdtLogEntry current = recovered.entries.get(entry.getKey());
+            if (current == null || current.compareTo(entry.getValue()) < 0)
+            {
+               recovered.entries.put(entry.getKey(), entry.getValue());
+            }
+         }
+      }
+
+      if (buffer.position() < buffer.limit())
+      {
+         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+         {
+            channel.truncate(buffer.position());
+            channel.force(true);
+         }
+      }
+   }
+
+   /**
+   * Restores the interruption of the current thread once it has stopped waiting. It is not
+   * restored while waiting: every later wait would then fail at once and the thread would spin.
+   * @param interrupted true if the thread has been interrupted while waiting.
+   **/
+   protected void restoreInterruption(boolean interrupted)
+   {
+      if (interrupted == true)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+   * Opens the log file of the current generation and starts the flusher thread.
+   * @throws IOException if the log file cannot be opened.
+   **/
+   public synchronized void start() throws IOException
+   {
+      if (this.flusher != null)
+      {
+         return;
+      }
+
+      this.channel = this.openGeneration(this.generation);
+      this.flusher = new Thread("map-crdt-wal-flusher")
+      {
+         public void run()
+         {
+            MapCrdtWriteAheadLog.this.flushLoop();
+         }
+      };
+      this.flusher.setDaemon(true);
+      this.flusher.start();
+   }
+
+   /**
+   * Waits until the record with a given sequence number is durable.
+   * @param sequence the sequence number of the record.
+   **/
+   public synchronized void sync(long sequence)
+   {
+      boolean interrupted = false;
+
+      try
+      {
+         while (this.durable < sequence)
+         {
+            if (this.failure != null)
+            {
+               throw new UncheckedIOException("The write-ahead log failed.", this.failure);
+            }
+
+            if (this.closed == true && this.flusher == null)
+            {
+               throw new IllegalStateException("The write-ahead log is closed.");
+            }
+
+            if (this.waitUninterruptibly(0) == true)
+            {
+               interrupted = true;
+            }
+         }
+      }
+      finally
+      {
+         this.restoreInterruption(interrupted);
+      }
+   }
+
+   /**
+   * Waits on the monitor of the log, an interruption stops the wait and is reported to the caller.
+   * @param timeout the maximum time to wait in milliseconds, 0 to wait until notified.
+   * @return true if the thread has been interrupted while waiting, false otherwise.
+   **/
+   protected boolean waitUninterruptibly(long timeout)
+   {
+      try
+      {
+         this.wait(timeout);
+         return false;
+      }
+      catch (InterruptedException e)
+      {
+         return true;
+      }
+   }
+
+   /**
+   * Writes a batch to the current log file and forces it.
+   * @param batch the batch, ready to be read.
+   * @throws IOException if the batch cannot be written.
+   **/
+   protected void write(ByteBuffer batch) throws IOException
+   {
+      if (batch.hasRemaining() == false)
+      {
+         return;
+      }
+
+      while (batch.hasRemaining() == true)
+      {
+         this.channel.write(batch);
+      }
+
+      this.channel.force(false);
+   }
+}
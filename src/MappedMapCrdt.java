@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+* Represents a state-based map CRDT replica whose logs are stored in memory-mapped files. The
+* replica keeps its unique id and local version across restarts, and reopening it only maps the
+* files: log entries are read from the files when they are accessed.
+**/
+public class MappedMapCrdt extends MapCrdt
+{
+   /**
+   * The logs stored in the memory-mapped files, also referenced by the logs of the replica.
+   **/
+   protected MapCrdtMappedLogs mappedLogs;
+
+   /**
+   * Opens the replica stored in a directory, or creates a new replica if the directory does not
+   * contain one.
+   * @param directory the directory containing the files of the replica.
+   * @throws IOException if the files cannot be opened or are not valid.
+   **/
+   public MappedMapCrdt(Path directory) throws IOException
+   {
+      this(directory, MapCrdtMappedLogs.DEFAULT_SEGMENT_SIZE);
+   }
+
+   /**
+   * Opens the replica stored in a directory with a given size of mapped segments.
+   * @param directory the directory containing the files of the replica.
+   * @param segmentSize the size of the mapped segments, a power of two multiple of 8.
+   * @throws IOException if the files cannot be opened or are not valid.
+   **/
+   public MappedMapCrdt(Path directory, int segmentSize) throws IOException
+   {
+      super();
+
+      this.mappedLogs = new MapCrdtMappedLogs(directory, segmentSize, this.replicaId);
+      this.logs = this.mappedLogs;
+      this.replicaId = this.mappedLogs.getReplicaId();
+      reserveReplicaId(this.replicaId);
+   }
+
+   /**
+   * Creates a replica whose logs are kept in direct memory instead of files.
+   * @param segmentSize the size of the segments of memory, a power of two multiple of 8.
+   **/
+   protected MappedMapCrdt(int segmentSize)
+   {
+      super();
+
+      this.mappedLogs = new MapCrdtMappedLogs(segmentSize, this.replicaId);
+      this.logs = this.mappedLogs;
+   }
+
+   /**
+   * Forces the logs to the storage device and closes the files, the replica should not be used
+   * anymore.
+   * @throws IOException if the files cannot be closed.
+   **/
+   public synchronized void close() throws IOException
+   {
+      this.mappedLogs.close();
+   }
+
+   /**
+   * Creates a delta containing the log entries modified after a given local version, the records
+   * of the log are scanned from the last checkpoint before the version.
+   * @param since the version after which modifications are wanted, 0 to get the whole state.
+   * @return the delta going from the given version to the current version of the replica.
+   **/
+   public synchronized MapCrdtDelta delta(long since)
+   {
+      MapCrdtDelta delta = new MapCrdtDelta(this.replicaId, since, this.mappedLogs.getVersion());
+      this.mappedLogs.changesSince(since, delta.entries);
+      delta.acknowledgements.putAll(this.acknowledgements);
+      delta.versionVector = this.versionVector.copy();
+
+      return delta;
+   }
+
+   /**
+   * Gets the local version of the current replica.
+   * @return the version of the last modification of the logs, 0 if logs have never been modified.
+   **/
+   public synchronized long getVersion()
+   {
+      return this.mappedLogs.getVersion();
+   }
+
+   /**
+   * Forces the modifications of the logs to the storage device. Without it the modifications
+   * survive a crash of the process but not a crash of the system.
+   **/
+   public synchronized void sync()
+   {
+      this.mappedLogs.sync();
+   }
+
+   /**
+   * Stores a log entry in the mapped logs, which record the modification of its key, and in the
+   * hash tree and the indexes if they have been built, then publishes the change to the change
+   * feed if it is enabled. The version vector is not stored: once reopened, the replica only
+   * advances it again with its new operations and the deltas it merges.
+   * @param key the key of the log entry.
+   * @param info the new log entry of the key.
+   **/
+   protected void update(String key, MapCrdtLogEntry info)
+   {
+      MapCrdtChangeFeed changeFeed = this.changeFeed;
+      MapCrdtSortedIndex sortedIndex = this.sortedIndex;
+      MapCrdtDotIndex dotIndex = this.dotIndex;
+      MapCrdtLogEntry previous = this.tree != null || changeFeed != null || sortedIndex != null ||
+                                 dotIndex != null ? this.mappedLogs.get(key) : null;
+
+      if (this.tree != null)
+      {
+         this.tree.update(key, previous, info);
+      }
+
+      this.mappedLogs.store(key, info);
+
+      if (previous == null && sortedIndex != null)
+      {
+         sortedIndex.add(key);
+      }
+
+      if (changeFeed != null)
+      {
+         changeFeed.changed(key, previous, info);
+      }
+
+      if (dotIndex != null)
+      {
+         dotIndex.update(key, previous, info);
+      }
+
+      if (info.getDotReplicaId() == this.replicaId)
+      {
+         this.versionVector.advance(this.replicaId, info.getDotTime());
+      }
+   }
+}
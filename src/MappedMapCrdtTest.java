@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the map CRDT replica stored in memory-mapped files.
+**/
+public class MappedMapCrdtTest
+{
+   /**
+   * Small segment size used to make the records cross the segments.
+   **/
+   protected static final int SEGMENT_SIZE = 4096;
+
+   /**
+   * The directory containing the files of the replicas of a test.
+   **/
+   protected Path directory;
+
+   /**
+   * Default constructor.
+   **/
+   public MappedMapCrdtTest()
+   {
+   }
+
+   /**
+   * Creates the directory of the test.
+   **/
+   @Before
+   public void createDirectory() throws IOException
+   {
+      this.directory = Files.createTempDirectory("mapcrdt");
+   }
+
+   /**
+   * Deletes the directory of the test.
+   **/
+   @After
+   public void deleteDirectory() throws IOException
+   {
+      try (Stream<Path> files = Files.walk(this.directory))
+      {
+         Path[] paths = files.sorted(Comparator.reverseOrder()).toArray(Path[]::new);
+         for (Path path : paths)
+         {
+            Files.delete(path);
+         }
+      }
+   }
+
+   /**
+   * This test checks that a reopened replica has the same id, version and logs.
+   **/
+   @Test
+   public void testReopen() throws IOException
+   {
+      MappedMapCrdt replica = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.delete("KEY1");
+      replica.put("NULL", null);
+      int replicaId = replica.getReplicaId();
+      long version = replica.getVersion();
+      replica.close();
+
+      MappedMapCrdt reopened = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+
+      assertEquals(replicaId, reopened.getReplicaId());
+      assertEquals(version, reopened.getVersion());
+      assertNull(reopened.get("KEY1"));
+      assertEquals("VALUE2", reopened.get("KEY2"));
+      assertNull(reopened.get("NULL"));
+      assertEquals(3, reopened.logs.size());
+      assertTrue(new MapCrdt().getReplicaId() != replicaId);
+      reopened.close();
+   }
+
+   /**
+   * This test overwrites keys until the logs are compacted and the index is grown, and checks the
+   * state after reopening the replica.
+   **/
+   @Test
+   public void testCompaction() throws IOException
+   {
+      MappedMapCrdt replica = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      StringBuilder value = new StringBuilder();
+      for (int i = 0; i < 100; i++)
+      {
+         value.append("VALUE");
+      }
+
+      for (int round = 0; round < 10; round++)
+      {
+         for (int i = 0; i < 2000; i++)
+         {
+            replica.put("KEY" + i, value.toString() + round);
+         }
+      }
+      replica.close();
+
+      MappedMapCrdt reopened = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+
+      assertEquals(2000, reopened.logs.size());
+      for (int i = 0; i < 2000; i++)
+      {
+         assertEquals(value.toString() + 9, reopened.get("KEY" + i));
+      }
+      assertEquals(2000, reopened.delta(0).size());
+      reopened.close();
+   }
+
+   /**
+   * This test checks that deltas of a mapped replica only contain the modified keys, including
+   * after the replica has been reopened.
+   **/
+   @Test
+   public void testDelta() throws IOException
+   {
+      MappedMapCrdt replica = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      MapCrdt follower = new MapCrdt();
+
+      for (int i = 0; i < 5000; i++)
+      {
+         replica.put("KEY" + i, "VALUE" + i);
+      }
+      follower.mergeDelta(replica.delta(0));
+      replica.close();
+
+      replica = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      replica.put("KEY1", "NEW");
+      replica.delete("KEY2");
+      MapCrdtDelta delta = replica.delta(follower.getAcknowledgedVersion(replica.getReplicaId()));
+      follower.mergeDelta(delta);
+
+      assertEquals(2, delta.size());
+      assertEquals("NEW", follower.get("KEY1"));
+      assertNull(follower.get("KEY2"));
+      assertEquals("VALUE3", follower.get("KEY3"));
+      replica.close();
+   }
+
+   /**
+   * This test simulates a replica stopped before the header of its log has been updated, the
+   * records appended after the end recorded in the header are indexed again when reopening.
+   **/
+   @Test
+   public void testRecovery() throws IOException
+   {
+      MappedMapCrdt replica = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      replica.put("KEY1", "VALUE1");
+      long end = replica.mappedLogs.end;
+      replica.put("KEY2", "VALUE2");
+      replica.put("KEY1", "OTHER");
+      long version = replica.getVersion();
+      replica.close();
+
+      // The end of the log is moved back, as if the last two records had not been indexed.
+      Path log = this.directory.resolve("log.0");
+      try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE))
+      {
+         ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+         buffer.putLong(end).flip();
+         channel.write(buffer, 24);
+      }
+
+      MappedMapCrdt reopened = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+
+      assertEquals(version, reopened.getVersion());
+      assertEquals("OTHER", reopened.get("KEY1"));
+      assertEquals("VALUE2", reopened.get("KEY2"));
+      assertEquals(2, reopened.logs.size());
+      reopened.close();
+   }
+
+   /**
+   * This test checks that the recovery stops at a record whose checksum does not match, or whose
+   * length runs past the end of the file, and that the replica appends after the last valid record.
+   **/
+   @Test
+   public void testCorruptedRecovery() throws IOException
+   {
+      MappedMapCrdt replica = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      replica.put("KEY1", "VALUE1");
+      long end = replica.mappedLogs.end;
+      replica.put("KEY2", "VALUE2");
+      long last = replica.mappedLogs.end;
+      replica.put("KEY3", "VALUE3");
+      replica.close();
+
+      // The end of the log is moved back and a byte of the value of KEY2 is flipped.
+      Path log = this.directory.resolve("log.0");
+      long size = Files.size(log);
+      try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ,
+                                                  StandardOpenOption.WRITE))
+      {
+         ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+         buffer.putLong(end).flip();
+         channel.write(buffer, 24);
+
+         long position = last - 8;
+         buffer.clear().limit(1);
+         channel.read(buffer, position);
+         buffer.put(0, (byte) (buffer.get(0) ^ 1)).position(0);
+         channel.write(buffer, position);
+      }
+
+      MappedMapCrdt reopened = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      assertEquals("VALUE1", reopened.get("KEY1"));
+      assertNull(reopened.get("KEY2"));
+      assertNull(reopened.get("KEY3"));
+      assertEquals(1, reopened.logs.size());
+      reopened.put("KEY4", "VALUE4");
+      long next = reopened.mappedLogs.end;
+      reopened.close();
+
+      // A record whose length runs past the end of the file is not read, nor is the file grown.
+      try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE))
+      {
+         ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+         buffer.putInt(Integer.MAX_VALUE & ~7).flip();
+         channel.write(buffer, next);
+      }
+
+      reopened = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      assertEquals("VALUE4", reopened.get("KEY4"));
+      assertEquals(2, reopened.logs.size());
+      assertEquals(size, Files.size(log));
+      reopened.close();
+   }
+
+   /**
+   * This test merges a mapped replica with an in-memory replica in both directions.
+   **/
+   @Test
+   public void testMerge() throws IOException
+   {
+      MappedMapCrdt replica1 = new MappedMapCrdt(this.directory, SEGMENT_SIZE);
+      MapCrdt replica2 = new MapCrdt();
+
+      replica1.put("KEY1", "VALUE1");
+      replica2.put("KEY2", "VALUE2");
+      replica1.merge(replica2);
+      replica2.merge(replica1);
+
+      assertEquals("VALUE2", replica1.get("KEY2"));
+      assertEquals("VALUE1", replica2.get("KEY1"));
+      replica1.close();
+   }
+}
@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+* Represents a state-based map CRDT replica whose keys, values and log entries are stored outside
+* of the heap. The logs are the logs of MappedMapCrdt kept in direct memory instead of files: an
+* append-only log of records holding the UTF-8 bytes of the key and of the value inline, and an
+* open-addressing index of the last record of each key, so the heap footprint of the replica does
+* not depend on its number of keys. The logs are compacted as the logs of MappedMapCrdt are, and the
+* memory is released once the replica is closed or not referenced anymore.
+**/
+public class OffHeapMapCrdt extends MappedMapCrdt
+{
+   /**
+   * The default size of the segments of memory.
+   **/
+   public static final int DEFAULT_SEGMENT_SIZE = 1 << 22;
+
+   /**
+   * Default constructor.
+   **/
+   public OffHeapMapCrdt()
+   {
+      this(DEFAULT_SEGMENT_SIZE);
+   }
+
+   /**
+   * Creates a replica with a given size of the segments of memory.
+   * @param segmentSize the size of the segments of memory, a power of two multiple of 8.
+   **/
+   public OffHeapMapCrdt(int segmentSize)
+   {
+      super(segmentSize);
+   }
+
+   /**
+   * Releases the memory of the logs, the replica should not be used anymore.
+   **/
+   public synchronized void close()
+   {
+      try
+      {
+         this.mappedLogs.close();
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException("Cannot release the map CRDT logs.", e);
+      }
+   }
+}
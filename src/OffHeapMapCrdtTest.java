@@ -0,0 +1,108 @@
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the map CRDT replica stored in direct memory.
+**/
+public class OffHeapMapCrdtTest
+{
+   /**
+   * Small segment size used to make the records cross the segments.
+   **/
+   protected static final int SEGMENT_SIZE = 4096;
+
+   /**
+   * Default constructor.
+   **/
+   public OffHeapMapCrdtTest()
+   {
+   }
+
+   /**
+   * This test evaluates the scenario: Put Del Get, including a null value and non-ASCII strings.
+   **/
+   @Test
+   public void testPutDelGet()
+   {
+      OffHeapMapCrdt replica = new OffHeapMapCrdt(SEGMENT_SIZE);
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.delete("KEY1");
+      replica.put("NULL", null);
+      replica.put("cl\u00e9", "\u00e9t\u00e9 \u20ac \ud83d\ude00");
+
+      assertNull(replica.get("KEY1"));
+      assertTrue(replica.containsKey("KEY1") == false);
+      assertEquals("VALUE2", replica.get("KEY2"));
+      assertNull(replica.get("NULL"));
+      assertTrue(replica.containsKey("NULL"));
+      assertEquals("\u00e9t\u00e9 \u20ac \ud83d\ude00", replica.get("cl\u00e9"));
+      assertEquals(4, replica.logs.size());
+      replica.close();
+   }
+
+   /**
+   * This test overwrites keys until the logs are compacted and the index is grown, and checks that
+   * deltas only contain the keys modified since the given version.
+   **/
+   @Test
+   public void testCompaction()
+   {
+      OffHeapMapCrdt replica = new OffHeapMapCrdt(SEGMENT_SIZE);
+      StringBuilder value = new StringBuilder();
+      for (int i = 0; i < 100; i++)
+      {
+         value.append("VALUE");
+      }
+
+      for (int round = 0; round < 10; round++)
+      {
+         for (int i = 0; i < 2000; i++)
+         {
+            replica.put("KEY" + i, value.toString() + round);
+         }
+      }
+
+      assertTrue(replica.mappedLogs.generation > 0);
+      assertEquals(2000, replica.logs.size());
+      for (int i = 0; i < 2000; i++)
+      {
+         assertEquals(value.toString() + 9, replica.get("KEY" + i));
+      }
+      assertEquals(2000, replica.delta(0).size());
+
+      long version = replica.getVersion();
+      replica.put("KEY1", "NEW");
+      replica.delete("KEY2");
+      assertEquals(2, replica.delta(version).size());
+      replica.close();
+   }
+
+   /**
+   * This test merges an off-heap replica with an in-memory replica in both directions, concurrent
+   * modifications are solved as in the in-memory replica.
+   **/
+   @Test
+   public void testMerge()
+   {
+      OffHeapMapCrdt replica1 = new OffHeapMapCrdt(SEGMENT_SIZE);
+      MapCrdt replica2 = new MapCrdt();
+
+      replica1.put("KEY1", "VALUE1");
+      replica2.put("KEY2", "VALUE2");
+      replica1.merge(replica2);
+      replica2.merge(replica1);
+      replica2.delete("KEY1");
+      replica1.put("KEY2", "NEW");
+      replica1.mergeDelta(replica2.delta(0));
+      replica2.mergeDelta(replica1.delta(0));
+
+      assertNull(replica1.get("KEY1"));
+      assertNull(replica2.get("KEY1"));
+      assertEquals("NEW", replica1.get("KEY2"));
+      assertEquals("NEW", replica2.get("KEY2"));
+      replica1.close();
+   }
+}
@@ -0,0 +1,586 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+/**
+* Represents a state-based map CRDT replica whose key space is partitioned in shards. The keys are
+* spread by their hash over independent storages, each protected by its own lock and indexing the
+* local versions of its own keys, so that writers of different shards do not contend on the logs
+* nor on the version index. The only word every update still writes is the atomic version of the
+* replica, which numbers the modifications of all the shards. Merges split the entries of the other
+* replica by shard and merge the shards in parallel, shard to shard when the other replica is
+* sharded alike; the result is the same as the sequential merge since each key is merged while
+* holding the lock of its shard.
+* <p>
+* A shard can be given its own owning thread, which then runs every modification of the shard:
+* puts, deletes and merges are handed to the owner of the key's shard, so the entries of a shard
+* are always written by the same thread, whose cache keeps the shard's part of the logs and of the
+* version index. The calling thread waits until the owners have run its operation.
+**/
+public class ShardedMapCrdt extends ConcurrentMapCrdt
+{
+   /**
+   * The default number of shards.
+   **/
+   public static final int DEFAULT_SHARDS = ConcurrentMapCrdt.DEFAULT_STRIPES;
+
+   /**
+   * The storage of the logs, partitioned in shards, also referenced by the logs of the replica.
+   **/
+   protected MapCrdtShardedStorage shardedLogs;
+
+   /**
+   * The local version of the last modification of each key, one map per shard.
+   **/
+   protected List<Map<String, Long>> shardVersions;
+
+   /**
+   * The keys modified at each local version, one map per shard.
+   **/
+   protected List<NavigableMap<Long, String>> shardChanges;
+
+   /**
+   * The executor of the owning thread of each shard, null if the modifications are run by the
+   * calling threads and the merges on the common fork-join pool.
+   **/
+   protected ExecutorService[] owners;
+
+   /**
+   * The owning thread of each shard, null until the owner of the shard is started.
+   **/
+   protected Thread[] ownerThreads;
+
+   /**
+   * Default constructor.
+   **/
+   public ShardedMapCrdt()
+   {
+      this(DEFAULT_SHARDS, false);
+   }
+
+   /**
+   * Creates a replica with a given number of shards.
+   * @param nShards the number of shards, rounded up to a power of two.
+   * @param ownerThreads true if each shard should have its own owning thread.
+   **/
+   public ShardedMapCrdt(int nShards, boolean ownerThreads)
+   {
+      this(nShards, new MapCrdtHybridClock(), ownerThreads);
+   }
+
+   /**
+   * Creates a replica with a given number of shards and a given clock.
+   * @param nShards the number of shards, rounded up to a power of two.
+   * @param clock the clock giving the timestamps of the local operations.
+   * @param ownerThreads true if each shard should have its own owning thread.
+   **/
+   public ShardedMapCrdt(int nShards, MapCrdtClock clock, boolean ownerThreads)
+   {
+      this(nShards, clock, new MapCrdtShardedStorage(nShards), ownerThreads);
+   }
+
+   /**
+   * Creates a replica whose lock stripes are the shards of its storage.
+   * @param nShards the number of shards.
+   * @param clock the clock giving the timestamps of the local operations.
+   * @param storage the empty sharded storage of the logs.
+   * @param ownerThreads true if each shard should have its own owning thread.
+   **/
+   protected ShardedMapCrdt(int nShards, MapCrdtClock clock, MapCrdtShardedStorage storage,
+                            boolean ownerThreads)
+   {
+      super(nShards, clock, storage);
+
+      this.shardedLogs = storage;
+      this.shardVersions = new ArrayList<Map<String, Long>>();
+      this.shardChanges = new ArrayList<NavigableMap<Long, String>>();
+      for (int i = 0; i < storage.getShardCount(); i++)
+      {
+         this.shardVersions.add(new ConcurrentHashMap<String, Long>());
+         this.shardChanges.add(new ConcurrentSkipListMap<Long, String>());
+      }
+
+      if (ownerThreads == true)
+      {
+         this.owners = new ExecutorService[storage.getShardCount()];
+         this.ownerThreads = new Thread[storage.getShardCount()];
+         for (int i = 0; i < this.owners.length; i++)
+         {
+            final int shard = i;
+            this.owners[i] = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+               public Thread newThread(Runnable runnable)
+               {
+                  Thread thread = new Thread(runnable, "map-crdt-shard-" + shard);
+                  thread.setDaemon(true);
+                  ShardedMapCrdt.this.ownerThreads[shard] = thread;
+                  return thread;
+               }
+            });
+         }
+      }
+   }
+
+   /**
+   * Gets the keys whose last modification is between two local versions, shard after shard.
+   * @param from the version after which modifications are wanted.
+   * @param to the last version wanted, included.
+   * @return the versions and the keys modified between the two versions.
+   **/
+   protected Iterable<Map.Entry<Long, String>> changedBetween(long from, long to)
+   {
+      List<Iterable<Map.Entry<Long, String>>> shards =
+         new ArrayList<Iterable<Map.Entry<Long, String>>>();
+      for (NavigableMap<Long, String> changes : this.shardChanges)
+      {
+         shards.add(changes.subMap(from, false, to, true).entrySet());
+      }
+
+      return concat(shards);
+   }
+
+   /**
+   * Gets the keys modified after a given local version, shard after shard. A key modified again
+   * while it is walked moves to the end of the index of its shard, so it is never missed.
+   * @param since the version after which modifications are wanted.
+   * @return the keys modified after the version.
+   **/
+   protected Iterable<String> changedAfter(long since)
+   {
+      List<Iterable<String>> shards = new ArrayList<Iterable<String>>();
+      for (NavigableMap<Long, String> changes : this.shardChanges)
+      {
+         shards.add(changes.tailMap(since, false).values());
+      }
+
+      return concat(shards);
+   }
+
+   /**
+   * Gets the local version of the last modification of a given key.
+   * @param key the key that is targeted.
+   * @return the version of the key, null if the key is not in the logs.
+   **/
+   protected Long changeVersion(String key)
+   {
+      return this.shardVersions.get(this.shardedLogs.shardIndex(key)).get(key);
+   }
+
+   /**
+   * Stops the owning threads of the shards, the replica should not be modified anymore.
+   **/
+   public void close()
+   {
+      if (this.owners == null)
+      {
+         return;
+      }
+
+      for (ExecutorService owner : this.owners)
+      {
+         owner.shutdown();
+      }
+   }
+
+   /**
+   * Chains iterables, walking each of them lazily once the previous one is exhausted.
+   * @param parts the iterables.
+   * @return the iterable walking all the parts in order.
+   **/
+   protected static <T> Iterable<T> concat(final List<Iterable<T>> parts)
+   {
+      return new Iterable<T>()
+      {
+         public Iterator<T> iterator()
+         {
+            return new Iterator<T>()
+            {
+               protected int next = 0;
+               protected Iterator<T> current = null;
+
+               public boolean hasNext()
+               {
+                  while ((this.current == null || this.current.hasNext() == false) &&
+                         this.next < parts.size())
+                  {
+                     this.current = parts.get(this.next++).iterator();
+                  }
+
+                  return this.current != null && this.current.hasNext();
+               }
+
+               public T next()
+               {
+                  if (this.hasNext() == false)
+                  {
+                     throw new NoSuchElementException();
+                  }
+
+                  return this.current.next();
+               }
+            };
+         }
+      };
+   }
+
+   /**
+   * Deletes a given key, on the owning thread of its shard if the shards have owners.
+   * @param key the key that should be deleted.
+   **/
+   public void delete(final String key)
+   {
+      int shard = this.shardedLogs.shardIndex(key);
+
+      if (this.ownsShard(shard) == true)
+      {
+         super.delete(key);
+         return;
+      }
+
+      join(CompletableFuture.runAsync(new Runnable()
+      {
+         public void run()
+         {
+            ShardedMapCrdt.super.delete(key);
+         }
+      }, this.owners[shard]));
+   }
+
+   /**
+   * Deletes given keys. If the shards have owners, the keys are split by shard and each owner
+   * deletes the keys of its shard, with a timestamp of its own.
+   * @param keys the keys that should be deleted.
+   **/
+   public void deleteAll(Collection<String> keys)
+   {
+      if (this.owners == null)
+      {
+         super.deleteAll(keys);
+         return;
+      }
+
+      final List<List<String>> shards = new ArrayList<List<String>>();
+      for (int i = 0; i < this.getShardCount(); i++)
+      {
+         shards.add(new ArrayList<String>());
+      }
+
+      for (String key : keys)
+      {
+         shards.get(this.shardedLogs.shardIndex(key)).add(key);
+      }
+
+      Runnable[] tasks = new Runnable[shards.size()];
+      for (int i = 0; i < tasks.length; i++)
+      {
+         final List<String> shard = shards.get(i);
+         if (shard.isEmpty() == false)
+         {
+            tasks[i] = new Runnable()
+            {
+               public void run()
+               {
+                  ShardedMapCrdt.super.deleteAll(shard);
+               }
+            };
+         }
+      }
+
+      this.runShards(tasks);
+   }
+
+   /**
+   * Gets the executor running the merges of a shard.
+   * @param shard the index of the shard.
+   * @return the owning thread of the shard, or the common fork-join pool.
+   **/
+   protected Executor executor(int shard)
+   {
+      return this.owners == null ? ForkJoinPool.commonPool() : this.owners[shard];
+   }
+
+   /**
+   * Gets the number of shards.
+   * @return the number of shards, a power of two.
+   **/
+   public int getShardCount()
+   {
+      return this.shardedLogs.getShardCount();
+   }
+
+   /**
+   * Waits until a task run by an executor is done, throwing the runtime exception it has thrown.
+   * @param future the completion of the task.
+   **/
+   protected static void join(CompletableFuture<?> future)
+   {
+      try
+      {
+         future.join();
+      }
+      catch (CompletionException e)
+      {
+         if (e.getCause() instanceof RuntimeException)
+         {
+            throw (RuntimeException) e.getCause();
+         }
+         throw e;
+      }
+   }
+
+   /**
+   * Merges log entries coming from an other replica: the entries are split by shard, then the
+   * shards are merged in parallel, each entry while holding the lock of its shard.
+   * @param entries the log entries of the other replica, indexed by key.
+   **/
+   protected void mergeEntries(Iterable<Map.Entry<String, MapCrdtLogEntry>> entries)
+   {
+      final List<List<Map.Entry<String, MapCrdtLogEntry>>> shards =
+         new ArrayList<List<Map.Entry<String, MapCrdtLogEntry>>>();
+      for (int i = 0; i < this.getShardCount(); i++)
+      {
+         shards.add(new ArrayList<Map.Entry<String, MapCrdtLogEntry>>());
+      }
+
+      for (Map.Entry<String, MapCrdtLogEntry> entry : entries)
+      {
+         shards.get(this.shardedLogs.shardIndex(entry.getKey())).add(entry);
+      }
+
+      Runnable[] tasks = new Runnable[shards.size()];
+      for (int i = 0; i < tasks.length; i++)
+      {
+         final List<Map.Entry<String, MapCrdtLogEntry>> shard = shards.get(i);
+         if (shard.isEmpty() == false)
+         {
+            tasks[i] = new Runnable()
+            {
+               public void run()
+               {
+                  for (Map.Entry<String, MapCrdtLogEntry> entry : shard)
+                  {
+                     ShardedMapCrdt.this.mergeLocked(entry.getKey(), entry.getValue());
+                  }
+               }
+            };
+         }
+      }
+
+      this.runShards(tasks);
+   }
+
+   /**
+   * Merges the log entries of a snapshot of an other replica into the local replica. When the
+   * other replica is sharded alike, each shard of the other replica is merged into the same
+   * shard of the local replica, without splitting the entries first.
+   * @param snapshot the snapshot that should be merged with the local replica.
+   **/
+   public void mergeSnapshot(final MapCrdtSnapshot snapshot)
+   {
+      if ((snapshot.logs instanceof MapCrdtShardedStorage) == false ||
+          ((MapCrdtShardedStorage) snapshot.logs).getShardCount() != this.getShardCount())
+      {
+         super.mergeSnapshot(snapshot);
+         return;
+      }
+
+      MapCrdtMetrics metrics = this.metrics;
+      long start = metrics == null ? 0 : System.nanoTime();
+
+      final MapCrdtShardedStorage otherLogs = (MapCrdtShardedStorage) snapshot.logs;
+      Runnable[] tasks = new Runnable[this.getShardCount()];
+      for (int i = 0; i < tasks.length; i++)
+      {
+         final MapCrdtStorage shard = otherLogs.getShard(i);
+         tasks[i] = new Runnable()
+         {
+            public void run()
+            {
+               for (Map.Entry<String, MapCrdtLogEntry> entry : shard)
+               {
+                  // The entry the key had when the snapshot was taken, null if it had none.
+                  MapCrdtLogEntry info = snapshot.resolve(entry.getKey(), entry.getValue());
+
+                  if (info != null)
+                  {
+                     ShardedMapCrdt.this.mergeLocked(entry.getKey(), info);
+                  }
+               }
+            }
+         };
+      }
+      this.runShards(tasks);
+
+      if (metrics != null)
+      {
+         metrics.getMergeLatency().record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+   * Tells whether the calling thread can modify a shard itself.
+   * @param shard the index of the shard.
+   * @return true if the shards have no owners or if the calling thread owns the shard.
+   **/
+   protected boolean ownsShard(int shard)
+   {
+      return this.owners == null || this.ownerThreads[shard] == Thread.currentThread();
+   }
+
+   /**
+   * Puts a key value pair into the map, on the owning thread of its shard if the shards have
+   * owners.
+   * @param key the key that is targeted
+   * @param value the value that should be assigned to the key
+   **/
+   public void put(final String key, final String value)
+   {
+      int shard = this.shardedLogs.shardIndex(key);
+
+      if (this.ownsShard(shard) == true)
+      {
+         super.put(key, value);
+         return;
+      }
+
+      join(CompletableFuture.runAsync(new Runnable()
+      {
+         public void run()
+         {
+            ShardedMapCrdt.super.put(key, value);
+         }
+      }, this.owners[shard]));
+   }
+
+   /**
+   * Puts key value pairs into the map. If the shards have owners, the entries are split by shard
+   * and each owner puts the entries of its shard, with a timestamp of its own.
+   * @param entries the values that should be assigned to the keys.
+   **/
+   public void putAll(Map<String, String> entries)
+   {
+      if (this.owners == null)
+      {
+         super.putAll(entries);
+         return;
+      }
+
+      final List<Map<String, String>> shards = new ArrayList<Map<String, String>>();
+      for (int i = 0; i < this.getShardCount(); i++)
+      {
+         shards.add(new HashMap<String, String>());
+      }
+
+      for (Map.Entry<String, String> entry : entries.entrySet())
+      {
+         shards.get(this.shardedLogs.shardIndex(entry.getKey()))
+            .put(entry.getKey(), entry.getValue());
+      }
+
+      Runnable[] tasks = new Runnable[shards.size()];
+      for (int i = 0; i < tasks.length; i++)
+      {
+         final Map<String, String> shard = shards.get(i);
+         if (shard.isEmpty() == false)
+         {
+            tasks[i] = new Runnable()
+            {
+               public void run()
+               {
+                  ShardedMapCrdt.super.putAll(shard);
+               }
+            };
+         }
+      }
+
+      this.runShards(tasks);
+   }
+
+   /**
+   * Numbers the modification of a given key with the next local version, in the version index of
+   * the key's shard. The caller should hold the lock of the shard.
+   * @param key the key that has been modified.
+   **/
+   protected void recordChange(String key)
+   {
+      int shard = this.shardedLogs.shardIndex(key);
+      NavigableMap<Long, String> changes = this.shardChanges.get(shard);
+
+      long current = this.atomicVersion.incrementAndGet();
+      changes.put(current, key);
+      Long previous = this.shardVersions.get(shard).put(key, current);
+      if (previous != null)
+      {
+         changes.remove(previous);
+      }
+   }
+
+   /**
+   * Removes a reclaimed tombstone from the logs and from the version index of its shard, the
+   * caller should hold the lock of the shard.
+   * @param key the key of the tombstone.
+   * @param version the local version of the tombstone.
+   * @param info the tombstone.
+   **/
+   protected void remove(String key, long version, MapCrdtLogEntry info)
+   {
+      int shard = this.shardedLogs.shardIndex(key);
+      this.shardVersions.get(shard).remove(key);
+      this.shardChanges.get(shard).remove(version);
+
+      super.remove(key, version, info);
+   }
+
+   /**
+   * Runs a task per shard on the executors of the shards and waits until all of them are done.
+   * The task of a shard owned by the calling thread is run directly.
+   * @param tasks the task of each shard, null if the shard has nothing to run.
+   **/
+   protected void runShards(Runnable[] tasks)
+   {
+      List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+      int owned = -1;
+
+      for (int i = 0; i < tasks.length; i++)
+      {
+         if (tasks[i] != null && this.owners != null && this.ownsShard(i) == true)
+         {
+            owned = i;
+         }
+         else if (tasks[i] != null)
+         {
+            futures.add(CompletableFuture.runAsync(tasks[i], this.executor(i)));
+         }
+      }
+
+      if (owned >= 0)
+      {
+         tasks[owned].run();
+      }
+      join(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])));
+   }
+
+   /**
+   * Gets the index of the lock protecting a given key, the lock of the shard holding the key.
+   * @param key the key that is targeted.
+   * @return the index of the shard.
+   **/
+   protected int stripeIndex(String key)
+   {
+      return this.shardedLogs.shardIndex(key);
+   }
+}
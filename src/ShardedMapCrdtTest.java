@@ -0,0 +1,232 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+* Represents a suite test for the map CRDT replica partitioned in shards.
+**/
+public class ShardedMapCrdtTest
+{
+   /**
+   * The number of keys written by the tests.
+   **/
+   protected static final int N_KEYS = 5000;
+
+   /**
+   * Default constructor.
+   **/
+   public ShardedMapCrdtTest()
+   {
+   }
+
+   /**
+   * Fills a replica with keys of its own, keys shared with the other replicas and deleted keys.
+   * @param replica the replica.
+   * @param name the name of the replica, written in its values.
+   **/
+   protected static void fill(MapCrdt replica, String name)
+   {
+      for (int i = 0; i < N_KEYS; i++)
+      {
+         replica.put(name + i, "VALUE" + i);
+         replica.put("SHARED" + i, name + i);
+         if (i % 3 == 0)
+         {
+            replica.delete("SHARED" + i);
+         }
+      }
+   }
+
+   /**
+   * This test evaluates the scenario: Put Del Get, including batches, and checks that the keys
+   * are spread over the shards.
+   **/
+   @Test
+   public void testPutDelGet()
+   {
+      ShardedMapCrdt replica = new ShardedMapCrdt(6, false);
+      assertEquals(8, replica.getShardCount());
+
+      replica.put("KEY1", "VALUE1");
+      replica.put("KEY2", "VALUE2");
+      replica.delete("KEY1");
+      Map<String, String> entries = new HashMap<String, String>();
+      for (int i = 0; i < 100; i++)
+      {
+         entries.put("BATCH" + i, "VALUE" + i);
+      }
+      replica.putAll(entries);
+      replica.deleteAll(Arrays.asList("BATCH0", "BATCH1"));
+
+      assertNull(replica.get("KEY1"));
+      assertEquals("VALUE2", replica.get("KEY2"));
+      assertNull(replica.get("BATCH1"));
+      assertEquals("VALUE99", replica.get("BATCH99"));
+      assertEquals(102, replica.logs.size());
+      assertEquals(102, replica.delta(0).size());
+
+      for (int i = 0; i < replica.getShardCount(); i++)
+      {
+         assertTrue(replica.shardedLogs.getShard(i).size() > 0);
+      }
+   }
+
+   /**
+   * This test checks that merging shard to shard, splitting the entries of a replica sharded
+   * differently or not sharded, with or without owning threads, gives the same logs as the
+   * sequential merge.
+   **/
+   @Test
+   public void testMerge()
+   {
+      MapCrdt plain = new MapCrdt();
+      ShardedMapCrdt alike = new ShardedMapCrdt(16, false);
+      ShardedMapCrdt different = new ShardedMapCrdt(4, true);
+      fill(plain, "PLAIN");
+      fill(alike, "ALIKE");
+      fill(different, "DIFFERENT");
+
+      MapCrdt expected = new MapCrdt();
+      for (MapCrdt other : Arrays.asList(plain, alike, different))
+      {
+         expected.merge(other);
+      }
+
+      for (boolean ownerThreads : new boolean[] {false, true})
+      {
+         ShardedMapCrdt replica = new ShardedMapCrdt(16, ownerThreads);
+         fill(replica, "LOCAL");
+         expected.merge(replica);
+
+         for (MapCrdt other : Arrays.asList(plain, alike, different))
+         {
+            replica.merge(other);
+         }
+         replica.merge(expected);
+
+         assertEquals(expected.logs.size(), replica.logs.size());
+         assertEquals(expected.getMerkleTree().getRootHash(),
+                      replica.getMerkleTree().getRootHash());
+         assertEquals("VALUE7", replica.get("ALIKE7"));
+         assertNull(replica.get("SHARED3"));
+
+         // Merging the replica back gives the other replicas the same logs.
+         alike.merge(replica);
+         plain.merge(replica);
+         assertEquals(replica.getMerkleTree().getRootHash(), alike.getMerkleTree().getRootHash());
+         assertEquals(replica.getMerkleTree().getRootHash(), plain.getMerkleTree().getRootHash());
+         replica.close();
+      }
+
+      different.close();
+   }
+
+   /**
+   * This test checks that a delta is merged while a thread writes into the replica, and that the
+   * deltas of a sharded replica bring an other replica up to date.
+   **/
+   @Test
+   public void testDeltaWhileWriting() throws InterruptedException
+   {
+      final ShardedMapCrdt replica = new ShardedMapCrdt(8, true);
+      MapCrdt other = new MapCrdt();
+      fill(other, "OTHER");
+
+      Thread writer = new Thread()
+      {
+         public void run()
+         {
+            for (int i = 0; i < N_KEYS; i++)
+            {
+               replica.put("WRITER" + i, "VALUE" + i);
+            }
+         }
+      };
+      writer.start();
+      replica.mergeDelta(other.delta(0));
+      writer.join();
+
+      assertEquals(other.getVersion(), replica.getAcknowledgedVersion(other.getReplicaId()));
+      assertEquals("VALUE1", replica.get("OTHER1"));
+      assertEquals("VALUE1", replica.get("WRITER1"));
+
+      MapCrdt copy = new MapCrdt();
+      copy.mergeDelta(replica.delta(0));
+      long version = replica.getVersion();
+      replica.put("WRITER1", "NEW");
+      copy.mergeDelta(replica.delta(version));
+      assertEquals(replica.getMerkleTree().getRootHash(), copy.getMerkleTree().getRootHash());
+      assertEquals("NEW", copy.get("WRITER1"));
+
+      replica.close();
+   }
+
+   /**
+   * This test checks that the local operations run on the owning threads of the shards, and that
+   * the version indexes of the shards give the deltas and the reclaimed tombstones.
+   **/
+   @Test
+   public void testOwnerThreads()
+   {
+      final Set<String> threads = ConcurrentHashMap.newKeySet();
+      final MapCrdtHybridClock hybrid = new MapCrdtHybridClock();
+      MapCrdtClock clock = new MapCrdtClock()
+      {
+         public long now()
+         {
+            threads.add(Thread.currentThread().getName());
+            return hybrid.now();
+         }
+
+         public void update(long timestamp)
+         {
+            hybrid.update(timestamp);
+         }
+      };
+
+      ShardedMapCrdt replica = new ShardedMapCrdt(8, clock, true);
+      Map<String, String> entries = new HashMap<String, String>();
+      for (int i = 0; i < 100; i++)
+      {
+         replica.put("KEY" + i, "VALUE" + i);
+         entries.put("BATCH" + i, "VALUE" + i);
+      }
+      replica.putAll(entries);
+      replica.delete("KEY0");
+      replica.deleteAll(Arrays.asList("BATCH0", "BATCH1"));
+
+      assertTrue(threads.size() > 1);
+      for (String thread : threads)
+      {
+         assertTrue(thread.startsWith("map-crdt-shard-"));
+      }
+      assertNull(replica.get("KEY0"));
+      assertNull(replica.get("BATCH1"));
+      assertEquals("VALUE99", replica.get("BATCH99"));
+
+      long version = replica.getVersion();
+      assertEquals(203, version);
+      replica.put("KEY1", "NEW");
+      replica.put("KEY2", "NEW");
+      assertEquals(2, replica.delta(version).size());
+      assertEquals(200, replica.delta(0).size());
+
+      MapCrdt peer = new MapCrdt();
+      replica.addPeer(peer.getReplicaId());
+      peer.addPeer(replica.getReplicaId());
+      peer.mergeDelta(replica.delta(0));
+      replica.mergeDelta(peer.delta(0));
+      assertEquals(3, replica.collectGarbage());
+      assertNull(replica.changeVersion("KEY0"));
+      assertEquals(197, replica.delta(0).size());
+      assertEquals(peer.get("KEY1"), replica.get("KEY1"));
+
+      replica.close();
+   }
+}